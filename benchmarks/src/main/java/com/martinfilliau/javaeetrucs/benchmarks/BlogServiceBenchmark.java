@@ -0,0 +1,54 @@
+package com.martinfilliau.javaeetrucs.benchmarks;
+
+import com.martinfilliau.javaeetrucs.data.Post;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of {@link com.martinfilliau.javaeetrucs.services.BlogService}
+ * Each operation runs in its own transaction with a cold persistence context.
+ * @author martinfilliau
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BlogServiceBenchmark {
+
+    /**
+     * Whole subtree of a top level category
+     */
+    @Benchmark
+    public List<Post> getPostsForTopLevelCategoryAndChildren(final Dataset data) {
+        final long id = data.pick(data.topLevelCategoryIds);
+        return data.fixture.inTransaction(new Callable<List<Post>>() {
+            @Override
+            public List<Post> call() {
+                return data.blog.getPostsForCategoryAndChildren(id);
+            }
+        });
+    }
+
+    /**
+     * Category without children
+     */
+    @Benchmark
+    public List<Post> getPostsForLeafCategoryAndChildren(final Dataset data) {
+        final long id = data.pick(data.leafCategoryIds);
+        return data.fixture.inTransaction(new Callable<List<Post>>() {
+            @Override
+            public List<Post> call() {
+                return data.blog.getPostsForCategoryAndChildren(id);
+            }
+        });
+    }
+}
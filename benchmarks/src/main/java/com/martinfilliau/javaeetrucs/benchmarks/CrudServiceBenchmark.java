@@ -0,0 +1,160 @@
+package com.martinfilliau.javaeetrucs.benchmarks;
+
+import com.martinfilliau.javaeetrucs.data.Category;
+import com.martinfilliau.javaeetrucs.data.Post;
+import com.martinfilliau.javaeetrucs.services.utils.FetchPlan;
+import com.martinfilliau.javaeetrucs.services.utils.ReadOptions;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import static com.martinfilliau.javaeetrucs.services.utils.QueryParameter.*;
+
+/**
+ * Benchmarks of {@link com.martinfilliau.javaeetrucs.services.CrudService}
+ * Each operation runs in its own transaction with a cold persistence context,
+ * except the *WithoutTransaction ones.
+ * Run with -prof gc to compare the heap allocated by the read-only reads.
+ * @author martinfilliau
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CrudServiceBenchmark {
+
+    private static final int PAGE_SIZE = 20;
+
+    private static final ReadOptions LISTING = ReadOptions.READ_ONLY
+            .fetchSize(PAGE_SIZE)
+            .fetching(FetchPlan.named("postsWithCategories").batch("categories"));
+
+    /**
+     * Concurrent readers of the same category page
+     */
+    private static final int CROWD = 16;
+
+    @Benchmark
+    public Post create(final Dataset data) {
+        return data.fixture.inTransaction(new Callable<Post>() {
+            @Override
+            public Post call() {
+                return data.crud.create(data.newPost("benchmark", null));
+            }
+        });
+    }
+
+    @Benchmark
+    public Post get(final Dataset data) {
+        final Long id = data.pick(data.postIds);
+        return data.fixture.inTransaction(new Callable<Post>() {
+            @Override
+            public Post call() {
+                return data.crud.get(Post.class, id);
+            }
+        });
+    }
+
+    @Benchmark
+    public List<Post> getAllSubSet(final Dataset data) {
+        final int start = ThreadLocalRandom.current().nextInt(Math.max(1, data.postIds.size() - PAGE_SIZE));
+        return data.fixture.inTransaction(new Callable<List<Post>>() {
+            @Override
+            public List<Post> call() {
+                return data.crud.getAllSubSet(Post.class, start, PAGE_SIZE);
+            }
+        });
+    }
+
+    /**
+     * Page of posts with their categories, as a listing page does:
+     * each entity is snapshotted, then checked for changes at commit
+     */
+    @Benchmark
+    public List<Post> getAllSubSetWithCategories(final Dataset data) {
+        return getAllSubSetWithCategories(data, ReadOptions.DEFAULT.fetching(LISTING.getFetchPlan()));
+    }
+
+    @Benchmark
+    public List<Post> getAllSubSetReadOnly(final Dataset data) {
+        return getAllSubSetWithCategories(data, LISTING);
+    }
+
+    @Benchmark
+    public List<Post> getAllSubSetWithoutTransaction(final Dataset data) {
+        final int start = ThreadLocalRandom.current().nextInt(Math.max(1, data.postIds.size() - PAGE_SIZE));
+        return data.crud.getAllSubSet(Post.class, start, PAGE_SIZE, LISTING);
+    }
+
+    @Benchmark
+    public Post getReadOnly(final Dataset data) {
+        final Long id = data.pick(data.postIds);
+        return data.fixture.inTransaction(new Callable<Post>() {
+            @Override
+            public Post call() {
+                return data.crud.get(Post.class, id, ReadOptions.READ_ONLY);
+            }
+        });
+    }
+
+    @Benchmark
+    public Long countAll(final Dataset data) {
+        return data.fixture.inTransaction(new Callable<Long>() {
+            @Override
+            public Long call() {
+                return data.crud.countAll(Post.class);
+            }
+        });
+    }
+
+    @Benchmark
+    public List findWithNamedQuery(final Dataset data) {
+        final List<Long> ids = data.topLevelSubtreeIds.get(ThreadLocalRandom.current().nextInt(data.topLevelSubtreeIds.size()));
+        return data.fixture.inTransaction(new Callable<List>() {
+            @Override
+            public List call() {
+                return data.crud.findWithNamedQuery(Category.QUERY_GET_POSTS_FOR_CATEGORIES, with("categories", ids));
+            }
+        });
+    }
+
+    /**
+     * {@link #CROWD} threads reading the posts of the same category subtree,
+     * without transaction (the fixture's transactions are single-threaded)
+     */
+    @Benchmark
+    @Threads(CROWD)
+    public List popularCategory(Dataset data) {
+        return data.crud.findWithNamedQuery(Category.QUERY_GET_POSTS_FOR_CATEGORIES,
+                with("categories", data.topLevelSubtreeIds.get(0)), 0, 0, ReadOptions.READ_ONLY);
+    }
+
+    /**
+     * Same as {@link #popularCategory}, the concurrent identical queries share one execution
+     */
+    @Benchmark
+    @Threads(CROWD)
+    public List popularCategoryCoalesced(Dataset data) {
+        return data.crud.findWithNamedQuery(Category.QUERY_GET_POSTS_FOR_CATEGORIES,
+                with("categories", data.topLevelSubtreeIds.get(0)), 0, 0, ReadOptions.READ_ONLY.coalesced());
+    }
+
+    private List<Post> getAllSubSetWithCategories(final Dataset data, final ReadOptions options) {
+        final int start = ThreadLocalRandom.current().nextInt(Math.max(1, data.postIds.size() - PAGE_SIZE));
+        return data.fixture.inTransaction(new Callable<List<Post>>() {
+            @Override
+            public List<Post> call() {
+                return data.crud.getAllSubSet(Post.class, start, PAGE_SIZE, options);
+            }
+        });
+    }
+}
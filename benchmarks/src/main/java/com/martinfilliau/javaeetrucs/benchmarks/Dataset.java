@@ -0,0 +1,200 @@
+package com.martinfilliau.javaeetrucs.benchmarks;
+
+import com.martinfilliau.javaeetrucs.data.BaseEntity;
+import com.martinfilliau.javaeetrucs.data.Category;
+import com.martinfilliau.javaeetrucs.data.Post;
+import com.martinfilliau.javaeetrucs.services.BlogService;
+import com.martinfilliau.javaeetrucs.services.CrudService;
+import com.martinfilliau.javaeetrucs.services.ReadRouter;
+import com.martinfilliau.javaeetrucs.services.utils.ReadPolicy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Blog seeded in a fresh in-memory database for each trial.
+ * Shape: "fanOut" top level categories, each the root of a tree of "depth"
+ * levels where every category has "fanOut" children; "postsPerCategory" posts
+ * in each category, with a description of "descriptionSize" characters.
+ * Change the shape from the command line, e.g. -p depth=4 -p fanOut=8
+ * With -p readPolicy=ALWAYS (or another {@link ReadPolicy}) the seeded database
+ * is copied to the replica and reads are routed to it.
+ * @author martinfilliau
+ */
+@State(Scope.Benchmark)
+public class Dataset {
+
+    @Param({"3"})
+    public int depth;
+
+    @Param({"4"})
+    public int fanOut;
+
+    @Param({"10"})
+    public int postsPerCategory;
+
+    @Param({"1024"})
+    public int descriptionSize;
+
+    @Param({"NEVER"})
+    public String readPolicy;
+
+    public BenchmarkFixture fixture;
+
+    public CrudService crud;
+
+    public BlogService blog;
+
+    /**
+     * Ids of the top level categories
+     */
+    public final List<Long> topLevelCategoryIds = new ArrayList<Long>();
+
+    /**
+     * Ids of the categories without children
+     */
+    public final List<Long> leafCategoryIds = new ArrayList<Long>();
+
+    /**
+     * Ids of the subtree of each top level category, same order as topLevelCategoryIds
+     */
+    public final List<List<Long>> topLevelSubtreeIds = new ArrayList<List<Long>>();
+
+    public final List<Long> postIds = new ArrayList<Long>();
+
+    private final Random random = new Random(42);
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        fixture = new BenchmarkFixture();
+        crud = fixture.getBean(CrudService.class);
+        blog = fixture.getBean(BlogService.class);
+
+        List<Category> level = new ArrayList<Category>();
+        for (int i = 0; i < fanOut; i++) {
+            level.add(newCategory(null, "top-" + i));
+        }
+        createAll(level);
+        for (Category c : level) {
+            topLevelCategoryIds.add(c.getId());
+            topLevelSubtreeIds.add(new ArrayList<Long>(Collections.singletonList(c.getId())));
+        }
+        List<Category> all = new ArrayList<Category>(level);
+        List<Integer> rootIndex = new ArrayList<Integer>();
+        for (int i = 0; i < fanOut; i++) {
+            rootIndex.add(i);
+        }
+
+        for (int d = 1; d < depth; d++) {
+            List<Category> next = new ArrayList<Category>();
+            List<Integer> nextRootIndex = new ArrayList<Integer>();
+            for (int p = 0; p < level.size(); p++) {
+                for (int i = 0; i < fanOut; i++) {
+                    next.add(newCategory(level.get(p), level.get(p).getName() + "-" + i));
+                    nextRootIndex.add(rootIndex.get(p));
+                }
+            }
+            createAll(next);
+            for (int i = 0; i < next.size(); i++) {
+                topLevelSubtreeIds.get(nextRootIndex.get(i)).add(next.get(i).getId());
+            }
+            all.addAll(next);
+            level = next;
+            rootIndex = nextRootIndex;
+        }
+        for (Category c : level) {
+            leafCategoryIds.add(c.getId());
+        }
+
+        List<Post> posts = new ArrayList<Post>();
+        for (Category c : all) {
+            for (int i = 0; i < postsPerCategory; i++) {
+                posts.add(newPost(c.getName() + " #" + i, c));
+            }
+        }
+        createAll(posts);
+        for (Post p : posts) {
+            postIds.add(p.getId());
+        }
+
+        ReadPolicy policy = ReadPolicy.valueOf(readPolicy);
+        if (policy != ReadPolicy.NEVER) {
+            fixture.syncReplica();
+        }
+        fixture.getBean(ReadRouter.class).setPolicy(policy);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fixture.close();
+    }
+
+    /**
+     * Build a new, not persisted, post
+     * @param name - name of the post
+     * @param category - category of the post, may be null
+     * @return post
+     */
+    public Post newPost(String name, Category category) {
+        Post p = new Post();
+        p.setName(name);
+        p.setDescription(randomText(descriptionSize));
+        p.setPublishedAt(new GregorianCalendar(2005 + random.nextInt(6), random.nextInt(12), 1 + random.nextInt(28)).getTime());
+        List<Category> categories = new ArrayList<Category>();
+        if (category != null) {
+            categories.add(category);
+        }
+        p.setCategories(categories);
+        return p;
+    }
+
+    /**
+     * Pick a random element
+     * @param ids - list to pick from
+     * @return one of the elements
+     */
+    public Long pick(List<Long> ids) {
+        return ids.get(ThreadLocalRandom.current().nextInt(ids.size()));
+    }
+
+    private Category newCategory(Category parent, String name) {
+        Category c = new Category();
+        c.setName(name);
+        c.setParent(parent);
+        c.setChildren(new ArrayList<Category>());
+        return c;
+    }
+
+    private <T extends BaseEntity> void createAll(final List<T> entities) {
+        fixture.inTransaction(new Callable<Object>() {
+            @Override
+            public Object call() {
+                return crud.createAll(entities, CrudService.DEFAULT_BATCH_SIZE);
+            }
+        });
+    }
+
+    private String randomText(int size) {
+        StringBuilder text = new StringBuilder(size);
+        while (text.length() < size) {
+            text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        }
+        text.setLength(size);
+        return text.toString();
+    }
+
+    private static final String[] WORDS = {
+        "java", "enterprise", "edition", "persistence", "entity", "query", "cache", "index",
+        "transaction", "category", "post", "blog", "hibernate", "glassfish", "bean", "service"
+    };
+}
@@ -0,0 +1,212 @@
+package com.martinfilliau.javaeetrucs.benchmarks;
+
+import com.martinfilliau.javaeetrucs.data.Category;
+import com.martinfilliau.javaeetrucs.data.Post;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serialization of a post and of a category, as when they cross a cache,
+ * session replication or remote EJB boundary: the entities (Externalizable,
+ * associations as ids) against copies with the same fields and default Java
+ * serialization (the former format, which followed the whole graph).
+ * No database: the graph is built in memory, a top level category with
+ * {@link Graph#CHILDREN} children of {@link Graph#POSTS} posts each.
+ * The encoded sizes are printed at setup.
+ * @author martinfilliau
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializationBenchmark {
+
+    @Benchmark
+    public byte[] encodePost(Graph graph) throws Exception {
+        return encode(graph.post);
+    }
+
+    @Benchmark
+    public byte[] encodePostDefault(Graph graph) throws Exception {
+        return encode(graph.legacyPost);
+    }
+
+    @Benchmark
+    public Object decodePost(Graph graph) throws Exception {
+        return decode(graph.postBytes);
+    }
+
+    @Benchmark
+    public Object decodePostDefault(Graph graph) throws Exception {
+        return decode(graph.legacyPostBytes);
+    }
+
+    @Benchmark
+    public byte[] encodeCategory(Graph graph) throws Exception {
+        return encode(graph.category);
+    }
+
+    @Benchmark
+    public byte[] encodeCategoryDefault(Graph graph) throws Exception {
+        return encode(graph.legacyCategory);
+    }
+
+    @Benchmark
+    public Object decodeCategory(Graph graph) throws Exception {
+        return decode(graph.categoryBytes);
+    }
+
+    @Benchmark
+    public Object decodeCategoryDefault(Graph graph) throws Exception {
+        return decode(graph.legacyCategoryBytes);
+    }
+
+    static byte[] encode(Object o) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(o);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    static Object decode(byte[] bytes) throws IOException, ClassNotFoundException {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        try {
+            return in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * The same graph as entities and as default-serialized copies
+     */
+    @State(Scope.Benchmark)
+    public static class Graph {
+
+        static final int CHILDREN = 8;
+
+        static final int POSTS = 10;
+
+        Post post;
+        Category category;
+        LegacyPost legacyPost;
+        LegacyCategory legacyCategory;
+
+        byte[] postBytes;
+        byte[] categoryBytes;
+        byte[] legacyPostBytes;
+        byte[] legacyCategoryBytes;
+
+        @Setup
+        public void setUp() throws IOException {
+            char[] text = new char[1000];
+            Arrays.fill(text, 'x');
+            long nextId = 1;
+
+            category = newCategory(nextId++, "Top", null);
+            legacyCategory = new LegacyCategory(category);
+            for (int c = 0; c < CHILDREN; c++) {
+                Category child = newCategory(nextId++, "Child " + c, category);
+                category.getChildren().add(child);
+                LegacyCategory legacyChild = new LegacyCategory(child);
+                legacyChild.parent = legacyCategory;
+                legacyCategory.children.add(legacyChild);
+                for (int p = 0; p < POSTS; p++) {
+                    Post post = new Post();
+                    post.setId(nextId++);
+                    post.setName("Post " + p + " of child " + c);
+                    post.setDescription(new String(text));    // not shared by the streams
+                    post.setPublishedAt(new Date());
+                    post.setCategories(new ArrayList<Category>(Arrays.asList(child, category)));
+                    child.getPosts().add(post);
+                    category.getPosts().add(post);
+                    LegacyPost legacyPost = new LegacyPost(post);
+                    legacyPost.categories.add(legacyChild);
+                    legacyPost.categories.add(legacyCategory);
+                    legacyChild.posts.add(legacyPost);
+                    legacyCategory.posts.add(legacyPost);
+                }
+            }
+            post = category.getPosts().get(0);
+            legacyPost = legacyCategory.posts.get(0);
+
+            postBytes = encode(post);
+            categoryBytes = encode(category);
+            legacyPostBytes = encode(legacyPost);
+            legacyCategoryBytes = encode(legacyCategory);
+            System.out.println("Post: " + postBytes.length + " bytes (default serialization " + legacyPostBytes.length
+                    + "), category: " + categoryBytes.length + " bytes (default serialization " + legacyCategoryBytes.length + ")");
+        }
+
+        private static Category newCategory(long id, String name, Category parent) {
+            Category c = new Category();
+            c.setId(id);
+            c.setName(name);
+            c.setParent(parent);
+            c.setChildren(new ArrayList<Category>());
+            c.setPosts(new ArrayList<Post>());
+            return c;
+        }
+    }
+
+    /**
+     * Fields of {@link Post}, serialized by default
+     */
+    static class LegacyPost implements Serializable {
+        private static final long serialVersionUID = 1L;
+        Long id;
+        String name;
+        String description;
+        Date publishedAt;
+        List<LegacyCategory> categories = new ArrayList<LegacyCategory>();
+        long version;
+
+        LegacyPost(Post p) {
+            id = p.getId();
+            name = p.getName();
+            description = p.getDescription();
+            publishedAt = p.getPublishedAt();
+            version = p.getVersion();
+        }
+    }
+
+    /**
+     * Fields of {@link Category}, serialized by default
+     */
+    static class LegacyCategory implements Serializable {
+        private static final long serialVersionUID = 1L;
+        Long id;
+        String name;
+        LegacyCategory parent;
+        List<LegacyCategory> children = new ArrayList<LegacyCategory>();
+        List<LegacyPost> posts = new ArrayList<LegacyPost>();
+        long version;
+
+        LegacyCategory(Category c) {
+            id = c.getId();
+            name = c.getName();
+            version = c.getVersion();
+        }
+    }
+}
@@ -0,0 +1,5 @@
+/**
+ * JMH benchmarks of the services, run outside of any container against an
+ * in-memory H2 database (see {@link com.martinfilliau.javaeetrucs.benchmarks.BenchmarkFixture})
+ */
+package com.martinfilliau.javaeetrucs.benchmarks;
@@ -8,4 +8,22 @@ import java.io.Serializable;
  */
 public abstract class BaseEntity implements Serializable {
 
+    /**
+     * Only the id is set: read as an association of a serialized entity
+     * (see {@link ExternalFormat}), not persistent
+     */
+    private transient boolean reference;
+
+    /**
+     * Check if this entity only holds its id, the other fields being unknown
+     * (not null): read as an association of a serialized entity
+     * @return true for a reference
+     */
+    public boolean isReference() {
+        return reference;
+    }
+
+    void setReference(boolean reference) {
+        this.reference = reference;
+    }
 }
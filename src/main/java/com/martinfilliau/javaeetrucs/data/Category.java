@@ -1,13 +1,17 @@
 package com.martinfilliau.javaeetrucs.data;
 
-import java.io.Serializable;
+import com.martinfilliau.javaeetrucs.data.id.StripedTableGenerator;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.util.List;
 import javax.persistence.Basic;
+import javax.persistence.Cacheable;
 import javax.persistence.CascadeType;
 import javax.persistence.Entity;
 import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
-import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.JoinColumn;
 import javax.persistence.JoinTable;
@@ -16,21 +20,37 @@ import javax.persistence.ManyToOne;
 import javax.persistence.NamedQueries;
 import javax.persistence.NamedQuery;
 import javax.persistence.OneToMany;
+import javax.persistence.QueryHint;
 import javax.persistence.Table;
+import javax.persistence.Version;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
 
 @Entity
 @Table(name = "categories")
+@org.hibernate.annotations.Entity(dynamicUpdate = true)
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = Category.CACHE_REGION)
 @NamedQueries({
-    @NamedQuery(name=Category.QUERY_GET_TOP_LEVEL_CAT, query="SELECT c FROM Category AS c WHERE c.parent = NULL"),
-    @NamedQuery(name=Category.QUERY_GET_POSTS_FOR_CATEGORIES, query="SELECT DISTINCT p FROM Post p, IN(p.categories) c WHERE c.id IN (:categories) ORDER BY p.publishedAt DESC")
+    @NamedQuery(name=Category.QUERY_GET_TOP_LEVEL_CAT, query="SELECT c FROM Category AS c WHERE c.parent = NULL",
+        hints={@QueryHint(name="org.hibernate.cacheable", value="true"), @QueryHint(name="org.hibernate.cacheRegion", value=Category.QUERY_CACHE_REGION)}),
+    @NamedQuery(name=Category.QUERY_GET_POSTS_FOR_CATEGORIES, query="SELECT DISTINCT p FROM Post p, IN(p.categories) c WHERE c.id IN (:categories) ORDER BY p.publishedAt DESC"),
+    @NamedQuery(name=Category.QUERY_GET_NAMES, query="SELECT c.id, c.name, p.id FROM Category AS c LEFT JOIN c.parent AS p"),
+    @NamedQuery(name=Category.QUERY_GET_TREE, query="SELECT c.id, p.id FROM Category AS c LEFT JOIN c.parent AS p")
 })
 /**
  * JPA entity representing a category
+ * Serialized with {@link ExternalFormat}: parent, children and posts are
+ * written as ids, not as the whole graph.
  */
-public class Category extends BaseEntity implements Serializable {
+public class Category extends BaseEntity implements Externalizable {
     private static final long serialVersionUID = 1L;
     @Id
-    @GeneratedValue(strategy = GenerationType.AUTO)
+    @GeneratedValue(generator = "categories_id")
+    @GenericGenerator(name = "categories_id", strategy = StripedTableGenerator.STRATEGY,
+        parameters = @Parameter(name = "segment_value", value = "categories"))
     private Long id;
 
     @Basic
@@ -40,8 +60,9 @@ public class Category extends BaseEntity implements Serializable {
     @JoinColumn(name = "parent_id")
     private Category parent;
 
-    @OneToMany(cascade = CascadeType.ALL, fetch = FetchType.EAGER)
+    @OneToMany(cascade = CascadeType.ALL, fetch = FetchType.LAZY)    // see FetchPlan
     @JoinColumn(name = "parent_id")
+    @Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = Category.CHILDREN_CACHE_REGION)
     private List<Category> children;
 
     @ManyToMany
@@ -49,6 +70,12 @@ public class Category extends BaseEntity implements Serializable {
         inverseJoinColumns=@JoinColumn(name="category_id"))
     private List<Post> posts;
 
+    /**
+     * Checked and incremented by every update (optimistic locking)
+     */
+    @Version
+    private long version;
+
 
     /**
      * Add a new category as child of the current category
@@ -71,10 +98,39 @@ public class Category extends BaseEntity implements Serializable {
     }
 
 
+    /* Cache */
+
+    /**
+     * Second-level cache region of categories (see ehcache.xml)
+     */
+    public static final String CACHE_REGION = "category";
+
+    /**
+     * Second-level cache region of the children of categories (see ehcache.xml)
+     */
+    public static final String CHILDREN_CACHE_REGION = "category.children";
+
+    /**
+     * Role of the children collection, to evict it from the cache
+     */
+    public static final String CHILDREN_ROLE = "com.martinfilliau.javaeetrucs.data.Category.children";
+
+    /**
+     * Role of the posts collection
+     */
+    public static final String POSTS_ROLE = "com.martinfilliau.javaeetrucs.data.Category.posts";
+
+    /**
+     * Query cache region of the cacheable queries on categories (see ehcache.xml)
+     */
+    public static final String QUERY_CACHE_REGION = "query.category";
+
+
     /* Queries */
 
     /**
      * Get all top level categories
+     * Cached in {@link #QUERY_CACHE_REGION}
      */
     public static final String QUERY_GET_TOP_LEVEL_CAT = "Category.getTopLevel";
 
@@ -84,6 +140,49 @@ public class Category extends BaseEntity implements Serializable {
      */
     public static final String QUERY_GET_POSTS_FOR_CATEGORIES = "Category.getPostsForCategories";
 
+    /**
+     * Get the whole hierarchy as (id, parent id) pairs
+     * Parent id is null for top level categories
+     * Not cached: CategoryTreeCache must read what is committed
+     */
+    public static final String QUERY_GET_TREE = "Category.getTree";
+
+    /**
+     * Get (id, name, parent id) of all categories
+     */
+    public static final String QUERY_GET_NAMES = "Category.getNames";
+
+
+    /* Serialization */
+
+    /**
+     * Version of the binary format, to increment when fields are added
+     * (2: null collections told apart from collections not loaded)
+     */
+    private static final byte FORMAT_VERSION = 2;
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeByte(FORMAT_VERSION);
+        ExternalFormat.writeId(out, id);
+        out.writeLong(version);
+        ExternalFormat.writeString(out, name);
+        ExternalFormat.writeReference(out, parent);
+        ExternalFormat.writeReferences(out, children);
+        ExternalFormat.writeReferences(out, posts);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        ExternalFormat.readVersion(in, Category.class, FORMAT_VERSION);
+        id = ExternalFormat.readId(in);
+        version = in.readLong();
+        name = ExternalFormat.readString(in);
+        parent = ExternalFormat.readCategoryReference(in);
+        children = ExternalFormat.readCategoryReferences(in, CHILDREN_ROLE);
+        posts = ExternalFormat.readPostReferences(in, POSTS_ROLE);
+    }
+
 
     /* GETTERs and SETTERs */
 
@@ -142,6 +241,14 @@ public class Category extends BaseEntity implements Serializable {
     public void setPosts(List<Post> posts) {
         this.posts = posts;
     }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
     
 
     /* Overriden methods */
@@ -0,0 +1,207 @@
+package com.martinfilliau.javaeetrucs.data;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.NotSerializableException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import org.hibernate.Hibernate;
+import org.hibernate.proxy.HibernateProxy;
+
+/**
+ * Binary encoding shared by the {@link java.io.Externalizable} entities:
+ * <ul>
+ * <li>each entity starts with a format version (byte), checked when read;</li>
+ * <li>nullable values are preceded by a presence flag, strings are UTF-8
+ * (no 64 KB limit, unlike writeUTF), dates are milliseconds;</li>
+ * <li>associations are written as ids only, and read as references: entities
+ * with only their id set ({@link BaseEntity#isReference()}, load them to get
+ * the rest);</li>
+ * <li>collections not loaded yet (lazy) are not written, and read as a
+ * {@link NotLoadedList} ("unknown", not empty).</li>
+ * </ul>
+ * @author martinfilliau
+ */
+final class ExternalFormat {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Size written instead of the ids of a collection which was not loaded
+     */
+    private static final int NOT_LOADED = -1;
+
+    /**
+     * Size written for a null collection (e.g. a new entity)
+     */
+    private static final int NULL = -2;
+
+    private ExternalFormat() {
+    }
+
+    /**
+     * Check the format version of an entity being read
+     * @param in - input
+     * @param type - class of the entity, for the message
+     * @param current - highest version known
+     * @return version read
+     * @throws IOException if the version is unknown
+     */
+    static byte readVersion(ObjectInput in, Class<?> type, byte current) throws IOException {
+        byte version = in.readByte();
+        if (version < 1 || version > current) {
+            throw new InvalidObjectException("Unknown format version " + version + " of " + type.getName());
+        }
+        return version;
+    }
+
+    static void writeString(ObjectOutput out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(ObjectInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    static void writeId(ObjectOutput out, Long id) throws IOException {
+        out.writeBoolean(id != null);
+        if (id != null) {
+            out.writeLong(id);
+        }
+    }
+
+    static Long readId(ObjectInput in) throws IOException {
+        return in.readBoolean() ? in.readLong() : null;
+    }
+
+    static void writeDate(ObjectOutput out, Date date) throws IOException {
+        out.writeBoolean(date != null);
+        if (date != null) {
+            out.writeLong(date.getTime());
+        }
+    }
+
+    static Date readDate(ObjectInput in) throws IOException {
+        return in.readBoolean() ? new Date(in.readLong()) : null;
+    }
+
+    /**
+     * Write a reference to a category
+     * @param out - output
+     * @param category - category, possibly an uninitialized proxy, or null
+     */
+    static void writeReference(ObjectOutput out, Category category) throws IOException {
+        writeId(out, category == null ? null : idOf(category));
+    }
+
+    static Category readCategoryReference(ObjectInput in) throws IOException {
+        Long id = readId(in);
+        return id == null ? null : categoryReference(id);
+    }
+
+    /**
+     * Write the ids of a collection of entities, or {@link #NOT_LOADED}
+     * @param out - output
+     * @param entities - collection, possibly a lazy one
+     */
+    static void writeReferences(ObjectOutput out, Collection<? extends BaseEntity> entities) throws IOException {
+        if (entities == null) {
+            out.writeInt(NULL);
+            return;
+        }
+        if (entities instanceof NotLoadedList || !Hibernate.isInitialized(entities)) {
+            out.writeInt(NOT_LOADED);
+            return;
+        }
+        out.writeInt(entities.size());
+        for (BaseEntity entity : entities) {
+            out.writeLong(idOf(entity));
+        }
+    }
+
+    static List<Category> readCategoryReferences(ObjectInput in, String role) throws IOException {
+        int size = in.readInt();
+        if (size < 0) {
+            return size == NOT_LOADED ? new NotLoadedList<Category>(role) : null;
+        }
+        List<Category> categories = new ArrayList<Category>(size);
+        for (int i = 0; i < size; i++) {
+            categories.add(categoryReference(in.readLong()));
+        }
+        return categories;
+    }
+
+    static List<Post> readPostReferences(ObjectInput in, String role) throws IOException {
+        int size = in.readInt();
+        if (size < 0) {
+            return size == NOT_LOADED ? new NotLoadedList<Post>(role) : null;
+        }
+        List<Post> posts = new ArrayList<Post>(size);
+        for (int i = 0; i < size; i++) {
+            posts.add(postReference(in.readLong()));
+        }
+        return posts;
+    }
+
+    /**
+     * Get a category standing for its id only, its collections unknown
+     * @param id - id of the category
+     * @return reference
+     */
+    private static Category categoryReference(long id) {
+        Category category = new Category();
+        category.setId(id);
+        category.setChildren(new NotLoadedList<Category>(Category.CHILDREN_ROLE));
+        category.setPosts(new NotLoadedList<Post>(Category.POSTS_ROLE));
+        category.setReference(true);
+        return category;
+    }
+
+    private static Post postReference(long id) {
+        Post post = new Post();
+        post.setId(id);
+        post.setCategories(new NotLoadedList<Category>(Post.CATEGORIES_ROLE));
+        post.setReference(true);
+        return post;
+    }
+
+    /**
+     * Get the id of an entity without loading it if it is a proxy
+     * (getId() would initialize it, entities use field access)
+     * @param entity - entity or proxy
+     * @return id
+     */
+    private static Long idOf(BaseEntity entity) throws IOException {
+        Object id;
+        if (entity instanceof HibernateProxy) {
+            id = ((HibernateProxy) entity).getHibernateLazyInitializer().getIdentifier();
+        } else if (entity instanceof Category) {
+            id = ((Category) entity).getId();
+        } else if (entity instanceof Post) {
+            id = ((Post) entity).getId();
+        } else {
+            throw new NotSerializableException("Cannot reference a " + entity.getClass().getName());
+        }
+        if (id == null) {
+            throw new NotSerializableException("Cannot reference a transient (unsaved) " + entity.getClass().getName());
+        }
+        return (Long) id;
+    }
+}
@@ -0,0 +1,78 @@
+package com.martinfilliau.javaeetrucs.data;
+
+import java.io.Serializable;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+/**
+ * JPA entity that records how far an import file has been committed,
+ * written in the same transaction as the imported entities
+ * @author martinfilliau
+ */
+@Entity
+@Table(name="import_checkpoints")
+public class ImportCheckpoint extends BaseEntity implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Canonical path of the imported file
+     */
+    @Id
+    private String source;
+
+    /**
+     * Number of the last line committed
+     */
+    private long line;
+
+    public ImportCheckpoint() {
+    }
+
+    public ImportCheckpoint(String source, long line) {
+        this.source = source;
+        this.line = line;
+    }
+
+
+    /* GETTERs and SETTERs */
+
+    public String getSource() {
+        return source;
+    }
+
+    public void setSource(String source) {
+        this.source = source;
+    }
+
+    public long getLine() {
+        return line;
+    }
+
+    public void setLine(long line) {
+        this.line = line;
+    }
+
+
+    /* Overriden methods */
+
+    @Override
+    public int hashCode() {
+        return source != null ? source.hashCode() : 0;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (!(object instanceof ImportCheckpoint)) {
+            return false;
+        }
+        ImportCheckpoint other = (ImportCheckpoint) object;
+        return source != null ? source.equals(other.source) : other.source == null;
+    }
+
+    @Override
+    public String toString() {
+        return "data.ImportCheckpoint[source=" + source + ", line=" + line + "]";
+    }
+
+}
@@ -0,0 +1,62 @@
+package com.martinfilliau.javaeetrucs.data;
+
+import java.util.AbstractList;
+import org.hibernate.LazyInitializationException;
+
+/**
+ * Value of a lazy collection which was not loaded when its owner was
+ * serialized (see {@link ExternalFormat}): its content is unknown, it is NOT
+ * empty. Any access throws a {@link LazyInitializationException}, as the
+ * uninitialized collection would have done once detached.
+ * Entities holding one cannot be merged (merge would take it as an empty
+ * collection and delete the rows): CrudService.update refuses them.
+ * @author martinfilliau
+ */
+public final class NotLoadedList<E> extends AbstractList<E> {
+
+    private final String role;
+
+    /**
+     * @param role - owner and name of the collection, for the messages
+     */
+    NotLoadedList(String role) {
+        this.role = role;
+    }
+
+    @Override
+    public E get(int index) {
+        throw notLoaded();
+    }
+
+    @Override
+    public int size() {
+        throw notLoaded();
+    }
+
+    /**
+     * Get the collection this list stands for
+     * @return role, e.g. "Post.categories"
+     */
+    public String getRole() {
+        return role;
+    }
+
+    private LazyInitializationException notLoaded() {
+        return new LazyInitializationException(role + " was not loaded when its owner was serialized");
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o;
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(this);
+    }
+
+    @Override
+    public String toString() {
+        return "NotLoadedList[" + role + "]";
+    }
+}
@@ -1,29 +1,55 @@
 package com.martinfilliau.javaeetrucs.data;
 
-import java.io.Serializable;
+import com.martinfilliau.javaeetrucs.data.id.StripedTableGenerator;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.util.Date;
 import java.util.List;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
-import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.JoinColumn;
 import javax.persistence.JoinTable;
 import javax.persistence.Lob;
 import javax.persistence.ManyToMany;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
 import javax.persistence.Table;
 import javax.persistence.Temporal;
+import javax.persistence.Version;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
 
 /**
  * JPA entity that represents a blog post
+ * Serialized with {@link ExternalFormat}: categories are written as ids.
  * @author martinfilliau
  */
 @Entity
 @Table(name="posts")
-public class Post extends BaseEntity implements Serializable {
+@org.hibernate.annotations.Entity(dynamicUpdate = true)
+@NamedQueries({
+    @NamedQuery(name=Post.QUERY_GET_PAGE, query="SELECT p FROM Post p WHERE p.publishedAt < :lastPublishedAt OR (p.publishedAt = :lastPublishedAt AND p.id < :lastId) ORDER BY p.publishedAt DESC, p.id DESC"),
+    @NamedQuery(name=Post.QUERY_GET_ALL_SUMMARIES, query="SELECT NEW com.martinfilliau.javaeetrucs.data.PostSummary(p.id, p.name, p.publishedAt) FROM Post p ORDER BY p.publishedAt DESC, p.id DESC"),
+    @NamedQuery(name=Post.QUERY_GET_SUMMARIES, query="SELECT NEW com.martinfilliau.javaeetrucs.data.PostSummary(p.id, p.name, p.publishedAt) FROM Post p WHERE p.id IN (:posts)"),
+    @NamedQuery(name=Post.QUERY_GET_BY_IDS, query="SELECT p FROM Post p WHERE p.id IN (:posts)"),
+    @NamedQuery(name=Post.QUERY_GET_ALL_PUBLICATION_DATES, query="SELECT p.id, p.publishedAt FROM Post p"),
+    @NamedQuery(name=Post.QUERY_GET_ALL_CATEGORY_IDS, query="SELECT p.id, c.id FROM Post p JOIN p.categories c"),
+    @NamedQuery(name=Post.QUERY_GET_CATEGORY_IDS, query="SELECT p.id, c.id FROM Post p JOIN p.categories c WHERE p.id IN (:posts)"),
+    @NamedQuery(name=Post.QUERY_GET_DESCRIPTION, query="SELECT p.description FROM Post p WHERE p.id = :id"),
+    @NamedQuery(name=Post.QUERY_GET_VERSIONED_DESCRIPTION, query="SELECT p.version, p.description FROM Post p WHERE p.id = :id"),
+    @NamedQuery(name=Post.QUERY_GET_VERSION, query="SELECT p.version FROM Post p WHERE p.id = :id"),
+    @NamedQuery(name=Post.QUERY_GET_ALL_VERSIONS, query="SELECT p.id, p.version FROM Post p"),
+    @NamedQuery(name=Post.QUERY_GET_ALL_IDS_WITH_CATEGORY_IDS, query="SELECT p.id, c.id FROM Post p LEFT JOIN p.categories c")
+})
+public class Post extends BaseEntity implements Externalizable {
     private static final long serialVersionUID = 1L;
     @Id
-    @GeneratedValue(strategy = GenerationType.AUTO)
+    @GeneratedValue(generator = "posts_id")
+    @GenericGenerator(name = "posts_id", strategy = StripedTableGenerator.STRATEGY,
+        parameters = @Parameter(name = "segment_value", value = "posts"))
     private Long id;
 
     private String name;
@@ -39,6 +65,113 @@ public class Post extends BaseEntity implements Serializable {
         inverseJoinColumns=@JoinColumn(name="post_id"))
     private List<Category> categories;
 
+    /**
+     * Checked and incremented by every update (optimistic locking)
+     */
+    @Version
+    private long version;
+
+
+    /* Queries */
+
+    /**
+     * Get a page of posts, most recent first, after a
+     * {@link com.martinfilliau.javaeetrucs.services.utils.PostSeekKey} cursor
+     */
+    public static final String QUERY_GET_PAGE = "Post.getPage";
+
+    /**
+     * Get all posts as {@link PostSummary}s (without categories), most recent first
+     */
+    public static final String QUERY_GET_ALL_SUMMARIES = "Post.getAllSummaries";
+
+    /**
+     * Get the given posts as {@link PostSummary}s (without categories), in no particular order
+     */
+    public static final String QUERY_GET_SUMMARIES = "Post.getSummaries";
+
+    /**
+     * Get the given posts, in no particular order
+     */
+    public static final String QUERY_GET_BY_IDS = "Post.getByIds";
+
+    /**
+     * Get (post id, publication date) pairs for all posts
+     */
+    public static final String QUERY_GET_ALL_PUBLICATION_DATES = "Post.getAllPublicationDates";
+
+    /**
+     * Get (post id, category id) pairs for all posts
+     */
+    public static final String QUERY_GET_ALL_CATEGORY_IDS = "Post.getAllCategoryIds";
+
+    /**
+     * Get (post id, category id) pairs for the given posts
+     */
+    public static final String QUERY_GET_CATEGORY_IDS = "Post.getCategoryIds";
+
+    /**
+     * Get the description of a post
+     */
+    public static final String QUERY_GET_DESCRIPTION = "Post.getDescription";
+
+    /**
+     * Get (version, description) of a post
+     */
+    public static final String QUERY_GET_VERSIONED_DESCRIPTION = "Post.getVersionedDescription";
+
+    /**
+     * Get the version of a post
+     */
+    public static final String QUERY_GET_VERSION = "Post.getVersion";
+
+    /**
+     * Get the versions of all posts, as rows of (id, version)
+     */
+    public static final String QUERY_GET_ALL_VERSIONS = "Post.getAllVersions";
+
+    /**
+     * Get all posts with the ids of their categories, as rows of
+     * (post id, category id), category id null for posts without category
+     */
+    public static final String QUERY_GET_ALL_IDS_WITH_CATEGORY_IDS = "Post.getAllIdsWithCategoryIds";
+
+
+    /* Serialization */
+
+    /**
+     * Role of the categories collection
+     */
+    public static final String CATEGORIES_ROLE = "com.martinfilliau.javaeetrucs.data.Post.categories";
+
+    /**
+     * Version of the binary format, to increment when fields are added
+     * (2: null collections told apart from collections not loaded)
+     */
+    private static final byte FORMAT_VERSION = 2;
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeByte(FORMAT_VERSION);
+        ExternalFormat.writeId(out, id);
+        out.writeLong(version);
+        ExternalFormat.writeString(out, name);
+        ExternalFormat.writeString(out, description);
+        ExternalFormat.writeDate(out, publishedAt);
+        ExternalFormat.writeReferences(out, categories);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        ExternalFormat.readVersion(in, Post.class, FORMAT_VERSION);
+        id = ExternalFormat.readId(in);
+        version = in.readLong();
+        name = ExternalFormat.readString(in);
+        description = ExternalFormat.readString(in);
+        publishedAt = ExternalFormat.readDate(in);
+        categories = ExternalFormat.readCategoryReferences(in, CATEGORIES_ROLE);
+    }
+
 
     /* GETTERs and SETTERs */
 
@@ -82,6 +215,14 @@ public class Post extends BaseEntity implements Serializable {
         this.categories = categories;
     }
 
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
 
     /* Overriden methods */
 
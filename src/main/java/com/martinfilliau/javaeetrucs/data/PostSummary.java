@@ -0,0 +1,88 @@
+package com.martinfilliau.javaeetrucs.data;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Read-only projection of a {@link Post} for listings:
+ * everything but the description, which is loaded on demand.
+ * Not an entity, built by "SELECT NEW" named queries.
+ * @author martinfilliau
+ */
+public final class PostSummary implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Long id;
+
+    private final String name;
+
+    private final Date publishedAt;
+
+    private final List<Long> categoryIds;
+
+    /**
+     * Used by JPQL constructor expressions, without categories
+     * @param id - id of the post
+     * @param name - name of the post
+     * @param publishedAt - publication date of the post
+     */
+    public PostSummary(Long id, String name, Date publishedAt) {
+        this(id, name, publishedAt, Collections.<Long>emptyList());
+    }
+
+    /**
+     * @param id - id of the post
+     * @param name - name of the post
+     * @param publishedAt - publication date of the post
+     * @param categoryIds - ids of the categories of the post
+     */
+    public PostSummary(Long id, String name, Date publishedAt, List<Long> categoryIds) {
+        this.id = id;
+        this.name = name;
+        this.publishedAt = publishedAt != null ? new Date(publishedAt.getTime()) : null;
+        this.categoryIds = Collections.unmodifiableList(categoryIds);
+    }
+
+    /* GETTERs */
+
+    public Long getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Date getPublishedAt() {
+        return publishedAt != null ? new Date(publishedAt.getTime()) : null;
+    }
+
+    public List<Long> getCategoryIds() {
+        return categoryIds;
+    }
+
+
+    /* Overriden methods */
+
+    @Override
+    public int hashCode() {
+        return id != null ? id.hashCode() : 0;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (!(object instanceof PostSummary)) {
+            return false;
+        }
+        PostSummary other = (PostSummary) object;
+        return this.id == null ? other.id == null : this.id.equals(other.id);
+    }
+
+    @Override
+    public String toString() {
+        return "data.PostSummary[id=" + id + "]";
+    }
+}
@@ -0,0 +1,66 @@
+package com.martinfilliau.javaeetrucs.data.id;
+
+import java.io.Serializable;
+import org.hibernate.id.IntegralDataTypeHolder;
+import org.hibernate.id.enhanced.AccessCallback;
+import org.hibernate.id.enhanced.OptimizerFactory;
+
+/**
+ * "pooled-lo" optimizer with several independent blocks of IDs.
+ * Each value read from the database is the low bound of a block of
+ * incrementSize IDs. Every stripe owns its own block and is locked on its
+ * own, so concurrent threads rarely wait for each other; a stripe only goes
+ * to the database when its block is exhausted.
+ * IDs are unique but, with several stripes, not allocated in insertion order.
+ * @author martinfilliau
+ */
+public class StripedPooledLoOptimizer extends OptimizerFactory.OptimizerSupport {
+
+    private static final int STRIPES = 8;      // power of 2
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    private volatile IntegralDataTypeHolder lastSourceValue;
+
+    public StripedPooledLoOptimizer(Class returnClass, int incrementSize) {
+        super(returnClass, incrementSize);
+        if (incrementSize < 1) {
+            throw new IllegalArgumentException("increment_size must be > 0, got " + incrementSize);
+        }
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    @Override
+    public Serializable generate(AccessCallback callback) {
+        Stripe stripe = stripes[(int) (Thread.currentThread().getId() & (STRIPES - 1))];
+        synchronized (stripe) {
+            if (stripe.next == null || !stripe.next.lt(stripe.end)) {
+                IntegralDataTypeHolder low = callback.getNextValue();
+                lastSourceValue = low;
+                stripe.next = low.copy();
+                stripe.end = low.copy().add(incrementSize);
+            }
+            return stripe.next.makeValueThenIncrement();
+        }
+    }
+
+    @Override
+    public IntegralDataTypeHolder getLastSourceValue() {
+        return lastSourceValue;
+    }
+
+    @Override
+    public boolean applyIncrementSizeToSourceValues() {
+        return true;
+    }
+
+    /**
+     * Block of IDs: [next, end)
+     */
+    private static final class Stripe {
+        private IntegralDataTypeHolder next;
+        private IntegralDataTypeHolder end;
+    }
+}
@@ -0,0 +1,69 @@
+package com.martinfilliau.javaeetrucs.data.id;
+
+import java.io.Serializable;
+import java.util.Properties;
+import org.hibernate.MappingException;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.id.IntegralDataTypeHolder;
+import org.hibernate.id.enhanced.AccessCallback;
+import org.hibernate.id.enhanced.TableGenerator;
+import org.hibernate.type.Type;
+
+/**
+ * Table based identifier generator handing out IDs from memory.
+ * IDs are reserved by blocks of {@link #BLOCK_SIZE} in the {@link #TABLE} table
+ * (one row per entity, see segment_value) by a
+ * {@link StripedPooledLoOptimizer}. Unlike identity (AUTO_INCREMENT) columns
+ * the ID is known before the INSERT, so inserts can be batched.
+ * Unlike Hibernate's TableGenerator, generate() is not synchronized: concurrent
+ * callers are spread over the stripes of the optimizer.
+ * Usage:
+ * <pre>
+ * &#64;GeneratedValue(generator = "posts_id")
+ * &#64;GenericGenerator(name = "posts_id", strategy = StripedTableGenerator.STRATEGY,
+ *     parameters = &#64;Parameter(name = "segment_value", value = "posts"))
+ * </pre>
+ * @author martinfilliau
+ */
+public class StripedTableGenerator extends TableGenerator {
+
+    /**
+     * Name of the strategy, to be used in &#64;GenericGenerator
+     */
+    public static final String STRATEGY = "com.martinfilliau.javaeetrucs.data.id.StripedTableGenerator";
+
+    /**
+     * Table holding the next available ID of each entity
+     */
+    public static final String TABLE = "id_blocks";
+
+    /**
+     * Number of IDs reserved at once
+     */
+    public static final int BLOCK_SIZE = 50;
+
+    @Override
+    public void configure(Type type, Properties params, Dialect dialect) throws MappingException {
+        setDefault(params, TABLE_PARAM, TABLE);
+        setDefault(params, INCREMENT_PARAM, String.valueOf(BLOCK_SIZE));
+        setDefault(params, OPT_PARAM, StripedPooledLoOptimizer.class.getName());
+        super.configure(type, params, dialect);
+    }
+
+    @Override
+    public Serializable generate(final SessionImplementor session, Object obj) {
+        return getOptimizer().generate(new AccessCallback() {
+            @Override
+            public IntegralDataTypeHolder getNextValue() {
+                return (IntegralDataTypeHolder) doWorkInNewTransaction(session);
+            }
+        });
+    }
+
+    private static void setDefault(Properties params, String name, String value) {
+        if (params.getProperty(name) == null) {
+            params.setProperty(name, value);
+        }
+    }
+}
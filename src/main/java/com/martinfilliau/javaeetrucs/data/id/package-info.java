@@ -0,0 +1,4 @@
+/**
+ * Identifier generation for the entities of the data model
+ */
+package com.martinfilliau.javaeetrucs.data.id;
@@ -0,0 +1,296 @@
+package com.martinfilliau.javaeetrucs.services;
+
+import com.martinfilliau.javaeetrucs.data.Post;
+import com.martinfilliau.javaeetrucs.services.utils.CompressedBitmap;
+import com.martinfilliau.javaeetrucs.services.utils.LoadJournal;
+import com.martinfilliau.javaeetrucs.services.utils.ReadOptions;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJB;
+import javax.ejb.SessionContext;
+import javax.ejb.Singleton;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+
+/**
+ * Application wide index of the posts by publication day, for the archive
+ * pages ("posts from March 2010") and their per-day / per-month counts:
+ * one {@link com.martinfilliau.javaeetrucs.services.utils.CompressedBitmap}
+ * of post ids per day, days sorted. Posts without publication date are not
+ * archived.
+ * Listings and counts are answered from memory, filtered if needed by the
+ * posts of some categories (see {@link PostCategoryIndex#getPosts}); the
+ * database is then only queried by primary key.
+ * The index is loaded once from the database, then updated by
+ * {@link BlogService} once its transactions are committed, including the
+ * ones committed while it is loaded (always in a new transaction, never in
+ * the reader's one whose snapshot of the database may be older).
+ * @author martinfilliau
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class ArchiveIndex {
+
+    /**
+     * Size of the buckets of {@link #countPosts}
+     */
+    public enum Granularity {
+        DAY,
+        MONTH
+    }
+
+    @EJB
+    private CrudService crud;
+
+    @Resource
+    private SessionContext context;
+
+    /**
+     * Posts of each day, by day key (yyyymmdd)
+     */
+    private volatile ConcurrentNavigableMap<Integer, CompressedBitmap> postsByDay;
+
+    /**
+     * Day key of each archived post
+     */
+    private volatile ConcurrentMap<Long, Integer> dayOfPost;
+
+    private final LoadJournal journal = new LoadJournal();
+
+    /**
+     * Get the posts published in a period, most recent first
+     * (publishedAt DESC, id DESC)
+     * @param from - first day, included
+     * @param to - last day, excluded
+     * @param filter - posts to keep (e.g. of a category subtree), null for all
+     * @param limit - maximum number of posts
+     * @return ids of the posts
+     */
+    public List<Long> getPostIds(Date from, Date to, CompressedBitmap filter, int limit) {
+        List<Long> ids = new ArrayList<Long>(Math.min(limit, 1024));
+        for (CompressedBitmap day : days(from, to).descendingMap().values()) {
+            long[] posts = day.toArray();
+            for (int i = posts.length - 1; i >= 0; i--) {
+                if (ids.size() == limit) {
+                    return ids;
+                }
+                if (filter == null || filter.contains(posts[i])) {
+                    ids.add(posts[i]);
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Count the posts published in a period, by day or by month
+     * @param from - first day, included
+     * @param to - last day, excluded
+     * @param granularity - size of the buckets
+     * @param filter - posts to count (e.g. of a category subtree), null for all
+     * @return number of posts by first day of the bucket, buckets without posts left out
+     */
+    public SortedMap<Date, Integer> countPosts(Date from, Date to, Granularity granularity, CompressedBitmap filter) {
+        Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+        for (Map.Entry<Integer, CompressedBitmap> day : days(from, to).entrySet()) {
+            int count = 0;
+            if (filter == null) {
+                count = day.getValue().cardinality();
+            } else {
+                for (long id : day.getValue().toArray()) {
+                    if (filter.contains(id)) {
+                        count++;
+                    }
+                }
+            }
+            if (count > 0) {
+                int bucket = granularity == Granularity.MONTH ? day.getKey() / 100 * 100 + 1 : day.getKey();
+                Integer previous = counts.get(bucket);
+                counts.put(bucket, previous == null ? count : previous + count);
+            }
+        }
+        SortedMap<Date, Integer> histogram = new TreeMap<Date, Integer>();
+        for (Map.Entry<Integer, Integer> bucket : counts.entrySet()) {
+            histogram.put(toDate(bucket.getKey()), bucket.getValue());
+        }
+        return histogram;
+    }
+
+    /**
+     * Take into account a post created or updated
+     * @param postId - id of the post
+     * @param published - publication date of the post, may be null
+     */
+    @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+    public void postSaved(final long postId, Date published) {
+        final Integer after = published == null ? null : dayKey(published);
+        journal.apply(new Runnable() {
+            @Override
+            public void run() {
+                if (!isLoaded()) {
+                    return;     // not loaded yet, will be up to date when loaded
+                }
+                Integer before = after == null ? dayOfPost.remove(postId) : dayOfPost.put(postId, after);
+                if (before != null && !before.equals(after)) {
+                    remove(before, postId);
+                }
+                if (after != null) {
+                    add(after, postId);
+                }
+            }
+        });
+    }
+
+    /**
+     * Take into account a post deleted
+     * @param postId - id of the post
+     */
+    @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+    public void postDeleted(final long postId) {
+        journal.apply(new Runnable() {
+            @Override
+            public void run() {
+                if (!isLoaded()) {
+                    return;
+                }
+                Integer before = dayOfPost.remove(postId);
+                if (before != null) {
+                    remove(before, postId);
+                }
+            }
+        });
+    }
+
+    /**
+     * Load the index unless it is already loaded, in a new transaction
+     * Called through the container by the readers.
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public synchronized void loadIfNeeded() {
+        if (!isLoaded()) {
+            rebuild();
+        }
+    }
+
+    /**
+     * Reload the whole index from the database, in a new transaction
+     * Changes committed meanwhile are applied again once it is published
+     * (see {@link LoadJournal}).
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public synchronized void rebuild() {
+        journal.loadStarted();
+        boolean published = false;
+        try {
+            load();
+            published = true;
+        } finally {
+            journal.loadFinished(published);
+        }
+    }
+
+    private boolean isLoaded() {
+        return postsByDay != null && dayOfPost != null;
+    }
+
+    private void load() {
+        List<Object[]> rows = crud.findWithNamedQuery(Post.QUERY_GET_ALL_PUBLICATION_DATES, null, 0, 0, ReadOptions.PRIMARY);
+        ConcurrentMap<Long, Integer> days = new ConcurrentHashMap<Long, Integer>(rows.size() * 2 + 2);
+        Map<Integer, List<Long>> idsByDay = new HashMap<Integer, List<Long>>();
+        for (Object[] row : rows) {
+            if (row[1] == null) {
+                continue;
+            }
+            Long postId = (Long) row[0];
+            Integer day = dayKey((Date) row[1]);
+            days.put(postId, day);
+            List<Long> ids = idsByDay.get(day);
+            if (ids == null) {
+                ids = new ArrayList<Long>();
+                idsByDay.put(day, ids);
+            }
+            ids.add(postId);
+        }
+        ConcurrentNavigableMap<Integer, CompressedBitmap> bitmaps = new ConcurrentSkipListMap<Integer, CompressedBitmap>();
+        for (Map.Entry<Integer, List<Long>> entry : idsByDay.entrySet()) {
+            long[] ids = new long[entry.getValue().size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = entry.getValue().get(i);
+            }
+            bitmaps.put(entry.getKey(), CompressedBitmap.of(ids));
+        }
+        postsByDay = bitmaps;
+        dayOfPost = days;
+    }
+
+    private ConcurrentNavigableMap<Integer, CompressedBitmap> days(Date from, Date to) {
+        if (!isLoaded()) {
+            context.getBusinessObject(ArchiveIndex.class).loadIfNeeded();
+        }
+        int first = dayKey(from);
+        int last = dayKey(to);
+        if (first >= last) {
+            return new ConcurrentSkipListMap<Integer, CompressedBitmap>();
+        }
+        return postsByDay.subMap(first, true, last, false);
+    }
+
+    /**
+     * Publication dates are stored as DATE: keep the day only, as the database does
+     * @param date - date
+     * @return yyyymmdd, e.g. 20100315
+     */
+    private static int dayKey(Date date) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTime(date);
+        return calendar.get(Calendar.YEAR) * 10000 + (calendar.get(Calendar.MONTH) + 1) * 100 + calendar.get(Calendar.DAY_OF_MONTH);
+    }
+
+    private static Date toDate(int dayKey) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(dayKey / 10000, dayKey / 100 % 100 - 1, dayKey % 100);
+        return calendar.getTime();
+    }
+
+    private void add(Integer day, long postId) {
+        ConcurrentNavigableMap<Integer, CompressedBitmap> bitmaps = postsByDay;
+        while (true) {
+            CompressedBitmap current = bitmaps.get(day);
+            if (current == null) {
+                if (bitmaps.putIfAbsent(day, CompressedBitmap.of(postId)) == null) {
+                    return;
+                }
+            } else if (bitmaps.replace(day, current, current.with(postId))) {
+                return;
+            }
+        }
+    }
+
+    private void remove(Integer day, long postId) {
+        ConcurrentNavigableMap<Integer, CompressedBitmap> bitmaps = postsByDay;
+        while (true) {
+            CompressedBitmap current = bitmaps.get(day);
+            if (current == null) {
+                return;
+            }
+            CompressedBitmap removed = current.without(postId);
+            if (removed.isEmpty() ? bitmaps.remove(day, current) : bitmaps.replace(day, current, removed)) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.martinfilliau.javaeetrucs.services;
+
+import com.martinfilliau.javaeetrucs.data.Category;
+import com.martinfilliau.javaeetrucs.data.Post;
+import com.martinfilliau.javaeetrucs.data.PostSummary;
+import com.martinfilliau.javaeetrucs.services.utils.SeekCursor;
+import com.martinfilliau.javaeetrucs.services.utils.SeekPage;
+import java.util.List;
+import java.util.concurrent.Future;
+import javax.ejb.AsyncResult;
+import javax.ejb.Asynchronous;
+import javax.ejb.EJB;
+import javax.ejb.Stateless;
+
+/**
+ * Asynchronous variants of the read methods of {@link BlogService}, to run
+ * independent queries concurrently.
+ * Each call returns immediately and runs on the container's asynchronous
+ * invocation pool (whose size bounds the concurrency), in its own transaction:
+ * returned entities are detached.
+ * @author martinfilliau
+ */
+@Stateless
+@Asynchronous
+public class AsyncBlogService {
+
+    @EJB
+    private BlogService blog;
+
+    /**
+     * See {@link BlogService#getCategoryHierarchy()}: the whole hierarchy,
+     * as the categories are detached
+     * @return future list of categories
+     */
+    public Future<List<Category>> getTopLevelCategories() {
+        return new AsyncResult<List<Category>>(blog.getCategoryHierarchy());
+    }
+
+    /**
+     * See {@link BlogService#countAllPosts()}
+     * @return future count
+     */
+    public Future<Long> countAllPosts() {
+        return new AsyncResult<Long>(blog.countAllPosts());
+    }
+
+    /**
+     * See {@link BlogService#getPostsForCategoryAndChildren(long)}
+     * @param categoryId ID of the category
+     * @return future list of posts
+     */
+    public Future<List<Post>> getPostsForCategoryAndChildren(long categoryId) {
+        return new AsyncResult<List<Post>>(blog.getPostsForCategoryAndChildren(categoryId));
+    }
+
+    /**
+     * See {@link BlogService#getPostSummariesForCategoryAndChildren(long)}
+     * @param categoryId ID of the category
+     * @return future list of {@link com.martinfilliau.javaeetrucs.data.PostSummary}
+     */
+    public Future<List<PostSummary>> getPostSummariesForCategoryAndChildren(long categoryId) {
+        return new AsyncResult<List<PostSummary>>(blog.getPostSummariesForCategoryAndChildren(categoryId));
+    }
+
+    /**
+     * See {@link BlogService#getPostsPageForCategoryAndChildren(long, com.martinfilliau.javaeetrucs.services.utils.SeekCursor, int)}
+     * @param categoryId ID of the category
+     * @param cursor position after the previous page, null for the first page
+     * @param pageSize maximum number of posts
+     * @return future page of posts
+     */
+    public Future<SeekPage<Post>> getPostsPageForCategoryAndChildren(long categoryId, SeekCursor cursor, int pageSize) {
+        return new AsyncResult<SeekPage<Post>>(blog.getPostsPageForCategoryAndChildren(categoryId, cursor, pageSize));
+    }
+
+    /**
+     * See {@link BlogService#getPostsPage(com.martinfilliau.javaeetrucs.services.utils.SeekCursor, int)}
+     * @param cursor position after the previous page, null for the first page
+     * @param pageSize maximum number of posts
+     * @return future page of posts
+     */
+    public Future<SeekPage<Post>> getPostsPage(SeekCursor cursor, int pageSize) {
+        return new AsyncResult<SeekPage<Post>>(blog.getPostsPage(cursor, pageSize));
+    }
+
+    /**
+     * See {@link BlogService#searchPosts(String, Long, int)}
+     * @param query text to search for
+     * @param categoryId only search posts of this category and its children, null for all posts
+     * @param maxResults maximum number of posts
+     * @return future list of {@link com.martinfilliau.javaeetrucs.data.PostSummary}
+     */
+    public Future<List<PostSummary>> searchPosts(String query, Long categoryId, int maxResults) {
+        return new AsyncResult<List<PostSummary>>(blog.searchPosts(query, categoryId, maxResults));
+    }
+}
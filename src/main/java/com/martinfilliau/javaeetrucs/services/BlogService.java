@@ -1,30 +1,162 @@
 package com.martinfilliau.javaeetrucs.services;
 
 import com.martinfilliau.javaeetrucs.data.Category;
+import com.martinfilliau.javaeetrucs.data.NotLoadedList;
 import com.martinfilliau.javaeetrucs.data.Post;
+import com.martinfilliau.javaeetrucs.data.PostSummary;
+import com.martinfilliau.javaeetrucs.services.monitoring.PerformanceInterceptor;
+import com.martinfilliau.javaeetrucs.services.search.SearchHit;
+import com.martinfilliau.javaeetrucs.services.store.DescriptionStore;
+import com.martinfilliau.javaeetrucs.services.utils.AfterCommit;
+import com.martinfilliau.javaeetrucs.services.utils.BatchReport;
+import com.martinfilliau.javaeetrucs.services.utils.CategoryPage;
+import com.martinfilliau.javaeetrucs.services.utils.CategoryTree;
+import com.martinfilliau.javaeetrucs.services.utils.CompressedBitmap;
+import com.martinfilliau.javaeetrucs.services.utils.FetchPlan;
+import com.martinfilliau.javaeetrucs.services.utils.PostSeekKey;
+import com.martinfilliau.javaeetrucs.services.utils.QueryTemplate;
+import com.martinfilliau.javaeetrucs.services.utils.ReadOptions;
+import com.martinfilliau.javaeetrucs.services.utils.ResultHandler;
+import com.martinfilliau.javaeetrucs.services.utils.SeekCursor;
+import com.martinfilliau.javaeetrucs.services.utils.SeekPage;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import javax.annotation.Resource;
 import javax.ejb.EJB;
+import javax.ejb.EJBException;
+import javax.ejb.SessionContext;
 import javax.ejb.Stateless;
-import static com.martinfilliau.javaeetrucs.services.utils.QueryParameter.*;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.interceptor.Interceptors;
+import javax.transaction.TransactionSynchronizationRegistry;
+import org.hibernate.Hibernate;
 
 /**
  * Methods to interact with {@link com.martinfilliau.javaeetrucs.data.Post} and {@link com.martinfilliau.javaeetrucs.data.Category}
  * @author martinfilliau
  */
 @Stateless
+@Interceptors(PerformanceInterceptor.class)
 public class BlogService {
 
+    /**
+     * Rows fetched per round trip when streaming posts
+     */
+    private static final int STREAM_FETCH_SIZE = 100;
+
+    /**
+     * Maximum number of post IDs in a single IN (...) list
+     */
+    private static final int IN_LIST_SIZE = 500;
+
+    private static final QueryTemplate<Post> POSTS =
+            QueryTemplate.of(Post.QUERY_GET_BY_IDS, Post.class, "posts")
+                    .fetching(FetchPlan.named("postsWithCategories").batch("categories"));
+
+    /**
+     * Top level categories are displayed with their children,
+     * lower levels are loaded on demand
+     */
+    private static final FetchPlan WITH_CHILDREN = FetchPlan.named("categoriesWithChildren").batch("children");
+
+    private static final QueryTemplate<Object[]> CATEGORY_IDS_OF_POSTS =
+            QueryTemplate.of(Post.QUERY_GET_CATEGORY_IDS, Object[].class, "posts");
+
+    private static final QueryTemplate<PostSummary> POST_SUMMARIES =
+            QueryTemplate.of(Post.QUERY_GET_SUMMARIES, PostSummary.class, "posts");
+
+    private static final QueryTemplate<String> POST_DESCRIPTION =
+            QueryTemplate.of(Post.QUERY_GET_DESCRIPTION, String.class, "id");
+
+    private static final QueryTemplate<Object[]> POST_VERSIONED_DESCRIPTION =
+            QueryTemplate.of(Post.QUERY_GET_VERSIONED_DESCRIPTION, Object[].class, "id");
+
+    private static final QueryTemplate<Long> POST_VERSION =
+            QueryTemplate.of(Post.QUERY_GET_VERSION, Long.class, "id");
+
     @EJB
     private CrudService crud;
 
+    @EJB
+    private CategoryTreeCache categoryTree;
+
+    @EJB
+    private PostCounters postCounters;
+
+    @EJB
+    private PostSearch postSearch;
+
+    @EJB
+    private AsyncBlogService async;
+
+    @EJB
+    private PostCategoryIndex postIndex;
+
+    @EJB
+    private ArchiveIndex archive;
+
+    @EJB
+    private PostIngestQueue ingestQueue;
+
+    @EJB
+    private LatestPostsCache latestPosts;
+
+    @EJB
+    private PostDescriptions postDescriptions;
+
+    @Resource
+    private TransactionSynchronizationRegistry txRegistry;
+
+    @Resource
+    private SessionContext context;
+
     /**
      * Create a blog post
      * @param p {@link com.martinfilliau.javaeetrucs.data.Post} to create
      * @return entity persisted
      */
     public Post createPost(Post p) {
-        return crud.create(p);
+        Post created = crud.create(p);
+        postsCreatedAfterCommit(Collections.singletonList(created));
+        return created;
+    }
+
+    /**
+     * Create blog posts in bulk (e.g. imports)
+     * Posts are written in JDBC batches and are detached once written.
+     * @param posts {@link com.martinfilliau.javaeetrucs.data.Post}s to create
+     * @return report of the write
+     */
+    public BatchReport createPosts(List<Post> posts) {
+        BatchReport report = crud.createAll(posts, CrudService.DEFAULT_BATCH_SIZE);
+        postsCreatedAfterCommit(posts);
+        return report;
+    }
+
+    /**
+     * Create a blog post asynchronously, for high rates of creations: the post
+     * is queued and committed later with others (see {@link PostIngestQueue}),
+     * outside of the current transaction. Blocks while the queue is full.
+     * @param p {@link com.martinfilliau.javaeetrucs.data.Post} to create, not to be used afterwards
+     * @return ID of the post, once committed
+     */
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public Future<Long> submitPost(Post p) {
+        return ingestQueue.submit(p);
     }
 
     /**
@@ -33,15 +165,183 @@ public class BlogService {
      * @return entity managed
      */
     public Post updatePost(Post p) {
-        return crud.update(p);
+        final List<Long> before = getCategoryIds(p.getId());
+        Post updated = crud.update(p);
+        final List<Long> after = getCategoryIds(updated);
+        final long id = updated.getId();
+        final String name = updated.getName();
+        final String description = updated.getDescription();
+        final Date publishedAt = updated.getPublishedAt();
+        final long version = updated.getVersion();
+        final Set<Long> ancestorsBefore = withAncestors(before);
+        final Set<Long> ancestorsAfter = withAncestors(after);
+        txRegistry.registerInterposedSynchronization(new AfterCommit() {
+            @Override
+            protected void committed() {
+                postDescriptions.postSaved(id, version, description);
+                if (!before.equals(after)) {
+                    postCounters.postMoved(id, after);
+                }
+                postSearch.postSaved(id, version, name, description, after);
+                postIndex.postSaved(id, publishedAt, before, after);
+                archive.postSaved(id, publishedAt);
+                latestPosts.postSaved(new PostSummary(id, name, publishedAt, after), ancestorsBefore, ancestorsAfter);
+            }
+        });
+        return updated;
+    }
+
+    /**
+     * Update some fields of a blog post without loading it, e.g. to rename it
+     * without reading nor writing its description
+     * @param postId ID of the post
+     * @param version version of the post the changes are based on, null to overwrite concurrent updates
+     * @param changes new values by field name: "name", "description" and/or "publishedAt"
+     * @return true if the post was updated, false if there is no such post
+     */
+    public boolean updatePostFields(final long postId, Long version, Map<String, ?> changes) {
+        if (!crud.updateFields(Post.class, postId, version, changes)) {
+            return false;
+        }
+        // read back what this transaction wrote: the replica may be behind
+        List<PostSummary> summaries = getPostSummaries(Collections.singletonList(postId), ReadOptions.PRIMARY);
+        if (summaries.isEmpty()) {
+            return false;
+        }
+        PostSummary current = summaries.get(0);
+        final List<Long> categoryIds = current.getCategoryIds();
+        final String name = changes.containsKey("name") ? (String) changes.get("name") : current.getName();
+        final Date publishedAt = changes.containsKey("publishedAt") ? (Date) changes.get("publishedAt") : current.getPublishedAt();
+        final boolean textChanged = changes.containsKey("name") || changes.containsKey("description");
+        final boolean dateChanged = changes.containsKey("publishedAt");
+        final boolean descriptionChanged = changes.containsKey("description");
+        final String description;
+        if (descriptionChanged) {
+            description = (String) changes.get("description");
+        } else {
+            description = textChanged ? getPostDescription(postId, ReadOptions.PRIMARY) : null;     // only read to re-index the name
+        }
+        final long newVersion;
+        if (!textChanged) {
+            newVersion = 0;     // not needed
+        } else {
+            newVersion = version != null ? version + 1 : crud.findPage(POST_VERSION, ReadOptions.PRIMARY, 0, 0, postId).get(0);
+        }
+        final Set<Long> ancestors = withAncestors(categoryIds);
+        txRegistry.registerInterposedSynchronization(new AfterCommit() {
+            @Override
+            protected void committed() {
+                if (descriptionChanged) {
+                    postDescriptions.postSaved(postId, newVersion, description);
+                }
+                if (textChanged) {
+                    postSearch.postSaved(postId, newVersion, name, description, categoryIds);
+                }
+                if (dateChanged) {
+                    postIndex.postSaved(postId, publishedAt, categoryIds, categoryIds);
+                    archive.postSaved(postId, publishedAt);
+                }
+                latestPosts.postSaved(new PostSummary(postId, name, publishedAt, categoryIds), ancestors, ancestors);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Delete a blog post
+     * @param postId ID of the post
+     */
+    public void deletePost(final long postId) {
+        final List<Long> categoryIds = getCategoryIds(postId);
+        crud.delete(Post.class, postId);
+        final Set<Long> ancestors = withAncestors(categoryIds);
+        txRegistry.registerInterposedSynchronization(new AfterCommit() {
+            @Override
+            protected void committed() {
+                postCounters.postDeleted(postId);
+                postSearch.postDeleted(postId);
+                postDescriptions.postDeleted(postId);
+                postIndex.postDeleted(postId, categoryIds);
+                archive.postDeleted(postId);
+                latestPosts.postDeleted(postId, ancestors);
+            }
+        });
+    }
+
+    /**
+     * Create a category
+     * @param c {@link com.martinfilliau.javaeetrucs.data.Category} to create
+     * @return entity persisted
+     */
+    public Category createCategory(Category c) {
+        Category created = crud.create(c);
+        categorySavedAfterCommit(created);
+        return created;
+    }
+
+    /**
+     * Update a category (e.g. to move it to another parent)
+     * @param c {@link com.martinfilliau.javaeetrucs.data.Category} to update
+     * @return entity managed
+     */
+    public Category updateCategory(Category c) {
+        Category updated = crud.update(c);
+        categorySavedAfterCommit(updated);
+        txRegistry.registerInterposedSynchronization(new AfterCommit() {
+            @Override
+            protected void committed() {
+                latestPosts.invalidateAll();     // the category may have moved
+            }
+        });
+        return updated;
     }
 
     /**
-     * Get top level categories
+     * Delete a category and its children
+     * @param categoryId ID of the category
+     */
+    public void deleteCategory(final long categoryId) {
+        final List<Long> deletedIds = new ArrayList<Long>(getCategoryAndChildrenIds(categoryId));
+        crud.delete(Category.class, categoryId);
+        txRegistry.registerInterposedSynchronization(new AfterCommit() {
+            @Override
+            protected void committed() {
+                categoryTree.categoryDeleted(categoryId);
+                postCounters.categoriesDeleted(deletedIds);
+                postIndex.categoriesDeleted(deletedIds);
+                latestPosts.invalidateAll();
+            }
+        });
+    }
+
+    /**
+     * Get top level categories, with their children (not the children of their children)
      * @return list of categories
      */
     public List<Category> getTopLevelCategories() {
-        return crud.findWithNamedQuery(Category.QUERY_GET_TOP_LEVEL_CAT);
+        return crud.findWithNamedQuery(Category.QUERY_GET_TOP_LEVEL_CAT, null, WITH_CHILDREN);
+    }
+
+    /**
+     * Get top level categories with all their descendants, e.g. for a navigation
+     * rendered once the categories are detached
+     * Levels are loaded one after the other, each in batches of IN queries.
+     * @return list of categories
+     */
+    public List<Category> getCategoryHierarchy() {
+        List<Category> topLevel = getTopLevelCategories();
+        Set<Long> loaded = new HashSet<Long>();
+        List<Category> level = topLevel;
+        while (!level.isEmpty()) {
+            List<Category> next = new ArrayList<Category>();
+            for (Category c : level) {
+                if (loaded.add(c.getId())) {
+                    next.addAll(c.getChildren());      // loads the children of the whole level (batch)
+                }
+            }
+            level = next;
+        }
+        return topLevel;
     }
 
     /**
@@ -53,30 +353,358 @@ public class BlogService {
         return crud.getAll(Post.class);
     }
 
+    /**
+     * Get all posts as summaries (no description), most recent first
+     * @return list of {@link com.martinfilliau.javaeetrucs.data.PostSummary}
+     */
+    public List<PostSummary> getAllPostSummaries() {
+        return withCategoryIds(crud.findWithNamedQuery(Post.QUERY_GET_ALL_SUMMARIES));
+    }
+
+    /**
+     * Get the description of a post, e.g. for a post listed as a summary
+     * Read from the local store of descriptions if enabled (see {@link PostDescriptions}).
+     * @param postId ID of the post
+     * @return description or null if there is no such post
+     */
+    public String getPostDescription(long postId) {
+        return getPostDescription(postId, ReadOptions.DEFAULT);
+    }
+
+    /**
+     * Get the description of a post
+     * @param postId ID of the post
+     * @param options - where to read it from if it is not stored locally
+     * @return description or null if there is no such post
+     */
+    private String getPostDescription(long postId, ReadOptions options) {
+        ByteBuffer stored = postDescriptions.get(postId);
+        if (stored != null) {
+            return DescriptionStore.UTF8.decode(stored).toString();
+        }
+        if (!postDescriptions.isEnabled()) {
+            List<String> descriptions = crud.findPage(POST_DESCRIPTION, options, 0, 0, postId);
+            return descriptions.isEmpty() ? null : descriptions.get(0);
+        }
+        // the version stored is served until the post is updated again: not from a replica
+        List<Object[]> rows = crud.findPage(POST_VERSIONED_DESCRIPTION, ReadOptions.PRIMARY, 0, 0, postId);
+        if (rows.isEmpty()) {
+            return null;
+        }
+        final long id = postId;
+        final long version = (Long) rows.get(0)[0];
+        final String description = (String) rows.get(0)[1];
+        txRegistry.registerInterposedSynchronization(new AfterCommit() {
+            @Override
+            protected void committed() {
+                postDescriptions.postSaved(id, version, description);     // only what is committed
+            }
+        });
+        return description;
+    }
+
+    /**
+     * Get the description of a post as UTF-8 bytes, e.g. to write it to a response
+     * Bytes from the local store of descriptions are not copied: the buffer
+     * is a read-only view on a memory-mapped file.
+     * @param postId ID of the post
+     * @return read-only UTF-8 bytes or null if there is no such post
+     */
+    public ByteBuffer getPostDescriptionBytes(long postId) {
+        ByteBuffer stored = postDescriptions.get(postId);
+        if (stored != null) {
+            return stored;
+        }
+        String description = getPostDescription(postId);
+        return description == null ? null : DescriptionStore.UTF8.encode(description).asReadOnlyBuffer();
+    }
+
+    /**
+     * Search posts by their name and description
+     * @param query text to search for, a post matches if it contains any of its words
+     * @param categoryId only search posts of this category and its children, null for all posts
+     * @param maxResults maximum number of posts
+     * @return list of {@link com.martinfilliau.javaeetrucs.data.PostSummary}, most relevant first
+     */
+    public List<PostSummary> searchPosts(String query, Long categoryId, int maxResults) {
+        List<Long> categoryIds = categoryId != null ? getCategoryAndChildrenIds(categoryId) : null;
+        List<SearchHit> hits = postSearch.search(query, categoryIds, maxResults);
+        if (hits.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Long> postIds = new ArrayList<Long>(hits.size());
+        for (SearchHit hit : hits) {
+            postIds.add(hit.getPostId());
+        }
+        Map<Long, PostSummary> summaries = new HashMap<Long, PostSummary>(hits.size() * 2);
+        for (PostSummary summary : crud.find(POST_SUMMARIES, postIds)) {
+            summaries.put(summary.getId(), summary);
+        }
+        List<PostSummary> result = new ArrayList<PostSummary>(hits.size());
+        for (Long id : postIds) {
+            PostSummary summary = summaries.get(id);
+            if (summary != null) {      // deleted by another node
+                result.add(summary);
+            }
+        }
+        return withCategoryIds(result);
+    }
+
+    /**
+     * Go through all posts in constant memory (e.g. exports, sitemap)
+     * Posts are read-only and detached once handled.
+     * @param handler callback receiving each {@link com.martinfilliau.javaeetrucs.data.Post}
+     * @return number of posts
+     */
+    public long forEachPost(ResultHandler<Post> handler) {
+        return crud.streamAll(Post.class, STREAM_FETCH_SIZE, handler);
+    }
+
+    /**
+     * Get a page of posts, most recent first
+     * Every page costs the same, whatever its depth (keyset pagination).
+     * @param cursor position after the previous page ({@link SeekPage#getNext()}), null for the first page
+     * @param pageSize maximum number of posts, at least 1
+     * @return page of {@link com.martinfilliau.javaeetrucs.data.Post}s
+     * @throws IllegalArgumentException if pageSize is not positive
+     */
+    public SeekPage<Post> getPostsPage(SeekCursor cursor, int pageSize) {
+        return crud.findPageWithNamedQuery(Post.QUERY_GET_PAGE, null, PostSeekKey.INSTANCE, cursor, pageSize);
+    }
+
     /**
      * Count all {@link com.martinfilliau.javaeetrucs.data.Post}s
+     * Answered from the in-memory counters, without querying the database.
      * @return count
      */
     public Long countAllPosts() {
-        return crud.countAll(Post.class);
+        return postCounters.countAll();
     }
 
     /**
-     * Get posts for a given category and the children categories of the given category
+     * Count the {@link com.martinfilliau.javaeetrucs.data.Post}s of a category (not of its children)
+     * Answered from the in-memory counters, without querying the database.
+     * @param categoryId ID of the category
+     * @return count
+     */
+    public long countPostsForCategory(long categoryId) {
+        return postCounters.countForCategory(categoryId);
+    }
+
+    /**
+     * Get posts for a given category and the children categories of the given category,
+     * most recent first
      * @param categoryId ID of the category
      * @return list of posts
      */
     public List<Post> getPostsForCategoryAndChildren(long categoryId) {
+        return getPosts(postIndex.getPostIds(getCategoryAndChildrenIds(categoryId)));
+    }
+
+    /**
+     * Get summaries (no description) of posts for a given category and the children categories
+     * of the given category, most recent first
+     * @param categoryId ID of the category
+     * @return list of {@link com.martinfilliau.javaeetrucs.data.PostSummary}
+     */
+    public List<PostSummary> getPostSummariesForCategoryAndChildren(long categoryId) {
+        return getPostSummaries(postIndex.getPostIds(getCategoryAndChildrenIds(categoryId)));
+    }
+
+    /**
+     * Get the latest posts of a given category and its children categories, most recent first
+     * Served from {@link LatestPostsCache} when at most {@link LatestPostsCache#CAPACITY} posts are asked.
+     * @param categoryId ID of the category
+     * @param limit maximum number of posts
+     * @return list of {@link com.martinfilliau.javaeetrucs.data.PostSummary}
+     * @throws IllegalArgumentException if limit is negative
+     */
+    public List<PostSummary> getLatestPostSummaries(long categoryId, int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Invalid limit " + limit);
+        }
+        List<PostSummary> cached = latestPosts.get(categoryId, limit);
+        if (cached != null) {
+            return cached;
+        }
+        long stamp = latestPosts.stamp();
+        int count = Math.max(limit, LatestPostsCache.CAPACITY);
+        List<PostSummary> latest = context.getBusinessObject(BlogService.class).loadLatestPostSummaries(categoryId, count);
+        latestPosts.put(categoryId, latest, stamp);
+        return latest.size() > limit ? latest.subList(0, limit) : latest;
+    }
+
+    /**
+     * Load the latest posts of a category and its children for {@link LatestPostsCache},
+     * in a new transaction: its snapshot of the database is taken after the
+     * {@link LatestPostsCache#stamp()}, unlike the caller's one
+     * Called through the container by {@link #getLatestPostSummaries(long, int)}.
+     * @param categoryId ID of the category
+     * @param count number of posts
+     * @return list of {@link com.martinfilliau.javaeetrucs.data.PostSummary}, most recent first
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public List<PostSummary> loadLatestPostSummaries(long categoryId, int count) {
+        return getPostSummaries(postIndex.getPostIds(getCategoryAndChildrenIds(categoryId), null, count), ReadOptions.PRIMARY);
+    }
+
+    /**
+     * Get summaries of the posts published in a period (archive pages), most recent first
+     * Post IDs come from {@link ArchiveIndex}, without scanning the posts table.
+     * @param from first day, included
+     * @param to last day, excluded
+     * @param categoryId only keep posts of this category and its children, null for all posts
+     * @param limit maximum number of posts
+     * @return list of {@link com.martinfilliau.javaeetrucs.data.PostSummary}
+     */
+    public List<PostSummary> getArchivedPostSummaries(Date from, Date to, Long categoryId, int limit) {
+        return getPostSummaries(archive.getPostIds(from, to, getArchiveFilter(categoryId), limit));
+    }
+
+    /**
+     * Count the posts published in a period, by day or by month (archive navigation)
+     * Answered from {@link ArchiveIndex}, without querying the database.
+     * @param from first day, included
+     * @param to last day, excluded
+     * @param granularity size of the buckets
+     * @param categoryId only count posts of this category and its children, null for all posts
+     * @return number of posts by first day of the bucket, buckets without posts left out
+     */
+    public SortedMap<Date, Integer> countArchivedPosts(Date from, Date to, ArchiveIndex.Granularity granularity, Long categoryId) {
+        return archive.countPosts(from, to, granularity, getArchiveFilter(categoryId));
+    }
+
+    /**
+     * Get the posts of a category subtree, to filter the archive
+     * @param categoryId ID of the category, null for all posts
+     * @return post IDs, null for no filter
+     */
+    private CompressedBitmap getArchiveFilter(Long categoryId) {
+        return categoryId == null ? null : postIndex.getPosts(getCategoryAndChildrenIds(categoryId));
+    }
+
+    /**
+     * Get summaries of posts by primary key, with one query per {@link #IN_LIST_SIZE} posts
+     * @param postIds IDs of the posts
+     * @return list of {@link com.martinfilliau.javaeetrucs.data.PostSummary}, same order
+     * (posts deleted in the meantime are left out)
+     */
+    private List<PostSummary> getPostSummaries(List<Long> postIds) {
+        return getPostSummaries(postIds, ReadOptions.DEFAULT);
+    }
+
+    /**
+     * Get summaries of posts by primary key, with one query per {@link #IN_LIST_SIZE} posts
+     * @param postIds IDs of the posts
+     * @param options how to read, e.g. {@link ReadOptions#PRIMARY} to fill a cache
+     * @return list of {@link com.martinfilliau.javaeetrucs.data.PostSummary}, same order
+     * (posts deleted in the meantime are left out)
+     */
+    private List<PostSummary> getPostSummaries(List<Long> postIds, ReadOptions options) {
+        Map<Long, PostSummary> summaries = new HashMap<Long, PostSummary>(postIds.size() * 2 + 2);
+        for (int from = 0; from < postIds.size(); from += IN_LIST_SIZE) {
+            for (PostSummary summary : crud.findPage(POST_SUMMARIES, options, 0, 0, postIds.subList(from, Math.min(from + IN_LIST_SIZE, postIds.size())))) {
+                summaries.put(summary.getId(), summary);
+            }
+        }
+        List<PostSummary> result = new ArrayList<PostSummary>(postIds.size());
+        for (Long id : postIds) {
+            PostSummary summary = summaries.get(id);
+            if (summary != null) {
+                result.add(summary);
+            }
+        }
+        return withCategoryIds(result, options);
+    }
+
+    /**
+     * Get a page of posts for a given category and the children categories of the given category,
+     * most recent first
+     * @param categoryId ID of the category
+     * @param cursor position after the previous page ({@link SeekPage#getNext()}), null for the first page
+     * @param pageSize maximum number of posts, at least 1
+     * @return page of posts
+     * @throws IllegalArgumentException if pageSize is not positive
+     */
+    public SeekPage<Post> getPostsPageForCategoryAndChildren(long categoryId, SeekCursor cursor, int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Invalid page size " + pageSize);
+        }
+        List<Long> postIds = postIndex.getPostIds(getCategoryAndChildrenIds(categoryId), cursor, (int) Math.min(pageSize + 1L, Integer.MAX_VALUE));
+        boolean hasNext = postIds.size() > pageSize;
+        List<Post> posts = getPosts(hasNext ? postIds.subList(0, pageSize) : postIds);
+        if (!hasNext || posts.isEmpty()) {
+            return new SeekPage<Post>(posts, null);
+        }
+        return new SeekPage<Post>(posts, PostSeekKey.INSTANCE.after(posts.get(posts.size() - 1)));
+    }
+
+    /**
+     * Get everything needed to display a category
+     * The parts of the page are retrieved concurrently, so the page takes as
+     * long as its slowest part. A part not retrieved within the timeout is
+     * left out (null) rather than failing the page.
+     * @param categoryId ID of the category
+     * @param timeoutMillis maximum time to wait for all the parts
+     * @return page, see {@link CategoryPage#isComplete()}
+     */
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public CategoryPage getCategoryPage(long categoryId, long timeoutMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        Future<List<Category>> topLevelCategories = async.getTopLevelCategories();
+        Future<List<Post>> posts = async.getPostsForCategoryAndChildren(categoryId);
+        Future<Long> postCount = async.countAllPosts();
+        return new CategoryPage(await(topLevelCategories, deadline), await(posts, deadline), await(postCount, deadline));
+    }
+
+    /**
+     * Wait for an asynchronous result until a deadline
+     * The call is cancelled if it is not done in time.
+     * @param future result of an {@link AsyncBlogService} call
+     * @param deadline {@link System#nanoTime()} to wait until
+     * @return result or null if not done in time
+     */
+    private static <T> T await(Future<T> future, long deadline) {
+        try {
+            return future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            return null;
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new EJBException(cause instanceof Exception ? (Exception) cause : e);
+        }
+    }
+
+    /**
+     * Get the IDs of a category and all its children
+     * Resolved from the in-memory snapshot of the hierarchy, falls back to
+     * the database if the category is not (yet) known by the snapshot.
+     * @param categoryId ID of the category
+     * @return list of IDs, the given category first
+     */
+    private List<Long> getCategoryAndChildrenIds(long categoryId) {
+        List<Long> ids = categoryTree.getTree().getSubtreeIds(categoryId);
+        if (ids != null) {
+            return ids;
+        }
+
         Category parentCategory = crud.get(Category.class, categoryId);
 
         List<Category> allCategoriesToRetrieve = getCategoryWithChildren(parentCategory);
 
-        List<Long> ids = new ArrayList<Long>();
+        ids = new ArrayList<Long>();
         for(Category c : allCategoriesToRetrieve) {
             ids.add(c.getId());
         }
-
-        return crud.findWithNamedQuery(Category.QUERY_GET_POSTS_FOR_CATEGORIES, with("categories", ids));
+        return ids;
     }
 
     /**
@@ -92,5 +720,193 @@ public class BlogService {
         }
         return categories;
     }
+
+    /**
+     * Get posts by primary key, with one query per {@link #IN_LIST_SIZE} posts
+     * @param postIds IDs of the posts
+     * @return list of posts, same order (posts deleted in the meantime are left out)
+     */
+    private List<Post> getPosts(List<Long> postIds) {
+        Map<Long, Post> posts = new HashMap<Long, Post>(postIds.size() * 2 + 2);
+        for (int from = 0; from < postIds.size(); from += IN_LIST_SIZE) {
+            for (Post p : crud.find(POSTS, postIds.subList(from, Math.min(from + IN_LIST_SIZE, postIds.size())))) {
+                posts.put(p.getId(), p);
+            }
+        }
+        List<Post> result = new ArrayList<Post>(postIds.size());
+        for (Long id : postIds) {
+            Post p = posts.get(id);
+            if (p != null) {
+                result.add(p);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Add the categories to summaries, with one query per {@link #IN_LIST_SIZE} posts
+     * @param summaries {@link com.martinfilliau.javaeetrucs.data.PostSummary}s without categories
+     * @return new summaries with their categories, same order
+     */
+    private List<PostSummary> withCategoryIds(List<PostSummary> summaries) {
+        return withCategoryIds(summaries, ReadOptions.DEFAULT);
+    }
+
+    /**
+     * Add the categories to summaries, with one query per {@link #IN_LIST_SIZE} posts
+     * @param summaries {@link com.martinfilliau.javaeetrucs.data.PostSummary}s without categories
+     * @param options how to read
+     * @return new summaries with their categories, same order
+     */
+    private List<PostSummary> withCategoryIds(List<PostSummary> summaries, ReadOptions options) {
+        Map<Long, List<Long>> categoryIds = new HashMap<Long, List<Long>>(summaries.size() * 2 + 2);
+        for (int from = 0; from < summaries.size(); from += IN_LIST_SIZE) {
+            List<Long> postIds = new ArrayList<Long>(IN_LIST_SIZE);
+            for (PostSummary summary : summaries.subList(from, Math.min(from + IN_LIST_SIZE, summaries.size()))) {
+                postIds.add(summary.getId());
+            }
+            List<Object[]> rows = crud.findPage(CATEGORY_IDS_OF_POSTS, options, 0, 0, postIds);
+            for (Object[] row : rows) {
+                List<Long> ids = categoryIds.get((Long) row[0]);
+                if (ids == null) {
+                    ids = new ArrayList<Long>(2);
+                    categoryIds.put((Long) row[0], ids);
+                }
+                ids.add((Long) row[1]);
+            }
+        }
+        List<PostSummary> result = new ArrayList<PostSummary>(summaries.size());
+        for (PostSummary summary : summaries) {
+            List<Long> ids = categoryIds.get(summary.getId());
+            result.add(ids == null ? summary
+                    : new PostSummary(summary.getId(), summary.getName(), summary.getPublishedAt(), ids));
+        }
+        return result;
+    }
+
+    /**
+     * Get the IDs of the categories of a post, as stored in the primary
+     * database: what an update or a delete of the post changes
+     * @param postId ID of the post
+     * @return list of IDs, sorted
+     */
+    private List<Long> getCategoryIds(Long postId) {
+        List<Long> ids = new ArrayList<Long>();
+        if (postId != null) {
+            List<Object[]> rows = crud.findPage(CATEGORY_IDS_OF_POSTS, ReadOptions.PRIMARY, 0, 0, Collections.singletonList(postId));
+            for (Object[] row : rows) {
+                ids.add((Long) row[1]);
+            }
+            Collections.sort(ids);
+        }
+        return ids;
+    }
+
+    /**
+     * Get the IDs of the categories of a post, as set on the entity
+     * @param p {@link com.martinfilliau.javaeetrucs.data.Post}
+     * @return list of IDs, sorted
+     */
+    private List<Long> getCategoryIds(Post p) {
+        List<Long> ids = new ArrayList<Long>();
+        if (p.getCategories() != null) {
+            for (Category c : p.getCategories()) {
+                ids.add(c.getId());
+            }
+            Collections.sort(ids);
+        }
+        return ids;
+    }
+
+    /**
+     * Update the post counters and indexes once the transaction is committed
+     * @param posts {@link com.martinfilliau.javaeetrucs.data.Post}s created
+     */
+    private void postsCreatedAfterCommit(List<Post> posts) {
+        final int count = posts.size();
+        final long[] ids = new long[count];
+        final String[] names = new String[count];
+        final String[] descriptions = new String[count];
+        final Date[] publishedAt = new Date[count];
+        final long[] versions = new long[count];
+        final List<List<Long>> categoriesOfPosts = new ArrayList<List<Long>>(count);
+        final List<Set<Long>> ancestorsOfPosts = new ArrayList<Set<Long>>(count);
+        for (int i = 0; i < count; i++) {
+            Post p = posts.get(i);
+            ids[i] = p.getId();
+            names[i] = p.getName();
+            descriptions[i] = p.getDescription();
+            publishedAt[i] = p.getPublishedAt();
+            versions[i] = p.getVersion();
+            categoriesOfPosts.add(getCategoryIds(p));
+            ancestorsOfPosts.add(withAncestors(categoriesOfPosts.get(i)));
+        }
+        txRegistry.registerInterposedSynchronization(new AfterCommit() {
+            @Override
+            protected void committed() {
+                postCounters.postsCreated(ids, categoriesOfPosts);
+                for (int i = 0; i < count; i++) {
+                    postDescriptions.postSaved(ids[i], versions[i], descriptions[i]);
+                    postSearch.postSaved(ids[i], versions[i], names[i], descriptions[i], categoriesOfPosts.get(i));
+                    postIndex.postSaved(ids[i], publishedAt[i], Collections.<Long>emptyList(), categoriesOfPosts.get(i));
+                    archive.postSaved(ids[i], publishedAt[i]);
+                    latestPosts.postSaved(new PostSummary(ids[i], names[i], publishedAt[i], categoriesOfPosts.get(i)),
+                            Collections.<Long>emptySet(), ancestorsOfPosts.get(i));
+                }
+            }
+        });
+    }
+
+    /**
+     * Get categories with all their ancestors
+     * To be called in the transaction, not once committed: the snapshot of
+     * the hierarchy may have to be loaded.
+     * @param categoryIds IDs of the categories
+     * @return IDs of the categories and of their ancestors
+     */
+    private Set<Long> withAncestors(Collection<Long> categoryIds) {
+        CategoryTree tree = categoryTree.getTree();
+        Set<Long> ids = new HashSet<Long>();
+        for (Long id : categoryIds) {
+            Long current = id;
+            while (current != null && ids.add(current)) {
+                current = tree.getParentId(current);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Update the snapshot of the hierarchy once the transaction is committed
+     * @param c {@link com.martinfilliau.javaeetrucs.data.Category} created or updated
+     */
+    private void categorySavedAfterCommit(Category c) {
+        final Map<Long, Long> parentById = new HashMap<Long, Long>();
+        parentById.put(c.getId(), c.getParent() != null ? c.getParent().getId() : null);
+        addDescendants(c, parentById);
+        txRegistry.registerInterposedSynchronization(new AfterCommit() {
+            @Override
+            protected void committed() {
+                categoryTree.categoriesSaved(parentById);
+            }
+        });
+    }
+
+    /**
+     * Get the descendants saved with a category (cascaded), not the ones
+     * which were not loaded: they were not saved
+     * @param c {@link com.martinfilliau.javaeetrucs.data.Category} saved
+     * @param parentById map of <category id>, <parent id> to fill
+     */
+    private static void addDescendants(Category c, Map<Long, Long> parentById) {
+        if (c.getChildren() == null || c.getChildren() instanceof NotLoadedList || !Hibernate.isInitialized(c.getChildren())) {
+            return;
+        }
+        for (Category child : c.getChildren()) {
+            if (parentById.put(child.getId(), c.getId()) == null) {
+                addDescendants(child, parentById);
+            }
+        }
+    }
  
 }
@@ -0,0 +1,148 @@
+package com.martinfilliau.javaeetrucs.services;
+
+import com.martinfilliau.javaeetrucs.data.Category;
+import com.martinfilliau.javaeetrucs.services.utils.CategoryTree;
+import com.martinfilliau.javaeetrucs.services.utils.LoadJournal;
+import com.martinfilliau.javaeetrucs.services.utils.ReadOptions;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJB;
+import javax.ejb.SessionContext;
+import javax.ejb.Singleton;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+
+/**
+ * Application wide snapshot of the categories hierarchy
+ * (see {@link com.martinfilliau.javaeetrucs.services.utils.CategoryTree}).
+ * The snapshot is loaded once from the database (ids only), then replaced
+ * (copy-on-write) each time a category is created, moved or deleted;
+ * changes committed while it is loaded are applied once it is published.
+ * It is always loaded in a new transaction, never in the caller's one whose
+ * snapshot of the database may be older than the load.
+ * Readers never lock: they just get the current snapshot.
+ * @author martinfilliau
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class CategoryTreeCache {
+
+    @EJB
+    private CrudService crud;
+
+    @Resource
+    private SessionContext context;
+
+    private final AtomicReference<CategoryTree> tree = new AtomicReference<CategoryTree>();
+
+    private final LoadJournal journal = new LoadJournal();
+
+    /**
+     * Get the current snapshot, loading it if needed
+     * @return snapshot
+     */
+    public CategoryTree getTree() {
+        CategoryTree current = tree.get();
+        if (current == null) {
+            context.getBusinessObject(CategoryTreeCache.class).loadIfNeeded();
+            current = tree.get();
+        }
+        return current;
+    }
+
+    /**
+     * Load the snapshot unless it is already loaded, in a new transaction
+     * Called through the container by {@link #getTree()}.
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public synchronized void loadIfNeeded() {
+        if (tree.get() == null) {
+            load();
+        }
+    }
+
+    /**
+     * Reload the whole snapshot from the database, in a new transaction
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public synchronized void rebuild() {
+        load();
+    }
+
+    /**
+     * Take into account a category created or moved
+     * @param id - id of the category
+     * @param parentId - id of its parent, null for a top level category
+     */
+    @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+    public void categorySaved(long id, Long parentId) {
+        categoriesSaved(Collections.singletonMap(id, parentId));
+    }
+
+    /**
+     * Take into account categories created or moved, e.g. a category saved
+     * with its descendants
+     * @param parentById - map of <category id>, <parent id or null>
+     */
+    @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+    public void categoriesSaved(final Map<Long, Long> parentById) {
+        journal.apply(new Runnable() {
+            @Override
+            public void run() {
+                CategoryTree current;
+                do {
+                    current = tree.get();
+                    if (current == null) {
+                        return;     // not loaded yet, will be up to date when loaded
+                    }
+                } while (!tree.compareAndSet(current, current.withCategories(parentById)));
+            }
+        });
+    }
+
+    /**
+     * Take into account a category (and its descendants) deleted
+     * @param id - id of the category
+     */
+    @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+    public void categoryDeleted(final long id) {
+        journal.apply(new Runnable() {
+            @Override
+            public void run() {
+                CategoryTree current;
+                do {
+                    current = tree.get();
+                    if (current == null) {
+                        return;
+                    }
+                } while (!tree.compareAndSet(current, current.withoutCategory(id)));
+            }
+        });
+    }
+
+    /**
+     * Load and publish the snapshot, then apply again the changes committed
+     * meanwhile (see {@link LoadJournal}). Callers hold the lock.
+     */
+    private void load() {
+        journal.loadStarted();
+        boolean published = false;
+        try {
+            List<Object[]> rows = crud.findWithNamedQuery(Category.QUERY_GET_TREE, null, 0, 0, ReadOptions.PRIMARY);
+            Map<Long, Long> parentById = new HashMap<Long, Long>(rows.size() * 2 + 2);
+            for (Object[] row : rows) {
+                parentById.put((Long) row[0], (Long) row[1]);
+            }
+            tree.set(CategoryTree.build(parentById));
+            published = true;
+        } finally {
+            journal.loadFinished(published);
+        }
+    }
+}
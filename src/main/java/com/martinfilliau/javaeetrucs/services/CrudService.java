@@ -1,45 +1,156 @@
 package com.martinfilliau.javaeetrucs.services;
 
 import com.martinfilliau.javaeetrucs.data.BaseEntity;
+import com.martinfilliau.javaeetrucs.data.Category;
+import com.martinfilliau.javaeetrucs.data.NotLoadedList;
+import com.martinfilliau.javaeetrucs.services.monitoring.PerformanceInterceptor;
+import com.martinfilliau.javaeetrucs.services.utils.AfterCommit;
+import com.martinfilliau.javaeetrucs.services.utils.BatchReport;
+import com.martinfilliau.javaeetrucs.services.utils.FetchPlan;
 import com.martinfilliau.javaeetrucs.services.utils.QueryParameter;
+import com.martinfilliau.javaeetrucs.services.utils.QueryTemplate;
+import com.martinfilliau.javaeetrucs.services.utils.ReadOptions;
+import com.martinfilliau.javaeetrucs.services.utils.ResultHandler;
+import com.martinfilliau.javaeetrucs.services.utils.SeekCursor;
+import com.martinfilliau.javaeetrucs.services.utils.SeekKey;
+import com.martinfilliau.javaeetrucs.services.utils.SeekPage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import javax.annotation.Resource;
+import javax.ejb.EJB;
 import javax.ejb.Stateless;
+import javax.interceptor.Interceptors;
 import javax.ejb.TransactionAttribute;
 import javax.ejb.TransactionAttributeType;
 import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.NoResultException;
+import javax.persistence.NonUniqueResultException;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.PersistenceException;
 import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceUnit;
 import javax.persistence.Query;
 import javax.persistence.TypedQuery;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
 import javax.persistence.criteria.Root;
+import javax.transaction.Status;
+import javax.transaction.TransactionSynchronizationRegistry;
+import org.hibernate.CacheMode;
+import org.hibernate.Criteria;
+import org.hibernate.EntityMode;
+import org.hibernate.FetchMode;
+import org.hibernate.FlushMode;
+import org.hibernate.Hibernate;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.criterion.Criterion;
+import org.hibernate.engine.CascadeStyle;
+import org.hibernate.engine.CascadingAction;
+import org.hibernate.criterion.Restrictions;
+import org.hibernate.ejb.QueryHints;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.proxy.HibernateProxy;
+import org.hibernate.type.EntityType;
+import org.hibernate.type.Type;
 
 /**
  * CRUD Service / Generic DAO
+ * Reads with read-only {@link ReadOptions} (e.g. {@link ReadOptions#READ_ONLY})
+ * may be sent to the replica database, see {@link ReadRouter}; the other
+ * reads, returning managed entities, always go to the primary.
+ * Operations taking {@link ReadOptions} may also be called without transaction.
  * @author Martin Filliau
  * @see <a href="http://www.adam-bien.com/roller/abien/entry/generic_crud_service_aka_dao">Adam Bien blog, Generic CRUD service</a>
  */
 @Stateless
+@Interceptors(PerformanceInterceptor.class)
 @TransactionAttribute(TransactionAttributeType.MANDATORY)
 public class CrudService {
 
+    /**
+     * Default number of entities written between two flushes,
+     * same as hibernate.jdbc.batch_size in persistence.xml
+     */
+    public static final int DEFAULT_BATCH_SIZE = 20;
+
     @PersistenceContext(unitName = "javaeetrucsPu")
     private EntityManager em;
 
+    /**
+     * For the reads without transaction
+     */
+    @PersistenceUnit(unitName = "javaeetrucsPu")
+    private EntityManagerFactory emf;
+
+    @Resource
+    private TransactionSynchronizationRegistry txRegistry;
+
+    @EJB
+    private ReadRouter router;
+
+    @EJB
+    private InFlightQueries inFlight;
+
     /**
      * Persist a new entity
      * @param object - entity to persist
      * @return managed entity
      */
     public <T extends BaseEntity> T create(final T object) {
+        router.written();
         this.em.persist(object);
         this.em.flush();
         this.em.refresh(object);
+        evictCachedCollections(object.getClass());
         return object;
     }
 
+    /**
+     * Persist new entities in JDBC batches
+     * Unlike {@link #create(BaseEntity)} entities are not refreshed, and the
+     * persistence context is flushed and cleared every batchSize entities:
+     * given entities are detached once written.
+     * @param objects - entities to persist
+     * @param batchSize - number of entities per flush
+     * @return report of the write
+     * @throws IllegalArgumentException if batchSize is not positive
+     */
+    public <T extends BaseEntity> BatchReport createAll(Collection<T> objects, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Invalid batch size " + batchSize);
+        }
+        router.written();
+        long start = System.nanoTime();
+        long count = 0;
+        Set<Class> types = new HashSet<Class>();
+        for (T object : objects) {
+            this.em.persist(object);
+            types.add(object.getClass());
+            if (++count % batchSize == 0) {
+                this.em.flush();
+                this.em.clear();
+            }
+        }
+        this.em.flush();
+        this.em.clear();
+        for (Class type : types) {
+            evictCachedCollections(type);
+        }
+        return new BatchReport(count, System.nanoTime() - start);
+    }
+
     /**
      * Find an entity
      * @param type - the type of the entity
@@ -47,7 +158,57 @@ public class CrudService {
      * @return managed entity
      */
     public <T extends BaseEntity> T get(Class<T> type, Object id) {
-        return (T) this.em.find(type, id);
+        return get(type, id, FetchPlan.NONE);
+    }
+
+    /**
+     * Find an entity with some of its associations
+     * @param type - the type of the entity
+     * @param id - id of the entity to retrieve
+     * @param plan - associations to load
+     * @return managed entity
+     */
+    public <T extends BaseEntity> T get(Class<T> type, Object id, FetchPlan plan) {
+        return get(type, id, ReadOptions.DEFAULT.fetching(plan));
+    }
+
+    /**
+     * Find an entity, possibly read-only and without transaction (see {@link ReadOptions})
+     * @param type - the type of the entity
+     * @param id - id of the entity to retrieve
+     * @param options - how to read
+     * @return entity, detached if there is no transaction
+     */
+    @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+    public <T extends BaseEntity> T get(final Class<T> type, final Object id, final ReadOptions options) {
+        return read(new Read<T>() {
+            @Override
+            T run(EntityManager em) {
+                FetchPlan plan = options.getFetchPlan();
+                if (!hasJoin(plan)) {
+                    T entity = em.find(type, id);
+                    if (entity != null) {
+                        fetch(em, Collections.singletonList(entity), plan, Collections.<String>emptySet());
+                    }
+                    return entity;
+                }
+                List<T> entities = findWithCriteria(em, type, Restrictions.idEq(id), 0, 0, options);
+                return entities.isEmpty() ? null : entities.get(0);
+            }
+        }, options);
+    }
+
+    /**
+     * Get a reference to an entity, from the primary, without loading it
+     * To set associations of the entities being written: unlike a read-only
+     * {@link #get(Class, Object, ReadOptions)} it never goes to the replica,
+     * which may not have the entity yet.
+     * @param type - the type of the entity
+     * @param id - id of the entity
+     * @return managed reference
+     */
+    public <T extends BaseEntity> T getReference(Class<T> type, Object id) {
+        return this.em.getReference(type, id);
     }
 
     /**
@@ -56,19 +217,163 @@ public class CrudService {
      * @param id - id of the entity
      */
     public void delete(Class type, Object id) {
+        router.written();
         Object ref = this.em.getReference(type, id);
         this.em.remove(ref);
+        evictCachedCollections(type);
     }
 
     /**
      * Merge an entity
+     * Only the columns which differ from the database are written (entities are
+     * mapped with dynamicUpdate) and the version of the entity is checked: if it
+     * was updated since it was read, an {@link javax.persistence.OptimisticLockException}
+     * is thrown instead of overwriting the changes.
+     * Entities read from their serialized form may not be mergeable, see
+     * {@link #checkMergeable(Object)}: load them, or use {@link #updateFields}.
      * @param object - entity to merge
-     * @return managed entity
+     * @return managed entity, with its new version
+     * @throws IllegalArgumentException if the entity is only partly known
      */
     public <T extends BaseEntity> T update(T object) {
-        this.em.merge(object);
+        checkMergeable(object);
+        router.written();
+        T merged = this.em.merge(object);
+        this.em.flush();
+        evictCachedCollections(object.getClass());
+        return merged;
+    }
+
+    /**
+     * Update some basic fields of an entity without loading it, with a single
+     * UPDATE statement which also increments the version of the entity.
+     * NOTE: entities already loaded in the persistence context are not refreshed.
+     * @param type - type of the entity
+     * @param id - id of the entity
+     * @param version - version the changes are based on, null to ignore concurrent updates
+     * @param changes - new values, by field name (not the id, the version or associations)
+     * @return true if the entity was updated, false if it does not exist
+     * @throws OptimisticLockException if the entity does not exist in the given version
+     */
+    public <T extends BaseEntity> boolean updateFields(Class<T> type, Object id, Long version, Map<String, ?> changes) {
+        ClassMetadata metadata = ((Session) this.em.getDelegate()).getSessionFactory().getClassMetadata(type);
+        if (metadata == null) {
+            throw new IllegalArgumentException(type.getName() + " is not an entity");
+        }
+        String entity = metadata.getEntityName();
+        String versionName = metadata.isVersioned() ? metadata.getPropertyNames()[metadata.getVersionProperty()] : null;
+        if (version != null && versionName == null) {
+            throw new IllegalArgumentException(entity + " is not versioned");
+        }
+        if (changes.isEmpty()) {
+            throw new IllegalArgumentException("Nothing to update");
+        }
+
+        List<String> properties = Arrays.asList(metadata.getPropertyNames());
+        StringBuilder jpql = new StringBuilder("UPDATE ").append(entity).append(" e SET ");
+        for (Map.Entry<String, ?> change : changes.entrySet()) {
+            String property = change.getKey();
+            if (!properties.contains(property) || property.equals(versionName)
+                    || metadata.getPropertyType(property).isAssociationType()) {
+                throw new IllegalArgumentException("Cannot update " + entity + "." + property);
+            }
+            Class<?> javaType = metadata.getPropertyType(property).getReturnedClass();
+            if (change.getValue() == null ? javaType.isPrimitive() : !javaType.isPrimitive() && !javaType.isInstance(change.getValue())) {
+                throw new IllegalArgumentException("Invalid value for " + entity + "." + property);
+            }
+            jpql.append("e.").append(property).append(" = :").append(property).append(", ");
+        }
+        if (versionName != null) {
+            jpql.append("e.").append(versionName).append(" = e.").append(versionName).append(" + 1");
+        } else {
+            jpql.setLength(jpql.length() - 2);
+        }
+        jpql.append(" WHERE e.").append(metadata.getIdentifierPropertyName()).append(" = :id");
+        if (version != null) {
+            jpql.append(" AND e.").append(versionName).append(" = :version");
+        }
+
+        router.written();
+        Query query = this.em.createQuery(jpql.toString());
+        for (Map.Entry<String, ?> change : changes.entrySet()) {
+            query.setParameter(change.getKey(), change.getValue());
+        }
+        query.setParameter("id", id);
+        if (version != null) {
+            query.setParameter("version", version);
+        }
+        if (query.executeUpdate() > 0) {
+            return true;
+        }
+        if (version != null) {
+            throw new OptimisticLockException(entity + " " + id + " is not in version " + version);
+        }
+        return false;
+    }
+
+    /**
+     * Merge entities in JDBC batches
+     * The persistence context is flushed and cleared every batchSize entities.
+     * @param objects - entities to merge
+     * @param batchSize - number of entities per flush
+     * @return report of the write
+     * @throws IllegalArgumentException if batchSize is not positive, or if an
+     * entity is only partly known, see {@link #update(BaseEntity)}
+     */
+    public <T extends BaseEntity> BatchReport updateAll(Collection<T> objects, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Invalid batch size " + batchSize);
+        }
+        for (T object : objects) {
+            checkMergeable(object);
+        }
+        router.written();
+        long start = System.nanoTime();
+        long count = 0;
+        Set<Class> types = new HashSet<Class>();
+        for (T object : objects) {
+            this.em.merge(object);
+            types.add(object.getClass());
+            if (++count % batchSize == 0) {
+                this.em.flush();
+                this.em.clear();
+            }
+        }
         this.em.flush();
-        return (T) object;
+        this.em.clear();
+        for (Class type : types) {
+            evictCachedCollections(type);
+        }
+        return new BatchReport(count, System.nanoTime() - start);
+    }
+
+    /**
+     * Delete entities in JDBC batches
+     * The persistence context is flushed and cleared every batchSize entities.
+     * @param type - type of the entities
+     * @param ids - ids of the entities
+     * @param batchSize - number of entities per flush
+     * @return report of the write
+     * @throws IllegalArgumentException if batchSize is not positive
+     */
+    public BatchReport deleteAll(Class type, Collection ids, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Invalid batch size " + batchSize);
+        }
+        router.written();
+        long start = System.nanoTime();
+        long count = 0;
+        for (Object id : ids) {
+            this.em.remove(this.em.getReference(type, id));
+            if (++count % batchSize == 0) {
+                this.em.flush();
+                this.em.clear();
+            }
+        }
+        this.em.flush();
+        this.em.clear();
+        evictCachedCollections(type);
+        return new BatchReport(count, System.nanoTime() - start);
     }
 
     /**
@@ -78,11 +383,62 @@ public class CrudService {
      * @return list of entities
      */
     public <T extends BaseEntity> List<T> getAll(Class<T> type) {
-        CriteriaBuilder cb = em.getCriteriaBuilder();
-        CriteriaQuery<T> c = cb.createQuery(type);
-        c.from(type);
-        TypedQuery<T> q = em.createQuery(c);
-        return q.getResultList();
+        return getAll(type, ReadOptions.DEFAULT);
+    }
+
+    /**
+     * Get all the entities for a given type with some of their associations
+     * WARNING - this query may be very expensive for the database.
+     * @param type - type of the entity
+     * @param plan - associations to load
+     * @return list of entities
+     */
+    public <T extends BaseEntity> List<T> getAll(Class<T> type, FetchPlan plan) {
+        return getAll(type, ReadOptions.DEFAULT.fetching(plan));
+    }
+
+    /**
+     * Get all the entities for a given type, possibly read-only and without transaction
+     * WARNING - this query may be very expensive for the database.
+     * @param type - type of the entity
+     * @param options - how to read
+     * @return list of entities, detached if there is no transaction
+     */
+    @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+    public <T extends BaseEntity> List<T> getAll(final Class<T> type, final ReadOptions options) {
+        return read(new Read<List<T>>() {
+            @Override
+            List<T> run(EntityManager em) {
+                return findWithCriteria(em, type, null, 0, 0, options);
+            }
+        }, options);
+    }
+
+    /**
+     * Stream all the entities for a given type
+     * Unlike {@link #getAll(Class)} results are read from a server-side cursor,
+     * fetchSize rows at a time, and the persistence context is cleared every
+     * fetchSize entities so memory stays constant whatever the number of rows.
+     * NOTE: the persistence context is cleared, entities managed before the call
+     * are detached. With MySQL, the datasource must set useCursorFetch=true for
+     * the fetch size to be honoured.
+     * @param type - type of the entity
+     * @param fetchSize - number of rows fetched per round trip
+     * @param handler - callback receiving each entity
+     * @return number of entities handled
+     * @throws IllegalArgumentException if fetchSize is not positive
+     */
+    public <T extends BaseEntity> long streamAll(Class<T> type, int fetchSize, ResultHandler<T> handler) {
+        if (fetchSize < 1) {
+            throw new IllegalArgumentException("Invalid fetch size " + fetchSize);
+        }
+        Session session = (Session) this.em.getDelegate();
+        ScrollableResults results = session.createCriteria(type).
+                setFetchSize(fetchSize).
+                setReadOnly(true).
+                setCacheMode(CacheMode.IGNORE).
+                scroll(ScrollMode.FORWARD_ONLY);
+        return stream(session, results, fetchSize, handler);
     }
 
     /**
@@ -91,12 +447,28 @@ public class CrudService {
      * @return count of entities
      */
     public <T extends BaseEntity> Long countAll(Class<T> type) {
-        CriteriaBuilder cb = em.getCriteriaBuilder();
-        CriteriaQuery<Long> query = cb.createQuery(Long.class);
-        Root<T> r = query.from(type);
-        query.select(cb.count(r));
-        TypedQuery<Long> tq = em.createQuery(query);
-        return tq.getSingleResult();
+        return countAll(type, ReadOptions.DEFAULT);
+    }
+
+    /**
+     * Count the number of entities for a given type, possibly without transaction
+     * @param type - type of the entity
+     * @param options - how to read (only read-only and no flush apply)
+     * @return count of entities
+     */
+    @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+    public <T extends BaseEntity> Long countAll(final Class<T> type, ReadOptions options) {
+        return read(new Read<Long>() {
+            @Override
+            Long run(EntityManager em) {
+                CriteriaBuilder cb = em.getCriteriaBuilder();
+                CriteriaQuery<Long> query = cb.createQuery(Long.class);
+                Root<T> r = query.from(type);
+                query.select(cb.count(r));
+                TypedQuery<Long> tq = em.createQuery(query);
+                return tq.getSingleResult();
+            }
+        }, options);
     }
 
     /**
@@ -107,13 +479,38 @@ public class CrudService {
      * @return list of entities
      */
     public <T extends BaseEntity> List<T> getAllSubSet(Class<T> type, int start, int resultLimit) {
-        CriteriaBuilder cb = em.getCriteriaBuilder();
-        CriteriaQuery<T> c = cb.createQuery(type);
-        c.from(type);
-        TypedQuery<T> q = em.createQuery(c);
-        q.setFirstResult(start);
-        q.setMaxResults(resultLimit);
-        return q.getResultList();
+        return getAllSubSet(type, start, resultLimit, ReadOptions.DEFAULT);
+    }
+
+    /**
+     * Get a subset of the entities for a given type with some of their associations
+     * Collections are never joined (see {@link FetchPlan}).
+     * @param type - type of the entity
+     * @param start - first result to retrieve
+     * @param resultLimit - maximum result to retrieve
+     * @param plan - associations to load
+     * @return list of entities
+     */
+    public <T extends BaseEntity> List<T> getAllSubSet(Class<T> type, int start, int resultLimit, FetchPlan plan) {
+        return getAllSubSet(type, start, resultLimit, ReadOptions.DEFAULT.fetching(plan));
+    }
+
+    /**
+     * Get a subset of the entities for a given type, possibly read-only and without transaction
+     * @param type - type of the entity
+     * @param start - first result to retrieve
+     * @param resultLimit - maximum result to retrieve
+     * @param options - how to read
+     * @return list of entities, detached if there is no transaction
+     */
+    @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+    public <T extends BaseEntity> List<T> getAllSubSet(final Class<T> type, final int start, final int resultLimit, final ReadOptions options) {
+        return read(new Read<List<T>>() {
+            @Override
+            List<T> run(EntityManager em) {
+                return findWithCriteria(em, type, null, start, resultLimit, options);
+            }
+        }, options);
     }
 
     /**
@@ -122,8 +519,28 @@ public class CrudService {
      * @return list of results
      */
     public <T extends BaseEntity> List<T> findWithCriteriaQuery(CriteriaQuery<T> cq) {
-        TypedQuery<T> q = em.createQuery(cq);
-        return q.getResultList();
+        return findWithCriteriaQuery(cq, ReadOptions.DEFAULT);
+    }
+
+    /**
+     * Find all results for a given query, possibly read-only and without transaction
+     * NOTE: criteria queries are not coalesced, they cannot be compared by value.
+     * @param cq - criteria query
+     * @param options - how to read (coalesced does not apply)
+     * @return list of results, detached if there is no transaction
+     */
+    @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+    public <T extends BaseEntity> List<T> findWithCriteriaQuery(final CriteriaQuery<T> cq, final ReadOptions options) {
+        return read(new Read<List<T>>() {
+            @Override
+            List<T> run(EntityManager em) {
+                TypedQuery<T> q = em.createQuery(cq);
+                setFetchSize(q, options);
+                List<T> results = q.getResultList();
+                fetch(em, results, options.getFetchPlan(), Collections.<String>emptySet());
+                return results;
+            }
+        }, options);
     }
 
     /**
@@ -132,8 +549,26 @@ public class CrudService {
      * @return single (first) result of the query or {@link NoResultException} if there is no result
      */
     public <T extends BaseEntity> T findSingleWithCriteriaQuery(CriteriaQuery<T> cq) {
-        TypedQuery<T> q = em.createQuery(cq);
-        return q.getSingleResult();     // TODO should we return null instead ?
+        return findSingleWithCriteriaQuery(cq, ReadOptions.DEFAULT);
+    }
+
+    /**
+     * Find first result of the given query, possibly read-only and without transaction
+     * @param cq - criteria query
+     * @param options - how to read (fetch size and coalesced do not apply)
+     * @return single (first) result of the query or {@link NoResultException} if there is no result
+     */
+    @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+    public <T extends BaseEntity> T findSingleWithCriteriaQuery(final CriteriaQuery<T> cq, final ReadOptions options) {
+        return read(new Read<T>() {
+            @Override
+            T run(EntityManager em) {
+                TypedQuery<T> q = em.createQuery(cq);
+                T result = q.getSingleResult();     // TODO should we return null instead ?
+                fetch(em, Collections.singletonList(result), options.getFetchPlan(), Collections.<String>emptySet());
+                return result;
+            }
+        }, options);
     }
 
     /**
@@ -141,18 +576,34 @@ public class CrudService {
      * @param namedQueryName - name of the named query
      * @return list of entities
      */
-    public List findWithNamedQuery(String namedQueryName) {
-        return this.em.createNamedQuery(namedQueryName).getResultList();
+    public List findWithNamedQuery(final String namedQueryName) {
+        return read(new Read<List>() {
+            @Override
+            List run(EntityManager em) {
+                return em.createNamedQuery(namedQueryName).getResultList();
+            }
+        });
     }
 
     /**
      * Find all results for a given query
      * @param namedQueryName - name of the named query
-     * @param parameters - Map of <parameter name>, <parameter value>
+     * @param qp - parameters of the query
      * @return list of entities
      */
     public List findWithNamedQuery(String namedQueryName, QueryParameter qp) {
-        return findWithNamedQuery(namedQueryName, qp, 0, 0);
+        return findWithNamedQuery(namedQueryName, qp, 0, 0, FetchPlan.NONE);
+    }
+
+    /**
+     * Find all results for a given query with some of their associations
+     * @param namedQueryName - name of the named query
+     * @param qp - parameters of the query, may be null
+     * @param plan - associations to load, all in batches (see {@link FetchPlan})
+     * @return list of entities
+     */
+    public List findWithNamedQuery(String namedQueryName, QueryParameter qp, FetchPlan plan) {
+        return findWithNamedQuery(namedQueryName, qp, 0, 0, plan);
     }
 
     /**
@@ -162,34 +613,224 @@ public class CrudService {
      * @param resultLimit - maximum result to retrieve
      * @return list of entities
      */
-    public List findWithNamedQuery(String queryName, int start, int resultLimit) {
-        return this.em.createNamedQuery(queryName).
-                setFirstResult(start).
-                setMaxResults(resultLimit).
-                getResultList();
+    public List findWithNamedQuery(final String queryName, final int start, final int resultLimit) {
+        return read(new Read<List>() {
+            @Override
+            List run(EntityManager em) {
+                return em.createNamedQuery(queryName).
+                        setFirstResult(start).
+                        setMaxResults(resultLimit).
+                        getResultList();
+            }
+        });
     }
 
     /**
      * Find a sub-part of results for a given entity
      * @param namedQueryName - name of the named query
-     * @param parameters - Map of <parameter name>, <parameter value>
+     * @param qp - parameters of the query
      * @param start - first result to retrieve
      * @param resultLimit - maximum result to retrieve
      * @return list of entities
      */
     public List findWithNamedQuery(String namedQueryName, QueryParameter qp, int start, int resultLimit) {
-        Set<Map.Entry<String, Object>> rawParameters = qp.parameters().entrySet();
-        Query query = this.em.createNamedQuery(namedQueryName);
-        if (start > 0) {
-            query.setFirstResult(start);
+        return findWithNamedQuery(namedQueryName, qp, start, resultLimit, FetchPlan.NONE);
+    }
+
+    /**
+     * Find a sub-part of results for a given entity with some of their associations
+     * @param namedQueryName - name of the named query
+     * @param qp - parameters of the query, may be null
+     * @param start - first result to retrieve
+     * @param resultLimit - maximum result to retrieve
+     * @param plan - associations to load, all in batches (see {@link FetchPlan})
+     * @return list of entities
+     */
+    public List findWithNamedQuery(String namedQueryName, QueryParameter qp, int start, int resultLimit, FetchPlan plan) {
+        return findWithNamedQuery(namedQueryName, qp, start, resultLimit, ReadOptions.DEFAULT.fetching(plan));
+    }
+
+    /**
+     * Find a sub-part of results for a given entity, possibly read-only and without transaction
+     * @param namedQueryName - name of the named query
+     * @param qp - parameters of the query, may be null
+     * @param start - first result to retrieve
+     * @param resultLimit - maximum result to retrieve, 0 for all
+     * @param options - how to read, associations are all loaded in batches
+     * @return list of entities, detached if there is no transaction
+     * (detached, read-only and shared if the options are coalesced)
+     */
+    @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+    public List findWithNamedQuery(final String namedQueryName, final QueryParameter qp, final int start, final int resultLimit, final ReadOptions options) {
+        Read<List<Object>> read = new Read<List<Object>>() {
+            @Override
+            List<Object> run(EntityManager em) {
+                Query query = em.createNamedQuery(namedQueryName);
+                if (start > 0) {
+                    query.setFirstResult(start);
+                }
+                if (resultLimit > 0) {
+                    query.setMaxResults(resultLimit);
+                }
+                bind(query, qp);
+                setFetchSize(query, options);
+                List results = query.getResultList();
+                fetch(em, results, options.getFetchPlan(), Collections.<String>emptySet());
+                return results;
+            }
+        };
+        if (options.isCoalesced()) {
+            return coalesce(read, options, namedQueryName, qp, start, resultLimit);
         }
-        if (resultLimit > 0) {
-            query.setMaxResults(resultLimit);
+        return read(read, options);
+    }
+
+    /**
+     * Find all results for a given query template
+     * @param template - named query and its parameters
+     * @param values - values of the parameters, in the order of the template
+     * @return list of results
+     */
+    public <T> List<T> find(QueryTemplate<T> template, Object... values) {
+        return findPage(template, 0, 0, values);
+    }
+
+    /**
+     * Find a sub-part of results for a given query template
+     * Associations of the template's {@link FetchPlan} are loaded in batches.
+     * @param template - named query and its parameters
+     * @param start - first result to retrieve
+     * @param resultLimit - maximum result to retrieve, 0 for all
+     * @param values - values of the parameters, in the order of the template
+     * @return list of results
+     */
+    public <T> List<T> findPage(QueryTemplate<T> template, int start, int resultLimit, Object... values) {
+        return findPage(template, ReadOptions.DEFAULT, start, resultLimit, values);
+    }
+
+    /**
+     * Find a sub-part of results for a given query template, possibly read-only and without transaction
+     * The fetch plan of the options, if any, replaces the one of the template.
+     * @param template - named query and its parameters
+     * @param options - how to read
+     * @param start - first result to retrieve
+     * @param resultLimit - maximum result to retrieve, 0 for all
+     * @param values - values of the parameters, in the order of the template
+     * @return list of results, detached if there is no transaction
+     * (detached, read-only and shared if the options are coalesced)
+     */
+    @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+    public <T> List<T> findPage(final QueryTemplate<T> template, final ReadOptions options, final int start, final int resultLimit, final Object... values) {
+        Read<List<T>> read = new Read<List<T>>() {
+            @Override
+            List<T> run(EntityManager em) {
+                Query query = createQuery(em, template, values);
+                if (start > 0) {
+                    query.setFirstResult(start);
+                }
+                if (resultLimit > 0) {
+                    query.setMaxResults(resultLimit);
+                }
+                setFetchSize(query, options);
+                List<T> results = query.getResultList();
+                FetchPlan plan = options.getFetchPlan().isEmpty() ? template.getFetchPlan() : options.getFetchPlan();
+                fetch(em, results, plan, Collections.<String>emptySet());
+                return results;
+            }
+        };
+        if (options.isCoalesced()) {
+            template.checkArity(values);
+            QueryParameter qp = null;
+            for (int i = 0; i < values.length; i++) {
+                qp = qp == null ? QueryParameter.with(template.getParameterName(i), values[i]) : qp.and(template.getParameterName(i), values[i]);
+            }
+            return coalesce(read, options, template.getName(), qp, start, resultLimit);
+        }
+        return read(read, options);
+    }
+
+    /**
+     * Count rows for a given query template
+     * NOTE: the query must be a SELECT COUNT(*)
+     * @param template - named query and its parameters
+     * @param values - values of the parameters, in the order of the template
+     * @return rows count
+     */
+    public long count(final QueryTemplate<Long> template, final Object... values) {
+        return read(new Read<Long>() {
+            @Override
+            Long run(EntityManager em) {
+                return (Long) createQuery(em, template, values).getSingleResult();
+            }
+        });
+    }
+
+    /**
+     * Find a page of results for a given query, using keyset pagination
+     * Unlike {@link #findWithNamedQuery(String, QueryParameter, int, int)} the cost
+     * of a page does not depend on its depth: the query continues from the cursor
+     * instead of skipping rows.
+     * @param namedQueryName - name of the named query, ordered on the keys and filtering on the cursor parameters
+     * @param qp - other parameters of the query, may be null
+     * @param key - sort keys of the query
+     * @param cursor - position after the previous page, null for the first page
+     * @param pageSize - maximum results to retrieve, at least 1
+     * @return page of entities and cursor of the next page
+     * @throws IllegalArgumentException if pageSize is not positive
+     */
+    public <T extends BaseEntity> SeekPage<T> findPageWithNamedQuery(final String namedQueryName, final QueryParameter qp, SeekKey<T> key, SeekCursor cursor, final int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Invalid page size " + pageSize);
+        }
+        final SeekCursor from = cursor != null ? cursor : key.first();
+        List<T> results = read(new Read<List<T>>() {
+            @Override
+            List<T> run(EntityManager em) {
+                Query query = em.createNamedQuery(namedQueryName);
+                bind(query, qp);
+                for (Map.Entry<String, Object> entry : from.parameters().entrySet()) {
+                    query.setParameter(entry.getKey(), entry.getValue());
+                }
+                query.setMaxResults((int) Math.min(pageSize + 1L, Integer.MAX_VALUE));     // one more to know if there is a next page
+                return query.getResultList();
+            }
+        });
+        if (results.size() <= pageSize) {
+            return new SeekPage<T>(results, null);
         }
-        for (Map.Entry<String, Object> entry : rawParameters) {
-            query.setParameter(entry.getKey(), entry.getValue());
+        results = new ArrayList<T>(results.subList(0, pageSize));
+        return new SeekPage<T>(results, key.after(results.get(pageSize - 1)));
+    }
+
+    /**
+     * Stream all results for a given query
+     * See {@link #streamAll(Class, int, ResultHandler)}
+     * @param namedQueryName - name of the named query
+     * @param qp - parameters of the query, may be null
+     * @param fetchSize - number of rows fetched per round trip
+     * @param handler - callback receiving each result
+     * @return number of results handled
+     * @throws IllegalArgumentException if fetchSize is not positive
+     */
+    public long streamWithNamedQuery(String namedQueryName, QueryParameter qp, int fetchSize, ResultHandler handler) {
+        if (fetchSize < 1) {
+            throw new IllegalArgumentException("Invalid fetch size " + fetchSize);
         }
-        return query.getResultList();
+        Session session = (Session) this.em.getDelegate();
+        org.hibernate.Query query = session.getNamedQuery(namedQueryName).
+                setFetchSize(fetchSize).
+                setReadOnly(true).
+                setCacheMode(CacheMode.IGNORE);
+        if (qp != null) {
+            for (int i = 0; i < qp.size(); i++) {
+                if (qp.getValue(i) instanceof Collection) {
+                    query.setParameterList(qp.getName(i), (Collection) qp.getValue(i));
+                } else {
+                    query.setParameter(qp.getName(i), qp.getValue(i));
+                }
+            }
+        }
+        return stream(session, query.scroll(ScrollMode.FORWARD_ONLY), fetchSize, handler);
     }
 
     /**
@@ -199,7 +840,7 @@ public class CrudService {
      * @return rows count (first result of the query) or throws exception if there is no result
      */
     public long countWithNamedQuery(String namedQueryName) {
-        return (Long) this.em.createNamedQuery(namedQueryName).getSingleResult();
+        return countWithNamedQuery(namedQueryName, null);
     }
 
     /**
@@ -209,13 +850,15 @@ public class CrudService {
      * @param qp parameters of the query
      * @return rows count (first result of the query) or throws exception if there is no result
      */
-    public long countWithNamedQuery(String namedQueryName, QueryParameter qp) {
-        Set<Map.Entry<String, Object>> rawParameters = qp.parameters().entrySet();
-        Query query = this.em.createNamedQuery(namedQueryName);
-        for (Map.Entry<String, Object> entry : rawParameters) {
-            query.setParameter(entry.getKey(), entry.getValue());
-        }
-        return (Long) query.getSingleResult();
+    public long countWithNamedQuery(final String namedQueryName, final QueryParameter qp) {
+        return read(new Read<Long>() {
+            @Override
+            Long run(EntityManager em) {
+                Query query = em.createNamedQuery(namedQueryName);
+                bind(query, qp);
+                return (Long) query.getSingleResult();
+            }
+        });
     }
 
     /**
@@ -245,6 +888,428 @@ public class CrudService {
         return null;
     }
 
+    /**
+     * Set the parameters of a query
+     * @param query - query
+     * @param qp - parameters, may be null
+     */
+    private void bind(Query query, QueryParameter qp) {
+        if (qp != null) {
+            for (int i = 0; i < qp.size(); i++) {
+                query.setParameter(qp.getName(i), qp.getValue(i));
+            }
+        }
+    }
+
+    /**
+     * Create the named query of a template and bind its parameters
+     * The query is created on each call: it cannot outlive the entity manager.
+     * @param em - entity manager running the query
+     * @param template - named query and its parameters
+     * @param values - values of the parameters, in the order of the template
+     * @return query ready to be executed
+     */
+    private Query createQuery(EntityManager em, QueryTemplate template, Object[] values) {
+        template.checkArity(values);
+        Query query = em.createNamedQuery(template.getName());
+        for (int i = 0; i < values.length; i++) {
+            query.setParameter(template.getParameterName(i), values[i]);
+        }
+        return query;
+    }
+
+    /**
+     * Run a Hibernate criteria query, joining the associations of the plan
+     * which can be joined, then loading the others in batches
+     * @param em - entity manager running the query
+     * @param type - type of the entity
+     * @param restriction - condition, null for all entities
+     * @param start - first result to retrieve
+     * @param resultLimit - maximum result to retrieve, 0 for all (no collection is joined if not 0)
+     * @param options - fetch size and associations to load
+     * @return entities, without duplicates
+     */
+    private <T> List<T> findWithCriteria(EntityManager em, Class<T> type, Criterion restriction, int start, int resultLimit, ReadOptions options) {
+        FetchPlan plan = options.getFetchPlan();
+        Session session = (Session) em.getDelegate();
+        Criteria criteria = session.createCriteria(type);
+        if (restriction != null) {
+            criteria.add(restriction);
+        }
+        if (start > 0) {
+            criteria.setFirstResult(start);
+        }
+        if (resultLimit > 0) {
+            criteria.setMaxResults(resultLimit);
+        }
+        if (options.getFetchSize() > 0) {
+            criteria.setFetchSize(options.getFetchSize());
+        }
+        Set<String> joined = new HashSet<String>();
+        for (Map.Entry<String, FetchPlan.Mode> path : plan.getPaths().entrySet()) {
+            if (path.getValue() == FetchPlan.Mode.JOIN
+                    && (resultLimit == 0 || !isCollectionPath(session.getSessionFactory(), type, path.getKey()))) {
+                criteria.setFetchMode(path.getKey(), FetchMode.JOIN);
+                joined.add(path.getKey());
+            }
+        }
+        criteria.setResultTransformer(Criteria.DISTINCT_ROOT_ENTITY);
+        List<T> results = criteria.list();
+        fetch(em, results, plan, joined);
+        return results;
+    }
+
+    /**
+     * Load in batches the associations of the plan which were not joined
+     * Each association is initialized owner by owner: Hibernate then loads it
+     * for hibernate.default_batch_fetch_size owners of the persistence context at once.
+     * @param em - entity manager which loaded the results
+     * @param results - entities (other results are ignored)
+     * @param plan - associations to load
+     * @param joined - paths already loaded by the query
+     */
+    private void fetch(EntityManager em, List<?> results, FetchPlan plan, Set<String> joined) {
+        if (plan.isEmpty() || results.isEmpty()) {
+            return;
+        }
+        SessionFactory factory = ((Session) em.getDelegate()).getSessionFactory();
+        for (String path : plan.getPaths().keySet()) {
+            if (joined.contains(path)) {
+                continue;
+            }
+            Collection<?> owners = results;
+            for (String property : path.split("\\.")) {
+                List<Object> next = new ArrayList<Object>();
+                for (Object owner : owners) {
+                    ClassMetadata metadata = owner == null ? null : factory.getClassMetadata(Hibernate.getClass(owner));
+                    if (metadata == null) {
+                        continue;
+                    }
+                    Object value = metadata.getPropertyValue(owner, property, EntityMode.POJO);
+                    Hibernate.initialize(value);
+                    if (value instanceof Collection) {
+                        next.addAll((Collection<?>) value);
+                    } else if (value != null) {
+                        next.add(value);
+                    }
+                }
+                owners = next;
+            }
+        }
+    }
+
+    private static boolean hasJoin(FetchPlan plan) {
+        return plan.getPaths().containsValue(FetchPlan.Mode.JOIN);
+    }
+
+    /**
+     * Check if a path goes through a collection
+     * @param factory - session factory, for the mappings
+     * @param type - type of the root entity
+     * @param path - association path
+     * @return true if one of its properties is a collection
+     */
+    private static boolean isCollectionPath(SessionFactory factory, Class type, String path) {
+        ClassMetadata metadata = factory.getClassMetadata(type);
+        for (String property : path.split("\\.")) {
+            Type propertyType = metadata.getPropertyType(property);
+            if (propertyType.isCollectionType()) {
+                return true;
+            }
+            if (!propertyType.isEntityType()) {
+                return false;
+            }
+            metadata = factory.getClassMetadata(((EntityType) propertyType).getAssociatedEntityName());
+        }
+        return false;
+    }
+
+    /**
+     * A read-only operation, run on the primary or on the replica
+     */
+    private abstract static class Read<T> {
+
+        /**
+         * @param em - entity manager of the primary or of the replica
+         * @return result of the read
+         */
+        abstract T run(EntityManager em);
+    }
+
+    /**
+     * Run a read on the primary
+     * Reads without options return managed entities, they never go to the replica.
+     * @param read - operation
+     * @return result of the operation
+     */
+    private <T> T read(Read<T> read) {
+        return read(read, ReadOptions.DEFAULT);
+    }
+
+    /**
+     * Run a read on the replica if the options are read-only (and do not pin
+     * it to the primary) and the {@link ReadRouter} allows it, else on the
+     * primary. A read failing on the replica is retried on the primary,
+     * except for errors which do not come from the database itself.
+     * Without transaction, the read gets its own entity manager, closed afterwards.
+     * @param read - operation
+     * @param options - how to read
+     * @return result of the operation
+     */
+    private <T> T read(Read<T> read, ReadOptions options) {
+        if (txRegistry.getTransactionStatus() == Status.STATUS_NO_TRANSACTION) {
+            return readDetached(read, options);
+        }
+        if (useReplica(options)) {
+            try {
+                return run(read, router.getReplicaEntityManager(), options);
+            } catch (NoResultException e) {
+                throw e;
+            } catch (NonUniqueResultException e) {
+                throw e;
+            } catch (PersistenceException e) {
+                router.replicaFailed(e);
+            }
+        }
+        return run(read, this.em, options);
+    }
+
+    /**
+     * Entities read from the replica are not managed by the entity manager
+     * of the transaction: only read-only reads may go there
+     */
+    private boolean useReplica(ReadOptions options) {
+        return options.isReadOnly() && !options.isPrimary() && router.useReplica();
+    }
+
+    /**
+     * Run a read outside of any transaction, with its own entity manager
+     * (replica or primary) closed afterwards: the results are detached
+     * @param read - operation
+     * @param options - how to read
+     * @return result of the operation
+     */
+    private <T> T readDetached(Read<T> read, ReadOptions options) {
+        if (useReplica(options)) {
+            EntityManager replica = router.openReplicaEntityManager();
+            try {
+                return run(read, replica, options);
+            } catch (NoResultException e) {
+                throw e;
+            } catch (NonUniqueResultException e) {
+                throw e;
+            } catch (PersistenceException e) {
+                router.replicaFailed(e);
+            } finally {
+                replica.close();
+            }
+        }
+        EntityManager primary = this.emf.createEntityManager();
+        try {
+            return run(read, primary, options);
+        } finally {
+            primary.close();
+        }
+    }
+
+    /**
+     * Run a read, or share the result of the identical one running
+     * (see {@link InFlightQueries}). The read runs detached, in the
+     * transaction-less context of {@link InFlightQueries#run}.
+     * @param read - operation
+     * @param options - how to read, part of the identity of the query
+     * @param queryName - name of the query
+     * @param qp - parameters of the query, may be null
+     * @param start - first result
+     * @param resultLimit - maximum number of results
+     * @return read-only list of results, shared with the other callers
+     */
+    private <T> List<T> coalesce(final Read<List<T>> read, final ReadOptions options, String queryName, QueryParameter qp, int start, int resultLimit) {
+        return inFlight.run(new QueryKey(queryName, qp, start, resultLimit, options), new Callable<List<T>>() {
+            @Override
+            public List<T> call() {
+                return Collections.unmodifiableList(readDetached(read, options));
+            }
+        });
+    }
+
+    /**
+     * Identity of a query for {@link InFlightQueries}: named query,
+     * parameters, paging and options, compared by value
+     */
+    private static final class QueryKey {
+
+        private final String queryName;
+
+        private final QueryParameter parameters;
+
+        private final int start;
+
+        private final int resultLimit;
+
+        private final ReadOptions options;
+
+        QueryKey(String queryName, QueryParameter parameters, int start, int resultLimit, ReadOptions options) {
+            this.queryName = queryName;
+            this.parameters = parameters;
+            this.start = start;
+            this.resultLimit = resultLimit;
+            this.options = options;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof QueryKey)) {
+                return false;
+            }
+            QueryKey other = (QueryKey) obj;
+            return queryName.equals(other.queryName) && start == other.start && resultLimit == other.resultLimit
+                    && (parameters == null ? other.parameters == null : parameters.equals(other.parameters))
+                    && options.equals(other.options);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = queryName.hashCode();
+            hash = 31 * hash + (parameters == null ? 0 : parameters.hashCode());
+            hash = 31 * hash + start;
+            hash = 31 * hash + resultLimit;
+            return 31 * hash + options.hashCode();
+        }
+    }
+
+    /**
+     * Run a read with the session set up for its options, then restored
+     * (the transaction may write other entities before or after)
+     * @param read - operation
+     * @param em - entity manager to use
+     * @param options - how to read
+     * @return result of the operation
+     */
+    private static <T> T run(Read<T> read, EntityManager em, ReadOptions options) {
+        if (!options.isReadOnly()) {
+            return read.run(em);
+        }
+        Session session = (Session) em.getDelegate();
+        boolean readOnly = session.isDefaultReadOnly();
+        FlushMode flushMode = session.getFlushMode();
+        session.setDefaultReadOnly(true);       // no snapshot, no dirty checking
+        session.setFlushMode(FlushMode.MANUAL); // no flush before the queries
+        try {
+            return read.run(em);
+        } finally {
+            session.setDefaultReadOnly(readOnly);
+            session.setFlushMode(flushMode);
+        }
+    }
+
+    /**
+     * Set the JDBC fetch size of a query, if the options have one
+     * @param query - query
+     * @param options - how to read
+     */
+    private static void setFetchSize(Query query, ReadOptions options) {
+        if (options.getFetchSize() > 0) {
+            query.setHint(QueryHints.HINT_FETCH_SIZE, options.getFetchSize());
+        }
+    }
+
+    /**
+     * Hand results one by one to the handler, detaching them periodically
+     * @param session - current session
+     * @param results - cursor, closed at the end
+     * @param fetchSize - number of entities between two clears of the session
+     * @param handler - callback
+     * @return number of results handled
+     * @throws IllegalArgumentException if fetchSize is not positive, the cursor is closed
+     */
+    private long stream(Session session, ScrollableResults results, int fetchSize, ResultHandler handler) {
+        long count = 0;
+        try {
+            if (fetchSize < 1) {
+                throw new IllegalArgumentException("Invalid fetch size " + fetchSize);
+            }
+            session.flush();        // do not lose pending changes when clearing
+            while (results.next()) {
+                handler.handle(results.get(0));
+                if (++count % fetchSize == 0) {
+                    session.flush();
+                    session.clear();
+                }
+            }
+        } finally {
+            results.close();
+        }
+        return count;
+    }
+
+    /**
+     * Refuse an entity that merge would take for more than it knows:
+     * <ul>
+     * <li>a collection which was not loaded when the entity was serialized
+     * ({@link NotLoadedList}) would be merged as an empty collection, deleting
+     * its rows;</li>
+     * <li>a reference (id only, {@link BaseEntity#isReference()}) in an
+     * association cascading the merge (e.g. Category.children) would
+     * overwrite the entity with its unknown, null, fields.</li>
+     * </ul>
+     * References in other associations are fine: merge only takes their id.
+     * @param object - entity to merge
+     * @throws IllegalArgumentException if the entity cannot be merged
+     */
+    private void checkMergeable(Object object) {
+        if (object instanceof HibernateProxy) {
+            return;     // managed or loaded by Hibernate, never deserialized
+        }
+        SessionFactory factory = ((Session) this.em.getDelegate()).getSessionFactory();
+        EntityPersister persister = (EntityPersister) factory.getClassMetadata(object.getClass());
+        if (persister == null) {
+            return;
+        }
+        String[] names = persister.getPropertyNames();
+        Object[] values = persister.getPropertyValues(object, EntityMode.POJO);
+        CascadeStyle[] cascades = persister.getPropertyCascadeStyles();
+        for (int i = 0; i < names.length; i++) {
+            String property = persister.getEntityName() + "." + names[i];
+            if (values[i] instanceof NotLoadedList) {
+                throw new IllegalArgumentException(property + " was not loaded when the entity was serialized,"
+                        + " load the entity or update its fields instead of merging it");
+            }
+            if (!cascades[i].doCascade(CascadingAction.MERGE) || values[i] == null || !Hibernate.isInitialized(values[i])) {
+                continue;
+            }
+            Collection<?> targets = values[i] instanceof Collection ? (Collection<?>) values[i] : Collections.singleton(values[i]);
+            for (Object target : targets) {
+                if (target instanceof BaseEntity && !(target instanceof HibernateProxy) && ((BaseEntity) target).isReference()) {
+                    throw new IllegalArgumentException(property + " only holds references (ids) to be merged in cascade,"
+                            + " load the entity instead of merging it");
+                }
+                checkMergeable(target);
+            }
+        }
+    }
+
+    /**
+     * Evict from the second-level cache the collections which may contain
+     * entities of the given type, now and once the transaction is committed.
+     * Hibernate only invalidates a cached collection when it is modified through
+     * its owner, not when an element is created, moved or deleted on its own
+     * (e.g. a category saved with its parent set).
+     * @param type - type of the entity created, updated or deleted
+     */
+    private void evictCachedCollections(Class type) {
+        if (Category.class.isAssignableFrom(type)) {
+            final org.hibernate.Cache cache = ((Session) this.em.getDelegate()).getSessionFactory().getCache();
+            cache.evictCollectionRegion(Category.CHILDREN_ROLE);
+            txRegistry.registerInterposedSynchronization(new AfterCommit() {
+                @Override
+                protected void committed() {
+                    cache.evictCollectionRegion(Category.CHILDREN_ROLE);
+                }
+            });
+        }
+    }
+
     /**
      * Create a custom JPQL query
      * @param query query
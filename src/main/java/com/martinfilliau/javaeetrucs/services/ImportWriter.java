@@ -0,0 +1,156 @@
+package com.martinfilliau.javaeetrucs.services;
+
+import com.martinfilliau.javaeetrucs.data.Category;
+import com.martinfilliau.javaeetrucs.data.ImportCheckpoint;
+import com.martinfilliau.javaeetrucs.data.Post;
+import com.martinfilliau.javaeetrucs.services.importer.CategoryPaths;
+import com.martinfilliau.javaeetrucs.services.importer.ChunkResult;
+import com.martinfilliau.javaeetrucs.services.importer.ImportChunk;
+import com.martinfilliau.javaeetrucs.services.importer.ImportRecord;
+import com.martinfilliau.javaeetrucs.services.utils.ReadOptions;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.ejb.EJB;
+import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+
+/**
+ * Transactional side of {@link PostImporter}: each chunk of an import file is
+ * written, with its checkpoint, in its own transaction. Same for each group
+ * of posts of {@link PostIngestQueue}.
+ * Entities are created through {@link BlogService}, so counters and indexes
+ * are updated as for any other write.
+ * @author martinfilliau
+ */
+@Stateless
+public class ImportWriter {
+
+    @EJB
+    private BlogService blog;
+
+    @EJB
+    private CrudService crud;
+
+    /**
+     * Get the last line committed by a previous import of a file
+     * @param source - canonical path of the file
+     * @return line number, 0 if the file was never imported
+     */
+    public long getCheckpoint(String source) {
+        ImportCheckpoint checkpoint = crud.get(ImportCheckpoint.class, source, ReadOptions.PRIMARY);
+        return checkpoint != null ? checkpoint.getLine() : 0;
+    }
+
+    /**
+     * Get the paths of the existing categories
+     * @return paths
+     */
+    public CategoryPaths getCategoryPaths() {
+        return CategoryPaths.of(crud.findWithNamedQuery(Category.QUERY_GET_NAMES, null, 0, 0, ReadOptions.PRIMARY));
+    }
+
+    /**
+     * Write a chunk and its checkpoint
+     * Invalid records, and posts referencing unknown categories, are rejected
+     * without failing the chunk.
+     * @param source - canonical path of the file
+     * @param chunk - records to write
+     * @param known - paths of the categories created so far (not modified)
+     * @return what was written
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public ChunkResult write(String source, ImportChunk chunk, CategoryPaths known) {
+        Map<String, Long> created = new LinkedHashMap<String, Long>();
+        List<String> errors = new ArrayList<String>();
+        List<Post> posts = new ArrayList<Post>();
+        for (ImportRecord record : chunk.getRecords()) {
+            switch (record.getKind()) {
+                case INVALID:
+                    errors.add("line " + record.getLine() + ": " + record.getError());
+                    break;
+                case CATEGORY:
+                    resolve(CategoryPaths.normalize(record.getCategoryPath()), known, created);
+                    break;
+                case POST:
+                    Post p = toPost(record, known, created, errors);
+                    if (p != null) {
+                        posts.add(p);
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown record " + record.getKind());
+            }
+        }
+        if (!posts.isEmpty()) {
+            blog.createPosts(posts);
+        }
+        ImportCheckpoint checkpoint = crud.get(ImportCheckpoint.class, source, ReadOptions.PRIMARY);
+        if (checkpoint == null) {
+            crud.create(new ImportCheckpoint(source, chunk.getLastLine()));
+        } else {
+            checkpoint.setLine(chunk.getLastLine());
+            crud.update(checkpoint);
+        }
+        return new ChunkResult(created, posts.size(), errors);
+    }
+
+    /**
+     * Write a group of posts
+     * @param posts - posts to create, detached once written
+     * @return ids of the posts, same order
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public List<Long> write(List<Post> posts) {
+        blog.createPosts(posts);
+        List<Long> ids = new ArrayList<Long>(posts.size());
+        for (Post p : posts) {
+            ids.add(p.getId());
+        }
+        return ids;
+    }
+
+    private Post toPost(ImportRecord record, CategoryPaths known, Map<String, Long> created, List<String> errors) {
+        List<Category> categories = new ArrayList<Category>(record.getCategoryPaths().size());
+        for (String path : record.getCategoryPaths()) {
+            String normalized = CategoryPaths.normalize(path);
+            Long id = created.containsKey(normalized) ? created.get(normalized) : known.get(normalized);
+            if (id == null) {
+                errors.add("line " + record.getLine() + ": unknown category " + path);
+                return null;
+            }
+            categories.add(crud.getReference(Category.class, id));
+        }
+        Post p = new Post();
+        p.setName(record.getName());
+        p.setPublishedAt(record.getPublishedAt());
+        p.setDescription(record.getDescription());
+        p.setCategories(categories);
+        return p;
+    }
+
+    /**
+     * Get a category, creating it and its missing ancestors if needed
+     * @param path - normalized path of the category
+     * @param known - categories created before this chunk
+     * @param created - categories created by this chunk, added to
+     * @return id of the category
+     */
+    private Long resolve(String path, CategoryPaths known, Map<String, Long> created) {
+        Long id = created.containsKey(path) ? created.get(path) : known.get(path);
+        if (id != null) {
+            return id;
+        }
+        String parentPath = CategoryPaths.parentOf(path);
+        Category c = new Category();
+        c.setName(CategoryPaths.nameOf(path));
+        if (parentPath != null) {
+            c.setParent(crud.getReference(Category.class, resolve(parentPath, known, created)));
+        }
+        id = blog.createCategory(c).getId();
+        created.put(path, id);
+        return id;
+    }
+}
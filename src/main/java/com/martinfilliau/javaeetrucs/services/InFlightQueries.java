@@ -0,0 +1,101 @@
+package com.martinfilliau.javaeetrucs.services;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJBException;
+import javax.ejb.Singleton;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+
+/**
+ * Queries being executed, so that identical ones arriving meanwhile wait
+ * for the result of the first one instead of running again ("single flight"),
+ * e.g. when hundreds of requests load the same popular category page at once.
+ * There is no global lock: each query has its own
+ * {@link java.util.concurrent.FutureTask}, run by the first caller and
+ * awaited by the others, and forgotten as soon as it completes (results are
+ * not cached). A failure is thrown to every caller of the flight.
+ * Queries run outside of the caller's transaction (suspended), since their
+ * results are shared with callers of other transactions.
+ * Used by {@link CrudService} for the reads with
+ * {@link com.martinfilliau.javaeetrucs.services.utils.ReadOptions#coalesced()}.
+ * @author martinfilliau
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+public class InFlightQueries {
+
+    private final ConcurrentMap<Object, FutureTask<?>> flights = new ConcurrentHashMap<Object, FutureTask<?>>();
+
+    private final AtomicLong executedCount = new AtomicLong();
+
+    private final AtomicLong sharedCount = new AtomicLong();
+
+    /**
+     * Run a query, or wait for the identical one already running
+     * @param key - identity of the query (name, parameters, paging...), with value-based equality
+     * @param query - query to run if none is running for the key
+     * @return result of the query, shared with the other callers of the flight
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T run(Object key, Callable<T> query) {
+        FutureTask<T> flight = new FutureTask<T>(query);
+        FutureTask<T> running = (FutureTask<T>) flights.putIfAbsent(key, flight);
+        if (running == null) {
+            executedCount.incrementAndGet();
+            try {
+                flight.run();
+            } finally {
+                flights.remove(key, flight);
+            }
+            running = flight;
+        } else {
+            sharedCount.incrementAndGet();
+        }
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EJBException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new EJBException(cause instanceof Exception ? (Exception) cause : e);
+        }
+    }
+
+    /* GETTERs and SETTERs */
+
+    /**
+     * Get the number of queries executed
+     * @return count
+     */
+    public long getExecutedCount() {
+        return executedCount.get();
+    }
+
+    /**
+     * Get the number of calls which got the result of a query already running
+     * @return count
+     */
+    public long getSharedCount() {
+        return sharedCount.get();
+    }
+
+    /**
+     * Get the number of queries running
+     * @return count
+     */
+    public int getInFlightCount() {
+        return flights.size();
+    }
+}
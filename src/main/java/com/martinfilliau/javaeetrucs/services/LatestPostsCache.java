@@ -0,0 +1,427 @@
+package com.martinfilliau.javaeetrucs.services;
+
+import com.martinfilliau.javaeetrucs.data.PostSummary;
+import com.martinfilliau.javaeetrucs.services.monitoring.LatestPostsCacheMXBean;
+import com.martinfilliau.javaeetrucs.services.utils.StripedCounter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Latest {@link #CAPACITY} posts of each category and its children, as
+ * {@link com.martinfilliau.javaeetrucs.data.PostSummary}s, most recent first.
+ * Entries are loaded by {@link BlogService} on a miss, then kept up to date
+ * with each committed write: a post is inserted, moved or removed in place.
+ * Only when a post leaves a full entry (its replacement is unknown) is that
+ * entry dropped, to be loaded again on the next read.
+ * Entries are immutable and replaced with compare-and-set, reads never lock.
+ * When the estimated size exceeds the memory budget, least recently read
+ * entries are evicted.
+ * Published as the MXBean {@link #OBJECT_NAME}.
+ * @author martinfilliau
+ */
+@Singleton
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+public class LatestPostsCache implements LatestPostsCacheMXBean {
+
+    public static final String OBJECT_NAME = "com.martinfilliau.javaeetrucs:type=LatestPostsCache";
+
+    /**
+     * Posts kept per category
+     */
+    public static final int CAPACITY = 50;
+
+    /**
+     * System property giving the memory budget, in bytes
+     */
+    public static final String MAX_BYTES_PROPERTY = "javaeetrucs.latestPostsCacheBytes";
+
+    private static final int EVICTION_SAMPLE = 16;
+
+    /**
+     * publishedAt DESC, id DESC (same order as the named queries)
+     */
+    private static final Comparator<PostSummary> NEWEST_FIRST = new Comparator<PostSummary>() {
+        @Override
+        public int compare(PostSummary p1, PostSummary p2) {
+            long d1 = p1.getPublishedAt() != null ? p1.getPublishedAt().getTime() : Long.MIN_VALUE;
+            long d2 = p2.getPublishedAt() != null ? p2.getPublishedAt().getTime() : Long.MIN_VALUE;
+            if (d1 != d2) {
+                return d1 < d2 ? 1 : -1;
+            }
+            return p2.getId().compareTo(p1.getId());
+        }
+    };
+
+    private final ConcurrentMap<Long, Entry> entries = new ConcurrentHashMap<Long, Entry>();
+
+    /**
+     * Incremented by every write, to detect loads racing with writes
+     */
+    private final AtomicLong writes = new AtomicLong();
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    private final AtomicLong ticks = new AtomicLong();
+
+    private final StripedCounter hits = new StripedCounter();
+
+    private final StripedCounter misses = new StripedCounter();
+
+    private final AtomicLong updates = new AtomicLong();
+
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private volatile long maxBytes = Long.getLong(MAX_BYTES_PROPERTY, 16L * 1024 * 1024);
+
+    @PostConstruct
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);      // left by a previous deployment
+            }
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            throw new IllegalStateException("Cannot register " + OBJECT_NAME, e);
+        }
+    }
+
+    @PreDestroy
+    public void unregister() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            // already unregistered, nothing to do
+        }
+    }
+
+    /**
+     * Get the latest posts of a category and its children
+     * @param categoryId - id of the category
+     * @param limit - number of posts, at most {@link #CAPACITY}
+     * @return posts, most recent first, or null if not cached
+     * @throws IllegalArgumentException if limit is negative
+     */
+    public List<PostSummary> get(long categoryId, int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Invalid limit " + limit);
+        }
+        Entry entry = limit <= CAPACITY ? entries.get(categoryId) : null;
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        entry.lastAccess = ticks.incrementAndGet();
+        List<PostSummary> posts = Arrays.asList(entry.posts);
+        return Collections.unmodifiableList(posts.size() > limit ? posts.subList(0, limit) : posts);
+    }
+
+    /**
+     * Get a stamp to give to {@link #put(long, java.util.List, long)}, taken
+     * before loading the posts of a category
+     * @return stamp
+     */
+    public long stamp() {
+        return writes.get();
+    }
+
+    /**
+     * Cache the latest posts of a category and its children, unless a write
+     * was committed since the stamp was taken (the posts may miss it), even
+     * while the entry was being added
+     * @param categoryId - id of the category
+     * @param posts - the latest {@link #CAPACITY} posts (or all of them if there are less), most recent first
+     * @param stamp - {@link #stamp()} taken before loading the posts
+     */
+    public void put(long categoryId, List<PostSummary> posts, long stamp) {
+        if (writes.get() != stamp) {
+            return;
+        }
+        PostSummary[] array = posts.toArray(new PostSummary[Math.min(posts.size(), CAPACITY)]);
+        if (array.length > CAPACITY) {
+            array = Arrays.copyOf(array, CAPACITY);
+        }
+        Entry entry = new Entry(array, System.nanoTime(), posts.size() >= CAPACITY);
+        entry.lastAccess = ticks.incrementAndGet();
+        Entry previous = entries.put(categoryId, entry);
+        bytes.addAndGet(entry.bytes - (previous != null ? previous.bytes : 0));
+        // a write counted after the check above may have found no entry to update
+        if (writes.get() != stamp && entries.remove(categoryId, entry)) {
+            bytes.addAndGet(-entry.bytes);
+            return;
+        }
+        evictIfNeeded();
+    }
+
+    /**
+     * Take into account a post created or updated
+     * @param post - the post as committed
+     * @param removedFrom - categories (ancestors included) that no longer contain the post
+     * @param addedTo - categories (ancestors included) that contain the post
+     */
+    public void postSaved(PostSummary post, Collection<Long> removedFrom, Collection<Long> addedTo) {
+        writes.incrementAndGet();
+        for (Long categoryId : removedFrom) {
+            if (!addedTo.contains(categoryId)) {
+                update(categoryId, post.getId(), null);
+            }
+        }
+        for (Long categoryId : addedTo) {
+            update(categoryId, post.getId(), post);
+        }
+    }
+
+    /**
+     * Take into account a post deleted
+     * @param postId - id of the post
+     * @param removedFrom - categories (ancestors included) of the post
+     */
+    public void postDeleted(long postId, Collection<Long> removedFrom) {
+        writes.incrementAndGet();
+        for (Long categoryId : removedFrom) {
+            update(categoryId, postId, null);
+        }
+    }
+
+    /**
+     * Drop all the entries, e.g. when the hierarchy changes
+     */
+    public void invalidateAll() {
+        writes.incrementAndGet();
+        for (Iterator<Map.Entry<Long, Entry>> it = entries.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Long, Entry> e = it.next();
+            if (entries.remove(e.getKey(), e.getValue())) {
+                bytes.addAndGet(-e.getValue().bytes);
+                invalidations.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Insert, move or remove a post in the entry of a category
+     * @param categoryId - id of the category
+     * @param postId - id of the post
+     * @param post - post to insert or move, null to remove it
+     */
+    private void update(Long categoryId, long postId, PostSummary post) {
+        while (true) {
+            Entry current = entries.get(categoryId);
+            if (current == null) {
+                return;
+            }
+            Entry updated = current.with(postId, post);
+            boolean done = updated != null
+                    ? entries.replace(categoryId, current, updated)
+                    : entries.remove(categoryId, current);
+            if (done) {
+                bytes.addAndGet((updated != null ? updated.bytes : 0) - current.bytes);
+                if (updated != null) {
+                    updates.incrementAndGet();
+                } else {
+                    invalidations.incrementAndGet();
+                }
+                evictIfNeeded();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Evict the least recently read of a few entries until within the budget
+     */
+    private void evictIfNeeded() {
+        while (bytes.get() > maxBytes && !entries.isEmpty()) {
+            Map.Entry<Long, Entry> oldest = null;
+            int sampled = 0;
+            for (Map.Entry<Long, Entry> e : entries.entrySet()) {
+                if (oldest == null || e.getValue().lastAccess < oldest.getValue().lastAccess) {
+                    oldest = e;
+                }
+                if (++sampled == EVICTION_SAMPLE) {
+                    break;
+                }
+            }
+            if (oldest != null && entries.remove(oldest.getKey(), oldest.getValue())) {
+                bytes.addAndGet(-oldest.getValue().bytes);
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    @Override
+    public double getHitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total > 0 ? (double) h / total : 0;
+    }
+
+    @Override
+    public int getEntryCount() {
+        return entries.size();
+    }
+
+    @Override
+    public long getEstimatedBytes() {
+        return bytes.get();
+    }
+
+    @Override
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        evictIfNeeded();
+    }
+
+    @Override
+    public long getUpdateCount() {
+        return updates.get();
+    }
+
+    @Override
+    public long getInvalidationCount() {
+        return invalidations.get();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    @Override
+    public long getOldestEntryAgeMillis() {
+        long now = System.nanoTime();
+        long oldest = 0;
+        for (Entry entry : entries.values()) {
+            oldest = Math.max(oldest, now - entry.loadedAt);
+        }
+        return TimeUnit.NANOSECONDS.toMillis(oldest);
+    }
+
+    @Override
+    public void clear() {
+        invalidateAll();
+        hits.set(0);
+        misses.set(0);
+        updates.set(0);
+        invalidations.set(0);
+        evictions.set(0);
+    }
+
+    /**
+     * Latest posts of a category; only lastAccess changes once built
+     */
+    private static final class Entry {
+
+        private final PostSummary[] posts;
+
+        private final long loadedAt;
+
+        /**
+         * True if the category may have more posts than the ones kept
+         */
+        private final boolean full;
+
+        private final long bytes;
+
+        private volatile long lastAccess;
+
+        Entry(PostSummary[] posts, long loadedAt, boolean full) {
+            this.posts = posts;
+            this.loadedAt = loadedAt;
+            this.full = full;
+            long size = 64 + 8L * posts.length;
+            for (PostSummary p : posts) {
+                size += 96 + 2L * (p.getName() != null ? p.getName().length() : 0) + 24L * p.getCategoryIds().size();
+            }
+            this.bytes = size;
+        }
+
+        /**
+         * Get a new entry with a post inserted, moved or removed
+         * @param postId - id of the post
+         * @param post - post to insert or move, null to remove it
+         * @return new entry, this one if unchanged, or null if the entry can no longer be trusted
+         */
+        Entry with(long postId, PostSummary post) {
+            List<PostSummary> updated = new ArrayList<PostSummary>(posts.length + 1);
+            boolean removed = false;
+            for (PostSummary p : posts) {
+                if (p.getId() == postId) {
+                    removed = true;
+                } else {
+                    updated.add(p);
+                }
+            }
+            if (post == null) {
+                if (!removed) {
+                    return this;
+                }
+                // the post that should now take the last place is unknown
+                if (full) {
+                    return null;
+                }
+                Entry entry = new Entry(updated.toArray(new PostSummary[updated.size()]), loadedAt, false);
+                entry.lastAccess = lastAccess;
+                return entry;
+            }
+            int i = Collections.binarySearch(updated, post, NEWEST_FIRST);
+            int insert = i >= 0 ? i : -i - 1;
+            if (full && insert == updated.size() && updated.size() == CAPACITY - 1 && removed) {
+                return null;    // moved to the last place, posts after it are unknown
+            }
+            if (insert >= CAPACITY) {
+                return this;    // older than all the cached posts
+            }
+            updated.add(insert, post);
+            boolean stillFull = full || updated.size() > CAPACITY;
+            if (updated.size() > CAPACITY) {
+                updated.remove(updated.size() - 1);
+            }
+            Entry entry = new Entry(updated.toArray(new PostSummary[updated.size()]), loadedAt, stillFull);
+            entry.lastAccess = lastAccess;
+            return entry;
+        }
+    }
+}
@@ -0,0 +1,328 @@
+package com.martinfilliau.javaeetrucs.services;
+
+import com.martinfilliau.javaeetrucs.data.Post;
+import com.martinfilliau.javaeetrucs.services.utils.CompressedBitmap;
+import com.martinfilliau.javaeetrucs.services.utils.LoadJournal;
+import com.martinfilliau.javaeetrucs.services.utils.PostSeekKey;
+import com.martinfilliau.javaeetrucs.services.utils.ReadOptions;
+import com.martinfilliau.javaeetrucs.services.utils.SeekCursor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJB;
+import javax.ejb.SessionContext;
+import javax.ejb.Singleton;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+
+/**
+ * Application wide index of the posts of each category: one
+ * {@link com.martinfilliau.javaeetrucs.services.utils.CompressedBitmap} of post
+ * ids per category, and the publication date of each post to sort them.
+ * The posts of a category subtree are the union of the bitmaps of its
+ * categories, sorted in memory (publishedAt DESC, id DESC): the database is
+ * then only queried by primary key.
+ * The index is loaded once from the database, then updated by
+ * {@link BlogService} once its transactions are committed, including the
+ * ones committed while it is loaded (always in a new transaction, never in
+ * the reader's one whose snapshot of the database may be older).
+ * @author martinfilliau
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class PostCategoryIndex {
+
+    /**
+     * Publication date of posts without one: after all the others
+     */
+    private static final long NOT_PUBLISHED = Long.MIN_VALUE;
+
+    @EJB
+    private CrudService crud;
+
+    @Resource
+    private SessionContext context;
+
+    private volatile ConcurrentMap<Long, CompressedBitmap> postsByCategory;
+
+    private volatile ConcurrentMap<Long, Long> publishedAt;
+
+    private final LoadJournal journal = new LoadJournal();
+
+    /**
+     * Most recent first: publishedAt DESC, id DESC
+     */
+    private final Comparator<Long> newestFirst = new Comparator<Long>() {
+        @Override
+        public int compare(Long id1, Long id2) {
+            long p1 = getPublishedAt(id1);
+            long p2 = getPublishedAt(id2);
+            if (p1 != p2) {
+                return p1 < p2 ? 1 : -1;
+            }
+            return id2.compareTo(id1);
+        }
+    };
+
+    /**
+     * Get the posts of some categories
+     * @param categoryIds - ids of the categories
+     * @return ids of the posts, most recent first
+     */
+    public List<Long> getPostIds(Collection<Long> categoryIds) {
+        long[] ids = union(categoryIds).toArray();
+        List<Long> sorted = new ArrayList<Long>(ids.length);
+        for (long id : ids) {
+            sorted.add(id);
+        }
+        Collections.sort(sorted, newestFirst);
+        return sorted;
+    }
+
+    /**
+     * Get a page of the posts of some categories
+     * @param categoryIds - ids of the categories
+     * @param cursor - position after the previous page ({@link PostSeekKey}), null for the first page
+     * @param limit - maximum number of posts
+     * @return ids of the posts, most recent first
+     */
+    public List<Long> getPostIds(Collection<Long> categoryIds, SeekCursor cursor, int limit) {
+        Map<String, Object> from = (cursor != null ? cursor : PostSeekKey.INSTANCE.first()).parameters();
+        Date lastDate = (Date) from.get(PostSeekKey.LAST_PUBLISHED_AT);
+        long lastPublishedAt = toMillis(lastDate);
+        long lastId = (Long) from.get(PostSeekKey.LAST_ID);
+
+        // keep the "limit" most recent posts after the cursor, the oldest on top
+        long[] ids = union(categoryIds).toArray();
+        PriorityQueue<Long> page = new PriorityQueue<Long>(Math.min(limit, ids.length) + 1, Collections.reverseOrder(newestFirst));
+        for (long id : ids) {
+            long published = getPublishedAt(id);
+            if (published > lastPublishedAt || (published == lastPublishedAt && id >= lastId)) {
+                continue;
+            }
+            if (page.size() < limit) {
+                page.add(id);
+            } else if (limit > 0 && newestFirst.compare(id, page.peek()) < 0) {
+                page.poll();
+                page.add(id);
+            }
+        }
+        List<Long> sorted = new ArrayList<Long>(page);
+        Collections.sort(sorted, newestFirst);
+        return sorted;
+    }
+
+    /**
+     * Get the posts of some categories, e.g. to filter other indexes
+     * @param categoryIds - ids of the categories
+     * @return ids of the posts (shared, immutable)
+     */
+    public CompressedBitmap getPosts(Collection<Long> categoryIds) {
+        return union(categoryIds);
+    }
+
+    /**
+     * Take into account a post created or updated
+     * @param postId - id of the post
+     * @param published - publication date of the post
+     * @param before - ids of its categories before the update, empty for a new post
+     * @param after - ids of its categories
+     */
+    @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+    public void postSaved(final long postId, Date published, final Collection<Long> before, final Collection<Long> after) {
+        final long millis = toMillis(published);
+        journal.apply(new Runnable() {
+            @Override
+            public void run() {
+                if (!isLoaded()) {
+                    return;     // not loaded yet, will be up to date when loaded
+                }
+                publishedAt.put(postId, millis);
+                for (Long categoryId : before) {
+                    if (!after.contains(categoryId)) {
+                        remove(categoryId, postId);
+                    }
+                }
+                for (Long categoryId : after) {
+                    add(categoryId, postId);
+                }
+            }
+        });
+    }
+
+    /**
+     * Take into account a post deleted
+     * @param postId - id of the post
+     * @param categoryIds - ids of its categories
+     */
+    @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+    public void postDeleted(final long postId, final Collection<Long> categoryIds) {
+        journal.apply(new Runnable() {
+            @Override
+            public void run() {
+                if (!isLoaded()) {
+                    return;
+                }
+                for (Long categoryId : categoryIds) {
+                    remove(categoryId, postId);
+                }
+                publishedAt.remove(postId);
+            }
+        });
+    }
+
+    /**
+     * Take into account categories deleted
+     * @param categoryIds - ids of the categories
+     */
+    @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+    public void categoriesDeleted(final Collection<Long> categoryIds) {
+        journal.apply(new Runnable() {
+            @Override
+            public void run() {
+                if (!isLoaded()) {
+                    return;
+                }
+                for (Long categoryId : categoryIds) {
+                    postsByCategory.remove(categoryId);
+                }
+            }
+        });
+    }
+
+    /**
+     * Load the index unless it is already loaded, in a new transaction
+     * Called through the container by the readers.
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public synchronized void loadIfNeeded() {
+        if (!isLoaded()) {
+            rebuild();
+        }
+    }
+
+    /**
+     * Reload the whole index from the database, in a new transaction
+     * Changes committed meanwhile are applied again once it is published
+     * (see {@link LoadJournal}).
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public synchronized void rebuild() {
+        journal.loadStarted();
+        boolean published = false;
+        try {
+            load();
+            published = true;
+        } finally {
+            journal.loadFinished(published);
+        }
+    }
+
+    private boolean isLoaded() {
+        return postsByCategory != null && publishedAt != null;
+    }
+
+    private void load() {
+        List<Object[]> dates = crud.findWithNamedQuery(Post.QUERY_GET_ALL_PUBLICATION_DATES, null, 0, 0, ReadOptions.PRIMARY);
+        ConcurrentMap<Long, Long> published = new ConcurrentHashMap<Long, Long>(dates.size() * 2 + 2);
+        for (Object[] row : dates) {
+            published.put((Long) row[0], toMillis((Date) row[1]));
+        }
+
+        List<Object[]> rows = crud.findWithNamedQuery(Post.QUERY_GET_ALL_CATEGORY_IDS, null, 0, 0, ReadOptions.PRIMARY);
+        Map<Long, long[]> idsByCategory = new HashMap<Long, long[]>();
+        Map<Long, Integer> sizes = new HashMap<Long, Integer>();
+        for (Object[] row : rows) {
+            Long categoryId = (Long) row[1];
+            long[] ids = idsByCategory.get(categoryId);
+            int size = ids == null ? 0 : sizes.get(categoryId);
+            if (ids == null || size == ids.length) {
+                ids = ids == null ? new long[16] : Arrays.copyOf(ids, size * 2);
+                idsByCategory.put(categoryId, ids);
+            }
+            ids[size] = (Long) row[0];
+            sizes.put(categoryId, size + 1);
+        }
+        ConcurrentMap<Long, CompressedBitmap> bitmaps = new ConcurrentHashMap<Long, CompressedBitmap>(idsByCategory.size() * 2 + 2);
+        for (Map.Entry<Long, long[]> entry : idsByCategory.entrySet()) {
+            bitmaps.put(entry.getKey(), CompressedBitmap.of(Arrays.copyOf(entry.getValue(), sizes.get(entry.getKey()))));
+        }
+        publishedAt = published;
+        postsByCategory = bitmaps;
+    }
+
+    private CompressedBitmap union(Collection<Long> categoryIds) {
+        if (!isLoaded()) {
+            context.getBusinessObject(PostCategoryIndex.class).loadIfNeeded();
+        }
+        List<CompressedBitmap> bitmaps = new ArrayList<CompressedBitmap>(categoryIds.size());
+        for (Long categoryId : categoryIds) {
+            CompressedBitmap bitmap = postsByCategory.get(categoryId);
+            if (bitmap != null) {
+                bitmaps.add(bitmap);
+            }
+        }
+        return bitmaps.isEmpty() ? CompressedBitmap.EMPTY : CompressedBitmap.or(bitmaps);
+    }
+
+    /**
+     * Publication dates are stored as DATE: keep the day only, as the database does
+     * @param date - publication date, may be null
+     * @return milliseconds at the start of the day
+     */
+    private static long toMillis(Date date) {
+        if (date == null) {
+            return NOT_PUBLISHED;
+        }
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTime(date);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar.getTimeInMillis();
+    }
+
+    private long getPublishedAt(long postId) {
+        Long published = publishedAt.get(postId);
+        return published != null ? published : NOT_PUBLISHED;
+    }
+
+    private void add(Long categoryId, long postId) {
+        ConcurrentMap<Long, CompressedBitmap> bitmaps = postsByCategory;
+        while (true) {
+            CompressedBitmap current = bitmaps.get(categoryId);
+            if (current == null) {
+                if (bitmaps.putIfAbsent(categoryId, CompressedBitmap.of(postId)) == null) {
+                    return;
+                }
+            } else if (bitmaps.replace(categoryId, current, current.with(postId))) {
+                return;
+            }
+        }
+    }
+
+    private void remove(Long categoryId, long postId) {
+        ConcurrentMap<Long, CompressedBitmap> bitmaps = postsByCategory;
+        CompressedBitmap current;
+        do {
+            current = bitmaps.get(categoryId);
+            if (current == null) {
+                return;
+            }
+        } while (!bitmaps.replace(categoryId, current, current.without(postId)));
+    }
+}
@@ -0,0 +1,291 @@
+package com.martinfilliau.javaeetrucs.services;
+
+import com.martinfilliau.javaeetrucs.data.Post;
+import com.martinfilliau.javaeetrucs.services.utils.LoadJournal;
+import com.martinfilliau.javaeetrucs.services.utils.ReadOptions;
+import com.martinfilliau.javaeetrucs.services.utils.StripedCounter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJB;
+import javax.ejb.Schedule;
+import javax.ejb.SessionContext;
+import javax.ejb.Singleton;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+
+/**
+ * Application wide counts of {@link com.martinfilliau.javaeetrucs.data.Post}s,
+ * in total and per category, so that counting does not scan the posts table.
+ * Counters are loaded once from the database, then updated by
+ * {@link BlogService} once its transactions are committed, including the
+ * ones committed while they are loaded (always in a new transaction), and
+ * reconciled with the database every 10 minutes.
+ * The categories of each post are kept so that updates can be applied twice
+ * (see {@link LoadJournal}): only the difference with what is counted is.
+ * @author martinfilliau
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class PostCounters {
+
+    private static final Logger LOGGER = Logger.getLogger(PostCounters.class.getName());
+
+    @EJB
+    private CrudService crud;
+
+    @Resource
+    private SessionContext context;
+
+    /**
+     * Counters, replaced as a whole when reloaded
+     */
+    private volatile Counts counts;
+
+    private final LoadJournal journal = new LoadJournal();
+
+    /**
+     * Count all posts
+     * @return count
+     */
+    public long countAll() {
+        return loaded().total.sum();
+    }
+
+    /**
+     * Count the posts of a category (not of its children)
+     * @param categoryId - id of the category
+     * @return count
+     */
+    public long countForCategory(long categoryId) {
+        AtomicLong count = loaded().perCategory.get(categoryId);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * Take into account posts created
+     * @param postIds - ids of the posts
+     * @param categoryIds - ids of the categories of each post
+     */
+    @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+    public void postsCreated(long[] postIds, List<List<Long>> categoryIds) {
+        for (int i = 0; i < postIds.length; i++) {
+            postMoved(postIds[i], categoryIds.get(i));
+        }
+    }
+
+    /**
+     * Take into account a post moved to other categories
+     * @param postId - id of the post
+     * @param categoryIds - ids of the categories after the update
+     */
+    @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+    public void postMoved(final long postId, Collection<Long> categoryIds) {
+        final long[] after = toArray(categoryIds);
+        journal.apply(new Runnable() {
+            @Override
+            public void run() {
+                Counts current = counts;
+                if (current == null) {
+                    return;     // not loaded yet, will be up to date when loaded
+                }
+                long[] before = current.categoriesOfPost.put(postId, after);
+                if (before == null) {
+                    current.total.increment();
+                } else {
+                    current.add(before, -1);
+                }
+                current.add(after, 1);
+            }
+        });
+    }
+
+    /**
+     * Take into account a post deleted
+     * @param postId - id of the post
+     */
+    @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+    public void postDeleted(final long postId) {
+        journal.apply(new Runnable() {
+            @Override
+            public void run() {
+                Counts current = counts;
+                if (current == null) {
+                    return;
+                }
+                long[] before = current.categoriesOfPost.remove(postId);
+                if (before != null) {
+                    current.total.add(-1);
+                    current.add(before, -1);
+                }
+            }
+        });
+    }
+
+    /**
+     * Take into account categories deleted
+     * @param categoryIds - ids of the categories
+     */
+    @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+    public void categoriesDeleted(final Collection<Long> categoryIds) {
+        journal.apply(new Runnable() {
+            @Override
+            public void run() {
+                Counts current = counts;
+                if (current == null) {
+                    return;
+                }
+                for (Long id : categoryIds) {
+                    current.perCategory.remove(id);
+                }
+            }
+        });
+    }
+
+    /**
+     * Reload the counters from the database every 10 minutes, in a new transaction
+     */
+    @Schedule(hour = "*", minute = "*/10", persistent = false)
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public synchronized void reconcile() {
+        Counts previous = counts;
+        rebuild();
+        long before = previous == null ? 0 : previous.total.sum();
+        long after = counts.total.sum();
+        if (previous != null && before != after) {
+            LOGGER.log(Level.INFO, "Post counters reconciled: {0} counted, {1} after reloading",
+                    new Object[] { before, after });
+        }
+    }
+
+    /**
+     * Load the counters unless they are already loaded, in a new transaction
+     * Called through the container by the readers.
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public synchronized void loadIfNeeded() {
+        if (counts == null) {
+            rebuild();
+        }
+    }
+
+    /**
+     * Reload the counters from the database, in a new transaction
+     * Changes committed meanwhile are applied again once they are published
+     * (see {@link LoadJournal}).
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public synchronized void rebuild() {
+        journal.loadStarted();
+        boolean published = false;
+        try {
+            load();
+            published = true;
+        } finally {
+            journal.loadFinished(published);
+        }
+    }
+
+    private Counts loaded() {
+        if (counts == null) {
+            context.getBusinessObject(PostCounters.class).loadIfNeeded();
+        }
+        return counts;
+    }
+
+    /**
+     * Total and per category counts are computed from the same rows,
+     * hence from the same snapshot of the database
+     */
+    private void load() {
+        List<Object[]> rows = crud.findWithNamedQuery(Post.QUERY_GET_ALL_IDS_WITH_CATEGORY_IDS, null, 0, 0, ReadOptions.PRIMARY);
+        Map<Long, List<Long>> categoryIds = new HashMap<Long, List<Long>>();
+        ConcurrentMap<Long, AtomicLong> perCategory = new ConcurrentHashMap<Long, AtomicLong>();
+        for (Object[] row : rows) {
+            Long postId = (Long) row[0];
+            List<Long> ids = categoryIds.get(postId);
+            if (ids == null) {
+                ids = new ArrayList<Long>(1);
+                categoryIds.put(postId, ids);
+            }
+            if (row[1] != null) {
+                ids.add((Long) row[1]);
+                AtomicLong count = perCategory.get((Long) row[1]);
+                if (count == null) {
+                    perCategory.put((Long) row[1], new AtomicLong(1));
+                } else {
+                    count.incrementAndGet();
+                }
+            }
+        }
+        ConcurrentMap<Long, long[]> posts = new ConcurrentHashMap<Long, long[]>(categoryIds.size() * 2 + 2);
+        for (Map.Entry<Long, List<Long>> entry : categoryIds.entrySet()) {
+            posts.put(entry.getKey(), toArray(entry.getValue()));
+        }
+        counts = new Counts(posts, perCategory);
+    }
+
+    private static long[] toArray(Collection<Long> ids) {
+        long[] array = new long[ids.size()];
+        int i = 0;
+        for (Long id : ids) {
+            array[i++] = id;
+        }
+        return array;
+    }
+
+    /**
+     * Counts of the posts, updated together
+     */
+    private static final class Counts {
+
+        /**
+         * Total, updated by every write: striped to avoid contention
+         */
+        private final StripedCounter total = new StripedCounter();
+
+        /**
+         * Counts per category id: writes are spread over many categories,
+         * a plain atomic per category is enough
+         */
+        private final ConcurrentMap<Long, AtomicLong> perCategory;
+
+        /**
+         * Ids of the categories of each post counted
+         */
+        private final ConcurrentMap<Long, long[]> categoriesOfPost;
+
+        private Counts(ConcurrentMap<Long, long[]> categoriesOfPost, ConcurrentMap<Long, AtomicLong> perCategory) {
+            this.categoriesOfPost = categoriesOfPost;
+            this.perCategory = perCategory;
+            total.set(categoriesOfPost.size());
+        }
+
+        private void add(long[] categoryIds, long delta) {
+            for (long id : categoryIds) {
+                AtomicLong count = perCategory.get(id);
+                if (count == null) {
+                    if (delta < 0) {
+                        continue;   // category deleted
+                    }
+                    AtomicLong created = new AtomicLong();
+                    count = perCategory.putIfAbsent(id, created);
+                    if (count == null) {
+                        count = created;
+                    }
+                }
+                count.addAndGet(delta);
+            }
+        }
+    }
+}
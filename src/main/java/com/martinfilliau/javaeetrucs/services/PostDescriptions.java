@@ -0,0 +1,200 @@
+package com.martinfilliau.javaeetrucs.services;
+
+import com.martinfilliau.javaeetrucs.data.Post;
+import com.martinfilliau.javaeetrucs.services.store.DescriptionStore;
+import com.martinfilliau.javaeetrucs.services.utils.ReadOptions;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJB;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+
+/**
+ * Optional local copy of the {@link com.martinfilliau.javaeetrucs.data.Post}
+ * descriptions, in memory-mapped files outside of the heap
+ * (see {@link com.martinfilliau.javaeetrucs.services.store.DescriptionStore}),
+ * enabled by setting the javaeetrucs.descriptionStoreDir system property.
+ * Descriptions are stored when {@link BlogService} reads them from the
+ * database and once its transactions are committed; only the newest version
+ * of each post is kept, and superseded ones are compacted every hour.
+ * The store is local: a post updated by another node is served in its old
+ * version until it is updated again here, or until the store is opened again
+ * (versions are then checked against the database).
+ * After an I/O error the store is disabled and deleted, descriptions are
+ * read from the database.
+ * @author martinfilliau
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+public class PostDescriptions {
+
+    private static final Logger LOGGER = Logger.getLogger(PostDescriptions.class.getName());
+
+    /**
+     * System property giving the directory of the store, not set to disable it
+     */
+    public static final String DIRECTORY_PROPERTY = "javaeetrucs.descriptionStoreDir";
+
+    /**
+     * System property giving the maximum number of bytes mapped at a time
+     */
+    public static final String MAPPED_BYTES_PROPERTY = "javaeetrucs.descriptionStoreMappedBytes";
+
+    private static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * Part of superseded bytes from which a segment is compacted
+     */
+    private static final double MAX_GARBAGE_RATIO = 0.5;
+
+    @EJB
+    private CrudService crud;
+
+    private volatile DescriptionStore store;
+
+    /**
+     * Open the store, forgetting the descriptions which are not current
+     * anymore, in a new transaction
+     */
+    @PostConstruct
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public void open() {
+        String directory = System.getProperty(DIRECTORY_PROPERTY);
+        if (directory == null) {
+            return;
+        }
+        try {
+            store = DescriptionStore.open(new File(directory), SEGMENT_SIZE,
+                    Long.getLong(MAPPED_BYTES_PROPERTY, 256L * 1024 * 1024));
+            int dropped = store.reconcile(getVersions());
+            LOGGER.log(Level.INFO, "{0} descriptions in {1}, {2} outdated dropped", new Object[] { store.size(), directory, dropped });
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot open the description store " + directory + ", descriptions are read from the database", e);
+            if (store != null) {
+                disable(store, e);
+            }
+        }
+    }
+
+    /**
+     * Check if descriptions are stored locally
+     * @return false if the store is disabled
+     */
+    public boolean isEnabled() {
+        return store != null;
+    }
+
+    /**
+     * Get the description of a post
+     * @param postId - id of the post
+     * @return read-only UTF-8 bytes (not copied), or null if not stored
+     */
+    public ByteBuffer get(long postId) {
+        DescriptionStore current = store;
+        return current == null ? null : current.get(postId);
+    }
+
+    /**
+     * Take into account the description of a post read or written
+     * @param postId - id of the post
+     * @param version - version of the post
+     * @param description - description, may be null
+     */
+    public void postSaved(long postId, long version, String description) {
+        DescriptionStore current = store;
+        if (current == null) {
+            return;
+        }
+        try {
+            current.put(postId, version, description);
+        } catch (IOException e) {
+            disable(current, e);
+        }
+    }
+
+    /**
+     * Take into account a post deleted
+     * @param postId - id of the post
+     */
+    public void postDeleted(long postId) {
+        DescriptionStore current = store;
+        if (current == null) {
+            return;
+        }
+        try {
+            current.remove(postId);
+        } catch (IOException e) {
+            disable(current, e);
+        }
+    }
+
+    /**
+     * Reclaim the space of superseded descriptions
+     */
+    @Schedule(hour = "*", minute = "30", persistent = false)
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public void compact() {
+        DescriptionStore current = store;
+        if (current == null) {
+            return;
+        }
+        try {
+            int compacted = current.compact(MAX_GARBAGE_RATIO);
+            LOGGER.log(Level.FINE, "{0} segments compacted, {1} bytes live of {2}",
+                    new Object[] { compacted, current.getLiveBytes(), current.getFileBytes() });
+        } catch (IOException e) {
+            disable(current, e);
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        DescriptionStore current = store;
+        store = null;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Cannot close the description store", e);
+            }
+        }
+    }
+
+    private Map<Long, Long> getVersions() {
+        List<Object[]> rows = crud.findWithNamedQuery(Post.QUERY_GET_ALL_VERSIONS, null, 0, 0, ReadOptions.PRIMARY);
+        Map<Long, Long> versions = new HashMap<Long, Long>(rows.size() * 2 + 2);
+        for (Object[] row : rows) {
+            versions.put((Long) row[0], (Long) row[1]);
+        }
+        return versions;
+    }
+
+    /**
+     * Stop using the store and delete it: it may be missing a write,
+     * it cannot be trusted anymore
+     */
+    private synchronized void disable(DescriptionStore current, IOException e) {
+        LOGGER.log(Level.SEVERE, "Description store disabled, descriptions are read from the database", e);
+        if (store == current) {
+            store = null;
+            try {
+                current.delete();
+            } catch (IOException deleteFailure) {
+                LOGGER.log(Level.SEVERE, "Cannot delete the description store, delete it before restarting", deleteFailure);
+            }
+        }
+    }
+}
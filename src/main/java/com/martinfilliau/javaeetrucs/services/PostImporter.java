@@ -0,0 +1,170 @@
+package com.martinfilliau.javaeetrucs.services;
+
+import com.martinfilliau.javaeetrucs.services.importer.CategoryPaths;
+import com.martinfilliau.javaeetrucs.services.importer.ChunkResult;
+import com.martinfilliau.javaeetrucs.services.importer.ImportChunk;
+import com.martinfilliau.javaeetrucs.services.importer.ImportProgress;
+import com.martinfilliau.javaeetrucs.services.importer.ImportRecord;
+import com.martinfilliau.javaeetrucs.services.importer.ImportReport;
+import com.martinfilliau.javaeetrucs.services.importer.TsvRecordParser;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Resource;
+import javax.ejb.AsyncResult;
+import javax.ejb.Asynchronous;
+import javax.ejb.EJB;
+import javax.ejb.SessionContext;
+import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+
+/**
+ * Bulk import of categories and posts from a file
+ * (format: see {@link com.martinfilliau.javaeetrucs.services.importer.TsvRecordParser}).
+ * The file is cut in chunks of {@link #CHUNK_SIZE} lines, parsed in parallel
+ * on the container's asynchronous invocation pool ({@link #parse(long, List)},
+ * so the pool must have more than one thread), then written in file order,
+ * one transaction per chunk ({@link ImportWriter}). At most
+ * {@link #QUEUE_SIZE} chunks are read but not written: reading waits for
+ * the oldest one to be written.
+ * Each transaction also records the last line written, so that an import
+ * stopped by an error restarts after the last chunk committed when the same
+ * file is imported again.
+ * @author martinfilliau
+ */
+@Stateless
+public class PostImporter {
+
+    private static final Logger LOGGER = Logger.getLogger(PostImporter.class.getName());
+
+    /**
+     * Lines per chunk (and per transaction)
+     */
+    public static final int CHUNK_SIZE = 500;
+
+    /**
+     * Chunks read but not written yet
+     */
+    public static final int QUEUE_SIZE = 8;
+
+    private static final int LOG_EVERY = 20;
+
+    @EJB
+    private ImportWriter writer;
+
+    @Resource
+    private SessionContext context;
+
+    /**
+     * Import a file, or resume its import after its last checkpoint
+     * @param file - file to import (UTF-8)
+     * @param progress - updated as chunks are written, may be null
+     * @return future report, see {@link ImportReport#getFailure()}
+     */
+    @Asynchronous
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public Future<ImportReport> importFile(File file, ImportProgress progress) {
+        if (progress == null) {
+            progress = new ImportProgress();
+        }
+        PostImporter self = context.getBusinessObject(PostImporter.class);
+        try {
+            String source = file.getCanonicalPath();
+            long checkpoint = writer.getCheckpoint(source);
+            progress.resumed(checkpoint);
+            CategoryPaths paths = writer.getCategoryPaths();
+
+            LinkedList<Future<ImportChunk>> parsing = new LinkedList<Future<ImportChunk>>();
+            int written = 0;
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                long line = 0;
+                long firstLine = checkpoint + 1;
+                List<String> lines = new ArrayList<String>(CHUNK_SIZE);
+                String text;
+                while ((text = in.readLine()) != null) {
+                    if (++line <= checkpoint) {
+                        continue;       // committed by a previous run
+                    }
+                    lines.add(text);
+                    if (lines.size() == CHUNK_SIZE) {
+                        parsing.add(self.parse(firstLine, lines));
+                        firstLine = line + 1;
+                        lines = new ArrayList<String>(CHUNK_SIZE);
+                        if (parsing.size() == QUEUE_SIZE) {
+                            write(source, parsing.removeFirst().get(), paths, progress, ++written);
+                        }
+                    }
+                }
+                if (!lines.isEmpty()) {
+                    parsing.add(self.parse(firstLine, lines));
+                }
+            } finally {
+                in.close();
+            }
+            while (!parsing.isEmpty()) {
+                write(source, parsing.removeFirst().get(), paths, progress, ++written);
+            }
+            LOGGER.log(Level.INFO, "Imported {0}: {1}", new Object[] { source, progress.getReport() });
+        } catch (ExecutionException e) {
+            fail(file, progress, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(file, progress, e);
+        } catch (IOException e) {
+            fail(file, progress, e);
+        } catch (RuntimeException e) {
+            fail(file, progress, e);
+        }
+        return new AsyncResult<ImportReport>(progress.getReport());
+    }
+
+    /**
+     * Parse the lines of a chunk, on the container's asynchronous invocation pool
+     * Called by {@link #importFile}, not to be called directly.
+     * @param firstLine - number of the first line in the file
+     * @param lines - lines of the chunk
+     * @return future chunk
+     */
+    @Asynchronous
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public Future<ImportChunk> parse(long firstLine, List<String> lines) {
+        TsvRecordParser parser = new TsvRecordParser();
+        List<ImportRecord> records = new ArrayList<ImportRecord>(lines.size());
+        for (int i = 0; i < lines.size(); i++) {
+            ImportRecord record = parser.parse(firstLine + i, lines.get(i));
+            if (record != null) {
+                records.add(record);
+            }
+        }
+        return new AsyncResult<ImportChunk>(new ImportChunk(firstLine + lines.size() - 1, records));
+    }
+
+    /**
+     * Write a chunk parsed, in its own transaction
+     * @param count - number of chunks written by this import, this one included
+     */
+    private void write(String source, ImportChunk chunk, CategoryPaths paths, ImportProgress progress, int count) {
+        ChunkResult result = writer.write(source, chunk, paths);
+        paths.putAll(result.getCreatedCategories());
+        progress.committed(chunk, result);
+        if (count % LOG_EVERY == 0) {
+            LOGGER.log(Level.INFO, "Importing {0}: {1}", new Object[] { source, progress.getReport() });
+        }
+    }
+
+    private static void fail(File file, ImportProgress progress, Throwable cause) {
+        LOGGER.log(Level.WARNING, "Import of " + file + " stopped after line " + progress.getReport().getLastLine(), cause);
+        progress.failed(String.valueOf(cause));
+    }
+}
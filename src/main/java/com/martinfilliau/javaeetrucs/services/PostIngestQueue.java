@@ -0,0 +1,405 @@
+package com.martinfilliau.javaeetrucs.services;
+
+import com.martinfilliau.javaeetrucs.data.Post;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.ejb.Asynchronous;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.DependsOn;
+import javax.ejb.EJB;
+import javax.ejb.EJBException;
+import javax.ejb.SessionContext;
+import javax.ejb.Singleton;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+
+/**
+ * Write-behind creation of posts, for bursty writers (e.g. feed ingesters):
+ * posts are accepted in a bounded in-memory queue and written by a single
+ * worker ({@link #drain()}, on the container's asynchronous invocation pool),
+ * in groups of up to javaeetrucs.ingestGroupSize posts
+ * (200) or what arrived within javaeetrucs.ingestWindowMillis (20 ms) of the
+ * first one, one transaction per group ({@link ImportWriter#write(List)}).
+ * Each post gets a future, completed with its id once its group is committed
+ * (it cannot be cancelled: a queued post is written).
+ * If a group fails, its posts are written again one per transaction so that
+ * only the failing ones get an exception.
+ * Backpressure: {@link #submit(Post)} blocks while the queue
+ * (javaeetrucs.ingestQueueSize, 10000 posts) is full.
+ * On shutdown, new posts are refused and the queue is written before the
+ * bean is destroyed (for at most {@link #DRAIN_MILLIS} ms, then remaining
+ * posts fail), and before the indexes updated by the writes are.
+ * Posts are written outside of the caller's transaction: a rollback of the
+ * caller does not cancel them. The worker is started when posts are queued
+ * and stops once the queue stays empty.
+ * @author martinfilliau
+ */
+@Singleton
+@DependsOn({"PostSearch", "PostCounters", "PostDescriptions", "CategoryTreeCache", "PostCategoryIndex",
+    "ArchiveIndex", "LatestPostsCache"})
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+public class PostIngestQueue {
+
+    private static final Logger LOGGER = Logger.getLogger(PostIngestQueue.class.getName());
+
+    /**
+     * System property giving the maximum number of posts waiting to be written
+     */
+    public static final String CAPACITY_PROPERTY = "javaeetrucs.ingestQueueSize";
+
+    /**
+     * System property giving the maximum number of posts per transaction
+     */
+    public static final String GROUP_SIZE_PROPERTY = "javaeetrucs.ingestGroupSize";
+
+    /**
+     * System property giving the time to wait for more posts before writing a group
+     */
+    public static final String WINDOW_PROPERTY = "javaeetrucs.ingestWindowMillis";
+
+    /**
+     * Maximum time to write the queue on shutdown
+     */
+    public static final long DRAIN_MILLIS = 60 * 1000;
+
+    /**
+     * Time the queue must stay empty before the worker stops
+     */
+    private static final long IDLE_MILLIS = 200;
+
+    @EJB
+    private ImportWriter writer;
+
+    @Resource
+    private SessionContext context;
+
+    private BlockingQueue<PendingPost> queue;
+
+    private int groupSize;
+
+    private long windowNanos;
+
+    private volatile boolean closed;
+
+    /**
+     * True while a worker is running, or about to
+     */
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    private final AtomicLong writtenCount = new AtomicLong();
+
+    private final AtomicLong groupCount = new AtomicLong();
+
+    private final AtomicLong failedCount = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        queue = new ArrayBlockingQueue<PendingPost>(Integer.getInteger(CAPACITY_PROPERTY, 10000));
+        groupSize = Integer.getInteger(GROUP_SIZE_PROPERTY, 200);
+        windowNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong(WINDOW_PROPERTY, 20L));
+    }
+
+    /**
+     * Queue a post to be created, waiting while the queue is full
+     * @param post - post to create, must not be used by the caller anymore
+     * @return id of the post once committed
+     */
+    public Future<Long> submit(Post post) {
+        PendingPost pending = accept(post);
+        try {
+            queue.put(pending);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EJBException(e);
+        }
+        queued(pending);
+        return pending;
+    }
+
+    /**
+     * Queue a post to be created, unless the queue stays full
+     * @param post - post to create, must not be used by the caller anymore
+     * @param timeout - maximum time to wait for room in the queue
+     * @param unit - unit of the timeout
+     * @return id of the post once committed, null if the queue was full
+     */
+    public Future<Long> offer(Post post, long timeout, TimeUnit unit) {
+        PendingPost pending = accept(post);
+        try {
+            if (!queue.offer(pending, timeout, unit)) {
+                return null;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EJBException(e);
+        }
+        queued(pending);
+        return pending;
+    }
+
+    /**
+     * Stop accepting posts and write the queue
+     */
+    @PreDestroy
+    public void close() {
+        closed = true;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DRAIN_MILLIS);
+        synchronized (this) {
+            long wait;
+            while (draining.get() && (wait = deadline - System.nanoTime()) > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        List<PendingPost> left = new ArrayList<PendingPost>();
+        queue.drainTo(left);
+        if (!left.isEmpty()) {
+            LOGGER.log(Level.SEVERE, "{0} posts not written on shutdown", left.size());
+            for (PendingPost pending : left) {
+                failed(pending, new IllegalStateException("Shut down before the post was written"));
+            }
+        }
+    }
+
+    private PendingPost accept(Post post) {
+        if (closed) {
+            throw refused();
+        }
+        return new PendingPost(post);
+    }
+
+    /**
+     * Start a worker for a post put in the queue, unless the queue was
+     * closed meanwhile: the post is then taken back and refused, or it was
+     * already taken by {@link #close()} (which completes it)
+     * @param pending - post put in the queue
+     */
+    private void queued(PendingPost pending) {
+        if (closed && queue.remove(pending)) {
+            throw refused();
+        }
+        if (draining.compareAndSet(false, true)) {
+            try {
+                context.getBusinessObject(PostIngestQueue.class).drain();
+            } catch (RuntimeException e) {
+                stopped();
+                throw e;
+            }
+        }
+    }
+
+    private static IllegalStateException refused() {
+        return new IllegalStateException("Shutting down, posts are not accepted anymore");
+    }
+
+    /**
+     * Worker: write the groups from the queue until it stays empty for
+     * {@link #IDLE_MILLIS} ms (or is closed and empty).
+     * Started by the methods queueing posts, not to be called directly.
+     */
+    @Asynchronous
+    public void drain() {
+        while (true) {
+            try {
+                PendingPost first = queue.poll(closed ? 0 : IDLE_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    stopped();
+                    // a post queued before the flag was cleared did not start a worker
+                    if (queue.isEmpty() || !draining.compareAndSet(false, true)) {
+                        return;
+                    }
+                    continue;
+                }
+                List<PendingPost> group = new ArrayList<PendingPost>(groupSize);
+                group.add(first);
+                long deadline = System.nanoTime() + windowNanos;
+                while (group.size() < groupSize) {
+                    long wait = deadline - System.nanoTime();
+                    PendingPost next = wait > 0 && !closed ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    group.add(next);
+                }
+                write(group);
+            } catch (InterruptedException e) {
+                LOGGER.log(Level.WARNING, "Post ingestion worker interrupted, writing the queue before stopping");
+                closed = true;
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.SEVERE, "Post ingestion worker failure", e);
+            }
+        }
+    }
+
+    /**
+     * Clear the worker flag, and wake up {@link #close()}
+     */
+    private void stopped() {
+        synchronized (this) {
+            draining.set(false);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Write a group in one transaction, or its posts one by one if it fails
+     * @param group - posts to write
+     */
+    private void write(List<PendingPost> group) {
+        List<Post> posts = new ArrayList<Post>(group.size());
+        for (PendingPost pending : group) {
+            posts.add(pending.post);
+        }
+        try {
+            List<Long> ids = writer.write(posts);
+            groupCount.incrementAndGet();
+            writtenCount.addAndGet(ids.size());
+            for (int i = 0; i < group.size(); i++) {
+                group.get(i).created(ids.get(i));
+            }
+            return;
+        } catch (RuntimeException e) {
+            if (group.size() == 1) {
+                failed(group.get(0), e);
+                return;
+            }
+            LOGGER.log(Level.WARNING, "Group of " + group.size() + " posts failed, writing them one by one", e);
+        }
+        for (PendingPost pending : group) {
+            pending.post.setId(null);       // assigned by the rolled back transaction
+            pending.post.setVersion(0);
+            try {
+                Long id = writer.write(Collections.singletonList(pending.post)).get(0);
+                groupCount.incrementAndGet();
+                writtenCount.incrementAndGet();
+                pending.created(id);
+            } catch (RuntimeException e) {
+                failed(pending, e);
+            }
+        }
+    }
+
+    private void failed(PendingPost pending, Throwable cause) {
+        failedCount.incrementAndGet();
+        pending.failed(cause);
+    }
+
+    /**
+     * Post waiting to be written, and its future id, completed once by the worker
+     */
+    private static final class PendingPost implements Future<Long> {
+
+        private final Post post;
+
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private volatile Long id;
+
+        private volatile Throwable failure;
+
+        PendingPost(Post post) {
+            this.post = post;
+        }
+
+        void created(Long id) {
+            this.id = id;
+            done.countDown();
+        }
+
+        void failed(Throwable cause) {
+            this.failure = cause;
+            done.countDown();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        @Override
+        public Long get() throws InterruptedException, ExecutionException {
+            done.await();
+            return result();
+        }
+
+        @Override
+        public Long get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!done.await(timeout, unit)) {
+                throw new TimeoutException("Post not written yet");
+            }
+            return result();
+        }
+
+        private Long result() throws ExecutionException {
+            if (failure != null) {
+                throw new ExecutionException(failure);
+            }
+            return id;
+        }
+    }
+
+    /* GETTERs and SETTERs */
+
+    /**
+     * Get the number of posts waiting to be written
+     * @return count
+     */
+    public int getQueuedCount() {
+        return queue.size();
+    }
+
+    /**
+     * Get the number of posts written
+     * @return count
+     */
+    public long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    /**
+     * Get the number of transactions committed
+     * @return count
+     */
+    public long getGroupCount() {
+        return groupCount.get();
+    }
+
+    /**
+     * Get the number of posts which could not be written
+     * @return count
+     */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+}
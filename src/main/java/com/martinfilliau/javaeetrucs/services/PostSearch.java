@@ -0,0 +1,222 @@
+package com.martinfilliau.javaeetrucs.services;
+
+import com.martinfilliau.javaeetrucs.data.Category;
+import com.martinfilliau.javaeetrucs.data.Post;
+import com.martinfilliau.javaeetrucs.services.search.SearchHit;
+import com.martinfilliau.javaeetrucs.services.search.SearchIndex;
+import com.martinfilliau.javaeetrucs.services.utils.LoadJournal;
+import com.martinfilliau.javaeetrucs.services.utils.ReadOptions;
+import com.martinfilliau.javaeetrucs.services.utils.ResultHandler;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJB;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+
+/**
+ * Application wide full-text index of the {@link com.martinfilliau.javaeetrucs.data.Post}s
+ * (see {@link com.martinfilliau.javaeetrucs.services.search.SearchIndex}).
+ * The index is loaded when the application starts, in its own transaction,
+ * from its snapshot on disk, or built from the database if there is no
+ * usable snapshot (never within a caller's transaction: building it clears
+ * the persistence context), then updated by {@link BlogService} once
+ * its transactions are committed, including the ones committed while it is
+ * loaded or rebuilt. The snapshot is written every 10 minutes when the index
+ * changed, and when the application stops.
+ * Posts written by another node are only seen after {@link #rebuild()}; a
+ * snapshot which does not have every post of the database in its current
+ * version is rebuilt on load.
+ * @author martinfilliau
+ */
+@Singleton
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class PostSearch {
+
+    private static final Logger LOGGER = Logger.getLogger(PostSearch.class.getName());
+
+    /**
+     * System property giving the location of the snapshot
+     */
+    public static final String SNAPSHOT_PROPERTY = "javaeetrucs.searchIndexFile";
+
+    private static final int FETCH_SIZE = 100;
+
+    @EJB
+    private CrudService crud;
+
+    private volatile SearchIndex index;
+
+    private volatile boolean dirty;
+
+    private final LoadJournal journal = new LoadJournal();
+
+    private final File snapshot = new File(System.getProperty(SNAPSHOT_PROPERTY,
+            new File(System.getProperty("java.io.tmpdir"), "javaeetrucs-search.idx").getPath()));
+
+    /**
+     * Get the posts most relevant for a query
+     * @param query - text of the query
+     * @param categoryIds - only return posts in one of these categories, null for all posts
+     * @param maxResults - maximum number of hits
+     * @return hits, most relevant first
+     */
+    public List<SearchHit> search(String query, Collection<Long> categoryIds, int maxResults) {
+        return index.search(query, categoryIds, maxResults);
+    }
+
+    /**
+     * Take into account a post created or updated
+     * @param postId - id of the post
+     * @param version - version of the post
+     * @param name - name of the post
+     * @param description - description of the post
+     * @param categoryIds - ids of the categories of the post
+     */
+    @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+    public void postSaved(final long postId, final long version, final String name, final String description,
+            final Collection<Long> categoryIds) {
+        journal.apply(new Runnable() {
+            @Override
+            public void run() {
+                SearchIndex current = index;
+                if (current == null) {
+                    return;     // being loaded, will be up to date when loaded
+                }
+                current.put(postId, version, name, description, categoryIds);
+                dirty = true;
+            }
+        });
+    }
+
+    /**
+     * Take into account a post deleted
+     * @param postId - id of the post
+     */
+    @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+    public void postDeleted(final long postId) {
+        journal.apply(new Runnable() {
+            @Override
+            public void run() {
+                SearchIndex current = index;
+                if (current != null && current.remove(postId)) {
+                    dirty = true;
+                }
+            }
+        });
+    }
+
+    /**
+     * Load the index, before the first call
+     */
+    @PostConstruct
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public void open() {
+        journal.loadStarted();
+        boolean published = false;
+        try {
+            index = load();
+            published = true;
+        } finally {
+            journal.loadFinished(published);
+        }
+    }
+
+    /**
+     * Index again all the posts from the database, in a new transaction
+     * Changes committed meanwhile are applied again once it is published
+     * (see {@link LoadJournal}).
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public synchronized void rebuild() {
+        journal.loadStarted();
+        boolean published = false;
+        try {
+            index = build();
+            dirty = true;
+            published = true;
+        } finally {
+            journal.loadFinished(published);
+        }
+    }
+
+    /**
+     * Write the snapshot if the index changed since the last one
+     */
+    @Schedule(hour = "*", minute = "*/10", persistent = false)
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public void saveSnapshot() {
+        SearchIndex current = index;
+        if (current == null || !dirty) {
+            return;
+        }
+        dirty = false;
+        try {
+            current.save(snapshot);
+        } catch (IOException e) {
+            dirty = true;
+            LOGGER.log(Level.WARNING, "Cannot write the search index to " + snapshot, e);
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        saveSnapshot();
+    }
+
+    private SearchIndex load() {
+        if (snapshot.isFile()) {
+            try {
+                SearchIndex loaded = SearchIndex.load(snapshot);
+                if (loaded.hasVersions(getVersions())) {
+                    return loaded;
+                }
+                LOGGER.log(Level.INFO, "Search index snapshot is out of date, rebuilding it");
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Cannot read the search index from " + snapshot + ", rebuilding it", e);
+            }
+        }
+        dirty = true;
+        return build();
+    }
+
+    private SearchIndex build() {
+        final SearchIndex built = new SearchIndex();
+        crud.streamAll(Post.class, FETCH_SIZE, new ResultHandler<Post>() {
+            @Override
+            public void handle(Post p) {
+                List<Long> categoryIds = new ArrayList<Long>();
+                if (p.getCategories() != null) {
+                    for (Category c : p.getCategories()) {
+                        categoryIds.add(c.getId());
+                    }
+                }
+                built.put(p.getId(), p.getVersion(), p.getName(), p.getDescription(), categoryIds);
+            }
+        });
+        return built;
+    }
+
+    private Map<Long, Long> getVersions() {
+        List<Object[]> rows = crud.findWithNamedQuery(Post.QUERY_GET_ALL_VERSIONS, null, 0, 0, ReadOptions.PRIMARY);
+        Map<Long, Long> versions = new HashMap<Long, Long>(rows.size() * 2 + 2);
+        for (Object[] row : rows) {
+            versions.put((Long) row[0], (Long) row[1]);
+        }
+        return versions;
+    }
+}
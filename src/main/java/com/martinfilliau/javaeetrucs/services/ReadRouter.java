@@ -0,0 +1,253 @@
+package com.martinfilliau.javaeetrucs.services;
+
+import com.martinfilliau.javaeetrucs.services.utils.AfterCommit;
+import com.martinfilliau.javaeetrucs.services.utils.ReadPolicy;
+import com.martinfilliau.javaeetrucs.services.utils.ReadSession;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJBContext;
+import javax.ejb.Singleton;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceException;
+import javax.persistence.PersistenceUnit;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+import org.hibernate.Session;
+
+/**
+ * Decides if the read-only reads of {@link CrudService} go to the replica
+ * database (persistence unit javaeetrucsReplicaPu) or to the primary one,
+ * according to the {@link ReadPolicy} set with the javaeetrucs.readPolicy
+ * system property.
+ * The replica entity manager is not managed by the container: one is opened
+ * per JTA transaction on first use and closed when the transaction completes.
+ * Reads without transaction (see {@link com.martinfilliau.javaeetrucs.services.utils.ReadOptions})
+ * open their own replica entity manager.
+ * When the replica fails, the read is retried on the primary and the replica
+ * is not used for the next 30 seconds.
+ * With READ_YOUR_WRITES, callers are identified by their {@link ReadSession},
+ * else by their principal (then every anonymous call without session shares
+ * the same one: a write of any of them sends the reads of all of them to the
+ * primary for the replication lag).
+ * @author martinfilliau
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+public class ReadRouter {
+
+    private static final Logger LOGGER = Logger.getLogger(ReadRouter.class.getName());
+
+    /**
+     * System property holding the name of the {@link ReadPolicy}
+     */
+    public static final String POLICY_PROPERTY = "javaeetrucs.readPolicy";
+
+    /**
+     * System property holding the replication lag, in milliseconds
+     */
+    public static final String LAG_PROPERTY = "javaeetrucs.replicaLagMillis";
+
+    /**
+     * Time without using the replica after a failure
+     */
+    private static final long RETRY_MILLIS = 30 * 1000;
+
+    /**
+     * Transaction resource keys: set once the transaction has written something,
+     * and replica entity manager of the transaction
+     */
+    private static final Object WRITTEN_KEY = new Object();
+    private static final Object REPLICA_KEY = new Object();
+
+    @PersistenceUnit(unitName = "javaeetrucsReplicaPu")
+    private EntityManagerFactory replica;
+
+    @Resource
+    private TransactionSynchronizationRegistry txRegistry;
+
+    @Resource
+    private EJBContext context;
+
+    private volatile ReadPolicy policy = ReadPolicy.valueOf(System.getProperty(POLICY_PROPERTY, ReadPolicy.NEVER.name()));
+
+    private volatile long lagMillis = Long.getLong(LAG_PROPERTY, 5000L);
+
+    /**
+     * Time until which the replica is not used, after a failure
+     */
+    private volatile long replicaDownUntil;
+
+    /**
+     * Time of the last committed write of each session or principal, only with READ_YOUR_WRITES
+     */
+    private final ConcurrentMap<String, Long> lastWrites = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * Check if the next read of the current transaction may go to the replica
+     * @return true to use {@link #getReplicaEntityManager()}
+     */
+    public boolean useReplica() {
+        ReadPolicy current = policy;
+        if (current == ReadPolicy.NEVER || System.currentTimeMillis() < replicaDownUntil) {
+            return false;
+        }
+        boolean written = inTransaction() && txRegistry.getResource(WRITTEN_KEY) != null;
+        switch (current) {
+            case ALWAYS:
+                return true;
+            case OUTSIDE_WRITE_TRANSACTIONS:
+                return !written;
+            default:
+                return !written && !recentlyWritten(callerName());
+        }
+    }
+
+    /**
+     * Take into account a write of the current transaction:
+     * its next reads, and the ones of the caller during the replication lag
+     * once committed, go to the primary (depending on the policy)
+     */
+    public void written() {
+        if (policy == ReadPolicy.NEVER || txRegistry.getResource(WRITTEN_KEY) != null) {
+            return;
+        }
+        txRegistry.putResource(WRITTEN_KEY, Boolean.TRUE);
+        if (policy == ReadPolicy.READ_YOUR_WRITES) {
+            final String caller = callerName();
+            txRegistry.registerInterposedSynchronization(new AfterCommit() {
+                @Override
+                protected void committed() {
+                    lastWrites.put(caller, System.currentTimeMillis());
+                }
+            });
+        }
+    }
+
+    /**
+     * Get the replica entity manager of the current transaction, opened on first use
+     * @return read-only entity manager, closed when the transaction completes
+     */
+    public EntityManager getReplicaEntityManager() {
+        ReplicaSession session = (ReplicaSession) txRegistry.getResource(REPLICA_KEY);
+        if (session == null) {
+            session = new ReplicaSession();
+            txRegistry.putResource(REPLICA_KEY, session);
+            txRegistry.registerInterposedSynchronization(session);
+        }
+        if (session.em == null) {
+            session.em = openReplicaEntityManager();
+        }
+        return session.em;
+    }
+
+    /**
+     * Open a replica entity manager, for a read without transaction
+     * @return read-only entity manager, to be closed by the caller
+     */
+    public EntityManager openReplicaEntityManager() {
+        EntityManager em = replica.createEntityManager();
+        ((Session) em.getDelegate()).setDefaultReadOnly(true);     // no dirty checking
+        return em;
+    }
+
+    /**
+     * Stop using the replica for a while, its entity manager is discarded
+     * @param e - failure of a read on the replica
+     */
+    public void replicaFailed(PersistenceException e) {
+        LOGGER.log(Level.WARNING, "Read on the replica failed, using the primary for " + RETRY_MILLIS + " ms", e);
+        replicaDownUntil = System.currentTimeMillis() + RETRY_MILLIS;
+        if (!inTransaction()) {
+            return;
+        }
+        ReplicaSession session = (ReplicaSession) txRegistry.getResource(REPLICA_KEY);
+        if (session != null) {
+            session.close();
+        }
+    }
+
+    private boolean recentlyWritten(String caller) {
+        Long last = lastWrites.get(caller);
+        if (last == null) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        if (now - last < lagMillis) {
+            return true;
+        }
+        // forget the callers which have not written during the lag
+        for (Iterator<Map.Entry<String, Long>> it = lastWrites.entrySet().iterator(); it.hasNext();) {
+            if (now - it.next().getValue() >= lagMillis) {
+                it.remove();
+            }
+        }
+        return false;
+    }
+
+    private boolean inTransaction() {
+        return txRegistry.getTransactionStatus() != Status.STATUS_NO_TRANSACTION;
+    }
+
+    private String callerName() {
+        String session = ReadSession.current();
+        return session != null ? "session:" + session : "principal:" + context.getCallerPrincipal().getName();
+    }
+
+    /**
+     * Replica entity manager of a transaction
+     */
+    private static final class ReplicaSession implements Synchronization {
+
+        private EntityManager em;
+
+        @Override
+        public void beforeCompletion() {
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+            close();
+        }
+
+        private void close() {
+            if (em != null) {
+                try {
+                    em.close();
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.FINE, "Could not close the replica entity manager", e);
+                }
+                em = null;
+            }
+        }
+    }
+
+    /* GETTERs and SETTERs */
+
+    public ReadPolicy getPolicy() {
+        return policy;
+    }
+
+    public void setPolicy(ReadPolicy policy) {
+        this.policy = policy;
+    }
+
+    public long getLagMillis() {
+        return lagMillis;
+    }
+
+    public void setLagMillis(long lagMillis) {
+        this.lagMillis = lagMillis;
+    }
+}
@@ -0,0 +1,124 @@
+package com.martinfilliau.javaeetrucs.services.importer;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Ids of the categories by path of names ("Tech/Java"), to resolve the
+ * category references of an import file against the existing tree.
+ * If sibling categories have the same name, the path resolves to one of them.
+ * Not thread-safe.
+ * @author martinfilliau
+ */
+public final class CategoryPaths {
+
+    private final Map<String, Long> idByPath = new HashMap<String, Long>();
+
+    /**
+     * Build the paths of existing categories
+     * @param rows - (id, name, parent id) of all categories
+     * @return paths
+     */
+    public static CategoryPaths of(List<Object[]> rows) {
+        Map<Long, Object[]> byId = new HashMap<Long, Object[]>(rows.size() * 2 + 2);
+        for (Object[] row : rows) {
+            byId.put((Long) row[0], row);
+        }
+        Map<Long, String> pathById = new HashMap<Long, String>(rows.size() * 2 + 2);
+        CategoryPaths paths = new CategoryPaths();
+        for (Object[] row : rows) {
+            String path = pathOf((Long) row[0], byId, pathById, rows.size());
+            if (path != null && !paths.idByPath.containsKey(path)) {
+                paths.idByPath.put(path, (Long) row[0]);
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Get a category
+     * @param path - path of the category
+     * @return id or null if there is no such category
+     */
+    public Long get(String path) {
+        return idByPath.get(normalize(path));
+    }
+
+    /**
+     * Add a category
+     * @param path - path of the category
+     * @param id - id of the category
+     */
+    public void put(String path, Long id) {
+        idByPath.put(normalize(path), id);
+    }
+
+    /**
+     * Add categories
+     * @param paths - map of <path>, <id>
+     */
+    public void putAll(Map<String, Long> paths) {
+        for (Map.Entry<String, Long> entry : paths.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Remove empty names and blanks around names: " Tech//Java " is "Tech/Java"
+     * @param path - path of a category
+     * @return normalized path
+     */
+    public static String normalize(String path) {
+        StringBuilder normalized = new StringBuilder(path.length());
+        for (String name : path.split(String.valueOf(TsvRecordParser.PATH_SEPARATOR))) {
+            String trimmed = name.trim();
+            if (trimmed.length() > 0) {
+                if (normalized.length() > 0) {
+                    normalized.append(TsvRecordParser.PATH_SEPARATOR);
+                }
+                normalized.append(trimmed);
+            }
+        }
+        return normalized.toString();
+    }
+
+    /**
+     * Get the path of the parent of a category
+     * @param path - normalized path of the category
+     * @return path of the parent, null for a top level category
+     */
+    public static String parentOf(String path) {
+        int i = path.lastIndexOf(TsvRecordParser.PATH_SEPARATOR);
+        return i < 0 ? null : path.substring(0, i);
+    }
+
+    /**
+     * Get the name of a category
+     * @param path - normalized path of the category
+     * @return last name of the path
+     */
+    public static String nameOf(String path) {
+        return path.substring(path.lastIndexOf(TsvRecordParser.PATH_SEPARATOR) + 1);
+    }
+
+    private static String pathOf(Long id, Map<Long, Object[]> byId, Map<Long, String> pathById, int maxDepth) {
+        String path = pathById.get(id);
+        if (path != null || maxDepth < 0) {
+            return path;        // maxDepth < 0: cycle in the parent relation
+        }
+        Object[] row = byId.get(id);
+        if (row == null) {
+            return null;
+        }
+        String name = normalize(String.valueOf(row[1]).replace(TsvRecordParser.PATH_SEPARATOR, ' '));
+        if (row[2] == null) {
+            path = name;
+        } else {
+            String parentPath = pathOf((Long) row[2], byId, pathById, maxDepth - 1);
+            path = parentPath != null ? parentPath + TsvRecordParser.PATH_SEPARATOR + name : name;
+        }
+        pathById.put(id, path);
+        return path;
+    }
+}
@@ -0,0 +1,40 @@
+package com.martinfilliau.javaeetrucs.services.importer;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What was written for an {@link ImportChunk}
+ * @author martinfilliau
+ */
+public final class ChunkResult {
+
+    private final Map<String, Long> createdCategories;
+
+    private final int postsCreated;
+
+    private final List<String> errors;
+
+    /**
+     * @param createdCategories - categories created, map of <path>, <id>
+     * @param postsCreated - number of posts created
+     * @param errors - records rejected, as "line N: reason"
+     */
+    public ChunkResult(Map<String, Long> createdCategories, int postsCreated, List<String> errors) {
+        this.createdCategories = createdCategories;
+        this.postsCreated = postsCreated;
+        this.errors = errors;
+    }
+
+    public Map<String, Long> getCreatedCategories() {
+        return createdCategories;
+    }
+
+    public int getPostsCreated() {
+        return postsCreated;
+    }
+
+    public List<String> getErrors() {
+        return errors;
+    }
+}
@@ -0,0 +1,31 @@
+package com.martinfilliau.javaeetrucs.services.importer;
+
+import java.util.List;
+
+/**
+ * Consecutive records of an import file, committed in one transaction
+ * @author martinfilliau
+ */
+public final class ImportChunk {
+
+    private final long lastLine;
+
+    private final List<ImportRecord> records;
+
+    /**
+     * @param lastLine - number of the last line of the chunk (checkpoint once committed)
+     * @param records - records of the chunk, in file order
+     */
+    public ImportChunk(long lastLine, List<ImportRecord> records) {
+        this.lastLine = lastLine;
+        this.records = records;
+    }
+
+    public long getLastLine() {
+        return lastLine;
+    }
+
+    public List<ImportRecord> getRecords() {
+        return records;
+    }
+}
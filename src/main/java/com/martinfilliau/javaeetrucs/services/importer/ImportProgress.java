@@ -0,0 +1,80 @@
+package com.martinfilliau.javaeetrucs.services.importer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress of a running import, updated by the importer and readable
+ * from any thread (see {@link #getReport()})
+ * @author martinfilliau
+ */
+public final class ImportProgress {
+
+    /**
+     * Maximum number of errors kept
+     */
+    public static final int MAX_ERRORS = 100;
+
+    private final long start = System.nanoTime();
+
+    private final AtomicLong lastLine = new AtomicLong();
+
+    private final AtomicLong categoriesCreated = new AtomicLong();
+
+    private final AtomicLong postsCreated = new AtomicLong();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private final List<String> errors = new ArrayList<String>();
+
+    private volatile String failure;
+
+    /**
+     * Take into account a chunk committed
+     * @param chunk - chunk
+     * @param result - what was written
+     */
+    public void committed(ImportChunk chunk, ChunkResult result) {
+        categoriesCreated.addAndGet(result.getCreatedCategories().size());
+        postsCreated.addAndGet(result.getPostsCreated());
+        rejected.addAndGet(result.getErrors().size());
+        synchronized (errors) {
+            for (String error : result.getErrors()) {
+                if (errors.size() < MAX_ERRORS) {
+                    errors.add(error);
+                }
+            }
+        }
+        lastLine.set(chunk.getLastLine());
+    }
+
+    /**
+     * Take into account lines skipped because committed by a previous run
+     * @param line - last line committed
+     */
+    public void resumed(long line) {
+        lastLine.set(line);
+    }
+
+    /**
+     * Take into account an error stopping the import
+     * @param message - why the import stopped
+     */
+    public void failed(String message) {
+        failure = message;
+    }
+
+    /**
+     * Get the current state of the import
+     * @return report
+     */
+    public ImportReport getReport() {
+        List<String> copy;
+        synchronized (errors) {
+            copy = new ArrayList<String>(errors);
+        }
+        return new ImportReport(lastLine.get(), categoriesCreated.get(), postsCreated.get(), rejected.get(),
+                System.nanoTime() - start, copy, failure);
+    }
+}
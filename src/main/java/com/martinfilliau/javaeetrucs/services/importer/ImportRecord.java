@@ -0,0 +1,106 @@
+package com.martinfilliau.javaeetrucs.services.importer;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A parsed line of an import file: a category, a post, or an invalid line
+ * @author martinfilliau
+ */
+public final class ImportRecord {
+
+    public enum Kind { CATEGORY, POST, INVALID }
+
+    private final Kind kind;
+
+    private final long line;
+
+    private final String categoryPath;
+
+    private final String name;
+
+    private final Date publishedAt;
+
+    private final List<String> categoryPaths;
+
+    private final String description;
+
+    private final String error;
+
+    private ImportRecord(Kind kind, long line, String categoryPath, String name, Date publishedAt,
+            List<String> categoryPaths, String description, String error) {
+        this.kind = kind;
+        this.line = line;
+        this.categoryPath = categoryPath;
+        this.name = name;
+        this.publishedAt = publishedAt;
+        this.categoryPaths = categoryPaths;
+        this.description = description;
+        this.error = error;
+    }
+
+    /**
+     * @param line - line number
+     * @param path - path of the category, e.g. "Tech/Java"
+     * @return record
+     */
+    public static ImportRecord category(long line, String path) {
+        return new ImportRecord(Kind.CATEGORY, line, path, null, null, Collections.<String>emptyList(), null, null);
+    }
+
+    /**
+     * @param line - line number
+     * @param name - name of the post
+     * @param publishedAt - publication date of the post
+     * @param categoryPaths - paths of the categories of the post
+     * @param description - description of the post
+     * @return record
+     */
+    public static ImportRecord post(long line, String name, Date publishedAt, List<String> categoryPaths, String description) {
+        return new ImportRecord(Kind.POST, line, null, name, publishedAt, categoryPaths, description, null);
+    }
+
+    /**
+     * @param line - line number
+     * @param error - why the line cannot be imported
+     * @return record
+     */
+    public static ImportRecord invalid(long line, String error) {
+        return new ImportRecord(Kind.INVALID, line, null, null, null, Collections.<String>emptyList(), null, error);
+    }
+
+    /* GETTERs */
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public long getLine() {
+        return line;
+    }
+
+    public String getCategoryPath() {
+        return categoryPath;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Date getPublishedAt() {
+        return publishedAt;
+    }
+
+    public List<String> getCategoryPaths() {
+        return categoryPaths;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public String getError() {
+        return error;
+    }
+}
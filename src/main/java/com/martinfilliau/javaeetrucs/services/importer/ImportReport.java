@@ -0,0 +1,98 @@
+package com.martinfilliau.javaeetrucs.services.importer;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * State of an import at a given time
+ * @author martinfilliau
+ */
+public final class ImportReport implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long lastLine;
+
+    private final long categoriesCreated;
+
+    private final long postsCreated;
+
+    private final long rejected;
+
+    private final long elapsedNanos;
+
+    private final List<String> errors;
+
+    private final String failure;
+
+    public ImportReport(long lastLine, long categoriesCreated, long postsCreated, long rejected,
+            long elapsedNanos, List<String> errors, String failure) {
+        this.lastLine = lastLine;
+        this.categoriesCreated = categoriesCreated;
+        this.postsCreated = postsCreated;
+        this.rejected = rejected;
+        this.elapsedNanos = elapsedNanos;
+        this.errors = errors;
+        this.failure = failure;
+    }
+
+    /**
+     * Get the last line committed: the import restarts after it
+     * @return line number
+     */
+    public long getLastLine() {
+        return lastLine;
+    }
+
+    public long getCategoriesCreated() {
+        return categoriesCreated;
+    }
+
+    public long getPostsCreated() {
+        return postsCreated;
+    }
+
+    /**
+     * Get the number of lines rejected (invalid, unknown category)
+     * @return count
+     */
+    public long getRejected() {
+        return rejected;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Get the first rejected lines, as "line N: reason"
+     * @return list of errors
+     */
+    public List<String> getErrors() {
+        return errors;
+    }
+
+    /**
+     * Get why the import stopped before the end of the file
+     * @return message or null if the import is running or completed
+     */
+    public String getFailure() {
+        return failure;
+    }
+
+    /**
+     * Get the throughput of the import
+     * @return posts created per second
+     */
+    public double getPostsPerSecond() {
+        return elapsedNanos > 0 ? postsCreated * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "ImportReport[lastLine=" + lastLine + ", categories=" + categoriesCreated + ", posts=" + postsCreated
+                + ", rejected=" + rejected + ", " + (long) getPostsPerSecond() + " posts/s"
+                + (failure != null ? ", failure=" + failure : "") + "]";
+    }
+}
@@ -0,0 +1,102 @@
+package com.martinfilliau.javaeetrucs.services.importer;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Parse the lines of a tab separated import file (UTF-8):
+ * <pre>
+ * # comment, blank lines are ignored as well
+ * category &lt;TAB&gt; Tech/Java
+ * post &lt;TAB&gt; name &lt;TAB&gt; 2012-03-31 &lt;TAB&gt; Tech/Java|News &lt;TAB&gt; description
+ * </pre>
+ * Categories are referenced by the path of their names from a top level
+ * category, separated by "/"; a post may have several categories,
+ * separated by "|". Tabulations, line breaks and backslashes in values
+ * are written \t, \n, \r and \\.
+ * Not thread-safe: use one parser per thread.
+ * @author martinfilliau
+ */
+public final class TsvRecordParser {
+
+    public static final char PATH_SEPARATOR = '/';
+
+    private static final String CATEGORIES_SEPARATOR = "\\|";
+
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+
+    public TsvRecordParser() {
+        dateFormat.setLenient(false);
+    }
+
+    /**
+     * Parse a line
+     * @param line - number of the line
+     * @param text - content of the line
+     * @return record or null if the line is blank or a comment
+     */
+    public ImportRecord parse(long line, String text) {
+        if (text.trim().length() == 0 || text.startsWith("#")) {
+            return null;
+        }
+        List<String> fields = split(text);
+        String kind = fields.get(0);
+        if ("category".equals(kind)) {
+            if (fields.size() != 2 || fields.get(1).length() == 0) {
+                return ImportRecord.invalid(line, "expected: category <path>");
+            }
+            return ImportRecord.category(line, fields.get(1));
+        }
+        if ("post".equals(kind)) {
+            if (fields.size() != 5 || fields.get(1).length() == 0) {
+                return ImportRecord.invalid(line, "expected: post <name> <publishedAt> <categories> <description>");
+            }
+            Date publishedAt;
+            try {
+                publishedAt = dateFormat.parse(fields.get(2));
+            } catch (ParseException e) {
+                return ImportRecord.invalid(line, "invalid date (yyyy-MM-dd): " + fields.get(2));
+            }
+            List<String> categories = new ArrayList<String>();
+            if (fields.get(3).length() > 0) {
+                for (String path : fields.get(3).split(CATEGORIES_SEPARATOR)) {
+                    categories.add(path);
+                }
+            }
+            return ImportRecord.post(line, fields.get(1), publishedAt, categories, fields.get(4));
+        }
+        return ImportRecord.invalid(line, "unknown record type: " + kind);
+    }
+
+    /**
+     * Split a line on tabulations and unescape the values
+     * @param text - content of the line
+     * @return values
+     */
+    static List<String> split(String text) {
+        List<String> fields = new ArrayList<String>();
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\t') {
+                fields.add(value.toString());
+                value.setLength(0);
+            } else if (c == '\\' && i + 1 < text.length()) {
+                char escaped = text.charAt(++i);
+                switch (escaped) {
+                    case 't': value.append('\t'); break;
+                    case 'n': value.append('\n'); break;
+                    case 'r': value.append('\r'); break;
+                    default: value.append(escaped);
+                }
+            } else {
+                value.append(c);
+            }
+        }
+        fields.add(value.toString());
+        return fields;
+    }
+}
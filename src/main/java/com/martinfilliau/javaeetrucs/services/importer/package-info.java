@@ -0,0 +1,4 @@
+/**
+ * Bulk import of posts and categories from files (see {@link com.martinfilliau.javaeetrucs.services.PostImporter})
+ */
+package com.martinfilliau.javaeetrucs.services.importer;
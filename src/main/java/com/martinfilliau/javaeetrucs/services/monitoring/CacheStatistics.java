@@ -0,0 +1,109 @@
+package com.martinfilliau.javaeetrucs.services.monitoring;
+
+import java.lang.management.ManagementFactory;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnit;
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import org.hibernate.stat.SecondLevelCacheStatistics;
+import org.hibernate.stat.Statistics;
+
+/**
+ * Publish the cache statistics of the javaeetrucsPu persistence unit as
+ * the JMX MBean {@link #OBJECT_NAME}
+ * (requires hibernate.generate_statistics in persistence.xml)
+ * @author martinfilliau
+ */
+@Singleton
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class CacheStatistics implements CacheStatisticsMXBean {
+
+    public static final String OBJECT_NAME = "com.martinfilliau.javaeetrucs:type=CacheStatistics";
+
+    @PersistenceUnit(unitName = "javaeetrucsPu")
+    private EntityManagerFactory emf;
+
+    private Statistics statistics;
+
+    @PostConstruct
+    public void register() {
+        statistics = ((HibernateEntityManagerFactory) emf).getSessionFactory().getStatistics();
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);      // left by a previous deployment
+            }
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            throw new IllegalStateException("Cannot register " + OBJECT_NAME, e);
+        }
+    }
+
+    @PreDestroy
+    public void unregister() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            // already unregistered, nothing to do
+        }
+    }
+
+    @Override
+    public long getSecondLevelCacheHitCount() {
+        return statistics.getSecondLevelCacheHitCount();
+    }
+
+    @Override
+    public long getSecondLevelCacheMissCount() {
+        return statistics.getSecondLevelCacheMissCount();
+    }
+
+    @Override
+    public long getSecondLevelCachePutCount() {
+        return statistics.getSecondLevelCachePutCount();
+    }
+
+    @Override
+    public long getQueryCacheHitCount() {
+        return statistics.getQueryCacheHitCount();
+    }
+
+    @Override
+    public long getQueryCacheMissCount() {
+        return statistics.getQueryCacheMissCount();
+    }
+
+    @Override
+    public long getQueryCachePutCount() {
+        return statistics.getQueryCachePutCount();
+    }
+
+    @Override
+    public String[] getRegionNames() {
+        return statistics.getSecondLevelCacheRegionNames();
+    }
+
+    @Override
+    public RegionStatistics getRegionStatistics(String region) {
+        SecondLevelCacheStatistics s = statistics.getSecondLevelCacheStatistics(region);
+        if (s == null) {
+            throw new IllegalArgumentException("Unknown cache region: " + region);
+        }
+        return new RegionStatistics(s.getHitCount(), s.getMissCount(), s.getPutCount(), s.getElementCountInMemory());
+    }
+
+    @Override
+    public void clear() {
+        statistics.clear();
+    }
+}
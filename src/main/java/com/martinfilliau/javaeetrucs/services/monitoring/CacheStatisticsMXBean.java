@@ -0,0 +1,38 @@
+package com.martinfilliau.javaeetrucs.services.monitoring;
+
+/**
+ * JMX view of the second-level and query cache statistics
+ * @author martinfilliau
+ */
+public interface CacheStatisticsMXBean {
+
+    long getSecondLevelCacheHitCount();
+
+    long getSecondLevelCacheMissCount();
+
+    long getSecondLevelCachePutCount();
+
+    long getQueryCacheHitCount();
+
+    long getQueryCacheMissCount();
+
+    long getQueryCachePutCount();
+
+    /**
+     * Get the names of the second-level cache regions
+     * @return names of the regions
+     */
+    String[] getRegionNames();
+
+    /**
+     * Get the statistics of a region
+     * @param region - name of the region
+     * @return hit, miss, put and element counts
+     */
+    RegionStatistics getRegionStatistics(String region);
+
+    /**
+     * Reset all counters
+     */
+    void clear();
+}
@@ -0,0 +1,100 @@
+package com.martinfilliau.javaeetrucs.services.monitoring;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations, with log-linear buckets:
+ * 4 buckets per power of 2, so a percentile is known within 25%.
+ * Buckets are striped by thread like
+ * {@link com.martinfilliau.javaeetrucs.services.utils.StripedCounter}.
+ * @author martinfilliau
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKETS = 4;
+
+    private static final int BUCKETS = 4 + 61 * SUB_BUCKETS;
+
+    private static final int STRIPES = 4;          // power of 2
+
+    private final AtomicLongArray counts = new AtomicLongArray(STRIPES * BUCKETS);
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a duration
+     * @param nanos - duration in nanoseconds
+     */
+    void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        counts.incrementAndGet(stripe * BUCKETS + bucket(nanos));
+        long current = max.get();
+        while (nanos > current && !max.compareAndSet(current, nanos)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Get a percentile
+     * @param percentile - between 0 and 100
+     * @return upper bound of the bucket holding the percentile, in nanoseconds, 0 if empty
+     */
+    long percentile(double percentile) {
+        long[] merged = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < STRIPES * BUCKETS; i++) {
+            long count = counts.get(i);
+            merged[i % BUCKETS] += count;
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100d);
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += merged[b];
+            if (seen >= Math.max(rank, 1)) {
+                return Math.min(upperBound(b), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Get the longest duration recorded
+     * @return duration in nanoseconds
+     */
+    long getMax() {
+        return max.get();
+    }
+
+    void reset() {
+        for (int i = 0; i < STRIPES * BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        max.set(0);
+    }
+
+    static int bucket(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (msb - 2)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + (msb - 2) * SUB_BUCKETS + sub;
+    }
+
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+        int sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << shift) - 1;
+    }
+}
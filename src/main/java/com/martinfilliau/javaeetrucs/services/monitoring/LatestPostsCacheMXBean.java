@@ -0,0 +1,64 @@
+package com.martinfilliau.javaeetrucs.services.monitoring;
+
+/**
+ * JMX view of the cache of the latest posts per category
+ * @author martinfilliau
+ */
+public interface LatestPostsCacheMXBean {
+
+    long getHitCount();
+
+    long getMissCount();
+
+    /**
+     * Get the ratio of reads answered from the cache
+     * @return hits / (hits + misses), 0 if there was no read
+     */
+    double getHitRate();
+
+    /**
+     * Get the number of cached categories
+     * @return count
+     */
+    int getEntryCount();
+
+    /**
+     * Get the estimated memory used by the cached posts
+     * @return bytes
+     */
+    long getEstimatedBytes();
+
+    long getMaxBytes();
+
+    void setMaxBytes(long maxBytes);
+
+    /**
+     * Get the number of writes applied to cached categories in place
+     * @return count
+     */
+    long getUpdateCount();
+
+    /**
+     * Get the number of categories dropped because a write could not be applied in place
+     * @return count
+     */
+    long getInvalidationCount();
+
+    /**
+     * Get the number of categories dropped to stay within the memory budget
+     * @return count
+     */
+    long getEvictionCount();
+
+    /**
+     * Get the age of the oldest entry since it was loaded from the database,
+     * i.e. for how long it has only been maintained incrementally
+     * @return milliseconds
+     */
+    long getOldestEntryAgeMillis();
+
+    /**
+     * Drop all the entries and reset the counters
+     */
+    void clear();
+}
@@ -0,0 +1,78 @@
+package com.martinfilliau.javaeetrucs.services.monitoring;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Publish the operations statistics through JMX while the application is deployed:
+ * the settings as {@link #OBJECT_NAME}, and one MXBean per operation.
+ * @author martinfilliau
+ */
+@Singleton
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class Monitoring implements MonitoringMXBean {
+
+    public static final String OBJECT_NAME = "com.martinfilliau.javaeetrucs:type=Monitoring";
+
+    @PostConstruct
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);      // left by a previous deployment
+            }
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            throw new IllegalStateException("Cannot register " + OBJECT_NAME, e);
+        }
+        OperationRegistry.setPublishing(true);
+    }
+
+    @PreDestroy
+    public void unregister() {
+        OperationRegistry.setPublishing(false);
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            // already unregistered, nothing to do
+        }
+    }
+
+    @Override
+    public long getSlowThresholdMillis() {
+        return OperationRegistry.getSlowThresholdMillis();
+    }
+
+    @Override
+    public void setSlowThresholdMillis(long millis) {
+        OperationRegistry.setSlowThresholdMillis(millis);
+    }
+
+    @Override
+    public String[] getOperationNames() {
+        List<String> names = new ArrayList<String>();
+        for (OperationStats stats : OperationRegistry.getAll()) {
+            names.add(stats.getName());
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
+    @Override
+    public void resetAll() {
+        for (OperationStats stats : OperationRegistry.getAll()) {
+            stats.reset();
+        }
+    }
+}
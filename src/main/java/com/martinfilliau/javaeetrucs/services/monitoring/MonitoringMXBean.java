@@ -0,0 +1,27 @@
+package com.martinfilliau.javaeetrucs.services.monitoring;
+
+/**
+ * JMX settings of the operations monitoring
+ * @author martinfilliau
+ */
+public interface MonitoringMXBean {
+
+    /**
+     * Get the duration above which an operation is logged
+     * @return threshold in milliseconds
+     */
+    long getSlowThresholdMillis();
+
+    void setSlowThresholdMillis(long millis);
+
+    /**
+     * Get the names of the operations seen so far
+     * @return names
+     */
+    String[] getOperationNames();
+
+    /**
+     * Reset the statistics of all the operations
+     */
+    void resetAll();
+}
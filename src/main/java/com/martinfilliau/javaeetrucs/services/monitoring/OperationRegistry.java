@@ -0,0 +1,132 @@
+package com.martinfilliau.javaeetrucs.services.monitoring;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Statistics of all the monitored operations, shared by all the instances of
+ * {@link PerformanceInterceptor}.
+ * Each operation is published as a "com.martinfilliau.javaeetrucs:type=Operation"
+ * MXBean while publishing is enabled (see {@link Monitoring}).
+ * @author martinfilliau
+ */
+public final class OperationRegistry {
+
+    private static final Logger LOGGER = Logger.getLogger(OperationRegistry.class.getName());
+
+    /**
+     * System property giving the initial slow operation threshold, in milliseconds
+     */
+    public static final String SLOW_THRESHOLD_PROPERTY = "javaeetrucs.slowThresholdMillis";
+
+    private static final ConcurrentMap<String, OperationStats> OPERATIONS = new ConcurrentHashMap<String, OperationStats>();
+
+    private static volatile long slowThresholdNanos = Long.getLong(SLOW_THRESHOLD_PROPERTY, 500L) * 1000000L;
+
+    private static volatile boolean publishing = false;
+
+    private OperationRegistry() {
+    }
+
+    /**
+     * Get the statistics of an operation, creating them on first use
+     * @param name - name of the operation
+     * @return statistics
+     */
+    public static OperationStats get(String name) {
+        OperationStats stats = OPERATIONS.get(name);
+        if (stats == null) {
+            OperationStats created = new OperationStats(name);
+            stats = OPERATIONS.putIfAbsent(name, created);
+            if (stats == null) {
+                stats = created;
+                if (publishing) {
+                    register(stats);
+                }
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Get the statistics of all the operations seen so far
+     * @return statistics
+     */
+    public static Collection<OperationStats> getAll() {
+        return OPERATIONS.values();
+    }
+
+    /**
+     * Record an invocation, and log it if it is slow
+     * @param stats - operation
+     * @param nanos - duration
+     * @param rowCount - rows returned
+     * @param failed - true if an exception was thrown
+     * @param detail - logged with slow operations, may be null
+     */
+    static void record(OperationStats stats, long nanos, long rowCount, boolean failed, Object detail) {
+        stats.record(nanos, rowCount, failed);
+        if (nanos > slowThresholdNanos && LOGGER.isLoggable(Level.WARNING)) {
+            LOGGER.log(Level.WARNING, "Slow operation {0}: {1} ms, {2} rows{3}",
+                    new Object[] { stats.getName(), nanos / 1000000L, rowCount, detail != null ? " " + detail : "" });
+        }
+    }
+
+    public static long getSlowThresholdMillis() {
+        return slowThresholdNanos / 1000000L;
+    }
+
+    public static void setSlowThresholdMillis(long millis) {
+        slowThresholdNanos = millis * 1000000L;
+    }
+
+    /**
+     * Publish (or stop publishing) all the operations through JMX
+     * @param enabled - true to register the MXBeans, false to unregister them
+     */
+    static synchronized void setPublishing(boolean enabled) {
+        publishing = enabled;
+        for (OperationStats stats : OPERATIONS.values()) {
+            if (enabled) {
+                register(stats);
+            } else {
+                unregister(stats);
+            }
+        }
+    }
+
+    static ObjectName objectName(OperationStats stats) throws JMException {
+        return new ObjectName("com.martinfilliau.javaeetrucs:type=Operation,name=" + ObjectName.quote(stats.getName()));
+    }
+
+    private static void register(OperationStats stats) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = objectName(stats);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(stats, name);
+            }
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, "Cannot register operation " + stats.getName(), e);
+        }
+    }
+
+    private static void unregister(OperationStats stats) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = objectName(stats);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, "Cannot unregister operation " + stats.getName(), e);
+        }
+    }
+}
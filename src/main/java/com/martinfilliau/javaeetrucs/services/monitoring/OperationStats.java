@@ -0,0 +1,85 @@
+package com.martinfilliau.javaeetrucs.services.monitoring;
+
+import com.martinfilliau.javaeetrucs.services.utils.StripedCounter;
+
+/**
+ * Statistics of a service method or a named query
+ * Updates are lock-free, see {@link StripedCounter} and {@link LatencyHistogram}
+ * @author martinfilliau
+ */
+public final class OperationStats implements OperationStatsMXBean {
+
+    private final String name;
+
+    private final StripedCounter invocations = new StripedCounter();
+
+    private final StripedCounter errors = new StripedCounter();
+
+    private final StripedCounter rows = new StripedCounter();
+
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    OperationStats(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Record an invocation
+     * @param nanos - duration
+     * @param rowCount - rows returned
+     * @param failed - true if an exception was thrown
+     */
+    void record(long nanos, long rowCount, boolean failed) {
+        invocations.increment();
+        if (failed) {
+            errors.increment();
+        }
+        if (rowCount > 0) {
+            rows.add(rowCount);
+        }
+        latencies.record(nanos);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getInvocationCount() {
+        return invocations.sum();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errors.sum();
+    }
+
+    @Override
+    public long getRowCount() {
+        return rows.sum();
+    }
+
+    @Override
+    public long getP50Micros() {
+        return latencies.percentile(50) / 1000;
+    }
+
+    @Override
+    public long getP99Micros() {
+        return latencies.percentile(99) / 1000;
+    }
+
+    @Override
+    public long getMaxMicros() {
+        return latencies.getMax() / 1000;
+    }
+
+    @Override
+    public void reset() {
+        invocations.set(0);
+        errors.set(0);
+        rows.set(0);
+        latencies.reset();
+    }
+}
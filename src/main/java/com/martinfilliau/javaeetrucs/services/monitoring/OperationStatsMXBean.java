@@ -0,0 +1,29 @@
+package com.martinfilliau.javaeetrucs.services.monitoring;
+
+/**
+ * JMX view of the statistics of a service method or a named query
+ * @author martinfilliau
+ */
+public interface OperationStatsMXBean {
+
+    String getName();
+
+    long getInvocationCount();
+
+    long getErrorCount();
+
+    /**
+     * Get the number of rows returned
+     * (size of the returned collection, rows written for bulk operations)
+     * @return rows
+     */
+    long getRowCount();
+
+    long getP50Micros();
+
+    long getP99Micros();
+
+    long getMaxMicros();
+
+    void reset();
+}
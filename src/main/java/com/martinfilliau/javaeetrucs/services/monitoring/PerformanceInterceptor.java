@@ -0,0 +1,109 @@
+package com.martinfilliau.javaeetrucs.services.monitoring;
+
+import com.martinfilliau.javaeetrucs.services.CrudService;
+import com.martinfilliau.javaeetrucs.services.utils.BatchReport;
+import com.martinfilliau.javaeetrucs.services.utils.QueryTemplate;
+import com.martinfilliau.javaeetrucs.services.utils.SeekPage;
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.interceptor.AroundInvoke;
+import javax.interceptor.InvocationContext;
+
+/**
+ * Record latency, invocations, errors and returned rows of each business
+ * method, and of each named query run through
+ * {@link com.martinfilliau.javaeetrucs.services.CrudService}
+ * (operations named "Class.method" and "query:QueryName").
+ * Cheap enough to stay enabled: no lock and no allocation on the hot path
+ * once an operation has been seen.
+ * Use with &#64;Interceptors(PerformanceInterceptor.class)
+ * @author martinfilliau
+ */
+public class PerformanceInterceptor {
+
+    private static final ConcurrentMap<Method, OperationStats> METHODS = new ConcurrentHashMap<Method, OperationStats>();
+
+    private static final ConcurrentMap<String, OperationStats> QUERIES = new ConcurrentHashMap<String, OperationStats>();
+
+    @AroundInvoke
+    public Object monitor(InvocationContext ctx) throws Exception {
+        long start = System.nanoTime();
+        Object result = null;
+        boolean failed = true;
+        try {
+            result = ctx.proceed();
+            failed = false;
+            return result;
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            Method method = ctx.getMethod();
+            long rows = rows(method, result);
+            OperationRegistry.record(methodStats(method), elapsed, rows, failed, null);
+            String query = queryName(method, ctx.getParameters());
+            if (query != null) {
+                OperationRegistry.record(queryStats(query), elapsed, rows, failed, null);
+            }
+        }
+    }
+
+    private static OperationStats methodStats(Method method) {
+        OperationStats stats = METHODS.get(method);
+        if (stats == null) {
+            stats = OperationRegistry.get(method.getDeclaringClass().getSimpleName() + "." + method.getName());
+            METHODS.putIfAbsent(method, stats);
+        }
+        return stats;
+    }
+
+    private static OperationStats queryStats(String query) {
+        OperationStats stats = QUERIES.get(query);
+        if (stats == null) {
+            stats = OperationRegistry.get("query:" + query);
+            QUERIES.putIfAbsent(query, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Get the named query run by a CrudService method, from its first parameter:
+     * only for the methods taking a query template or a named query name
+     * (*WithNamedQuery), other String parameters (search terms, JPQL...)
+     * would make an operation of each value
+     * @param method - method invoked
+     * @param parameters - parameters of the invocation
+     * @return name of the named query or null if it is not a named query
+     */
+    private static String queryName(Method method, Object[] parameters) {
+        if (method.getDeclaringClass() != CrudService.class || parameters == null || parameters.length == 0) {
+            return null;
+        }
+        if (parameters[0] instanceof QueryTemplate) {
+            return ((QueryTemplate) parameters[0]).getName();
+        }
+        if (parameters[0] instanceof String && method.getName().endsWith("WithNamedQuery")) {
+            return (String) parameters[0];
+        }
+        return null;
+    }
+
+    private static long rows(Method method, Object result) {
+        if (result == null) {
+            return 0;
+        }
+        if (result instanceof Collection) {
+            return ((Collection) result).size();
+        }
+        if (result instanceof SeekPage) {
+            return ((SeekPage) result).getResults().size();
+        }
+        if (result instanceof BatchReport) {
+            return ((BatchReport) result).getRows();
+        }
+        if (result instanceof Long && method.getName().startsWith("stream")) {
+            return (Long) result;
+        }
+        return 1;
+    }
+}
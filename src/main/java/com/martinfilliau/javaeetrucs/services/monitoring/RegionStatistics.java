@@ -0,0 +1,42 @@
+package com.martinfilliau.javaeetrucs.services.monitoring;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Statistics of a second-level cache region
+ * @author martinfilliau
+ */
+public final class RegionStatistics {
+
+    private final long hitCount;
+
+    private final long missCount;
+
+    private final long putCount;
+
+    private final long elementCountInMemory;
+
+    @ConstructorProperties({"hitCount", "missCount", "putCount", "elementCountInMemory"})
+    public RegionStatistics(long hitCount, long missCount, long putCount, long elementCountInMemory) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.putCount = putCount;
+        this.elementCountInMemory = elementCountInMemory;
+    }
+
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    public long getMissCount() {
+        return missCount;
+    }
+
+    public long getPutCount() {
+        return putCount;
+    }
+
+    public long getElementCountInMemory() {
+        return elementCountInMemory;
+    }
+}
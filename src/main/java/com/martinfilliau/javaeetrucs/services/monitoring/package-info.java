@@ -0,0 +1,4 @@
+/**
+ * Statistics of the services, published through JMX
+ */
+package com.martinfilliau.javaeetrucs.services.monitoring;
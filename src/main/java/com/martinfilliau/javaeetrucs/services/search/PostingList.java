@@ -0,0 +1,132 @@
+package com.martinfilliau.javaeetrucs.services.search;
+
+import java.util.Arrays;
+
+/**
+ * Compressed list of the documents containing a term, in increasing document
+ * order: each entry is the gap from the previous document number then the
+ * term frequency, both written as variable-length integers (7 bits per byte),
+ * so most entries take 2 bytes.
+ * Documents are only ever appended.
+ * @author martinfilliau
+ */
+final class PostingList {
+
+    private byte[] data;
+
+    private int length;
+
+    private int count;
+
+    private int lastDoc = -1;
+
+    PostingList() {
+        this.data = new byte[8];
+    }
+
+    PostingList(byte[] data, int count, int lastDoc) {
+        this.data = data;
+        this.length = data.length;
+        this.count = count;
+        this.lastDoc = lastDoc;
+    }
+
+    /**
+     * Append a document
+     * @param doc - document number, greater than all the ones already added
+     * @param frequency - occurrences of the term in the document
+     */
+    void add(int doc, int frequency) {
+        if (doc <= lastDoc) {
+            throw new IllegalArgumentException("Document " + doc + " added after " + lastDoc);
+        }
+        if (length + 10 > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, length + 10));
+        }
+        writeVarInt(doc - lastDoc);
+        writeVarInt(frequency);
+        lastDoc = doc;
+        count++;
+    }
+
+    /**
+     * Number of documents containing the term
+     * @return count, deleted documents included
+     */
+    int count() {
+        return count;
+    }
+
+    int lastDoc() {
+        return lastDoc;
+    }
+
+    /**
+     * Get the encoded entries
+     * @return copy of the bytes
+     */
+    byte[] toBytes() {
+        return Arrays.copyOf(data, length);
+    }
+
+    /**
+     * Get a cursor over the entries (not thread-safe against concurrent add)
+     * @return cursor before the first entry
+     */
+    Cursor cursor() {
+        return new Cursor();
+    }
+
+    private void writeVarInt(int value) {
+        while ((value & ~0x7F) != 0) {
+            data[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        data[length++] = (byte) value;
+    }
+
+    /**
+     * Sequential reader of the entries
+     */
+    final class Cursor {
+
+        private int position;
+
+        private int doc = -1;
+
+        private int frequency;
+
+        /**
+         * Move to the next entry
+         * @return false if there is no more entry
+         */
+        boolean next() {
+            if (position >= length) {
+                return false;
+            }
+            doc += readVarInt();
+            frequency = readVarInt();
+            return true;
+        }
+
+        int doc() {
+            return doc;
+        }
+
+        int frequency() {
+            return frequency;
+        }
+
+        private int readVarInt() {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[position++];
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return value;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.martinfilliau.javaeetrucs.services.search;
+
+import java.io.Serializable;
+
+/**
+ * A post matching a search, with its relevance
+ * @author martinfilliau
+ */
+public final class SearchHit implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long postId;
+
+    private final float score;
+
+    /**
+     * @param postId - id of the post
+     * @param score - relevance, higher is better
+     */
+    public SearchHit(long postId, float score) {
+        this.postId = postId;
+        this.score = score;
+    }
+
+    /* GETTERs */
+
+    public long getPostId() {
+        return postId;
+    }
+
+    public float getScore() {
+        return score;
+    }
+
+    @Override
+    public String toString() {
+        return "SearchHit[postId=" + postId + ", score=" + score + "]";
+    }
+}
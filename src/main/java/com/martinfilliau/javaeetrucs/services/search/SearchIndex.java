@@ -0,0 +1,492 @@
+package com.martinfilliau.javaeetrucs.services.search;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Inverted index of posts: for each term, the {@link PostingList} of the
+ * documents containing it in the name or the description of a post.
+ * Posts are numbered internally in the order they are indexed; updating a
+ * post indexes it again under a new number and marks the old one as deleted,
+ * deleted documents are purged once they outnumber the live ones.
+ * The version of each post is kept, an older version than the one indexed
+ * is ignored, and a snapshot can be checked against the database.
+ * Results are ranked with BM25, a term found in the name counts as
+ * {@link #NAME_WEIGHT} occurrences.
+ * Searches run concurrently, updates are serialized.
+ * @author martinfilliau
+ */
+public final class SearchIndex {
+
+    public static final int NAME_WEIGHT = 3;
+
+    private static final float K1 = 1.2f;
+
+    private static final float B = 0.75f;
+
+    private static final int MAGIC = 0x50535832;       // "PSX2"
+
+    private static final int MIN_DOCS_TO_COMPACT = 1024;
+
+    private static final long[] NO_CATEGORY = new long[0];
+
+    private static final Comparator<SearchHit> BY_SCORE = new Comparator<SearchHit>() {
+        @Override
+        public int compare(SearchHit h1, SearchHit h2) {
+            int c = Float.compare(h1.getScore(), h2.getScore());
+            return c != 0 ? c : (h1.getPostId() < h2.getPostId() ? 1 : (h1.getPostId() == h2.getPostId() ? 0 : -1));
+        }
+    };
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final Map<String, PostingList> postings = new HashMap<String, PostingList>();
+
+    private final Map<Long, Integer> docByPost = new HashMap<Long, Integer>();
+
+    private final BitSet deleted = new BitSet();
+
+    /**
+     * Per document number: id and version of the post, number of terms, categories
+     */
+    private long[] postIds = new long[64];
+
+    private long[] versions = new long[64];
+
+    private int[] lengths = new int[64];
+
+    private long[][] categories = new long[64][];
+
+    /**
+     * Document numbers allocated
+     */
+    private int docCount;
+
+    /**
+     * Total number of terms of live documents
+     */
+    private long totalLength;
+
+    /**
+     * Index or re-index a post, unless a newer version is indexed
+     * @param postId - id of the post
+     * @param version - version of the post
+     * @param name - name of the post
+     * @param description - description of the post
+     * @param categoryIds - ids of the categories of the post
+     */
+    public void put(long postId, long version, String name, String description, Collection<Long> categoryIds) {
+        Map<String, Integer> terms = new HashMap<String, Integer>();
+        Tokenizer.addTerms(name, NAME_WEIGHT, terms);
+        Tokenizer.addTerms(description, 1, terms);
+        long[] cats = NO_CATEGORY;
+        if (categoryIds != null && !categoryIds.isEmpty()) {
+            cats = new long[categoryIds.size()];
+            int i = 0;
+            for (Long id : categoryIds) {
+                cats[i++] = id;
+            }
+        }
+        lock.writeLock().lock();
+        try {
+            Integer indexed = docByPost.get(postId);
+            if (indexed != null && versions[indexed] > version) {
+                return;
+            }
+            delete(postId);
+            int doc = add(postId, version, cats, terms);
+            docByPost.put(postId, doc);
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove a post from the index
+     * @param postId - id of the post
+     * @return false if the post was not indexed
+     */
+    public boolean remove(long postId) {
+        lock.writeLock().lock();
+        try {
+            boolean removed = delete(postId);
+            compactIfNeeded();
+            return removed;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Number of posts indexed
+     * @return count
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return docByPost.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Check that the index has exactly some posts, in some versions
+     * @param expected - versions by post id, e.g. of all the posts of the database
+     * @return false if a post is missing, extra, or in another version
+     */
+    public boolean hasVersions(Map<Long, Long> expected) {
+        lock.readLock().lock();
+        try {
+            if (docByPost.size() != expected.size()) {
+                return false;
+            }
+            for (Map.Entry<Long, Integer> entry : docByPost.entrySet()) {
+                Long version = expected.get(entry.getKey());
+                if (version == null || version != versions[entry.getValue()]) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get the posts most relevant for a query
+     * A post matches if it contains at least one of the terms of the query.
+     * @param query - text of the query
+     * @param categoryIds - only return posts in one of these categories, null for all posts
+     * @param maxResults - maximum number of hits
+     * @return hits, most relevant first
+     */
+    public List<SearchHit> search(String query, Collection<Long> categoryIds, int maxResults) {
+        Set<String> terms = Tokenizer.terms(query).keySet();
+        if (terms.isEmpty() || maxResults <= 0) {
+            return Collections.emptyList();
+        }
+        Set<Long> filter = categoryIds != null ? new HashSet<Long>(categoryIds) : null;
+        PriorityQueue<SearchHit> top;
+        lock.readLock().lock();
+        try {
+            int live = docByPost.size();
+            if (live == 0) {
+                return Collections.emptyList();
+            }
+            float averageLength = (float) totalLength / live;
+            Accumulator scores = new Accumulator();
+            for (String term : terms) {
+                PostingList list = postings.get(term);
+                if (list == null) {
+                    continue;
+                }
+                int df = Math.min(list.count(), live);
+                float idf = (float) Math.log(1 + (live - df + 0.5) / (df + 0.5));
+                PostingList.Cursor cursor = list.cursor();
+                while (cursor.next()) {
+                    int doc = cursor.doc();
+                    if (deleted.get(doc) || (filter != null && !inCategories(doc, filter))) {
+                        continue;
+                    }
+                    float tf = cursor.frequency();
+                    float norm = K1 * (1 - B + B * lengths[doc] / averageLength);
+                    scores.add(doc, idf * tf * (K1 + 1) / (tf + norm));
+                }
+            }
+            if (scores.size == 0) {
+                return Collections.emptyList();
+            }
+            top = new PriorityQueue<SearchHit>(Math.min(maxResults, scores.size) + 1, BY_SCORE);
+            for (int i = 0; i < scores.keys.length; i++) {
+                int doc = scores.keys[i];
+                if (doc >= 0) {
+                    SearchHit hit = new SearchHit(postIds[doc], scores.values[i]);
+                    if (top.size() < maxResults) {
+                        top.add(hit);
+                    } else if (BY_SCORE.compare(hit, top.peek()) > 0) {
+                        top.poll();
+                        top.add(hit);
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        List<SearchHit> hits = new ArrayList<SearchHit>(top);
+        Collections.sort(hits, Collections.reverseOrder(BY_SCORE));
+        return hits;
+    }
+
+    /**
+     * Write a snapshot of the index to a file
+     * The file is replaced atomically when the platform allows it.
+     * @param file - destination
+     * @throws IOException if the file cannot be written
+     */
+    public void save(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            writeTo(out);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            if (!file.delete() || !tmp.renameTo(file)) {
+                throw new IOException("Cannot replace " + file);
+            }
+        }
+    }
+
+    /**
+     * Read a snapshot written by {@link #save(java.io.File)}
+     * @param file - snapshot
+     * @return index
+     * @throws IOException if the file cannot be read or is not a snapshot
+     */
+    public static SearchIndex load(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            SearchIndex index = new SearchIndex();
+            index.readFrom(in);
+            return index;
+        } finally {
+            in.close();
+        }
+    }
+
+    private void writeTo(DataOutput out) throws IOException {
+        lock.readLock().lock();
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(docCount);
+            for (int doc = 0; doc < docCount; doc++) {
+                out.writeBoolean(deleted.get(doc));
+                out.writeLong(postIds[doc]);
+                out.writeLong(versions[doc]);
+                out.writeInt(lengths[doc]);
+                out.writeInt(categories[doc].length);
+                for (long id : categories[doc]) {
+                    out.writeLong(id);
+                }
+            }
+            out.writeInt(postings.size());
+            for (Map.Entry<String, PostingList> entry : postings.entrySet()) {
+                PostingList list = entry.getValue();
+                byte[] bytes = list.toBytes();
+                out.writeUTF(entry.getKey());
+                out.writeInt(list.count());
+                out.writeInt(list.lastDoc());
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void readFrom(DataInput in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a search index snapshot");
+        }
+        int count = in.readInt();
+        ensureCapacity(count);
+        for (int doc = 0; doc < count; doc++) {
+            boolean isDeleted = in.readBoolean();
+            postIds[doc] = in.readLong();
+            versions[doc] = in.readLong();
+            lengths[doc] = in.readInt();
+            long[] cats = new long[in.readInt()];
+            for (int i = 0; i < cats.length; i++) {
+                cats[i] = in.readLong();
+            }
+            categories[doc] = cats;
+            if (isDeleted) {
+                deleted.set(doc);
+            } else {
+                docByPost.put(postIds[doc], doc);
+                totalLength += lengths[doc];
+            }
+        }
+        docCount = count;
+        int terms = in.readInt();
+        for (int i = 0; i < terms; i++) {
+            String term = in.readUTF();
+            int documents = in.readInt();
+            int lastDoc = in.readInt();
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            postings.put(term, new PostingList(bytes, documents, lastDoc));
+        }
+    }
+
+    private int add(long postId, long version, long[] cats, Map<String, Integer> terms) {
+        int doc = docCount++;
+        ensureCapacity(docCount);
+        int length = 0;
+        for (Map.Entry<String, Integer> term : terms.entrySet()) {
+            PostingList list = postings.get(term.getKey());
+            if (list == null) {
+                list = new PostingList();
+                postings.put(term.getKey(), list);
+            }
+            list.add(doc, term.getValue());
+            length += term.getValue();
+        }
+        postIds[doc] = postId;
+        versions[doc] = version;
+        lengths[doc] = length;
+        categories[doc] = cats;
+        totalLength += length;
+        return doc;
+    }
+
+    private boolean delete(long postId) {
+        Integer doc = docByPost.remove(postId);
+        if (doc == null) {
+            return false;
+        }
+        deleted.set(doc);
+        totalLength -= lengths[doc];
+        return true;
+    }
+
+    private boolean inCategories(int doc, Set<Long> filter) {
+        for (long id : categories[doc]) {
+            if (filter.contains(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > postIds.length) {
+            int size = Math.max(capacity, postIds.length * 2);
+            postIds = Arrays.copyOf(postIds, size);
+            versions = Arrays.copyOf(versions, size);
+            lengths = Arrays.copyOf(lengths, size);
+            categories = Arrays.copyOf(categories, size);
+        }
+    }
+
+    /**
+     * Renumber the live documents once deleted ones outnumber them,
+     * so that posting lists do not grow forever with updates
+     */
+    private void compactIfNeeded() {
+        int deletedCount = docCount - docByPost.size();
+        if (docCount < MIN_DOCS_TO_COMPACT || deletedCount <= docByPost.size()) {
+            return;
+        }
+        int[] renumber = new int[docCount];
+        int live = 0;
+        for (int doc = 0; doc < docCount; doc++) {
+            if (deleted.get(doc)) {
+                renumber[doc] = -1;
+            } else {
+                renumber[doc] = live;
+                postIds[live] = postIds[doc];
+                versions[live] = versions[doc];
+                lengths[live] = lengths[doc];
+                categories[live] = categories[doc];
+                docByPost.put(postIds[live], live);
+                live++;
+            }
+        }
+        Arrays.fill(categories, live, docCount, null);
+        for (Map.Entry<String, PostingList> entry : new ArrayList<Map.Entry<String, PostingList>>(postings.entrySet())) {
+            PostingList compacted = new PostingList();
+            PostingList.Cursor cursor = entry.getValue().cursor();
+            while (cursor.next()) {
+                if (renumber[cursor.doc()] >= 0) {
+                    compacted.add(renumber[cursor.doc()], cursor.frequency());
+                }
+            }
+            if (compacted.count() == 0) {
+                postings.remove(entry.getKey());
+            } else {
+                entry.setValue(compacted);
+            }
+        }
+        deleted.clear();
+        docCount = live;
+    }
+
+    /**
+     * Scores per document number (open addressing, no boxing)
+     */
+    private static final class Accumulator {
+
+        private int[] keys = newKeys(64);
+
+        private float[] values = new float[64];
+
+        private int size;
+
+        void add(int doc, float score) {
+            int mask = keys.length - 1;
+            int i = (doc * 0x9E3779B9) >>> 1 & mask;
+            while (keys[i] >= 0 && keys[i] != doc) {
+                i = (i + 1) & mask;
+            }
+            if (keys[i] < 0) {
+                keys[i] = doc;
+                if (++size * 2 > keys.length) {
+                    values[i] = score;
+                    grow();
+                    return;
+                }
+            }
+            values[i] += score;
+        }
+
+        private void grow() {
+            int[] oldKeys = keys;
+            float[] oldValues = values;
+            keys = newKeys(oldKeys.length * 2);
+            values = new float[oldKeys.length * 2];
+            int mask = keys.length - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldKeys[j] >= 0) {
+                    int i = (oldKeys[j] * 0x9E3779B9) >>> 1 & mask;
+                    while (keys[i] >= 0) {
+                        i = (i + 1) & mask;
+                    }
+                    keys[i] = oldKeys[j];
+                    values[i] = oldValues[j];
+                }
+            }
+        }
+
+        private static int[] newKeys(int size) {
+            int[] keys = new int[size];
+            Arrays.fill(keys, -1);
+            return keys;
+        }
+    }
+}
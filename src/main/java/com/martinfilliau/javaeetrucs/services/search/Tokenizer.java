@@ -0,0 +1,59 @@
+package com.martinfilliau.javaeetrucs.services.search;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Split text into terms: lower-cased runs of letters and digits,
+ * ignoring terms shorter than {@link #MIN_LENGTH} and truncating terms
+ * longer than {@link #MAX_LENGTH}.
+ * @author martinfilliau
+ */
+public final class Tokenizer {
+
+    public static final int MIN_LENGTH = 2;
+
+    public static final int MAX_LENGTH = 40;
+
+    private Tokenizer() {
+    }
+
+    /**
+     * Count the occurrences of each term of a text
+     * @param text - text to tokenize, may be null
+     * @param weight - added to the count for each occurrence
+     * @param frequencies - map of <term>, <count> to add to
+     */
+    public static void addTerms(String text, int weight, Map<String, Integer> frequencies) {
+        if (text == null) {
+            return;
+        }
+        int length = text.length();
+        int start = -1;
+        for (int i = 0; i <= length; i++) {
+            boolean inTerm = i < length && Character.isLetterOrDigit(text.charAt(i));
+            if (inTerm && start < 0) {
+                start = i;
+            } else if (!inTerm && start >= 0) {
+                if (i - start >= MIN_LENGTH) {
+                    String term = text.substring(start, Math.min(i, start + MAX_LENGTH)).toLowerCase(Locale.ROOT);
+                    Integer count = frequencies.get(term);
+                    frequencies.put(term, count == null ? weight : count + weight);
+                }
+                start = -1;
+            }
+        }
+    }
+
+    /**
+     * Get the distinct terms of a text
+     * @param text - text to tokenize, may be null
+     * @return map of <term>, <number of occurrences>
+     */
+    public static Map<String, Integer> terms(String text) {
+        Map<String, Integer> frequencies = new HashMap<String, Integer>();
+        addTerms(text, 1, frequencies);
+        return frequencies;
+    }
+}
@@ -0,0 +1,4 @@
+/**
+ * In-process full-text search over posts (inverted index, ranked queries)
+ */
+package com.martinfilliau.javaeetrucs.services.search;
@@ -0,0 +1,474 @@
+package com.martinfilliau.javaeetrucs.services.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Store of post descriptions (UTF-8) outside of the heap, in append-only
+ * segment files of a directory, read through read-only memory mappings.
+ * A write appends a record to the last segment; the previous record of the
+ * post is then superseded, its bytes are reclaimed by {@link #compact(double)}
+ * which copies the records still current of a segment and deletes it.
+ * An index in memory gives the segment and offset of each post, it is
+ * rebuilt by scanning the segments when the store is opened (records
+ * truncated or corrupted by a crash are ignored).
+ * The total size of the mappings is bounded: the least recently read
+ * segment is unmapped first, and a segment which cannot be mapped is read
+ * with a copy. The segment being written is mapped again only once it has
+ * doubled since it was mapped, the records appended meanwhile are read with
+ * a copy. Java cannot unmap explicitly, the memory of a mapping is
+ * released when it is garbage collected.
+ * Reads are lock-free, writes are serialized.
+ * @author martinfilliau
+ */
+public final class DescriptionStore {
+
+    private static final Logger LOGGER = Logger.getLogger(DescriptionStore.class.getName());
+
+    public static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String PREFIX = "descriptions-";
+
+    private static final String SUFFIX = ".seg";
+
+    /**
+     * Version of removal records, newer than any version of a post
+     */
+    private static final long REMOVED = Long.MAX_VALUE;
+
+    private final File directory;
+
+    private final long segmentSize;
+
+    private final long mappedBudget;
+
+    private final ConcurrentMap<Long, Location> locations = new ConcurrentHashMap<Long, Location>();
+
+    /**
+     * All segments, oldest first; the last one is the one written
+     */
+    private final List<Segment> segments = new CopyOnWriteArrayList<Segment>();
+
+    /**
+     * Guards the mappings and mappedBytes
+     */
+    private final Object mappingLock = new Object();
+
+    private long mappedBytes;
+
+    /**
+     * Where the current version of a post is (length -1 for a removed post,
+     * or a post without description)
+     */
+    private static final class Location {
+
+        private final Segment segment;
+        private final long offset;
+        private final int length;
+        private final long version;
+
+        private Location(Segment segment, long offset, int length, long version) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.version = version;
+        }
+
+        private long recordSize() {
+            return Segment.HEADER_SIZE + Math.max(length, 0);
+        }
+    }
+
+    private DescriptionStore(File directory, long segmentSize, long mappedBudget) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.mappedBudget = mappedBudget;
+    }
+
+    /**
+     * Open the store of a directory, creating it if needed
+     * @param directory - directory of the segment files
+     * @param segmentSize - size from which a new segment is started
+     * @param mappedBudget - maximum number of bytes mapped at a time
+     * @return store
+     * @throws IOException if the directory cannot be read
+     */
+    public static DescriptionStore open(File directory, long segmentSize, long mappedBudget) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        DescriptionStore store = new DescriptionStore(directory, segmentSize, mappedBudget);
+        List<Segment> existing = new ArrayList<Segment>();
+        File[] files = directory.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            String name = file.getName();
+            if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+                try {
+                    int number = Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+                    existing.add(new Segment(number, file));
+                } catch (NumberFormatException e) {
+                    LOGGER.log(Level.WARNING, "Ignoring {0}", file);
+                }
+            }
+        }
+        Collections.sort(existing, new Comparator<Segment>() {
+            @Override
+            public int compare(Segment s1, Segment s2) {
+                return s1.getNumber() < s2.getNumber() ? -1 : (s1.getNumber() == s2.getNumber() ? 0 : 1);
+            }
+        });
+        for (Segment segment : existing) {
+            store.segments.add(segment);
+            store.scan(segment);
+        }
+        if (store.segments.isEmpty()) {
+            store.segments.add(store.newSegment(0));
+        }
+        return store;
+    }
+
+    /**
+     * Get the description of a post
+     * @param postId - id of the post
+     * @return read-only UTF-8 bytes, a view on the mapped file when possible,
+     * or null if the post is not in the store
+     */
+    public ByteBuffer get(long postId) {
+        Location location = locations.get(postId);
+        if (location == null || location.length < 0) {
+            return null;
+        }
+        long offset = location.offset + Segment.HEADER_SIZE;
+        try {
+            if (!location.segment.isMapped(offset, location.length)) {
+                map(location.segment);
+            }
+            return location.segment.read(offset, location.length);
+        } catch (IOException e) {
+            // e.g. segment deleted by a compaction since the location was read
+            LOGGER.log(Level.FINE, "Cannot read the description of post " + postId, e);
+            return null;
+        }
+    }
+
+    /**
+     * Get the description of a post as a String (decoded, so copied)
+     * @param postId - id of the post
+     * @return description or null if the post is not in the store
+     */
+    public String getString(long postId) {
+        ByteBuffer bytes = get(postId);
+        return bytes == null ? null : UTF8.decode(bytes).toString();
+    }
+
+    /**
+     * Write the description of a post, unless the store has a newer version
+     * @param postId - id of the post
+     * @param version - version of the post
+     * @param description - description, null if the post has none (a record
+     * without bytes is kept at this version: {@link #get(long)} returns null
+     * but newer versions are still written)
+     * @return true if written, false if the store already has this version or a newer one
+     * @throws IOException if the record cannot be appended
+     */
+    public synchronized boolean put(long postId, long version, String description) throws IOException {
+        Location previous = locations.get(postId);
+        if (previous != null && previous.version >= version) {
+            return false;
+        }
+        Location location;
+        if (description == null) {
+            location = append(postId, version, -1, null);
+        } else {
+            byte[] bytes = description.getBytes(UTF8);
+            location = append(postId, version, bytes.length, ByteBuffer.wrap(bytes));
+        }
+        locations.put(postId, location);
+        release(previous);
+        return true;
+    }
+
+    /**
+     * Remove the description of a post (deleted post)
+     * The removal is kept, so that a description of the post read before its
+     * deletion cannot be written afterwards.
+     * @param postId - id of the post
+     * @throws IOException if the removal cannot be appended
+     */
+    public synchronized void remove(long postId) throws IOException {
+        Location previous = locations.get(postId);
+        if (previous != null && previous.version == REMOVED) {
+            return;
+        }
+        locations.put(postId, append(postId, REMOVED, -1, null));
+        release(previous);
+    }
+
+    /**
+     * Forget the descriptions whose version is not the current one, e.g.
+     * of posts updated by another node, and remove the posts deleted
+     * Forgotten records are not copied by compactions, they are forgotten
+     * again if the store is reopened before.
+     * @param versions - current version of every post, by id
+     * @return number of posts forgotten or removed
+     * @throws IOException if a removal cannot be appended
+     */
+    public synchronized int reconcile(Map<Long, Long> versions) throws IOException {
+        int dropped = 0;
+        for (Map.Entry<Long, Location> entry : locations.entrySet()) {
+            Long version = versions.get(entry.getKey());
+            Location location = entry.getValue();
+            if (version == null) {
+                if (location.version != REMOVED) {
+                    remove(entry.getKey());
+                    dropped++;
+                }
+            } else if (version != location.version) {
+                locations.remove(entry.getKey());
+                release(location);
+                dropped++;
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * Copy the current records of the segments with too much superseded bytes
+     * to the last segment and delete them, once the copies are on disk
+     * @param maxGarbageRatio - part of superseded bytes above which a segment is compacted, e.g. 0.5
+     * @return number of segments deleted
+     * @throws IOException if a segment cannot be read or written
+     */
+    public synchronized int compact(double maxGarbageRatio) throws IOException {
+        int compacted = 0;
+        for (Segment segment : segments) {
+            if (segment == active() || segment.getSize() == 0
+                    || segment.getLiveBytes().get() > segment.getSize() * (1 - maxGarbageRatio)) {
+                continue;
+            }
+            long position = 0;
+            while (position + Segment.HEADER_SIZE <= segment.getSize()) {
+                ByteBuffer header = segment.read(position, Segment.HEADER_SIZE);
+                long postId = header.getLong();
+                long version = header.getLong();
+                int length = header.getInt();
+                Location current = locations.get(postId);
+                if (current != null && current.segment == segment && current.offset == position) {
+                    ByteBuffer bytes = length < 0 ? null : segment.read(position + Segment.HEADER_SIZE, length);
+                    locations.put(postId, append(postId, version, length, bytes));
+                }
+                position += Segment.HEADER_SIZE + Math.max(length, 0);
+            }
+            active().force();
+            segments.remove(segment);
+            synchronized (mappingLock) {
+                mappedBytes -= segment.getMappedLength();
+                segment.delete();
+            }
+            compacted++;
+        }
+        return compacted;
+    }
+
+    /**
+     * Close the store and delete its segments, e.g. when it may have missed writes
+     */
+    public synchronized void delete() throws IOException {
+        close();
+        for (Segment segment : segments) {
+            segment.delete();
+        }
+        segments.clear();
+        locations.clear();
+    }
+
+    public synchronized void close() throws IOException {
+        synchronized (mappingLock) {
+            for (Segment segment : segments) {
+                segment.close();
+            }
+            mappedBytes = 0;
+        }
+    }
+
+    /**
+     * Number of posts in the store, removed ones included
+     * @return count
+     */
+    public int size() {
+        return locations.size();
+    }
+
+    /**
+     * Bytes of all the segment files
+     * @return size
+     */
+    public long getFileBytes() {
+        long total = 0;
+        for (Segment segment : segments) {
+            total += segment.getSize();
+        }
+        return total;
+    }
+
+    /**
+     * Bytes of the current records (the others can be reclaimed by a compaction)
+     * @return size
+     */
+    public long getLiveBytes() {
+        long total = 0;
+        for (Segment segment : segments) {
+            total += segment.getLiveBytes().get();
+        }
+        return total;
+    }
+
+    public long getMappedBytes() {
+        synchronized (mappingLock) {
+            return mappedBytes;
+        }
+    }
+
+    /**
+     * Append a record to the last segment, starting a new segment if it is full
+     * @param bytes - description, null for a removal
+     * @return location of the record
+     */
+    private Location append(long postId, long version, int length, ByteBuffer bytes) throws IOException {
+        int recordSize = Segment.HEADER_SIZE + Math.max(length, 0);
+        Segment segment = active();
+        if (segment.getSize() > 0 && segment.getSize() + recordSize > segmentSize) {
+            segment.force();    // sealed segments are complete on disk, compactions read them
+            segment = newSegment(segment.getNumber() + 1);
+            segments.add(segment);
+        }
+        ByteBuffer record = ByteBuffer.allocate(recordSize);
+        record.putLong(postId).putLong(version).putInt(length).putInt(0);
+        if (bytes != null) {
+            record.put(bytes.duplicate());
+            record.putInt(8 + 8 + 4, crc(record, Segment.HEADER_SIZE, length));
+        }
+        record.flip();
+        long offset = segment.append(record);
+        segment.getLiveBytes().addAndGet(recordSize);
+        return new Location(segment, offset, length, version);
+    }
+
+    /**
+     * Account for a superseded record
+     * @param previous - location of the record, may be null
+     */
+    private void release(Location previous) {
+        if (previous != null) {
+            previous.segment.getLiveBytes().addAndGet(-previous.recordSize());
+        }
+    }
+
+    /**
+     * Map a segment as it is now, unmapping the least recently read ones
+     * if needed to stay within the budget. Nothing is done if the segment
+     * alone is larger than the budget, or if it is the segment being written
+     * and has not doubled since it was mapped (it is read with copies).
+     * @param segment - segment to map
+     */
+    private void map(Segment segment) throws IOException {
+        synchronized (mappingLock) {
+            long needed = segment.getSize() - segment.getMappedLength();
+            if (segment.getSize() > mappedBudget || !segments.contains(segment)) {
+                return;
+            }
+            if (segment == active() && segment.getSize() < 2 * segment.getMappedLength()) {
+                return;
+            }
+            while (mappedBytes + needed > mappedBudget) {
+                Segment oldest = null;
+                for (Segment s : segments) {
+                    if (s != segment && s.getMappedLength() > 0 && (oldest == null || s.getLastRead() < oldest.getLastRead())) {
+                        oldest = s;
+                    }
+                }
+                if (oldest == null) {
+                    return;
+                }
+                mappedBytes -= oldest.getMappedLength();
+                oldest.unmap();
+            }
+            long previous = segment.getMappedLength();
+            mappedBytes += segment.map() - previous;
+        }
+    }
+
+    /**
+     * Rebuild the index from a segment, cutting it after its last valid record
+     * @param segment - segment, newer than the ones already scanned
+     */
+    private void scan(Segment segment) throws IOException {
+        long position = 0;
+        while (position + Segment.HEADER_SIZE <= segment.getSize()) {
+            ByteBuffer header = segment.read(position, Segment.HEADER_SIZE);
+            long postId = header.getLong();
+            long version = header.getLong();
+            int length = header.getInt();
+            int crc = header.getInt();
+            if (position + Segment.HEADER_SIZE + Math.max(length, 0) > segment.getSize()) {
+                break;
+            }
+            if (length >= 0 && crc(segment.read(position + Segment.HEADER_SIZE, length), 0, length) != crc) {
+                break;
+            }
+            Location previous = locations.get(postId);
+            if (previous == null || previous.version <= version) {
+                Location location = new Location(segment, position, length, version);
+                segment.getLiveBytes().addAndGet(location.recordSize());
+                locations.put(postId, location);
+                release(previous);
+            }
+            position += Segment.HEADER_SIZE + Math.max(length, 0);
+        }
+        if (position < segment.getSize()) {
+            LOGGER.log(Level.WARNING, "Ignoring the end of {0} after byte {1}", new Object[] { segment.getFile(), position });
+            segment.truncate(position);
+        }
+    }
+
+    private Segment active() {
+        return segments.get(segments.size() - 1);
+    }
+
+    private Segment newSegment(int number) throws IOException {
+        return new Segment(number, new File(directory, PREFIX + number + SUFFIX));
+    }
+
+    /**
+     * @param buffer - bytes, not modified
+     * @param offset - index of the first byte
+     * @param length - number of bytes
+     * @return CRC32 of the bytes
+     */
+    private static int crc(ByteBuffer buffer, int offset, int length) {
+        CRC32 crc = new CRC32();
+        ByteBuffer bytes = buffer.duplicate();
+        bytes.limit(offset + length);
+        bytes.position(offset);
+        byte[] chunk = new byte[Math.min(length, 8192)];
+        while (bytes.hasRemaining()) {
+            int n = Math.min(chunk.length, bytes.remaining());
+            bytes.get(chunk, 0, n);
+            crc.update(chunk, 0, n);
+        }
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,176 @@
+package com.martinfilliau.javaeetrucs.services.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Append-only file of records: post id (long), version (long),
+ * length (int, -1 for a removal), CRC32 of the bytes (int), UTF-8 bytes.
+ * Only one thread appends at a time (see {@link DescriptionStore}), any
+ * thread reads, through a mapping of the file or through its channel.
+ * @author martinfilliau
+ */
+final class Segment {
+
+    static final int HEADER_SIZE = 8 + 8 + 4 + 4;
+
+    private final int number;
+
+    private final File file;
+
+    private final FileChannel channel;
+
+    /**
+     * Bytes written, records are never read beyond
+     */
+    private volatile long size;
+
+    /**
+     * Bytes of the records which are the current version of a post
+     */
+    private final AtomicLong liveBytes = new AtomicLong();
+
+    /**
+     * Read-only mapping of the first bytes of the file, null when not mapped
+     */
+    private volatile MappedByteBuffer mapped;
+
+    /**
+     * Time of the last read, to choose the mapping to drop first
+     */
+    private volatile long lastRead;
+
+    Segment(int number, File file) throws IOException {
+        this.number = number;
+        this.file = file;
+        this.channel = new RandomAccessFile(file, "rw").getChannel();
+        this.size = channel.size();
+    }
+
+    /**
+     * Append a record at the end of the file
+     * @param record - header and body, from its position to its limit
+     * @return offset of the record
+     */
+    long append(ByteBuffer record) throws IOException {
+        long offset = size;
+        long position = offset;
+        while (record.hasRemaining()) {
+            position += channel.write(record, position);
+        }
+        size = position;
+        return offset;
+    }
+
+    /**
+     * Write the records appended to the disk, e.g. before the records they
+     * supersede are deleted
+     */
+    void force() throws IOException {
+        channel.force(false);
+    }
+
+    /**
+     * Read bytes of the file
+     * @param offset - first byte
+     * @param length - number of bytes
+     * @return read-only view on the mapping (no copy) if it covers the bytes,
+     * else a heap buffer
+     */
+    ByteBuffer read(long offset, int length) throws IOException {
+        lastRead = System.nanoTime();
+        MappedByteBuffer current = mapped;
+        if (current != null && offset + length <= current.capacity()) {
+            ByteBuffer view = current.duplicate();
+            view.position((int) offset);
+            view.limit((int) offset + length);
+            return view.slice().asReadOnlyBuffer();
+        }
+        ByteBuffer copy = ByteBuffer.allocate(length);
+        while (copy.hasRemaining()) {
+            if (channel.read(copy, offset + copy.position()) < 0) {
+                throw new IOException("Unexpected end of " + file);
+            }
+        }
+        copy.flip();
+        return copy.asReadOnlyBuffer();
+    }
+
+    /**
+     * Map the file as it is now, replacing the previous mapping
+     * @return number of bytes mapped
+     */
+    long map() throws IOException {
+        long length = size;
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException(file + " is too large to be mapped");
+        }
+        mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        return length;
+    }
+
+    /**
+     * Forget the mapping, the memory is released once no view is referenced anymore
+     */
+    void unmap() {
+        mapped = null;
+    }
+
+    long getMappedLength() {
+        MappedByteBuffer current = mapped;
+        return current == null ? 0 : current.capacity();
+    }
+
+    boolean isMapped(long offset, int length) {
+        MappedByteBuffer current = mapped;
+        return current != null && offset + length <= current.capacity();
+    }
+
+    /**
+     * Cut the file after its last complete record, e.g. after a crash while appending
+     * @param length - new size
+     */
+    void truncate(long length) throws IOException {
+        channel.truncate(length);
+        size = length;
+    }
+
+    void close() throws IOException {
+        mapped = null;
+        channel.close();
+    }
+
+    void delete() throws IOException {
+        close();
+        if (!file.delete()) {
+            throw new IOException("Cannot delete " + file);
+        }
+    }
+
+    /* GETTERs and SETTERs */
+
+    int getNumber() {
+        return number;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    AtomicLong getLiveBytes() {
+        return liveBytes;
+    }
+
+    long getLastRead() {
+        return lastRead;
+    }
+}
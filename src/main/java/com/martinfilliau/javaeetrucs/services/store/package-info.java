@@ -0,0 +1,4 @@
+/**
+ * Local append-only store of post description bodies, read through memory-mapped files
+ */
+package com.martinfilliau.javaeetrucs.services.store;
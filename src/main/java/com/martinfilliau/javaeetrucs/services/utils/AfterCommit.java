@@ -0,0 +1,30 @@
+package com.martinfilliau.javaeetrucs.services.utils;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+/**
+ * Work to do once the current JTA transaction is committed.
+ * Should be registered with
+ * {@link javax.transaction.TransactionSynchronizationRegistry#registerInterposedSynchronization(javax.transaction.Synchronization)}
+ * Nothing is done if the transaction is rolled back.
+ * @author martinfilliau
+ */
+public abstract class AfterCommit implements Synchronization {
+
+    /**
+     * Called after a successful commit, outside of any transaction
+     */
+    protected abstract void committed();
+
+    @Override
+    public void beforeCompletion() {
+    }
+
+    @Override
+    public void afterCompletion(int status) {
+        if (status == Status.STATUS_COMMITTED) {
+            committed();
+        }
+    }
+}
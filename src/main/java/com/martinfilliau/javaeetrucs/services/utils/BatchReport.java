@@ -0,0 +1,53 @@
+package com.martinfilliau.javaeetrucs.services.utils;
+
+import java.io.Serializable;
+
+/**
+ * Outcome of a bulk write
+ * @author martinfilliau
+ */
+public final class BatchReport implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long rows;
+
+    private final long elapsedNanos;
+
+    public BatchReport(long rows, long elapsedNanos) {
+        this.rows = rows;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * Get the number of rows written
+     * @return rows
+     */
+    public long getRows() {
+        return rows;
+    }
+
+    /**
+     * Get the duration of the write
+     * @return duration in milliseconds
+     */
+    public long getElapsedMillis() {
+        return elapsedNanos / 1000000L;
+    }
+
+    /**
+     * Get the throughput of the write
+     * @return rows written per second
+     */
+    public double getRowsPerSecond() {
+        if (elapsedNanos <= 0) {
+            return 0;
+        }
+        return rows * 1000000000d / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return rows + " rows in " + getElapsedMillis() + " ms (" + Math.round(getRowsPerSecond()) + " rows/s)";
+    }
+}
@@ -0,0 +1,62 @@
+package com.martinfilliau.javaeetrucs.services.utils;
+
+import com.martinfilliau.javaeetrucs.data.Category;
+import com.martinfilliau.javaeetrucs.data.Post;
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Everything needed to display a category: the top level categories with
+ * all their descendants (navigation), the posts of the category and its children, and the total
+ * number of posts.
+ * A part that could not be retrieved in time is null, see {@link #isComplete()}.
+ * @author martinfilliau
+ */
+public final class CategoryPage implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<Category> topLevelCategories;
+
+    private final List<Post> posts;
+
+    private final Long postCount;
+
+    public CategoryPage(List<Category> topLevelCategories, List<Post> posts, Long postCount) {
+        this.topLevelCategories = topLevelCategories;
+        this.posts = posts;
+        this.postCount = postCount;
+    }
+
+    /**
+     * Get the top level categories, their descendants loaded
+     * @return list of categories or null if not retrieved in time
+     */
+    public List<Category> getTopLevelCategories() {
+        return topLevelCategories;
+    }
+
+    /**
+     * Get the posts of the category and its children
+     * @return list of posts or null if not retrieved in time
+     */
+    public List<Post> getPosts() {
+        return posts;
+    }
+
+    /**
+     * Get the number of posts
+     * @return count or null if not retrieved in time
+     */
+    public Long getPostCount() {
+        return postCount;
+    }
+
+    /**
+     * Check if all the parts of the page were retrieved
+     * @return false if at least one part is missing
+     */
+    public boolean isComplete() {
+        return topLevelCategories != null && posts != null && postCount != null;
+    }
+}
@@ -0,0 +1,216 @@
+package com.martinfilliau.javaeetrucs.services.utils;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of the categories hierarchy.
+ * Only ids are kept (no entities): for each category its parent id and the ids
+ * of its whole subtree (the category itself first, then all its descendants).
+ * A snapshot is never modified, "with" / "without" methods return a new one
+ * (copy-on-write), so it can be shared between threads without any lock.
+ * @author martinfilliau
+ */
+public final class CategoryTree {
+
+    /**
+     * Snapshot without any category
+     */
+    public static final CategoryTree EMPTY = new CategoryTree(new long[0], new Long[0], new Long[0][]);
+
+    /**
+     * Sorted ids of all the categories
+     */
+    private final long[] ids;
+
+    /**
+     * Parent id of ids[i] (null for top level categories)
+     */
+    private final Long[] parentIds;
+
+    /**
+     * Ids of the subtree of ids[i], starting with ids[i]
+     */
+    private final Long[][] subtrees;
+
+    private CategoryTree(long[] ids, Long[] parentIds, Long[][] subtrees) {
+        this.ids = ids;
+        this.parentIds = parentIds;
+        this.subtrees = subtrees;
+    }
+
+    /**
+     * Build a snapshot from the relations between categories
+     * A category whose parent is unknown is considered as a top level category.
+     * @param parentById - map of <category id>, <parent id or null>
+     * @return snapshot
+     */
+    public static CategoryTree build(Map<Long, Long> parentById) {
+        int size = parentById.size();
+        long[] ids = new long[size];
+        int i = 0;
+        for (Long id : parentById.keySet()) {
+            ids[i++] = id;
+        }
+        Arrays.sort(ids);
+
+        Long[] parentIds = new Long[size];
+        int[] childCount = new int[size];
+        for (i = 0; i < size; i++) {
+            Long parentId = parentById.get(ids[i]);
+            if (parentId != null && Arrays.binarySearch(ids, parentId) >= 0) {
+                parentIds[i] = parentId;
+                childCount[Arrays.binarySearch(ids, parentId)]++;
+            }
+        }
+
+        int[][] children = new int[size][];
+        for (i = 0; i < size; i++) {
+            children[i] = new int[childCount[i]];
+            childCount[i] = 0;
+        }
+        for (i = 0; i < size; i++) {
+            if (parentIds[i] != null) {
+                int parent = Arrays.binarySearch(ids, parentIds[i]);
+                children[parent][childCount[parent]++] = i;
+            }
+        }
+
+        // breadth first from the top level categories, then aggregate subtrees
+        // bottom-up: a category only appears after its parent in "order"
+        int[] order = new int[size];
+        boolean[] visited = new boolean[size];
+        int head = 0;
+        int tail = 0;
+        for (i = 0; i < size; i++) {
+            if (parentIds[i] == null) {
+                order[tail++] = i;
+                visited[i] = true;
+            }
+        }
+        while (head < tail) {
+            int current = order[head++];
+            for (int child : children[current]) {
+                if (!visited[child]) {
+                    visited[child] = true;
+                    order[tail++] = child;
+                }
+            }
+        }
+
+        Long[][] subtrees = new Long[size][];
+        for (i = 0; i < size; i++) {
+            if (!visited[i]) {
+                // part of a cycle in the parent relation, nothing sensible to aggregate
+                subtrees[i] = new Long[] { ids[i] };
+            }
+        }
+        for (int k = tail - 1; k >= 0; k--) {
+            int current = order[k];
+            int length = 1;
+            for (int child : children[current]) {
+                length += subtrees[child].length;
+            }
+            Long[] subtree = new Long[length];
+            subtree[0] = ids[current];
+            int position = 1;
+            for (int child : children[current]) {
+                System.arraycopy(subtrees[child], 0, subtree, position, subtrees[child].length);
+                position += subtrees[child].length;
+            }
+            subtrees[current] = subtree;
+        }
+        return new CategoryTree(ids, parentIds, subtrees);
+    }
+
+    /**
+     * Check if a category is part of this snapshot
+     * @param id - id of the category
+     * @return true if the category is known
+     */
+    public boolean contains(long id) {
+        return Arrays.binarySearch(ids, id) >= 0;
+    }
+
+    /**
+     * Get the parent of a category
+     * @param id - id of the category
+     * @return id of the parent or null if the category is top level or unknown
+     */
+    public Long getParentId(long id) {
+        int i = Arrays.binarySearch(ids, id);
+        return i < 0 ? null : parentIds[i];
+    }
+
+    /**
+     * Get the ids of a category and all its descendants
+     * The returned list is a read-only view on the snapshot (no copy).
+     * @param id - id of the category
+     * @return ids, the given category first, or null if the category is unknown
+     */
+    public List<Long> getSubtreeIds(long id) {
+        int i = Arrays.binarySearch(ids, id);
+        if (i < 0) {
+            return null;
+        }
+        return Collections.unmodifiableList(Arrays.asList(subtrees[i]));
+    }
+
+    /**
+     * Number of categories in the snapshot
+     * @return count
+     */
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * Get a new snapshot with a category added or moved
+     * @param id - id of the category
+     * @param parentId - id of its parent or null for a top level category
+     * @return new snapshot
+     */
+    public CategoryTree withCategory(long id, Long parentId) {
+        return withCategories(Collections.singletonMap(id, parentId));
+    }
+
+    /**
+     * Get a new snapshot with categories added or moved, e.g. a category
+     * created with its children
+     * @param parentById - map of <category id>, <parent id or null>
+     * @return new snapshot
+     */
+    public CategoryTree withCategories(Map<Long, Long> parentById) {
+        Map<Long, Long> all = toMap();
+        all.putAll(parentById);
+        return build(all);
+    }
+
+    /**
+     * Get a new snapshot without a category and its descendants
+     * @param id - id of the category
+     * @return new snapshot (this one if the category is unknown)
+     */
+    public CategoryTree withoutCategory(long id) {
+        List<Long> removed = getSubtreeIds(id);
+        if (removed == null) {
+            return this;
+        }
+        Map<Long, Long> parentById = toMap();
+        for (Long r : removed) {
+            parentById.remove(r);
+        }
+        return build(parentById);
+    }
+
+    private Map<Long, Long> toMap() {
+        Map<Long, Long> parentById = new HashMap<Long, Long>(ids.length * 2 + 2);
+        for (int i = 0; i < ids.length; i++) {
+            parentById.put(ids[i], parentIds[i]);
+        }
+        return parentById;
+    }
+}
@@ -0,0 +1,396 @@
+package com.martinfilliau.javaeetrucs.services.utils;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Immutable compressed set of non-negative longs (e.g. ids), in the spirit of
+ * Roaring bitmaps: values are grouped by their high 48 bits, and the low
+ * 16 bits of each group are stored either as a sorted array (sparse groups,
+ * 2 bytes per value) or as a 8 KB bitmap (dense groups, over
+ * {@link #ARRAY_MAX} values).
+ * "with" / "without" return a new bitmap sharing the untouched groups.
+ * @author martinfilliau
+ */
+public final class CompressedBitmap {
+
+    /**
+     * Maximum number of values of a group stored as an array
+     */
+    static final int ARRAY_MAX = 4096;
+
+    private static final int WORDS = 1024;         // 65536 bits
+
+    public static final CompressedBitmap EMPTY = new CompressedBitmap(new long[0], new Container[0]);
+
+    /**
+     * High 48 bits of the values of each group, sorted
+     */
+    private final long[] keys;
+
+    private final Container[] containers;
+
+    private final int cardinality;
+
+    private CompressedBitmap(long[] keys, Container[] containers) {
+        this.keys = keys;
+        this.containers = containers;
+        int count = 0;
+        for (Container c : containers) {
+            count += c.cardinality();
+        }
+        this.cardinality = count;
+    }
+
+    /**
+     * Build a bitmap from values
+     * @param values - values, in any order, duplicates allowed
+     * @return bitmap
+     */
+    public static CompressedBitmap of(long... values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int groups = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            checkValue(sorted[i]);
+            if (i == 0 || high(sorted[i]) != high(sorted[i - 1])) {
+                groups++;
+            }
+        }
+        long[] keys = new long[groups];
+        Container[] containers = new Container[groups];
+        int group = 0;
+        int from = 0;
+        for (int i = 1; i <= sorted.length; i++) {
+            if (i == sorted.length || high(sorted[i]) != high(sorted[from])) {
+                keys[group] = high(sorted[from]);
+                containers[group] = Container.of(sorted, from, i);
+                group++;
+                from = i;
+            }
+        }
+        return new CompressedBitmap(keys, containers);
+    }
+
+    /**
+     * Union of bitmaps
+     * @param bitmaps - bitmaps to merge
+     * @return bitmap of the values of all the given bitmaps
+     */
+    public static CompressedBitmap or(Collection<CompressedBitmap> bitmaps) {
+        if (bitmaps.size() == 1) {
+            return bitmaps.iterator().next();
+        }
+        Map<Long, long[]> words = new TreeMap<Long, long[]>();
+        for (CompressedBitmap bitmap : bitmaps) {
+            for (int i = 0; i < bitmap.keys.length; i++) {
+                long[] group = words.get(bitmap.keys[i]);
+                if (group == null) {
+                    group = new long[WORDS];
+                    words.put(bitmap.keys[i], group);
+                }
+                bitmap.containers[i].orInto(group);
+            }
+        }
+        long[] keys = new long[words.size()];
+        Container[] containers = new Container[words.size()];
+        int i = 0;
+        for (Map.Entry<Long, long[]> entry : words.entrySet()) {
+            keys[i] = entry.getKey();
+            containers[i] = Container.of(entry.getValue());
+            i++;
+        }
+        return new CompressedBitmap(keys, containers);
+    }
+
+    /**
+     * Check if a value is in the set
+     * @param value - value to look for
+     * @return true if present
+     */
+    public boolean contains(long value) {
+        int i = value < 0 ? -1 : Arrays.binarySearch(keys, high(value));
+        return i >= 0 && containers[i].contains(low(value));
+    }
+
+    /**
+     * Get a new bitmap with a value added
+     * @param value - value to add
+     * @return new bitmap, or this one if the value was already present
+     */
+    public CompressedBitmap with(long value) {
+        checkValue(value);
+        int i = Arrays.binarySearch(keys, high(value));
+        if (i >= 0) {
+            Container c = containers[i].add(low(value));
+            if (c == containers[i]) {
+                return this;
+            }
+            Container[] copy = containers.clone();
+            copy[i] = c;
+            return new CompressedBitmap(keys, copy);
+        }
+        int insert = -i - 1;
+        long[] newKeys = new long[keys.length + 1];
+        Container[] newContainers = new Container[keys.length + 1];
+        System.arraycopy(keys, 0, newKeys, 0, insert);
+        System.arraycopy(containers, 0, newContainers, 0, insert);
+        newKeys[insert] = high(value);
+        newContainers[insert] = new ArrayContainer(new char[] { low(value) });
+        System.arraycopy(keys, insert, newKeys, insert + 1, keys.length - insert);
+        System.arraycopy(containers, insert, newContainers, insert + 1, keys.length - insert);
+        return new CompressedBitmap(newKeys, newContainers);
+    }
+
+    /**
+     * Get a new bitmap with a value removed
+     * @param value - value to remove
+     * @return new bitmap, or this one if the value was not present
+     */
+    public CompressedBitmap without(long value) {
+        int i = value < 0 ? -1 : Arrays.binarySearch(keys, high(value));
+        if (i < 0) {
+            return this;
+        }
+        Container c = containers[i].remove(low(value));
+        if (c == containers[i]) {
+            return this;
+        }
+        if (c.cardinality() > 0) {
+            Container[] copy = containers.clone();
+            copy[i] = c;
+            return new CompressedBitmap(keys, copy);
+        }
+        long[] newKeys = new long[keys.length - 1];
+        Container[] newContainers = new Container[keys.length - 1];
+        System.arraycopy(keys, 0, newKeys, 0, i);
+        System.arraycopy(containers, 0, newContainers, 0, i);
+        System.arraycopy(keys, i + 1, newKeys, i, keys.length - i - 1);
+        System.arraycopy(containers, i + 1, newContainers, i, keys.length - i - 1);
+        return new CompressedBitmap(newKeys, newContainers);
+    }
+
+    /**
+     * Number of values
+     * @return count
+     */
+    public int cardinality() {
+        return cardinality;
+    }
+
+    public boolean isEmpty() {
+        return cardinality == 0;
+    }
+
+    /**
+     * Get all the values
+     * @return values, in ascending order
+     */
+    public long[] toArray() {
+        long[] values = new long[cardinality];
+        int position = 0;
+        for (int i = 0; i < keys.length; i++) {
+            position = containers[i].copyTo(keys[i] << 16, values, position);
+        }
+        return values;
+    }
+
+    private static long high(long value) {
+        return value >>> 16;
+    }
+
+    private static char low(long value) {
+        return (char) value;
+    }
+
+    private static void checkValue(long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative value: " + value);
+        }
+    }
+
+    /**
+     * Low 16 bits of the values of a group
+     */
+    private abstract static class Container {
+
+        static Container of(long[] sorted, int from, int to) {
+            char[] values = new char[to - from];
+            int size = 0;
+            for (int i = from; i < to; i++) {
+                if (i == from || sorted[i] != sorted[i - 1]) {
+                    values[size++] = low(sorted[i]);
+                }
+            }
+            if (size <= ARRAY_MAX) {
+                return new ArrayContainer(Arrays.copyOf(values, size));
+            }
+            long[] words = new long[WORDS];
+            for (int i = 0; i < size; i++) {
+                words[values[i] >>> 6] |= 1L << values[i];
+            }
+            return new BitmapContainer(words, size);
+        }
+
+        static Container of(long[] words) {
+            int size = 0;
+            for (long word : words) {
+                size += Long.bitCount(word);
+            }
+            if (size > ARRAY_MAX) {
+                return new BitmapContainer(words, size);
+            }
+            char[] values = new char[size];
+            int position = 0;
+            for (int w = 0; w < WORDS; w++) {
+                long word = words[w];
+                while (word != 0) {
+                    values[position++] = (char) ((w << 6) + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            return new ArrayContainer(values);
+        }
+
+        abstract int cardinality();
+
+        abstract boolean contains(char value);
+
+        abstract Container add(char value);
+
+        abstract Container remove(char value);
+
+        abstract void orInto(long[] words);
+
+        abstract int copyTo(long base, long[] values, int position);
+    }
+
+    private static final class ArrayContainer extends Container {
+
+        private final char[] values;
+
+        ArrayContainer(char[] values) {
+            this.values = values;
+        }
+
+        @Override
+        int cardinality() {
+            return values.length;
+        }
+
+        @Override
+        boolean contains(char value) {
+            return Arrays.binarySearch(values, value) >= 0;
+        }
+
+        @Override
+        Container add(char value) {
+            int i = Arrays.binarySearch(values, value);
+            if (i >= 0) {
+                return this;
+            }
+            if (values.length == ARRAY_MAX) {
+                long[] words = new long[WORDS];
+                orInto(words);
+                words[value >>> 6] |= 1L << value;
+                return new BitmapContainer(words, values.length + 1);
+            }
+            int insert = -i - 1;
+            char[] copy = new char[values.length + 1];
+            System.arraycopy(values, 0, copy, 0, insert);
+            copy[insert] = value;
+            System.arraycopy(values, insert, copy, insert + 1, values.length - insert);
+            return new ArrayContainer(copy);
+        }
+
+        @Override
+        Container remove(char value) {
+            int i = Arrays.binarySearch(values, value);
+            if (i < 0) {
+                return this;
+            }
+            char[] copy = new char[values.length - 1];
+            System.arraycopy(values, 0, copy, 0, i);
+            System.arraycopy(values, i + 1, copy, i, values.length - i - 1);
+            return new ArrayContainer(copy);
+        }
+
+        @Override
+        void orInto(long[] words) {
+            for (char value : values) {
+                words[value >>> 6] |= 1L << value;
+            }
+        }
+
+        @Override
+        int copyTo(long base, long[] out, int position) {
+            for (char value : values) {
+                out[position++] = base | value;
+            }
+            return position;
+        }
+    }
+
+    private static final class BitmapContainer extends Container {
+
+        private final long[] words;
+
+        private final int cardinality;
+
+        BitmapContainer(long[] words, int cardinality) {
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        boolean contains(char value) {
+            return (words[value >>> 6] & (1L << value)) != 0;
+        }
+
+        @Override
+        Container add(char value) {
+            if (contains(value)) {
+                return this;
+            }
+            long[] copy = words.clone();
+            copy[value >>> 6] |= 1L << value;
+            return new BitmapContainer(copy, cardinality + 1);
+        }
+
+        @Override
+        Container remove(char value) {
+            if (!contains(value)) {
+                return this;
+            }
+            long[] copy = words.clone();
+            copy[value >>> 6] &= ~(1L << value);
+            return cardinality - 1 > ARRAY_MAX ? new BitmapContainer(copy, cardinality - 1) : Container.of(copy);
+        }
+
+        @Override
+        void orInto(long[] out) {
+            for (int w = 0; w < WORDS; w++) {
+                out[w] |= words[w];
+            }
+        }
+
+        @Override
+        int copyTo(long base, long[] out, int position) {
+            for (int w = 0; w < WORDS; w++) {
+                long word = words[w];
+                while (word != 0) {
+                    out[position++] = base | ((w << 6) + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            return position;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.martinfilliau.javaeetrucs.services.utils;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Associations to load with the results of a query, declared once and shared:
+ * <pre>
+ * private static final FetchPlan WITH_CATEGORIES =
+ *     FetchPlan.named("postsWithCategories").batch("categories");
+ * ...
+ * crud.findWithNamedQuery(Post.QUERY_GET_PAGE, qp, WITH_CATEGORIES);
+ * </pre>
+ * Paths are properties of the entities returned, or of their associations
+ * separated by dots (e.g. "categories.parent").
+ * <ul>
+ * <li>{@link Mode#JOIN}: loaded by the query itself, with an outer join.
+ * Only possible for queries built by CrudService (get, getAll): for named
+ * queries, and for collections in paged queries (the join would break the
+ * paging), the association is loaded as with BATCH.</li>
+ * <li>{@link Mode#BATCH}: loaded after the query, with IN queries of
+ * hibernate.default_batch_fetch_size owners (see persistence.xml).</li>
+ * </ul>
+ * Immutable, so it can be kept in a static field. Plans with the same name
+ * and paths are equal.
+ * @author martinfilliau
+ */
+public final class FetchPlan {
+
+    /**
+     * How an association is loaded
+     */
+    public enum Mode {
+        JOIN,
+        BATCH
+    }
+
+    /**
+     * Plan loading nothing more than the query
+     */
+    public static final FetchPlan NONE = new FetchPlan("none", Collections.<String, Mode>emptyMap());
+
+    private final String name;
+
+    private final Map<String, Mode> paths;
+
+    private FetchPlan(String name, Map<String, Mode> paths) {
+        this.name = name;
+        this.paths = paths;
+    }
+
+    /**
+     * Start a plan
+     * @param name - name of the plan, for logs and statistics
+     * @return plan without any association
+     */
+    public static FetchPlan named(String name) {
+        return new FetchPlan(name, Collections.<String, Mode>emptyMap());
+    }
+
+    /**
+     * Get a plan also loading an association with a join
+     * @param path - association
+     * @return new plan
+     */
+    public FetchPlan join(String path) {
+        return with(path, Mode.JOIN);
+    }
+
+    /**
+     * Get a plan also loading an association with batches of IN queries
+     * @param path - association
+     * @return new plan
+     */
+    public FetchPlan batch(String path) {
+        return with(path, Mode.BATCH);
+    }
+
+    private FetchPlan with(String path, Mode mode) {
+        Map<String, Mode> copy = new LinkedHashMap<String, Mode>(paths);
+        copy.put(path, mode);
+        return new FetchPlan(name, Collections.unmodifiableMap(copy));
+    }
+
+    /**
+     * Get the name of the plan
+     * @return name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the associations to load
+     * @return read-only map of path, mode, in declaration order
+     */
+    public Map<String, Mode> getPaths() {
+        return paths;
+    }
+
+    /**
+     * Check if the plan loads anything
+     * @return true if there is no association to load
+     */
+    public boolean isEmpty() {
+        return paths.isEmpty();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof FetchPlan)) {
+            return false;
+        }
+        FetchPlan other = (FetchPlan) obj;
+        return name.equals(other.name) && paths.equals(other.paths);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * name.hashCode() + paths.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "FetchPlan[" + name + paths + "]";
+    }
+}
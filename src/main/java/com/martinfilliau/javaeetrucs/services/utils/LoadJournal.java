@@ -0,0 +1,61 @@
+package com.martinfilliau.javaeetrucs.services.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Updates of an in-memory index committed while the index is being loaded.
+ * The load reads the database from a point in time: an update committed
+ * after it started may be missing from what it read, and would be lost if
+ * applied before the load is published (or skipped as "not loaded yet").
+ * Such updates are kept and applied again once the load is published.
+ * Updates must be idempotent and do nothing while the index is not loaded;
+ * the load must read the primary database, in a transaction started after
+ * {@link #loadStarted()}.
+ * @author martinfilliau
+ */
+public final class LoadJournal {
+
+    /**
+     * Updates recorded since the load started, null when no load is running
+     */
+    private List<Runnable> pending;
+
+    /**
+     * Apply an update to the index, and again once the running load (if any)
+     * is published
+     * @param update - idempotent update, doing nothing while the index is not loaded
+     */
+    public void apply(Runnable update) {
+        synchronized (this) {
+            if (pending != null) {
+                pending.add(update);
+            }
+        }
+        update.run();
+    }
+
+    /**
+     * Start recording updates, before reading the database
+     * Loads must not overlap.
+     */
+    public synchronized void loadStarted() {
+        pending = new ArrayList<Runnable>();
+    }
+
+    /**
+     * Stop recording updates, once the load is published (or failed)
+     * Updates recorded are applied again, in order: updates applied meanwhile
+     * wait for them.
+     * @param published - true if the load was published, false to just drop the updates
+     */
+    public synchronized void loadFinished(boolean published) {
+        List<Runnable> updates = pending;
+        pending = null;
+        if (published) {
+            for (Runnable update : updates) {
+                update.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.martinfilliau.javaeetrucs.services.utils;
+
+import com.martinfilliau.javaeetrucs.data.Post;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+
+/**
+ * Sort keys of {@link com.martinfilliau.javaeetrucs.data.Post}s from the most
+ * recent to the oldest: publishedAt DESC, id DESC
+ * (parameters :lastPublishedAt and :lastId of the named query)
+ * @author martinfilliau
+ */
+public final class PostSeekKey implements SeekKey<Post> {
+
+    public static final PostSeekKey INSTANCE = new PostSeekKey();
+
+    public static final String LAST_PUBLISHED_AT = "lastPublishedAt";
+
+    public static final String LAST_ID = "lastId";
+
+    /**
+     * Greater than any publication date (MySQL DATE upper bound)
+     */
+    private static final long END_OF_TIME = new GregorianCalendar(9999, Calendar.DECEMBER, 31).getTimeInMillis();
+
+    private PostSeekKey() {
+    }
+
+    @Override
+    public SeekCursor first() {
+        return SeekCursor.after(LAST_PUBLISHED_AT, new Date(END_OF_TIME)).and(LAST_ID, Long.MAX_VALUE);
+    }
+
+    @Override
+    public SeekCursor after(Post last) {
+        return SeekCursor.after(LAST_PUBLISHED_AT, last.getPublishedAt()).and(LAST_ID, last.getId());
+    }
+}
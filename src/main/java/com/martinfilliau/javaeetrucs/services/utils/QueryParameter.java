@@ -1,6 +1,7 @@
 package com.martinfilliau.javaeetrucs.services.utils;
 
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 /**
@@ -8,21 +9,29 @@ import java.util.Map;
  * Should be used with this syntax:
  * with("param", 1).and("param2", "ok");
  * Use with import static QueryParameter.*;
+ * Parameters are kept in two small arrays, the map is only built when asked
+ * with {@link #parameters()}. On hot paths, prefer {@link QueryTemplate}.
+ * Two instances are equal if they have the same parameters, in any order,
+ * with equal values (e.g. to coalesce identical queries): do not change
+ * parameters once the query is running.
  * @author martin filliau
  * @see <a href="http://www.adam-bien.com/roller/abien/entry/generic_crud_service_aka_dao">Adam Bien blog</a>
  */
 public final class QueryParameter {
 
-    private Map parameters = null;
+    private String[] names = new String[2];
+
+    private Object[] values = new Object[2];
+
+    private int size = 0;
 
     /**
-     * Initiate a new Map and put a new parameter
+     * Initiate a new parameter list and put a new parameter
      * @param name - parameter name
      * @param value - parameter value
      */
     private QueryParameter(String name,Object value){
-        this.parameters = new HashMap();
-        this.parameters.put(name, value);
+        and(name, value);
     }
 
     /**
@@ -37,21 +46,110 @@ public final class QueryParameter {
     }
 
     /**
-     * Add a new parameter to the map
+     * Add a new parameter (replace it if it already exists)
      * @param name - parameter name
      * @param value - parameter value
      * @return QueryParameter object
      */
     public QueryParameter and(String name,Object value){
-        this.parameters.put(name, value);
+        for (int i = 0; i < size; i++) {
+            if (names[i].equals(name)) {
+                values[i] = value;
+                return this;
+            }
+        }
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        names[size] = name;
+        values[size] = value;
+        size++;
         return this;
     }
 
+    /**
+     * Get the number of parameters
+     * @return number of parameters
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Get the name of a parameter
+     * @param index - index of the parameter, from 0 to size() - 1
+     * @return parameter name
+     */
+    public String getName(int index) {
+        return this.names[index];
+    }
+
+    /**
+     * Get the value of a parameter
+     * @param index - index of the parameter, from 0 to size() - 1
+     * @return parameter value
+     */
+    public Object getValue(int index) {
+        return this.values[index];
+    }
+
     /**
      * Get the map
-     * @return Map containing the parameters
+     * @return new Map containing the parameters
      */
     public Map parameters(){
-        return this.parameters;
+        Map<String, Object> parameters = new LinkedHashMap<String, Object>();
+        for (int i = 0; i < size; i++) {
+            parameters.put(names[i], values[i]);
+        }
+        return parameters;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof QueryParameter)) {
+            return false;
+        }
+        QueryParameter other = (QueryParameter) obj;
+        if (other.size != size) {
+            return false;
+        }
+        for (int i = 0; i < size; i++) {
+            int j = other.indexOf(names[i]);
+            if (j < 0 || !(values[i] == null ? other.values[j] == null : values[i].equals(other.values[j]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Same as the hash code of {@link #parameters()}
+     */
+    @Override
+    public int hashCode() {
+        int hash = 0;
+        for (int i = 0; i < size; i++) {
+            hash += names[i].hashCode() ^ (values[i] == null ? 0 : values[i].hashCode());
+        }
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return parameters().toString();
+    }
+
+    private int indexOf(String name) {
+        for (int i = 0; i < size; i++) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
     }
 }
@@ -0,0 +1,115 @@
+package com.martinfilliau.javaeetrucs.services.utils;
+
+import java.util.Arrays;
+
+/**
+ * Named query with its parameter slots, declared in a static field and shared.
+ * Values are then bound by position, without building any map:
+ * <pre>
+ * private static final QueryTemplate&lt;Post&gt; POSTS_FOR_CATEGORIES =
+ *     QueryTemplate.of(Category.QUERY_GET_POSTS_FOR_CATEGORIES, Post.class, "categories");
+ * ...
+ * crud.find(POSTS_FOR_CATEGORIES, ids);
+ * </pre>
+ * A {@link FetchPlan} can be attached, to load associations of the results.
+ * Immutable, so it can be kept in a static field.
+ * Only the name is kept: the query is still created from it on each call, as
+ * a query belongs to its EntityManager (Hibernate then finds the named query
+ * and its parsed plan in its own caches).
+ * @author martinfilliau
+ */
+public final class QueryTemplate<T> {
+
+    private final String name;
+
+    private final Class<T> resultType;
+
+    private final String[] parameterNames;
+
+    private final FetchPlan fetchPlan;
+
+    private QueryTemplate(String name, Class<T> resultType, String[] parameterNames, FetchPlan fetchPlan) {
+        this.name = name;
+        this.resultType = resultType;
+        this.parameterNames = parameterNames;
+        this.fetchPlan = fetchPlan;
+    }
+
+    /**
+     * Declare a template
+     * @param namedQueryName - name of the named query
+     * @param resultType - type of the results
+     * @param parameterNames - names of the parameters, in the order values will be given
+     * @return QueryTemplate object
+     */
+    public static <T> QueryTemplate<T> of(String namedQueryName, Class<T> resultType, String... parameterNames) {
+        return new QueryTemplate<T>(namedQueryName, resultType, parameterNames.clone(), FetchPlan.NONE);
+    }
+
+    /**
+     * Get the same template, loading associations of the results
+     * @param plan - associations to load
+     * @return new template
+     */
+    public QueryTemplate<T> fetching(FetchPlan plan) {
+        return new QueryTemplate<T>(name, resultType, parameterNames, plan);
+    }
+
+    /**
+     * Get the name of the named query
+     * @return name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the type of the results
+     * @return type
+     */
+    public Class<T> getResultType() {
+        return resultType;
+    }
+
+    /**
+     * Get the associations loaded with the results
+     * @return plan, {@link FetchPlan#NONE} by default
+     */
+    public FetchPlan getFetchPlan() {
+        return fetchPlan;
+    }
+
+    /**
+     * Get the number of parameters
+     * @return number of parameters
+     */
+    public int getParameterCount() {
+        return parameterNames.length;
+    }
+
+    /**
+     * Get the name of a parameter
+     * @param index - position of the parameter
+     * @return parameter name
+     */
+    public String getParameterName(int index) {
+        return parameterNames[index];
+    }
+
+    /**
+     * Check that values match the parameters
+     * @param values - values given for the parameters
+     * @throws IllegalArgumentException if there is not exactly one value per parameter
+     */
+    public void checkArity(Object[] values) {
+        if (values.length != parameterNames.length) {
+            throw new IllegalArgumentException(name + " expects " + parameterNames.length
+                    + " parameters " + Arrays.toString(parameterNames) + ", got " + values.length);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "QueryTemplate[" + name + Arrays.toString(parameterNames) + ", " + fetchPlan.getName() + "]";
+    }
+}
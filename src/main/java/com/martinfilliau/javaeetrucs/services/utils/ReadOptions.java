@@ -0,0 +1,172 @@
+package com.martinfilliau.javaeetrucs.services.utils;
+
+/**
+ * How CrudService runs a read, for pages which only display what they load:
+ * <pre>
+ * private static final ReadOptions LISTING = ReadOptions.READ_ONLY.fetchSize(50);
+ * ...
+ * crud.getAllSubSet(Post.class, start, 50, LISTING);
+ * </pre>
+ * With {@link #READ_ONLY}, entities are loaded read-only: Hibernate keeps no
+ * snapshot of them and never checks them for changes at flush, so changes
+ * made to them are NOT written. The session is not flushed before the
+ * queries either, so they do not see the changes of the transaction which
+ * were not flushed yet.
+ * Methods taking options may be called without a transaction: the read then
+ * uses its own persistence context, closed before returning, and the
+ * entities are detached (lazy associations must be in the {@link FetchPlan}).
+ * With {@link #coalesced()}, identical queries running at the same time
+ * (findWithNamedQuery and findPage only) share a single execution.
+ * Only read-only options ({@link #READ_ONLY}, {@link #coalesced()}) let the
+ * read go to the replica database, depending on the {@link ReadPolicy}; with
+ * {@link #primary()}, it goes to the primary database whatever the policy:
+ * for reads which must see every committed write.
+ * Immutable, so it can be kept in a static field.
+ * @author martinfilliau
+ */
+public final class ReadOptions {
+
+    /**
+     * Same as the methods without options: managed entities, automatic flush,
+     * on the primary database
+     */
+    public static final ReadOptions DEFAULT = new ReadOptions(false, 0, FetchPlan.NONE, false, false);
+
+    /**
+     * Read-only entities, no flush before the queries
+     */
+    public static final ReadOptions READ_ONLY = new ReadOptions(true, 0, FetchPlan.NONE, false, false);
+
+    /**
+     * Same as {@link #DEFAULT}, stating that the read must stay on the primary
+     * database: for the loads of in-memory indexes and the reads a write
+     * depends on, which must not miss what the replica has not received yet
+     */
+    public static final ReadOptions PRIMARY = DEFAULT.primary();
+
+    private final boolean readOnly;
+
+    private final int fetchSize;
+
+    private final FetchPlan fetchPlan;
+
+    private final boolean coalesced;
+
+    private final boolean primary;
+
+    private ReadOptions(boolean readOnly, int fetchSize, FetchPlan fetchPlan, boolean coalesced, boolean primary) {
+        this.readOnly = readOnly;
+        this.fetchSize = fetchSize;
+        this.fetchPlan = fetchPlan;
+        this.coalesced = coalesced;
+        this.primary = primary;
+    }
+
+    /**
+     * Get options also setting the JDBC fetch size of the queries
+     * @param rows - number of rows per round trip, 0 for the driver's default
+     * @return new options
+     */
+    public ReadOptions fetchSize(int rows) {
+        if (rows < 0) {
+            throw new IllegalArgumentException("Negative fetch size " + rows);
+        }
+        return new ReadOptions(readOnly, rows, fetchPlan, coalesced, primary);
+    }
+
+    /**
+     * Get options also loading some associations
+     * @param plan - associations to load
+     * @return new options
+     */
+    public ReadOptions fetching(FetchPlan plan) {
+        return new ReadOptions(readOnly, fetchSize, plan, coalesced, primary);
+    }
+
+    /**
+     * Get options letting identical queries running at the same time share
+     * the result of the first one (same named query, parameters, paging and
+     * options). The query then runs in its own persistence context, read-only,
+     * outside of the caller's transaction: it only sees committed data, and
+     * the results are detached and shared between the callers, so they must
+     * not be modified.
+     * @return new options
+     */
+    public ReadOptions coalesced() {
+        return new ReadOptions(true, fetchSize, fetchPlan, true, primary);
+    }
+
+    /**
+     * Get options reading the primary database, whatever the
+     * {@link ReadPolicy} and the state of the replica
+     * @return new options
+     */
+    public ReadOptions primary() {
+        return new ReadOptions(readOnly, fetchSize, fetchPlan, coalesced, true);
+    }
+
+    /**
+     * Check if entities are loaded read-only, without flushing before the queries
+     * @return true if read-only
+     */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Get the JDBC fetch size of the queries
+     * @return number of rows per round trip, 0 for the driver's default
+     */
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    /**
+     * Get the associations to load
+     * @return plan, {@link FetchPlan#NONE} by default
+     */
+    public FetchPlan getFetchPlan() {
+        return fetchPlan;
+    }
+
+    /**
+     * Check if identical queries running at the same time share their result
+     * @return true if coalesced
+     */
+    public boolean isCoalesced() {
+        return coalesced;
+    }
+
+    /**
+     * Check if the read goes to the primary database whatever the policy
+     * @return true if pinned to the primary
+     */
+    public boolean isPrimary() {
+        return primary;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof ReadOptions)) {
+            return false;
+        }
+        ReadOptions other = (ReadOptions) obj;
+        return readOnly == other.readOnly && fetchSize == other.fetchSize
+                && coalesced == other.coalesced && primary == other.primary && fetchPlan.equals(other.fetchPlan);
+    }
+
+    @Override
+    public int hashCode() {
+        return (((fetchPlan.hashCode() * 31 + fetchSize) * 2 + (readOnly ? 1 : 0)) * 2 + (coalesced ? 1 : 0)) * 2 + (primary ? 1 : 0);
+    }
+
+    @Override
+    public String toString() {
+        return "ReadOptions[" + (readOnly ? "read-only" : "read-write")
+                + (fetchSize > 0 ? ", fetchSize=" + fetchSize : "")
+                + (coalesced ? ", coalesced" : "") + (primary ? ", primary" : "") + ", " + fetchPlan + "]";
+    }
+}
@@ -0,0 +1,34 @@
+package com.martinfilliau.javaeetrucs.services.utils;
+
+/**
+ * When the read-only reads of {@link com.martinfilliau.javaeetrucs.services.CrudService}
+ * (see {@link ReadOptions#READ_ONLY}) may be sent to the replica database
+ * instead of the primary one
+ * @author martinfilliau
+ */
+public enum ReadPolicy {
+
+    /**
+     * Every operation goes to the primary (default)
+     */
+    NEVER,
+
+    /**
+     * Every read-only read goes to the replica, even after a write in the same transaction
+     * (which will not see its own changes)
+     */
+    ALWAYS,
+
+    /**
+     * Reads go to the replica until the current transaction writes something,
+     * then to the primary until its end
+     */
+    OUTSIDE_WRITE_TRANSACTIONS,
+
+    /**
+     * Same as OUTSIDE_WRITE_TRANSACTIONS, and a session (see {@link ReadSession})
+     * keeps reading from the primary for some time after committing a write
+     * (replication lag), so it always sees its own changes
+     */
+    READ_YOUR_WRITES
+}
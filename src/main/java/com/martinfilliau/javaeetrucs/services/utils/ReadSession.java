@@ -0,0 +1,53 @@
+package com.martinfilliau.javaeetrucs.services.utils;
+
+/**
+ * Session of the calls made by the current thread, for the
+ * {@link ReadPolicy#READ_YOUR_WRITES} policy: reads of a session go to the
+ * primary for some time after it committed a write.
+ * Set by the caller around its calls (e.g. by a servlet filter with the id
+ * of the HTTP session), local EJB calls run in the caller's thread:
+ * <pre>
+ * ReadSession.enter(request.getSession().getId());
+ * try {
+ *     chain.doFilter(request, response);
+ * } finally {
+ *     ReadSession.leave();
+ * }
+ * </pre>
+ * Calls without session (e.g. asynchronous ones) are identified by their
+ * principal.
+ * @author martinfilliau
+ */
+public final class ReadSession {
+
+    private static final ThreadLocal<String> CURRENT = new ThreadLocal<String>();
+
+    private ReadSession() {
+    }
+
+    /**
+     * Make the next calls of the current thread part of a session
+     * @param sessionId - id of the session, e.g. of the HTTP session
+     */
+    public static void enter(String sessionId) {
+        if (sessionId == null) {
+            throw new IllegalArgumentException("Null session id");
+        }
+        CURRENT.set(sessionId);
+    }
+
+    /**
+     * End the session of the current thread
+     */
+    public static void leave() {
+        CURRENT.remove();
+    }
+
+    /**
+     * Get the session of the current thread
+     * @return id of the session, null if none
+     */
+    public static String current() {
+        return CURRENT.get();
+    }
+}
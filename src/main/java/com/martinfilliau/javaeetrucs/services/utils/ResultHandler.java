@@ -0,0 +1,17 @@
+package com.martinfilliau.javaeetrucs.services.utils;
+
+/**
+ * Callback receiving, one by one, the results of a streamed query
+ * (see {@link com.martinfilliau.javaeetrucs.services.CrudService#streamAll(Class, int, ResultHandler)})
+ * Results are read-only and are detached from the persistence context once
+ * handled: do not keep references to them.
+ * @author martinfilliau
+ */
+public interface ResultHandler<T> {
+
+    /**
+     * Handle a result
+     * @param result - current result
+     */
+    void handle(T result);
+}
@@ -0,0 +1,169 @@
+package com.martinfilliau.javaeetrucs.services.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * Position in a result set for keyset ("seek") pagination:
+ * values of the sort keys of the last row of the previous page.
+ * They are bound as parameters of the named query, which must only select
+ * rows strictly "after" them, so that each page is an index range scan
+ * instead of an OFFSET scan.
+ * Should be used with this syntax:
+ * after("lastPublishedAt", date).and("lastId", 12L);
+ * Can be passed around (e.g. in an URL) as an opaque token, see {@link #toToken()}.
+ * Supported values: Long, Integer, String, Date.
+ * @author martinfilliau
+ */
+public final class SeekCursor implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final byte TYPE_LONG = 1;
+    private static final byte TYPE_INTEGER = 2;
+    private static final byte TYPE_STRING = 3;
+    private static final byte TYPE_DATE = 4;
+
+    private final List<String> names;
+    private final List<Object> values;
+
+    private SeekCursor(List<String> names, List<Object> values) {
+        this.names = names;
+        this.values = values;
+    }
+
+    /**
+     * Create a cursor with a first key
+     * @param name - parameter name
+     * @param value - value of the key in the last row of the previous page
+     * @return SeekCursor object
+     */
+    public static SeekCursor after(String name, Object value) {
+        return new SeekCursor(Collections.<String>emptyList(), Collections.emptyList()).and(name, value);
+    }
+
+    /**
+     * Get a new cursor with one more key
+     * @param name - parameter name
+     * @param value - value of the key in the last row of the previous page
+     * @return new SeekCursor object
+     */
+    public SeekCursor and(String name, Object value) {
+        checkType(value);
+        List<String> n = new ArrayList<String>(this.names);
+        List<Object> v = new ArrayList<Object>(this.values);
+        n.add(name);
+        v.add(value);
+        return new SeekCursor(n, v);
+    }
+
+    /**
+     * Get the keys as query parameters
+     * @return Map of <parameter name>, <parameter value>, in keys order
+     */
+    public Map<String, Object> parameters() {
+        Map<String, Object> parameters = new LinkedHashMap<String, Object>();
+        for (int i = 0; i < names.size(); i++) {
+            parameters.put(names.get(i), values.get(i));
+        }
+        return parameters;
+    }
+
+    /**
+     * Encode the cursor as an opaque, URL safe, token
+     * @return token
+     */
+    public String toToken() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(names.size());
+            for (int i = 0; i < names.size(); i++) {
+                out.writeUTF(names.get(i));
+                Object value = values.get(i);
+                if (value instanceof Long) {
+                    out.writeByte(TYPE_LONG);
+                    out.writeLong((Long) value);
+                } else if (value instanceof Integer) {
+                    out.writeByte(TYPE_INTEGER);
+                    out.writeInt((Integer) value);
+                } else if (value instanceof String) {
+                    out.writeByte(TYPE_STRING);
+                    out.writeUTF((String) value);
+                } else {
+                    out.writeByte(TYPE_DATE);
+                    out.writeLong(((Date) value).getTime());
+                }
+            }
+            out.flush();
+            return DatatypeConverter.printBase64Binary(bytes.toByteArray()).replace('+', '-').replace('/', '_');
+        } catch (IOException e) {
+            throw new IllegalStateException(e);     // cannot happen in memory
+        }
+    }
+
+    /**
+     * Decode a token created with {@link #toToken()}
+     * @param token - the token
+     * @return SeekCursor object
+     * @throws IllegalArgumentException if the token is not valid
+     */
+    public static SeekCursor fromToken(String token) {
+        try {
+            byte[] raw = DatatypeConverter.parseBase64Binary(token.replace('-', '+').replace('_', '/'));
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(raw));
+            int count = in.readUnsignedByte();
+            List<String> n = new ArrayList<String>(count);
+            List<Object> v = new ArrayList<Object>(count);
+            for (int i = 0; i < count; i++) {
+                n.add(in.readUTF());
+                byte type = in.readByte();
+                switch (type) {
+                    case TYPE_LONG:
+                        v.add(in.readLong());
+                        break;
+                    case TYPE_INTEGER:
+                        v.add(in.readInt());
+                        break;
+                    case TYPE_STRING:
+                        v.add(in.readUTF());
+                        break;
+                    case TYPE_DATE:
+                        v.add(new Date(in.readLong()));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Invalid cursor: " + token);
+                }
+            }
+            if (count == 0 || in.read() != -1) {
+                throw new IllegalArgumentException("Invalid cursor: " + token);
+            }
+            return new SeekCursor(n, v);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid cursor: " + token, e);
+        }
+    }
+
+    private static void checkType(Object value) {
+        if (!(value instanceof Long || value instanceof Integer
+                || value instanceof String || value instanceof Date)) {
+            throw new IllegalArgumentException("Unsupported cursor value: " + value);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SeekCursor" + parameters();
+    }
+}
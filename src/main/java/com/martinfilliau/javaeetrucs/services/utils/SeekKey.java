@@ -0,0 +1,23 @@
+package com.martinfilliau.javaeetrucs.services.utils;
+
+/**
+ * Sort keys used to paginate a named query with a {@link SeekCursor}.
+ * The named query must be ordered on these keys and only select the rows
+ * strictly after the cursor.
+ * @author martinfilliau
+ */
+public interface SeekKey<T> {
+
+    /**
+     * Cursor positioned before the first row
+     * @return cursor
+     */
+    SeekCursor first();
+
+    /**
+     * Cursor positioned after a given row
+     * @param last - last row of a page
+     * @return cursor
+     */
+    SeekCursor after(T last);
+}
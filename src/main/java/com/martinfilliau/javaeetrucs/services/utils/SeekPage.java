@@ -0,0 +1,46 @@
+package com.martinfilliau.javaeetrucs.services.utils;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * A page of results retrieved with keyset pagination
+ * @author martinfilliau
+ */
+public final class SeekPage<T> implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<T> results;
+
+    private final SeekCursor next;
+
+    public SeekPage(List<T> results, SeekCursor next) {
+        this.results = results;
+        this.next = next;
+    }
+
+    /**
+     * Get the results of the page
+     * @return list of results
+     */
+    public List<T> getResults() {
+        return results;
+    }
+
+    /**
+     * Get the cursor to retrieve the next page
+     * @return cursor or null if this is the last page
+     */
+    public SeekCursor getNext() {
+        return next;
+    }
+
+    /**
+     * Check if there is a next page
+     * @return true if there are more results
+     */
+    public boolean hasNext() {
+        return next != null;
+    }
+}
@@ -0,0 +1,64 @@
+package com.martinfilliau.javaeetrucs.services.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free counter for values updated by many threads at once.
+ * Each thread adds to one of several cells (chosen from its id), each cell on
+ * its own cache line, so concurrent updates do not contend on the same
+ * memory location. Reading sums the cells: the value is exact once updates
+ * stop, and only approximately current while they go on.
+ * @author martinfilliau
+ */
+public final class StripedCounter {
+
+    private static final int STRIPES = 16;         // power of 2
+
+    private static final int PADDING = 8;           // longs per cache line
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    /**
+     * Add a value
+     * @param delta - value to add (may be negative)
+     */
+    public void add(long delta) {
+        cells.addAndGet(((int) Thread.currentThread().getId() & (STRIPES - 1)) * PADDING, delta);
+    }
+
+    /**
+     * Add 1
+     */
+    public void increment() {
+        add(1);
+    }
+
+    /**
+     * Get the current value
+     * @return sum of the cells
+     */
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    /**
+     * Set the value, e.g. to reconcile it with the database
+     * Updates made during the call may be lost.
+     * @param value - new value
+     */
+    public void set(long value) {
+        for (int i = 1; i < STRIPES; i++) {
+            cells.set(i * PADDING, 0);
+        }
+        cells.set(0, value);
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(sum());
+    }
+}
@@ -9,13 +9,13 @@ SET @OLD_SQL_MODE=@@SQL_MODE, SQL_MODE='TRADITIONAL';
 DROP TABLE IF EXISTS `categories` ;
 
 CREATE  TABLE IF NOT EXISTS `categories` (
-  `id` BIGINT(20) NOT NULL AUTO_INCREMENT ,
+  `id` BIGINT(20) NOT NULL ,
   `name` VARCHAR(255) NOT NULL ,
   `parent_id` BIGINT(20) NULL DEFAULT NULL ,
+  `version` BIGINT(20) NOT NULL DEFAULT 0 ,
   PRIMARY KEY (`id`) ,
   INDEX `FK26DEEF95A525FC` (`parent_id` ASC))
 ENGINE = InnoDB
-AUTO_INCREMENT = 21
 DEFAULT CHARACTER SET = latin1;
 
 
@@ -25,13 +25,44 @@ DEFAULT CHARACTER SET = latin1;
 DROP TABLE IF EXISTS `posts` ;
 
 CREATE  TABLE IF NOT EXISTS `posts` (
-  `id` BIGINT(20) NOT NULL AUTO_INCREMENT ,
+  `id` BIGINT(20) NOT NULL ,
   `description` LONGTEXT NULL DEFAULT NULL ,
   `publishedAt` DATE NOT NULL ,
   `name` VARCHAR(255) NOT NULL ,
-  PRIMARY KEY (`id`) )
+  `version` BIGINT(20) NOT NULL DEFAULT 0 ,
+  PRIMARY KEY (`id`) ,
+  INDEX `posts_publishedAt_id` (`publishedAt` ASC, `id` ASC) )
+ENGINE = InnoDB
+DEFAULT CHARACTER SET = latin1;
+
+
+-- -----------------------------------------------------
+-- Table `id_blocks`
+-- Next available id of each table (see StripedTableGenerator)
+-- -----------------------------------------------------
+DROP TABLE IF EXISTS `id_blocks` ;
+
+CREATE  TABLE IF NOT EXISTS `id_blocks` (
+  `sequence_name` VARCHAR(255) NOT NULL ,
+  `next_val` BIGINT(20) NOT NULL ,
+  PRIMARY KEY (`sequence_name`) )
+ENGINE = InnoDB
+DEFAULT CHARACTER SET = latin1;
+
+INSERT INTO `id_blocks` (`sequence_name`, `next_val`) VALUES ('categories', 21), ('posts', 5) ;
+
+
+-- -----------------------------------------------------
+-- Table `import_checkpoints`
+-- Last line committed of each import file (see PostImporter)
+-- -----------------------------------------------------
+DROP TABLE IF EXISTS `import_checkpoints` ;
+
+CREATE  TABLE IF NOT EXISTS `import_checkpoints` (
+  `source` VARCHAR(255) NOT NULL ,
+  `line` BIGINT(20) NOT NULL ,
+  PRIMARY KEY (`source`) )
 ENGINE = InnoDB
-AUTO_INCREMENT = 5
 DEFAULT CHARACTER SET = latin1;
 
 
@@ -0,0 +1,5 @@
+-- -----------------------------------------------------
+-- Index used by keyset pagination of posts
+-- (ORDER BY publishedAt DESC, id DESC, see Post.getPage)
+-- -----------------------------------------------------
+ALTER TABLE `posts` ADD INDEX `posts_publishedAt_id` (`publishedAt` ASC, `id` ASC) ;
@@ -0,0 +1,22 @@
+-- -----------------------------------------------------
+-- Ids are allocated by blocks from `id_blocks`
+-- (see StripedTableGenerator) instead of AUTO_INCREMENT,
+-- so that Hibernate can batch inserts.
+-- Must be run while the application is stopped.
+-- -----------------------------------------------------
+CREATE  TABLE IF NOT EXISTS `id_blocks` (
+  `sequence_name` VARCHAR(255) NOT NULL ,
+  `next_val` BIGINT(20) NOT NULL ,
+  PRIMARY KEY (`sequence_name`) )
+ENGINE = InnoDB
+DEFAULT CHARACTER SET = latin1;
+
+INSERT INTO `id_blocks` (`sequence_name`, `next_val`)
+  SELECT 'categories', COALESCE(MAX(`id`), 0) + 1 FROM `categories` ;
+INSERT INTO `id_blocks` (`sequence_name`, `next_val`)
+  SELECT 'posts', COALESCE(MAX(`id`), 0) + 1 FROM `posts` ;
+
+SET @OLD_FOREIGN_KEY_CHECKS=@@FOREIGN_KEY_CHECKS, FOREIGN_KEY_CHECKS=0;
+ALTER TABLE `categories` MODIFY `id` BIGINT(20) NOT NULL ;
+ALTER TABLE `posts` MODIFY `id` BIGINT(20) NOT NULL ;
+SET FOREIGN_KEY_CHECKS=@OLD_FOREIGN_KEY_CHECKS;
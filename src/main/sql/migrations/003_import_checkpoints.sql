@@ -0,0 +1,10 @@
+-- -----------------------------------------------------
+-- Last line committed of each import file (see PostImporter),
+-- so that a failed import can be restarted where it stopped.
+-- -----------------------------------------------------
+CREATE  TABLE IF NOT EXISTS `import_checkpoints` (
+  `source` VARCHAR(255) NOT NULL ,
+  `line` BIGINT(20) NOT NULL ,
+  PRIMARY KEY (`source`) )
+ENGINE = InnoDB
+DEFAULT CHARACTER SET = latin1;
@@ -0,0 +1,6 @@
+-- -----------------------------------------------------
+-- Optimistic locking of posts and categories (@Version):
+-- every update checks and increments `version`.
+-- -----------------------------------------------------
+ALTER TABLE `categories` ADD COLUMN `version` BIGINT(20) NOT NULL DEFAULT 0 ;
+ALTER TABLE `posts` ADD COLUMN `version` BIGINT(20) NOT NULL DEFAULT 0 ;
@@ -0,0 +1,282 @@
+package com.martinfilliau.javaeetrucs.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.Principal;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import javax.annotation.PostConstruct;
+import javax.ejb.EJB;
+import javax.ejb.EJBContext;
+import javax.ejb.SessionContext;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceUnit;
+import javax.transaction.Status;
+import javax.transaction.TransactionSynchronizationRegistry;
+import org.hibernate.Session;
+import org.hibernate.jdbc.Work;
+
+/**
+ * Runs the EJBs of javaee-trucs without a container:
+ * beans are plain instances, &#64;EJB, &#64;PersistenceContext, &#64;PersistenceUnit
+ * and the TransactionSynchronizationRegistry are injected by reflection, and
+ * transactions are resource-local (see {@link #inTransaction(Callable)}).
+ * The replica persistence unit is a second in-memory database, a copy of the
+ * primary one taken by {@link #syncReplica()}. The EJBContext (SessionContext)
+ * only gives a fixed caller principal and the bean itself as business object.
+ * Interceptors, security, container managed concurrency and transaction
+ * attributes are not emulated (there is one transaction at a time).
+ * One fixture must be used by a single thread at a time.
+ * @author martinfilliau
+ */
+public class BenchmarkFixture {
+
+    public static final String PERSISTENCE_UNIT = "javaeetrucsBenchPu";
+
+    public static final String REPLICA_PERSISTENCE_UNIT = "javaeetrucsBenchReplicaPu";
+
+    /**
+     * Name of the replica unit in the application
+     */
+    private static final String APPLICATION_REPLICA_UNIT = "javaeetrucsReplicaPu";
+
+    private final Map<String, String> properties;
+
+    private final EntityManagerFactory emf;
+
+    private EntityManagerFactory replicaEmf;
+
+    private final EntityManager em;
+
+    private final LocalTransactionSynchronizationRegistry txRegistry = new LocalTransactionSynchronizationRegistry();
+
+    private final Map<Class<?>, Object> beans = new HashMap<Class<?>, Object>();
+
+    public BenchmarkFixture() {
+        this(new HashMap<String, String>());
+    }
+
+    /**
+     * @param properties - overrides of the persistence unit properties
+     */
+    public BenchmarkFixture(Map<String, String> properties) {
+        this.properties = properties;
+        this.emf = Persistence.createEntityManagerFactory(PERSISTENCE_UNIT, properties);
+        this.em = emf.createEntityManager();
+    }
+
+    /**
+     * Get a bean, creating and wiring it (and its dependencies) on first use
+     * &#64;PostConstruct methods are called in a transaction.
+     * @param type - class of the bean
+     * @return the bean
+     */
+    public synchronized <T> T getBean(Class<T> type) {
+        Object bean = beans.get(type);
+        if (bean == null) {
+            try {
+                bean = type.newInstance();
+                beans.put(type, bean);
+                inject(bean);
+                postConstruct(bean);
+            } catch (Exception e) {
+                beans.remove(type);
+                throw new IllegalStateException("Cannot create " + type.getName(), e);
+            }
+        }
+        return type.cast(bean);
+    }
+
+    /**
+     * Use a bean instead of creating one, e.g. a subclass hooking some calls
+     * It is wired as created beans are; to be called before the type is used.
+     * @param type - class of the bean, as injected
+     * @param bean - the bean
+     */
+    public synchronized <T> void setBean(Class<T> type, T bean) {
+        if (beans.containsKey(type)) {
+            throw new IllegalStateException(type.getName() + " is already in use");
+        }
+        try {
+            beans.put(type, bean);
+            inject(bean);
+            postConstruct(bean);
+        } catch (Exception e) {
+            beans.remove(type);
+            throw new IllegalStateException("Cannot set " + type.getName(), e);
+        }
+    }
+
+    /**
+     * Run some work in a transaction, committed if no exception is thrown.
+     * The persistence context is cleared afterwards, so each call starts cold.
+     * @param work - work to do
+     * @return result of the work
+     */
+    public <T> T inTransaction(Callable<T> work) {
+        em.getTransaction().begin();
+        txRegistry.begin();
+        try {
+            T result = work.call();
+            txRegistry.beforeCompletion();
+            em.getTransaction().commit();
+            txRegistry.afterCompletion(Status.STATUS_COMMITTED);
+            return result;
+        } catch (Exception e) {
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            txRegistry.afterCompletion(Status.STATUS_ROLLEDBACK);
+            throw e instanceof RuntimeException ? (RuntimeException) e : new IllegalStateException(e);
+        } finally {
+            em.clear();
+        }
+    }
+
+    public EntityManager getEntityManager() {
+        return em;
+    }
+
+    /**
+     * Copy the whole primary database to the replica one
+     * Must not be called during a transaction.
+     */
+    public void syncReplica() {
+        final File script;
+        try {
+            script = File.createTempFile("javaeetrucs-replica", ".sql");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        try {
+            ((Session) em.getDelegate()).doWork(new Work() {
+                @Override
+                public void execute(Connection connection) throws SQLException {
+                    executeSql(connection, "SCRIPT TO '" + script.getAbsolutePath() + "'");
+                }
+            });
+            EntityManager replica = getReplicaEntityManagerFactory().createEntityManager();
+            try {
+                ((Session) replica.getDelegate()).doWork(new Work() {
+                    @Override
+                    public void execute(Connection connection) throws SQLException {
+                        executeSql(connection, "DROP ALL OBJECTS");
+                        executeSql(connection, "RUNSCRIPT FROM '" + script.getAbsolutePath() + "'");
+                    }
+                });
+            } finally {
+                replica.close();
+            }
+        } finally {
+            script.delete();
+        }
+    }
+
+    public void close() {
+        em.close();
+        emf.close();
+        if (replicaEmf != null) {
+            replicaEmf.close();
+        }
+    }
+
+    private synchronized EntityManagerFactory getReplicaEntityManagerFactory() {
+        if (replicaEmf == null) {
+            replicaEmf = Persistence.createEntityManagerFactory(REPLICA_PERSISTENCE_UNIT, properties);
+        }
+        return replicaEmf;
+    }
+
+    private static void executeSql(Connection connection, String sql) throws SQLException {
+        Statement statement = connection.createStatement();
+        try {
+            statement.execute(sql);
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * SessionContext of a fixed, anonymous, caller
+     * getBusinessObject gives the bean itself: methods called through it run
+     * in the current transaction, whatever their transaction attribute.
+     * @param bean - bean the context is injected in
+     */
+    private static SessionContext sessionContext(final Object bean) {
+        final Principal principal = new Principal() {
+            @Override
+            public String getName() {
+                return "ANONYMOUS";
+            }
+        };
+        return (SessionContext) Proxy.newProxyInstance(BenchmarkFixture.class.getClassLoader(),
+                new Class<?>[] { SessionContext.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("getCallerPrincipal")) {
+                    return principal;
+                } else if (method.getName().equals("getBusinessObject")) {
+                    return ((Class<?>) args[0]).cast(bean);
+                } else if (method.getName().equals("hashCode")) {
+                    return System.identityHashCode(proxy);
+                } else if (method.getName().equals("equals")) {
+                    return proxy == args[0];
+                } else if (method.getName().equals("toString")) {
+                    return "SessionContext of " + principal.getName();
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private void inject(Object bean) throws IllegalAccessException {
+        for (Class<?> c = bean.getClass(); c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                Object value = null;
+                if (field.isAnnotationPresent(EJB.class)) {
+                    value = getBean(field.getType());
+                } else if (field.isAnnotationPresent(PersistenceContext.class)) {
+                    value = em;
+                } else if (field.isAnnotationPresent(PersistenceUnit.class)) {
+                    boolean replica = APPLICATION_REPLICA_UNIT.equals(field.getAnnotation(PersistenceUnit.class).unitName());
+                    value = replica ? getReplicaEntityManagerFactory() : emf;
+                } else if (field.getType() == TransactionSynchronizationRegistry.class) {
+                    value = txRegistry;
+                } else if (field.getType() == EJBContext.class || field.getType() == SessionContext.class) {
+                    value = sessionContext(bean);
+                }
+                if (value != null) {
+                    field.setAccessible(true);
+                    field.set(bean, value);
+                }
+            }
+        }
+    }
+
+    private void postConstruct(final Object bean) throws Exception {
+        for (Class<?> c = bean.getClass(); c != Object.class; c = c.getSuperclass()) {
+            for (final Method method : c.getDeclaredMethods()) {
+                if (method.isAnnotationPresent(PostConstruct.class)) {
+                    method.setAccessible(true);
+                    inTransaction(new Callable<Object>() {
+                        @Override
+                        public Object call() throws Exception {
+                            return method.invoke(bean);
+                        }
+                    });
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.martinfilliau.javaeetrucs.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+/**
+ * Minimal registry for resource-local transactions driven by
+ * {@link BenchmarkFixture#inTransaction(java.util.concurrent.Callable)}
+ * (one transaction at a time per thread).
+ * @author martinfilliau
+ */
+public class LocalTransactionSynchronizationRegistry implements TransactionSynchronizationRegistry {
+
+    private final ThreadLocal<Map<Object, Object>> resources = new ThreadLocal<Map<Object, Object>>() {
+        @Override
+        protected Map<Object, Object> initialValue() {
+            return new HashMap<Object, Object>();
+        }
+    };
+
+    private final ThreadLocal<List<Synchronization>> synchronizations = new ThreadLocal<List<Synchronization>>() {
+        @Override
+        protected List<Synchronization> initialValue() {
+            return new ArrayList<Synchronization>();
+        }
+    };
+
+    private final ThreadLocal<Boolean> active = new ThreadLocal<Boolean>();
+
+    private final ThreadLocal<Boolean> rollbackOnly = new ThreadLocal<Boolean>();
+
+    void begin() {
+        active.set(Boolean.TRUE);
+        rollbackOnly.set(Boolean.FALSE);
+    }
+
+    void beforeCompletion() {
+        for (Synchronization s : new ArrayList<Synchronization>(synchronizations.get())) {
+            s.beforeCompletion();
+        }
+    }
+
+    void afterCompletion(int status) {
+        List<Synchronization> registered = new ArrayList<Synchronization>(synchronizations.get());
+        synchronizations.get().clear();
+        resources.get().clear();
+        active.set(Boolean.FALSE);
+        for (Synchronization s : registered) {
+            s.afterCompletion(status);
+        }
+    }
+
+    @Override
+    public Object getTransactionKey() {
+        return Boolean.TRUE.equals(active.get()) ? Thread.currentThread() : null;
+    }
+
+    @Override
+    public void putResource(Object key, Object value) {
+        checkActive();
+        resources.get().put(key, value);
+    }
+
+    @Override
+    public Object getResource(Object key) {
+        checkActive();
+        return resources.get().get(key);
+    }
+
+    @Override
+    public void registerInterposedSynchronization(Synchronization sync) {
+        checkActive();
+        synchronizations.get().add(sync);
+    }
+
+    @Override
+    public int getTransactionStatus() {
+        if (!Boolean.TRUE.equals(active.get())) {
+            return Status.STATUS_NO_TRANSACTION;
+        }
+        return Boolean.TRUE.equals(rollbackOnly.get()) ? Status.STATUS_MARKED_ROLLBACK : Status.STATUS_ACTIVE;
+    }
+
+    @Override
+    public void setRollbackOnly() {
+        checkActive();
+        rollbackOnly.set(Boolean.TRUE);
+    }
+
+    @Override
+    public boolean getRollbackOnly() {
+        checkActive();
+        return Boolean.TRUE.equals(rollbackOnly.get());
+    }
+
+    private void checkActive() {
+        if (!Boolean.TRUE.equals(active.get())) {
+            throw new IllegalStateException("No active transaction");
+        }
+    }
+}
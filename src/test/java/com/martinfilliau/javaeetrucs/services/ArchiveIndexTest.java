@@ -0,0 +1,138 @@
+package com.martinfilliau.javaeetrucs.services;
+
+import com.martinfilliau.javaeetrucs.data.Category;
+import com.martinfilliau.javaeetrucs.data.Post;
+import com.martinfilliau.javaeetrucs.services.utils.QueryParameter;
+import com.martinfilliau.javaeetrucs.services.utils.ReadOptions;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Index of the posts by publication day, kept up to date by BlogService
+ * @author martinfilliau
+ */
+public class ArchiveIndexTest extends FixtureTestCase {
+
+    private ArchiveIndex index;
+
+    private Category category;
+
+    /**
+     * Run once while the index is loaded, after the database is read:
+     * as a transaction committed meanwhile
+     */
+    private Runnable duringLoad;
+
+    @Override
+    protected CrudService newCrudService() {
+        return new CrudService() {
+            @Override
+            public List findWithNamedQuery(String namedQueryName, QueryParameter qp, int start, int resultLimit, ReadOptions options) {
+                List results = super.findWithNamedQuery(namedQueryName, qp, start, resultLimit, options);
+                if (Post.QUERY_GET_ALL_PUBLICATION_DATES.equals(namedQueryName) && duringLoad != null) {
+                    Runnable committed = duringLoad;
+                    duringLoad = null;
+                    committed.run();
+                }
+                return results;
+            }
+        };
+    }
+
+    @Before
+    public void setUp() {
+        index = fixture.getBean(ArchiveIndex.class);
+        category = createCategory("category", null);
+    }
+
+    @Test
+    public void postsAndCountsOfAPeriod() {
+        Post first = createPost("first", day(2010, 3, 1), category);
+        Post second = createPost("second", day(2010, 3, 15), category);
+        Post third = createPost("third", day(2010, 4, 2), category);
+        createPost("before", day(2010, 2, 28), category);
+        createPost("unpublished", null, category);
+
+        assertEquals(Arrays.asList(third.getId(), second.getId(), first.getId()), postIds(day(2010, 3, 1), day(2010, 5, 1)));
+        SortedMap<Date, Integer> expected = new TreeMap<Date, Integer>();
+        expected.put(day(2010, 3, 1), 2);
+        expected.put(day(2010, 4, 1), 1);
+        assertEquals(expected, countByMonth(day(2010, 3, 1), day(2010, 5, 1)));
+    }
+
+    @Test
+    public void postSavedDuringLoad() {
+        Post post = createPost("post", day(2010, 3, 1), category);
+        final long lateId = post.getId() + 1000;    // committed after the load read the database
+        duringLoad = new Runnable() {
+            @Override
+            public void run() {
+                index.postSaved(lateId, day(2010, 3, 2));
+            }
+        };
+
+        assertEquals(Arrays.asList(lateId, post.getId()), postIds(day(2010, 3, 1), day(2010, 4, 1)));
+    }
+
+    @Test
+    public void postRepublishedDuringLoad() {
+        final Post post = createPost("post", day(2010, 3, 1), category);
+        duringLoad = new Runnable() {
+            @Override
+            public void run() {
+                index.postSaved(post.getId(), day(2011, 1, 1));
+            }
+        };
+
+        assertEquals(Arrays.<Long>asList(), postIds(day(2010, 3, 1), day(2010, 4, 1)));
+        assertEquals(Arrays.asList(post.getId()), postIds(day(2011, 1, 1), day(2011, 2, 1)));
+    }
+
+    @Test
+    public void postDeletedDuringLoad() {
+        final Post deleted = createPost("deleted", day(2010, 3, 1), category);
+        Post kept = createPost("kept", day(2010, 3, 1), category);
+        duringLoad = new Runnable() {
+            @Override
+            public void run() {
+                index.postDeleted(deleted.getId());
+            }
+        };
+
+        assertEquals(Arrays.asList(kept.getId()), postIds(day(2010, 3, 1), day(2010, 4, 1)));
+    }
+
+    private List<Long> postIds(final Date from, final Date to) {
+        return inTransaction(new Callable<List<Long>>() {
+            @Override
+            public List<Long> call() {
+                return index.getPostIds(from, to, null, 100);
+            }
+        });
+    }
+
+    private SortedMap<Date, Integer> countByMonth(final Date from, final Date to) {
+        return inTransaction(new Callable<SortedMap<Date, Integer>>() {
+            @Override
+            public SortedMap<Date, Integer> call() {
+                return index.countPosts(from, to, ArchiveIndex.Granularity.MONTH, null);
+            }
+        });
+    }
+
+    private static Date day(int year, int month, int day) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(year, month - 1, day);
+        return calendar.getTime();
+    }
+}
@@ -0,0 +1,56 @@
+package com.martinfilliau.javaeetrucs.services;
+
+import com.martinfilliau.javaeetrucs.data.Category;
+import com.martinfilliau.javaeetrucs.services.utils.CategoryPage;
+import java.util.List;
+import java.util.concurrent.Callable;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Top level categories returned detached, with all their descendants
+ * @author martinfilliau
+ */
+public class CategoryHierarchyTest extends FixtureTestCase {
+
+    @Test
+    public void detachedHierarchy() {
+        Category root = createCategory("root", null);
+        Category child = createCategory("child", root);
+        Category grandChild = createCategory("grand child", child);
+        createCategory("great grand child", grandChild);
+        createCategory("other", null);
+
+        List<Category> topLevel = inTransaction(new Callable<List<Category>>() {
+            @Override
+            public List<Category> call() {
+                return blog.getCategoryHierarchy();
+            }
+        });
+        assertEquals(2, topLevel.size());
+        Category detachedRoot = "root".equals(topLevel.get(0).getName()) ? topLevel.get(0) : topLevel.get(1);
+        Category detachedGrandChild = detachedRoot.getChildren().get(0).getChildren().get(0);
+        assertEquals("grand child", detachedGrandChild.getName());
+        assertEquals("great grand child", detachedGrandChild.getChildren().get(0).getName());
+        assertEquals(0, detachedGrandChild.getChildren().get(0).getChildren().size());
+    }
+
+    @Test
+    public void categoryPage() {
+        Category root = createCategory("root", null);
+        createCategory("grand child", createCategory("child", root));
+        createPost("post", null, root);
+        final long rootId = root.getId();
+
+        CategoryPage page = inTransaction(new Callable<CategoryPage>() {
+            @Override
+            public CategoryPage call() {
+                return blog.getCategoryPage(rootId, 10000);
+            }
+        });
+        assertEquals(1, page.getTopLevelCategories().size());
+        assertEquals("grand child", page.getTopLevelCategories().get(0).getChildren().get(0).getChildren().get(0).getName());
+        assertEquals(1, page.getPosts().size());
+    }
+}
@@ -0,0 +1,165 @@
+package com.martinfilliau.javaeetrucs.services;
+
+import com.martinfilliau.javaeetrucs.data.Category;
+import com.martinfilliau.javaeetrucs.services.utils.CategoryTree;
+import com.martinfilliau.javaeetrucs.services.utils.FetchPlan;
+import com.martinfilliau.javaeetrucs.services.utils.QueryParameter;
+import com.martinfilliau.javaeetrucs.services.utils.ReadOptions;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Snapshot of the hierarchy kept up to date by BlogService
+ * @author martinfilliau
+ */
+public class CategoryTreeCacheTest extends FixtureTestCase {
+
+    private CategoryTreeCache cache;
+
+    /**
+     * Run once while the snapshot is loaded, after the database is read:
+     * as a transaction committed meanwhile
+     */
+    private Runnable duringLoad;
+
+    @Override
+    protected CrudService newCrudService() {
+        return new CrudService() {
+            @Override
+            public List findWithNamedQuery(String namedQueryName, QueryParameter qp, int start, int resultLimit, ReadOptions options) {
+                List results = super.findWithNamedQuery(namedQueryName, qp, start, resultLimit, options);
+                if (Category.QUERY_GET_TREE.equals(namedQueryName) && duringLoad != null) {
+                    Runnable committed = duringLoad;
+                    duringLoad = null;
+                    committed.run();
+                }
+                return results;
+            }
+        };
+    }
+
+    @Before
+    public void setUp() {
+        cache = fixture.getBean(CategoryTreeCache.class);
+    }
+
+    @Test
+    public void createdWithDescendants() {
+        tree();     // loaded before the creation
+        Category root = newCategory("root", null);
+        Category child = newCategory("child", root);
+        Category grandChild = newCategory("grand child", child);
+        root.getChildren().add(child);
+        child.getChildren().add(grandChild);
+        createCategory(root);
+
+        CategoryTree tree = tree();
+        assertEquals(Arrays.asList(root.getId(), child.getId(), grandChild.getId()), tree.getSubtreeIds(root.getId()));
+        assertEquals(child.getId(), tree.getParentId(grandChild.getId()));
+    }
+
+    @Test
+    public void updatedWithNewChildren() {
+        final Category root = createCategory("root", null);
+        tree();
+        final Category loaded = inTransaction(new Callable<Category>() {
+            @Override
+            public Category call() {
+                return crud.get(Category.class, root.getId(), FetchPlan.named("withChildren").batch("children"));
+            }
+        });
+        Category child = newCategory("child", loaded);
+        child.getChildren().add(newCategory("grand child", child));
+        loaded.getChildren().add(child);
+        Category updated = inTransaction(new Callable<Category>() {
+            @Override
+            public Category call() {
+                return blog.updateCategory(loaded);
+            }
+        });
+
+        Category savedChild = updated.getChildren().get(0);
+        Category savedGrandChild = savedChild.getChildren().get(0);
+        assertNotNull(savedGrandChild.getId());
+        assertEquals(Arrays.asList(root.getId(), savedChild.getId(), savedGrandChild.getId()), tree().getSubtreeIds(root.getId()));
+    }
+
+    @Test
+    public void savedDuringLoad() {
+        final Category root = createCategory("root", null);
+        final long lateId = root.getId() + 1000;     // committed after the load read the database
+        duringLoad = new Runnable() {
+            @Override
+            public void run() {
+                cache.categorySaved(lateId, root.getId());
+            }
+        };
+
+        CategoryTree tree = tree();
+        assertTrue(tree.contains(lateId));
+        assertEquals(Arrays.asList(root.getId(), lateId), tree.getSubtreeIds(root.getId()));
+    }
+
+    @Test
+    public void deletedDuringLoad() {
+        final Category root = createCategory("root", null);
+        final Category child = createCategory("child", root);
+        duringLoad = new Runnable() {
+            @Override
+            public void run() {
+                cache.categoryDeleted(child.getId());
+            }
+        };
+
+        CategoryTree tree = tree();
+        assertFalse(tree.contains(child.getId()));
+        assertEquals(Arrays.asList(root.getId()), tree.getSubtreeIds(root.getId()));
+    }
+
+    @Test
+    public void savedDuringRebuild() {
+        final Category root = createCategory("root", null);
+        tree();
+        final long lateId = root.getId() + 1000;
+        duringLoad = new Runnable() {
+            @Override
+            public void run() {
+                cache.categorySaved(lateId, null);
+            }
+        };
+        inTransaction(new Callable<Void>() {
+            @Override
+            public Void call() {
+                cache.rebuild();
+                return null;
+            }
+        });
+        assertTrue(tree().contains(lateId));
+    }
+
+    private Category createCategory(final Category c) {
+        return inTransaction(new Callable<Category>() {
+            @Override
+            public Category call() {
+                return blog.createCategory(c);
+            }
+        });
+    }
+
+    private CategoryTree tree() {
+        return inTransaction(new Callable<CategoryTree>() {
+            @Override
+            public CategoryTree call() {
+                return cache.getTree();
+            }
+        });
+    }
+}
@@ -0,0 +1,129 @@
+package com.martinfilliau.javaeetrucs.services;
+
+import com.martinfilliau.javaeetrucs.benchmarks.BenchmarkFixture;
+import com.martinfilliau.javaeetrucs.data.Category;
+import com.martinfilliau.javaeetrucs.data.Post;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import org.junit.After;
+import org.junit.Before;
+
+/**
+ * Services wired by a {@link BenchmarkFixture} on an empty in-memory database,
+ * recreated for each test
+ * @author martinfilliau
+ */
+public abstract class FixtureTestCase {
+
+    protected BenchmarkFixture fixture;
+
+    protected CrudService crud;
+
+    protected BlogService blog;
+
+    private File searchSnapshot;
+
+    @Before
+    public void setUpFixture() throws IOException {
+        searchSnapshot = File.createTempFile("javaeetrucs-search", ".idx");
+        searchSnapshot.delete();    // no snapshot of a previous test
+        System.setProperty(PostSearch.SNAPSHOT_PROPERTY, searchSnapshot.getPath());
+        fixture = new BenchmarkFixture();
+        fixture.setBean(CrudService.class, newCrudService());
+        crud = fixture.getBean(CrudService.class);
+        blog = fixture.getBean(BlogService.class);
+    }
+
+    @After
+    public void tearDownFixture() {
+        fixture.close();
+        searchSnapshot.delete();
+        System.clearProperty(PostSearch.SNAPSHOT_PROPERTY);
+    }
+
+    /**
+     * Get the CrudService the services are wired with
+     * @return a new CrudService, or a subclass hooking some calls
+     */
+    protected CrudService newCrudService() {
+        return new CrudService();
+    }
+
+    /**
+     * Run some work in its own transaction
+     * @param work - work to do
+     * @return result of the work
+     */
+    protected <T> T inTransaction(Callable<T> work) {
+        return fixture.inTransaction(work);
+    }
+
+    /**
+     * Create a category in its own transaction
+     * @param name - name of the category
+     * @param parent - parent category, null for a top level one
+     * @return category created, detached
+     */
+    protected Category createCategory(String name, Category parent) {
+        final Category c = newCategory(name, parent);
+        return inTransaction(new Callable<Category>() {
+            @Override
+            public Category call() {
+                return blog.createCategory(c);
+            }
+        });
+    }
+
+    /**
+     * Create a post in its own transaction
+     * @param name - name of the post
+     * @param publishedAt - publication date, may be null
+     * @param categories - categories of the post
+     * @return post created, detached
+     */
+    protected Post createPost(String name, Date publishedAt, Category... categories) {
+        final Post p = new Post();
+        p.setName(name);
+        p.setDescription("Description of " + name);
+        p.setPublishedAt(publishedAt);
+        p.setCategories(new ArrayList<Category>(Arrays.asList(categories)));
+        return inTransaction(new Callable<Post>() {
+            @Override
+            public Post call() {
+                return blog.createPost(p);
+            }
+        });
+    }
+
+    /**
+     * Build a new, not persisted, category
+     * @param name - name of the category
+     * @param parent - parent category, may be null
+     * @return category
+     */
+    protected static Category newCategory(String name, Category parent) {
+        Category c = new Category();
+        c.setName(name);
+        c.setParent(parent);
+        c.setChildren(new ArrayList<Category>());
+        return c;
+    }
+
+    /**
+     * Get the ids of entities
+     * @param categories - categories
+     * @return their ids, same order
+     */
+    protected static List<Long> ids(Category... categories) {
+        List<Long> ids = new ArrayList<Long>();
+        for (Category c : categories) {
+            ids.add(c.getId());
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,123 @@
+package com.martinfilliau.javaeetrucs.services;
+
+import com.martinfilliau.javaeetrucs.data.Category;
+import com.martinfilliau.javaeetrucs.data.Post;
+import com.martinfilliau.javaeetrucs.services.utils.QueryParameter;
+import com.martinfilliau.javaeetrucs.services.utils.ReadOptions;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Index of the posts of each category, kept up to date by BlogService
+ * @author martinfilliau
+ */
+public class PostCategoryIndexTest extends FixtureTestCase {
+
+    private static final long DAY = 86400000L;
+
+    private PostCategoryIndex index;
+
+    /**
+     * Run once while the index is loaded, after the database is read:
+     * as a transaction committed meanwhile
+     */
+    private Runnable duringLoad;
+
+    @Override
+    protected CrudService newCrudService() {
+        return new CrudService() {
+            @Override
+            public List findWithNamedQuery(String namedQueryName, QueryParameter qp, int start, int resultLimit, ReadOptions options) {
+                List results = super.findWithNamedQuery(namedQueryName, qp, start, resultLimit, options);
+                if (Post.QUERY_GET_ALL_CATEGORY_IDS.equals(namedQueryName) && duringLoad != null) {
+                    Runnable committed = duringLoad;
+                    duringLoad = null;
+                    committed.run();
+                }
+                return results;
+            }
+        };
+    }
+
+    @Before
+    public void setUp() {
+        index = fixture.getBean(PostCategoryIndex.class);
+    }
+
+    @Test
+    public void newestFirst() {
+        Category category = createCategory("category", null);
+        Post older = createPost("older", new Date(DAY), category);
+        Post newer = createPost("newer", new Date(10 * DAY), category);
+        Post unpublished = createPost("unpublished", null, category);
+        createPost("other", new Date(5 * DAY), createCategory("other", null));
+
+        assertEquals(Arrays.asList(newer.getId(), older.getId(), unpublished.getId()), postIds(category));
+    }
+
+    @Test
+    public void postMoved() {
+        Category from = createCategory("from", null);
+        Category to = createCategory("to", null);
+        final Post post = createPost("post", new Date(DAY), from);
+        postIds(from);      // loaded before the update
+        post.setCategories(Arrays.asList(to));
+        inTransaction(new Callable<Post>() {
+            @Override
+            public Post call() {
+                return blog.updatePost(post);
+            }
+        });
+
+        assertEquals(Collections.<Long>emptyList(), postIds(from));
+        assertEquals(Arrays.asList(post.getId()), postIds(to));
+    }
+
+    @Test
+    public void postSavedDuringLoad() {
+        final Category category = createCategory("category", null);
+        Post post = createPost("post", new Date(DAY), category);
+        final long lateId = post.getId() + 1000;    // committed after the load read the database
+        duringLoad = new Runnable() {
+            @Override
+            public void run() {
+                index.postSaved(lateId, new Date(2 * DAY), Collections.<Long>emptyList(), ids(category));
+            }
+        };
+
+        assertEquals(Arrays.asList(lateId, post.getId()), postIds(category));
+    }
+
+    @Test
+    public void postDeletedDuringLoad() {
+        final Category category = createCategory("category", null);
+        final Post deleted = createPost("deleted", new Date(DAY), category);
+        Post kept = createPost("kept", new Date(DAY), category);
+        duringLoad = new Runnable() {
+            @Override
+            public void run() {
+                index.postDeleted(deleted.getId(), ids(category));
+            }
+        };
+
+        assertEquals(Arrays.asList(kept.getId()), postIds(category));
+    }
+
+    private List<Long> postIds(Category... categories) {
+        final Collection<Long> categoryIds = ids(categories);
+        return inTransaction(new Callable<List<Long>>() {
+            @Override
+            public List<Long> call() {
+                return index.getPostIds(categoryIds);
+            }
+        });
+    }
+}
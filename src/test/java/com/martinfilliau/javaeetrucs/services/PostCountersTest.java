@@ -0,0 +1,145 @@
+package com.martinfilliau.javaeetrucs.services;
+
+import com.martinfilliau.javaeetrucs.data.Category;
+import com.martinfilliau.javaeetrucs.data.Post;
+import com.martinfilliau.javaeetrucs.services.utils.QueryParameter;
+import com.martinfilliau.javaeetrucs.services.utils.ReadOptions;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Counts of the posts, kept up to date by BlogService
+ * @author martinfilliau
+ */
+public class PostCountersTest extends FixtureTestCase {
+
+    private PostCounters counters;
+
+    private Category first;
+
+    private Category second;
+
+    /**
+     * Run once while the counters are loaded, after the database is read:
+     * as a transaction committed meanwhile
+     */
+    private Runnable duringLoad;
+
+    @Override
+    protected CrudService newCrudService() {
+        return new CrudService() {
+            @Override
+            public List findWithNamedQuery(String namedQueryName, QueryParameter qp, int start, int resultLimit, ReadOptions options) {
+                List results = super.findWithNamedQuery(namedQueryName, qp, start, resultLimit, options);
+                if (Post.QUERY_GET_ALL_IDS_WITH_CATEGORY_IDS.equals(namedQueryName) && duringLoad != null) {
+                    Runnable committed = duringLoad;
+                    duringLoad = null;
+                    committed.run();
+                }
+                return results;
+            }
+        };
+    }
+
+    @Before
+    public void setUp() {
+        counters = fixture.getBean(PostCounters.class);
+        first = createCategory("first", null);
+        second = createCategory("second", null);
+    }
+
+    @Test
+    public void countsFollowTheWrites() {
+        Post post = createPost("post", null, first, second);
+        createPost("uncategorized", null);
+        assertCounts(2, 1, 1);
+
+        createPost("other", null, first);
+        counters.postMoved(post.getId(), Arrays.asList(second.getId()));
+        assertCounts(3, 1, 1);
+
+        counters.postDeleted(post.getId());
+        assertCounts(2, 1, 0);
+    }
+
+    @Test
+    public void updatesAppliedTwiceAreCountedOnce() {
+        Post post = createPost("post", null, first);
+        assertCounts(1, 1, 0);
+
+        counters.postsCreated(new long[] { post.getId() }, Collections.singletonList(ids(first)));
+        counters.postMoved(post.getId(), ids(second));
+        counters.postMoved(post.getId(), ids(second));
+        assertCounts(1, 0, 1);
+
+        counters.postDeleted(post.getId());
+        counters.postDeleted(post.getId());
+        assertCounts(0, 0, 0);
+    }
+
+    @Test
+    public void postCreatedDuringLoad() {
+        Post post = createPost("post", null, first);
+        final long lateId = post.getId() + 1000;    // committed after the load read the database
+        duringLoad = new Runnable() {
+            @Override
+            public void run() {
+                counters.postsCreated(new long[] { lateId }, Collections.singletonList(ids(first, second)));
+            }
+        };
+
+        assertCounts(2, 2, 1);
+    }
+
+    @Test
+    public void postMovedAndDeletedDuringLoad() {
+        final Post moved = createPost("moved", null, first);
+        final Post deleted = createPost("deleted", null, first);
+        duringLoad = new Runnable() {
+            @Override
+            public void run() {
+                counters.postMoved(moved.getId(), ids(second));
+                counters.postDeleted(deleted.getId());
+            }
+        };
+
+        assertCounts(1, 0, 1);
+    }
+
+    @Test
+    public void reconcileReloadsTheCounters() {
+        createPost("post", null, first);
+        assertCounts(1, 1, 0);
+
+        counters.postDeleted(Long.MAX_VALUE);   // unknown post: ignored
+        counters.postsCreated(new long[] { Long.MAX_VALUE }, Collections.singletonList(ids(second)));
+        assertCounts(2, 1, 1);
+
+        inTransaction(new Callable<Void>() {
+            @Override
+            public Void call() {
+                counters.reconcile();
+                return null;
+            }
+        });
+        assertCounts(1, 1, 0);
+    }
+
+    private void assertCounts(final long total, final long inFirst, final long inSecond) {
+        inTransaction(new Callable<Void>() {
+            @Override
+            public Void call() {
+                assertEquals(total, counters.countAll());
+                assertEquals(inFirst, counters.countForCategory(first.getId()));
+                assertEquals(inSecond, counters.countForCategory(second.getId()));
+                return null;
+            }
+        });
+    }
+}
@@ -0,0 +1,138 @@
+package com.martinfilliau.javaeetrucs.services;
+
+import com.martinfilliau.javaeetrucs.data.Category;
+import com.martinfilliau.javaeetrucs.data.Post;
+import com.martinfilliau.javaeetrucs.services.utils.SeekCursor;
+import com.martinfilliau.javaeetrucs.services.utils.SeekPage;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Pages of posts (keyset pagination), most recent first
+ * @author martinfilliau
+ */
+public class PostPagesTest extends FixtureTestCase {
+
+    private static final long DAY = 86400000L;
+
+    private Category parent;
+
+    private Category child;
+
+    private Post elsewhere;
+
+    /**
+     * Ids of all the posts, most recent first
+     */
+    private final List<Long> newestFirst = new ArrayList<Long>();
+
+    @Before
+    public void setUp() {
+        parent = createCategory("parent", null);
+        child = createCategory("child", parent);
+        Category other = createCategory("other", null);
+        for (int i = 0; i < 7; i++) {
+            // two posts a day, so pages end in the middle of a day
+            Post p = createPost("post " + i, new Date(i / 2 * DAY), i % 2 == 0 ? parent : child);
+            newestFirst.add(0, p.getId());
+        }
+        elsewhere = createPost("elsewhere", new Date(DAY), other);
+    }
+
+    @Test
+    public void allPostsPageByPage() {
+        List<Long> all = allPostIds(100);
+        assertEquals(8, all.size());
+        assertEquals(all, allPostIds(1));
+        assertEquals(all, allPostIds(3));
+        all.remove(elsewhere.getId());
+        assertEquals(newestFirst, all);
+    }
+
+    @Test
+    public void postsOfSubtreePageByPage() {
+        assertEquals(newestFirst, postIdsOfSubtree(3));
+        assertEquals(newestFirst, postIdsOfSubtree(1));
+        assertEquals(newestFirst, postIdsOfSubtree(7));
+        assertEquals(newestFirst, postIdsOfSubtree(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void lastPageHasNoNext() {
+        SeekPage<Post> page = inTransaction(new Callable<SeekPage<Post>>() {
+            @Override
+            public SeekPage<Post> call() {
+                return blog.getPostsPageForCategoryAndChildren(parent.getId(), null, 7);
+            }
+        });
+        assertEquals(7, page.getResults().size());
+        assertNull(page.getNext());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyPage() {
+        blog.getPostsPage(null, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativePage() {
+        inTransaction(new Callable<SeekPage<Post>>() {
+            @Override
+            public SeekPage<Post> call() {
+                return blog.getPostsPageForCategoryAndChildren(parent.getId(), null, -1);
+            }
+        });
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyPageOfSubtree() {
+        blog.getPostsPageForCategoryAndChildren(parent.getId(), null, 0);
+    }
+
+    private List<Long> allPostIds(final int pageSize) {
+        List<Long> ids = new ArrayList<Long>();
+        SeekCursor cursor = null;
+        do {
+            final SeekCursor from = cursor;
+            SeekPage<Post> page = inTransaction(new Callable<SeekPage<Post>>() {
+                @Override
+                public SeekPage<Post> call() {
+                    return blog.getPostsPage(from, pageSize);
+                }
+            });
+            for (Post p : page.getResults()) {
+                ids.add(p.getId());
+            }
+            cursor = page.getNext();
+        } while (cursor != null);
+        return ids;
+    }
+
+    private List<Long> postIdsOfSubtree(final int pageSize) {
+        List<Long> ids = new ArrayList<Long>();
+        SeekCursor cursor = null;
+        do {
+            final SeekCursor from = cursor;
+            SeekPage<Post> page = inTransaction(new Callable<SeekPage<Post>>() {
+                @Override
+                public SeekPage<Post> call() {
+                    return blog.getPostsPageForCategoryAndChildren(parent.getId(), from, pageSize);
+                }
+            });
+            assertTrue(page.getResults().size() <= pageSize);
+            for (Post p : page.getResults()) {
+                ids.add(p.getId());
+            }
+            cursor = page.getNext();
+        } while (cursor != null);
+        return ids;
+    }
+}
@@ -0,0 +1,128 @@
+package com.martinfilliau.javaeetrucs.services;
+
+import com.martinfilliau.javaeetrucs.data.BaseEntity;
+import com.martinfilliau.javaeetrucs.data.Category;
+import com.martinfilliau.javaeetrucs.data.Post;
+import com.martinfilliau.javaeetrucs.data.PostSummary;
+import com.martinfilliau.javaeetrucs.services.search.SearchHit;
+import com.martinfilliau.javaeetrucs.services.utils.FetchPlan;
+import com.martinfilliau.javaeetrucs.services.utils.ResultHandler;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Full-text search of the posts (see {@link PostSearch})
+ * @author martinfilliau
+ */
+public class PostSearchTest extends FixtureTestCase {
+
+    /**
+     * Run once while the index is built, after the database is read:
+     * as a transaction committed meanwhile
+     */
+    private Runnable duringBuild;
+
+    @Override
+    protected CrudService newCrudService() {
+        return new CrudService() {
+            @Override
+            public <T extends BaseEntity> long streamAll(Class<T> type, int fetchSize, ResultHandler<T> handler) {
+                long count = super.streamAll(type, fetchSize, handler);
+                if (duringBuild != null) {
+                    Runnable committed = duringBuild;
+                    duringBuild = null;
+                    committed.run();
+                }
+                return count;
+            }
+        };
+    }
+
+    @Test
+    public void searchKeepsEntitiesOfTheCallerManaged() {
+        Category category = createCategory("category", null);
+        final Post post = createPost("first post", null, category);
+        for (int i = 0; i < 100; i++) {     // building the index clears the session every 100 posts
+            createPost("other " + i, null, category);
+        }
+
+        boolean managed = inTransaction(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                Post loaded = crud.get(Post.class, post.getId(), FetchPlan.NONE);
+                assertEquals(1, blog.searchPosts("first", null, 10).size());
+                return fixture.getEntityManager().contains(loaded);
+            }
+        });
+        assertTrue("search cleared the persistence context of the caller", managed);
+    }
+
+    @Test
+    public void unboundedMaxResults() {
+        final Category category = createCategory("category", null);
+        createPost("first post", null, category);
+        createPost("second post", null, category);
+
+        List<PostSummary> hits = inTransaction(new Callable<List<PostSummary>>() {
+            @Override
+            public List<PostSummary> call() {
+                return blog.searchPosts("post", category.getId(), Integer.MAX_VALUE);
+            }
+        });
+        assertEquals(2, hits.size());
+    }
+
+    @Test
+    public void postSavedDuringRebuild() {
+        Category category = createCategory("category", null);
+        Post post = createPost("first post", null, category);
+        final PostSearch search = fixture.getBean(PostSearch.class);
+        final long lateId = post.getId() + 1000;    // committed after the rebuild read the database
+        duringBuild = new Runnable() {
+            @Override
+            public void run() {
+                search.postSaved(lateId, 0, "late post", null, Collections.<Long>emptyList());
+            }
+        };
+
+        inTransaction(new Callable<Void>() {
+            @Override
+            public Void call() {
+                search.rebuild();
+                return null;
+            }
+        });
+        List<SearchHit> hits = search.search("late", null, 10);
+        assertEquals(1, hits.size());
+        assertEquals(lateId, hits.get(0).getPostId());
+    }
+
+    @Test
+    public void outdatedSnapshotIsRebuilt() {
+        Category category = createCategory("category", null);
+        final Post post = createPost("first post", null, category);
+        final PostSearch search = fixture.getBean(PostSearch.class);
+        search.saveSnapshot();
+        inTransaction(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                // the index is not told, as when the application is stopped
+                return crud.updateFields(Post.class, post.getId(), null, Collections.singletonMap("name", "renamed"));
+            }
+        });
+
+        inTransaction(new Callable<Void>() {
+            @Override
+            public Void call() {
+                search.open();
+                return null;
+            }
+        });
+        assertEquals(1, search.search("renamed", null, 10).size());
+    }
+}
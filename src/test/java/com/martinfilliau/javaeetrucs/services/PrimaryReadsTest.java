@@ -0,0 +1,158 @@
+package com.martinfilliau.javaeetrucs.services;
+
+import com.martinfilliau.javaeetrucs.data.Category;
+import com.martinfilliau.javaeetrucs.data.Post;
+import com.martinfilliau.javaeetrucs.data.PostSummary;
+import com.martinfilliau.javaeetrucs.services.utils.ReadOptions;
+import com.martinfilliau.javaeetrucs.services.utils.ReadPolicy;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import javax.persistence.criteria.CriteriaQuery;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * In-memory indexes and caches loaded while every read may go to a replica
+ * which has not received the last writes: their loads read the primary
+ * @author martinfilliau
+ */
+public class PrimaryReadsTest extends FixtureTestCase {
+
+    private Category category;
+
+    private Post post;
+
+    @Before
+    public void setUp() {
+        fixture.syncReplica();      // empty
+        fixture.getBean(ReadRouter.class).setPolicy(ReadPolicy.ALWAYS);
+        category = createCategory("category", null);
+        post = createPost("post", new Date(), category);
+    }
+
+    @Test
+    public void replicaIsBehind() {
+        assertNull(inTransaction(new Callable<Category>() {
+            @Override
+            public Category call() {
+                return crud.get(Category.class, category.getId(), ReadOptions.READ_ONLY);
+            }
+        }));
+    }
+
+    @Test
+    public void criteriaQueries() {
+        final CriteriaQuery<Category> query = fixture.getEntityManager().getCriteriaBuilder().createQuery(Category.class);
+        query.from(Category.class);
+        assertEquals(0, inTransaction(new Callable<List<Category>>() {
+            @Override
+            public List<Category> call() {
+                return crud.findWithCriteriaQuery(query, ReadOptions.READ_ONLY);
+            }
+        }).size());
+        assertEquals(category.getId(), inTransaction(new Callable<Category>() {
+            @Override
+            public Category call() {
+                return crud.findSingleWithCriteriaQuery(query);
+            }
+        }).getId());
+    }
+
+    @Test
+    public void managedEntitiesComeFromThePrimary() {
+        assertTrue(inTransaction(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                Category loaded = crud.get(Category.class, category.getId());
+                return loaded != null && fixture.getEntityManager().contains(loaded);
+            }
+        }));
+    }
+
+    @Test
+    public void categoryTree() {
+        assertTrue(inTransaction(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return fixture.getBean(CategoryTreeCache.class).getTree().contains(category.getId());
+            }
+        }));
+    }
+
+    @Test
+    public void indexesAndCounters() {
+        inTransaction(new Callable<Void>() {
+            @Override
+            public Void call() {
+                assertEquals(Arrays.asList(post.getId()), fixture.getBean(PostCategoryIndex.class).getPostIds(ids(category)));
+                Calendar tomorrow = Calendar.getInstance();
+                tomorrow.add(Calendar.DAY_OF_MONTH, 1);
+                assertEquals(Arrays.asList(post.getId()),
+                        fixture.getBean(ArchiveIndex.class).getPostIds(new Date(0), tomorrow.getTime(), null, 10));
+                assertEquals(1, fixture.getBean(PostCounters.class).countForCategory(category.getId()));
+                return null;
+            }
+        });
+    }
+
+    @Test
+    public void latestPosts() {
+        List<PostSummary> latest = inTransaction(new Callable<List<PostSummary>>() {
+            @Override
+            public List<PostSummary> call() {
+                return blog.getLatestPostSummaries(category.getId(), 10);
+            }
+        });
+        assertEquals(1, latest.size());
+        assertEquals(post.getId(), latest.get(0).getId());
+        assertEquals(ids(category), latest.get(0).getCategoryIds());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeLatestPostsLimit() {
+        blog.getLatestPostSummaries(category.getId(), -1);
+    }
+
+    @Test
+    public void postMoved() {
+        Category other = createCategory("other", null);
+        post.setCategories(Arrays.asList(other));
+        inTransaction(new Callable<Post>() {
+            @Override
+            public Post call() {
+                return blog.updatePost(post);
+            }
+        });
+        assertEquals(0, blog.countPostsForCategory(category.getId()));
+        assertEquals(1, blog.countPostsForCategory(other.getId()));
+    }
+
+    @Test
+    public void postFieldsUpdated() {
+        final Map<String, Object> changes = new HashMap<String, Object>();
+        changes.put("name", "renamed");
+        changes.put("description", "described");
+        assertTrue(inTransaction(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return blog.updatePostFields(post.getId(), null, changes);
+            }
+        }));
+        List<PostSummary> latest = inTransaction(new Callable<List<PostSummary>>() {
+            @Override
+            public List<PostSummary> call() {
+                return blog.getLatestPostSummaries(category.getId(), 10);
+            }
+        });
+        assertEquals("renamed", latest.get(0).getName());
+    }
+}
@@ -0,0 +1,61 @@
+package com.martinfilliau.javaeetrucs.services;
+
+import com.martinfilliau.javaeetrucs.data.Category;
+import com.martinfilliau.javaeetrucs.services.utils.ReadOptions;
+import com.martinfilliau.javaeetrucs.services.utils.ReadPolicy;
+import com.martinfilliau.javaeetrucs.services.utils.ReadSession;
+import java.util.concurrent.Callable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Read-only reads sent to a replica which has not received the last writes,
+ * with the READ_YOUR_WRITES policy
+ * @author martinfilliau
+ */
+public class ReadRouterTest extends FixtureTestCase {
+
+    @Before
+    public void setUp() {
+        fixture.syncReplica();      // empty
+        fixture.getBean(ReadRouter.class).setPolicy(ReadPolicy.READ_YOUR_WRITES);
+        fixture.getBean(ReadRouter.class).setLagMillis(60 * 1000);
+    }
+
+    @After
+    public void tearDown() {
+        ReadSession.leave();
+    }
+
+    @Test
+    public void sessionReadsItsWritesOthersReadTheReplica() {
+        ReadSession.enter("writer");
+        Category category = createCategory("category", null);
+        assertNotNull("writer", readOnly(category.getId()));
+
+        ReadSession.enter("reader");
+        assertNull("other anonymous session", readOnly(category.getId()));
+    }
+
+    @Test
+    public void callsWithoutSessionShareTheirPrincipal() {
+        Category category = createCategory("category", null);
+        assertNotNull(readOnly(category.getId()));
+
+        ReadSession.enter("reader");
+        assertNull(readOnly(category.getId()));
+    }
+
+    private Category readOnly(final long categoryId) {
+        return inTransaction(new Callable<Category>() {
+            @Override
+            public Category call() {
+                return crud.get(Category.class, categoryId, ReadOptions.READ_ONLY);
+            }
+        });
+    }
+}
@@ -0,0 +1,217 @@
+package com.martinfilliau.javaeetrucs.services;
+
+import com.martinfilliau.javaeetrucs.data.BaseEntity;
+import com.martinfilliau.javaeetrucs.data.Category;
+import com.martinfilliau.javaeetrucs.data.NotLoadedList;
+import com.martinfilliau.javaeetrucs.data.Post;
+import com.martinfilliau.javaeetrucs.services.utils.FetchPlan;
+import com.martinfilliau.javaeetrucs.services.utils.QueryParameter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import org.hibernate.LazyInitializationException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Entities serialized (see ExternalFormat), then merged back
+ * @author martinfilliau
+ */
+public class SerializedEntityMergeTest extends FixtureTestCase {
+
+    @Test
+    public void roundTripKeepsFieldsAndReferences() throws Exception {
+        Category category = createCategory("category", null);
+        Post post = createPost("post", new Date(86400000L), category);
+
+        Post copy = copy(load(Post.class, post.getId(), FetchPlan.named("withCategories").batch("categories")));
+        assertEquals(post.getId(), copy.getId());
+        assertEquals("post", copy.getName());
+        assertEquals("Description of post", copy.getDescription());
+        assertEquals(86400000L, copy.getPublishedAt().getTime());
+        assertEquals(1, copy.getCategories().size());
+        assertEquals(category.getId(), copy.getCategories().get(0).getId());
+        assertTrue(copy.getCategories().get(0).isReference());
+        assertFalse(copy.isReference());
+    }
+
+    @Test
+    public void lazyCollectionIsUnknownNotEmpty() throws Exception {
+        Category category = createCategory("category", null);
+        Post post = createPost("post", null, category);
+
+        Post copy = copy(load(Post.class, post.getId(), FetchPlan.NONE));
+        assertTrue(copy.getCategories() instanceof NotLoadedList);
+        try {
+            copy.getCategories().size();
+            fail("categories were not loaded");
+        } catch (LazyInitializationException expected) {
+        }
+        assertTrue("still unknown once serialized again", copy(copy).getCategories() instanceof NotLoadedList);
+    }
+
+    @Test
+    public void postWithLazyCategoriesIsNotMerged() throws Exception {
+        Category category = createCategory("category", null);
+        Post post = createPost("post", null, category);
+
+        final Post copy = copy(load(Post.class, post.getId(), FetchPlan.NONE));
+        copy.setName("renamed");
+        try {
+            inTransaction(new Callable<Post>() {
+                @Override
+                public Post call() {
+                    return blog.updatePost(copy);
+                }
+            });
+            fail("merged without its categories");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(ids(category), getCategoryIds(post.getId()));
+        assertEquals(1, blog.countPostsForCategory(category.getId()));
+        assertEquals("post", find(Post.class, post.getId()).getName());
+    }
+
+    @Test
+    public void postWithLoadedCategoriesIsMerged() throws Exception {
+        Category category = createCategory("category", null);
+        Post post = createPost("post", null, category);
+
+        final Post copy = copy(load(Post.class, post.getId(), FetchPlan.named("withCategories").batch("categories")));
+        copy.setName("renamed");
+        inTransaction(new Callable<Post>() {
+            @Override
+            public Post call() {
+                return blog.updatePost(copy);
+            }
+        });
+        assertEquals(ids(category), getCategoryIds(post.getId()));
+        assertEquals(1, blog.countPostsForCategory(category.getId()));
+        assertEquals("renamed", find(Post.class, post.getId()).getName());
+    }
+
+    @Test
+    public void categoryWithLazyChildrenIsNotMerged() throws Exception {
+        Category parent = createCategory("parent", null);
+        Category child = createCategory("child", parent);
+
+        final Category copy = copy(load(Category.class, parent.getId(), FetchPlan.NONE));
+        assertTrue(copy.getChildren() instanceof NotLoadedList);
+        copy.setName("renamed");
+        assertNotMerged(copy);
+        assertEquals(parent.getId(), getParentId(child.getId()));
+    }
+
+    @Test
+    public void categoryWithChildReferencesIsNotMerged() throws Exception {
+        Category parent = createCategory("parent", null);
+        Category child = createCategory("child", parent);
+
+        final Category copy = copy(load(Category.class, parent.getId(),
+                FetchPlan.named("withChildrenAndPosts").batch("children").batch("posts")));
+        assertEquals(1, copy.getChildren().size());
+        assertTrue(copy.getChildren().get(0).isReference());
+        copy.setName("renamed");
+        assertNotMerged(copy);
+        assertEquals(parent.getId(), getParentId(child.getId()));
+        assertEquals("child", find(Category.class, child.getId()).getName());
+    }
+
+    private void assertNotMerged(final Category copy) {
+        try {
+            inTransaction(new Callable<Category>() {
+                @Override
+                public Category call() {
+                    return blog.updateCategory(copy);
+                }
+            });
+            fail("merged from references");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    /**
+     * Load an entity and serialize it in the transaction, lazy associations not initialized
+     */
+    private <T extends BaseEntity> byte[] load(final Class<T> type, final Long id, final FetchPlan plan) throws Exception {
+        return inTransaction(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                return serialize(crud.get(type, id, plan));
+            }
+        });
+    }
+
+    private <T extends BaseEntity> T find(final Class<T> type, final Long id) {
+        return inTransaction(new Callable<T>() {
+            @Override
+            public T call() {
+                return crud.get(type, id, FetchPlan.NONE);
+            }
+        });
+    }
+
+    private List<Long> getCategoryIds(final long postId) {
+        return inTransaction(new Callable<List<Long>>() {
+            @Override
+            public List<Long> call() {
+                List<Object[]> rows = crud.findWithNamedQuery(Post.QUERY_GET_CATEGORY_IDS,
+                        QueryParameter.with("posts", Collections.singletonList(postId)));
+                List<Long> ids = new ArrayList<Long>();
+                for (Object[] row : rows) {
+                    ids.add((Long) row[1]);
+                }
+                return ids;
+            }
+        });
+    }
+
+    private Long getParentId(final long categoryId) {
+        return inTransaction(new Callable<Long>() {
+            @Override
+            public Long call() {
+                List<Object[]> rows = crud.findWithNamedQuery(Category.QUERY_GET_TREE);
+                for (Object[] row : rows) {
+                    if (row[0].equals(categoryId)) {
+                        return (Long) row[1];
+                    }
+                }
+                fail("no category " + categoryId);
+                return null;
+            }
+        });
+    }
+
+    private static byte[] serialize(Object o) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(o);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T copy(byte[] bytes) throws IOException, ClassNotFoundException {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        try {
+            return (T) in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static <T> T copy(T entity) throws IOException, ClassNotFoundException {
+        return SerializedEntityMergeTest.<T>copy(serialize(entity));
+    }
+}
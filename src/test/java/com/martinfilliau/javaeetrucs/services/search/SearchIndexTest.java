@@ -0,0 +1,101 @@
+package com.martinfilliau.javaeetrucs.services.search;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Updates, compaction and snapshots of a {@link SearchIndex}
+ * @author martinfilliau
+ */
+public class SearchIndexTest {
+
+    @Test
+    public void olderVersionIsIgnored() {
+        SearchIndex index = new SearchIndex();
+        index.put(1, 2, "current", null, null);
+        index.put(1, 1, "stale", null, null);
+        assertEquals(1, index.search("current", null, 10).size());
+        assertEquals(0, index.search("stale", null, 10).size());
+    }
+
+    @Test
+    public void compactionKeepsLivePosts() {
+        SearchIndex index = new SearchIndex();
+        for (long id = 0; id < 10; id++) {
+            index.put(id, 0, "post " + id, null, Arrays.asList(id % 2));
+        }
+        for (int version = 1; version <= 300; version++) {     // 3000 documents, all but 10 deleted
+            for (long id = 0; id < 10; id++) {
+                index.put(id, version, "post item" + id + " version" + version, null, Arrays.asList(id % 2));
+            }
+        }
+        assertEquals(10, index.size());
+        assertEquals(10, index.search("post", null, 100).size());
+        assertEquals(0, index.search("version299", null, 100).size());
+        assertEquals(5, index.search("version300", Arrays.asList(1L), 100).size());
+        assertEquals(Arrays.asList(7L), postIds(index.search("item7", null, 100)));
+
+        index.remove(3);
+        assertEquals(9, index.search("post", null, 100).size());
+    }
+
+    @Test
+    public void snapshotRoundTrip() throws IOException {
+        SearchIndex index = new SearchIndex();
+        index.put(1, 1, "first post", "about java", Arrays.asList(10L));
+        index.put(2, 4, "second post", "about python", Arrays.asList(20L));
+        index.put(3, 1, "third post", null, Collections.<Long>emptyList());
+        index.put(2, 5, "second post", "about java and python", Arrays.asList(10L, 20L));
+        index.remove(3);
+
+        File file = File.createTempFile("javaeetrucs-search", ".idx");
+        try {
+            index.save(file);
+            SearchIndex loaded = SearchIndex.load(file);
+            assertEquals(index.size(), loaded.size());
+            for (String query : new String[] { "java", "python", "post", "third" }) {
+                assertEquals(query, scores(index.search(query, null, 10)), scores(loaded.search(query, null, 10)));
+            }
+            assertEquals(Arrays.asList(2L), postIds(loaded.search("python", Arrays.asList(10L), 10)));
+
+            Map<Long, Long> versions = new HashMap<Long, Long>();
+            versions.put(1L, 1L);
+            versions.put(2L, 5L);
+            assertTrue(loaded.hasVersions(versions));
+            versions.put(2L, 6L);
+            assertFalse("updated", loaded.hasVersions(versions));
+            versions.put(2L, 5L);
+            versions.put(3L, 1L);
+            assertFalse("missing", loaded.hasVersions(versions));
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static List<Long> postIds(List<SearchHit> hits) {
+        List<Long> ids = new ArrayList<Long>();
+        for (SearchHit hit : hits) {
+            ids.add(hit.getPostId());
+        }
+        return ids;
+    }
+
+    private static List<String> scores(List<SearchHit> hits) {
+        List<String> scores = new ArrayList<String>();
+        for (SearchHit hit : hits) {
+            scores.add(hit.getPostId() + ":" + hit.getScore());
+        }
+        return scores;
+    }
+}
@@ -0,0 +1,113 @@
+package com.martinfilliau.javaeetrucs.services.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Segments, versions and mappings of a {@link DescriptionStore}
+ * @author martinfilliau
+ */
+public class DescriptionStoreTest {
+
+    private File directory;
+
+    private DescriptionStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("javaeetrucs-descriptions", "");
+        directory.delete();
+        store = DescriptionStore.open(directory, 1024 * 1024, 1024 * 1024);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        store.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void postWithoutDescriptionIsStoredAgainOnceUpdated() throws IOException {
+        assertTrue(store.put(1, 0, null));
+        assertNull(store.getString(1));
+        assertFalse("same version", store.put(1, 0, null));
+        assertTrue(store.put(1, 1, "described"));
+        assertEquals("described", store.getString(1));
+    }
+
+    @Test
+    public void postWithoutDescriptionIsKeptOnReopen() throws IOException {
+        store.put(1, 3, null);
+        store.close();
+        store = DescriptionStore.open(directory, 1024 * 1024, 1024 * 1024);
+        assertFalse("older version", store.put(1, 2, "stale"));
+        assertNull(store.getString(1));
+    }
+
+    @Test
+    public void segmentBeingWrittenIsNotMappedAgainForEachRecord() throws IOException {
+        String first = new String(new char[200]).replace('\0', 'a');
+        store.put(1, 0, first);
+        assertEquals(first, store.getString(1));
+        long mapped = store.getMappedBytes();
+        assertTrue(mapped > 0);
+
+        store.put(2, 0, "second");
+        assertEquals("second", store.getString(2));
+        assertEquals("read with a copy", mapped, store.getMappedBytes());
+
+        for (int i = 3; store.getFileBytes() < 2 * mapped; i++) {
+            store.put(i, 0, "post " + i);
+        }
+        assertEquals("second", store.getString(2));
+        assertEquals("mapped again once doubled", store.getFileBytes(), store.getMappedBytes());
+    }
+
+    @Test
+    public void outdatedDescriptionsAreForgottenOnReconcile() throws IOException {
+        store.put(1, 1, "current");
+        store.put(2, 1, "updated elsewhere");
+        store.put(3, 1, "deleted elsewhere");
+        Map<Long, Long> versions = new HashMap<Long, Long>();
+        versions.put(1L, 1L);
+        versions.put(2L, 2L);
+        assertEquals(2, store.reconcile(versions));
+        assertEquals("current", store.getString(1));
+        assertNull(store.getString(2));
+        assertNull(store.getString(3));
+        assertFalse("removed", store.put(3, 1, "deleted elsewhere"));
+
+        store.close();
+        store = DescriptionStore.open(directory, 1024 * 1024, 1024 * 1024);
+        assertEquals("outdated again", "updated elsewhere", store.getString(2));
+        assertEquals(1, store.reconcile(versions));
+        assertTrue(store.put(2, 2, "updated"));
+        assertEquals("updated", store.getString(2));
+    }
+
+    @Test
+    public void compactionKeepsCurrentRecords() throws IOException {
+        store.delete();
+        store = DescriptionStore.open(directory, 256, 1024 * 1024);
+        for (int i = 0; i < 20; i++) {
+            store.put(i % 4, i, "version " + i);
+        }
+        assertTrue(store.compact(0.5) > 0);
+        for (int i = 16; i < 20; i++) {
+            assertEquals("version " + i, store.getString(i % 4));
+        }
+        store.close();
+        store = DescriptionStore.open(directory, 256, 1024 * 1024);
+        assertEquals("version 19", store.getString(3));
+    }
+}
@@ -0,0 +1,147 @@
+package com.martinfilliau.javaeetrucs.services.utils;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Conversions between the array and bitmap groups of a {@link CompressedBitmap},
+ * and operations over several groups
+ * @author martinfilliau
+ */
+public class CompressedBitmapTest {
+
+    private static final long GROUP = 1L << 16;
+
+    @Test
+    public void arrayBecomesBitmapPastArrayMax() {
+        SortedSet<Long> expected = new TreeSet<Long>();
+        CompressedBitmap bitmap = CompressedBitmap.EMPTY;
+        for (long value = 0; value < CompressedBitmap.ARRAY_MAX; value++) {
+            bitmap = bitmap.with(value * 3);
+            expected.add(value * 3);
+        }
+        assertValues(expected, bitmap);
+        assertSame(bitmap, bitmap.with(3));
+
+        bitmap = bitmap.with(1);         // array full: converted to a bitmap
+        expected.add(1L);
+        assertValues(expected, bitmap);
+        assertFalse(bitmap.contains(2));
+
+        bitmap = bitmap.with(2);
+        expected.add(2L);
+        assertValues(expected, bitmap);
+    }
+
+    @Test
+    public void bitmapBecomesArrayAtArrayMax() {
+        SortedSet<Long> expected = new TreeSet<Long>();
+        for (long value = 0; value <= CompressedBitmap.ARRAY_MAX + 1; value++) {
+            expected.add(value * 2);
+        }
+        CompressedBitmap bitmap = CompressedBitmap.of(toArray(expected));
+        assertValues(expected, bitmap);
+        assertSame(bitmap, bitmap.without(1));
+
+        bitmap = bitmap.without(0);     // still a bitmap, ARRAY_MAX + 1 values
+        expected.remove(0L);
+        assertValues(expected, bitmap);
+
+        bitmap = bitmap.without(10);    // converted to an array
+        expected.remove(10L);
+        assertValues(expected, bitmap);
+        assertFalse(bitmap.contains(10));
+
+        bitmap = bitmap.without(12).with(11);
+        expected.remove(12L);
+        expected.add(11L);
+        assertValues(expected, bitmap);
+    }
+
+    @Test
+    public void ofCountsDuplicatesOnce() {
+        long[] values = new long[CompressedBitmap.ARRAY_MAX * 2];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i / 2;          // ARRAY_MAX distinct values: an array
+        }
+        CompressedBitmap bitmap = CompressedBitmap.of(values);
+        assertEquals(CompressedBitmap.ARRAY_MAX, bitmap.cardinality());
+        assertTrue(bitmap.contains(CompressedBitmap.ARRAY_MAX - 1));
+        assertFalse(bitmap.contains(CompressedBitmap.ARRAY_MAX));
+    }
+
+    @Test
+    public void orMergesGroups() {
+        SortedSet<Long> sparse = new TreeSet<Long>();
+        SortedSet<Long> dense = new TreeSet<Long>();
+        for (long value = 0; value < 100; value++) {
+            sparse.add(value * 7);                      // group 0, array
+            sparse.add(3 * GROUP + value);              // group 3, array
+        }
+        for (long value = 0; value < CompressedBitmap.ARRAY_MAX; value++) {
+            dense.add(3 * GROUP + 2 * value + 1);       // group 3, array before the merge
+            dense.add(5 * GROUP + value);               // group 5, array
+        }
+        dense.add(Long.MAX_VALUE);                      // last group
+
+        CompressedBitmap merged = CompressedBitmap.or(Arrays.asList(CompressedBitmap.of(toArray(sparse)), CompressedBitmap.of(toArray(dense))));
+        SortedSet<Long> expected = new TreeSet<Long>(sparse);
+        expected.addAll(dense);
+        assertValues(expected, merged);
+        assertFalse(merged.contains(GROUP));
+        assertFalse(merged.contains(4 * GROUP));
+
+        CompressedBitmap single = CompressedBitmap.of(toArray(sparse));
+        assertSame(single, CompressedBitmap.or(Arrays.asList(single)));
+        assertTrue(CompressedBitmap.or(Arrays.<CompressedBitmap>asList()).isEmpty());
+    }
+
+    @Test
+    public void withoutRemovesEmptiedGroups() {
+        CompressedBitmap bitmap = CompressedBitmap.of(1, GROUP + 1, 2 * GROUP + 1, 2 * GROUP + 2);
+
+        bitmap = bitmap.without(GROUP + 1);     // middle group emptied
+        assertArrayEquals(new long[] { 1, 2 * GROUP + 1, 2 * GROUP + 2 }, bitmap.toArray());
+        assertFalse(bitmap.contains(GROUP + 1));
+        assertSame(bitmap, bitmap.without(GROUP + 1));
+
+        bitmap = bitmap.without(1);             // first group emptied
+        assertArrayEquals(new long[] { 2 * GROUP + 1, 2 * GROUP + 2 }, bitmap.toArray());
+
+        bitmap = bitmap.with(GROUP).without(2 * GROUP + 1).without(2 * GROUP + 2);
+        assertArrayEquals(new long[] { GROUP }, bitmap.toArray());
+        assertTrue(bitmap.without(GROUP).isEmpty());
+        assertSame(bitmap, bitmap.without(-1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeValue() {
+        CompressedBitmap.of(1, -1);
+    }
+
+    private static void assertValues(SortedSet<Long> expected, CompressedBitmap bitmap) {
+        assertEquals(expected.size(), bitmap.cardinality());
+        assertArrayEquals(toArray(expected), bitmap.toArray());
+        for (long value : expected) {
+            assertTrue(String.valueOf(value), bitmap.contains(value));
+        }
+    }
+
+    private static long[] toArray(SortedSet<Long> values) {
+        long[] array = new long[values.size()];
+        Iterator<Long> it = values.iterator();
+        for (int i = 0; i < array.length; i++) {
+            array[i] = it.next();
+        }
+        return array;
+    }
+}